@@ -0,0 +1,28 @@
+package nablarch.fw.messaging;
+
+import nablarch.core.util.annotation.Published;
+
+/**
+ * メッセージングサーバから配信されたメッセージを受け取るためのインターフェイス。
+ * <p/>
+ * {@link MessagingContext#addMessageListener(String, MessageListener)}で受信キューに登録すると、
+ * 受信キューにメッセージが到着するたびに、プロバイダが管理するスレッドから
+ * {@link #onMessage(ReceivedMessage)}が呼び出される。
+ * <p/>
+ * 本メソッドの処理が完了するまで、同一のリスナーに対する次のメッセージの配信は行われない。
+ * このため、本メソッド内で待機することで、メッセージングサーバからの配信を抑制(フロー制御)することができる。
+ *
+ * @see MessagingContext#addMessageListener(String, MessageListener)
+ */
+@Published(tag = "architect")
+public interface MessageListener {
+
+    /**
+     * 配信されたメッセージを受け取る。
+     * <p/>
+     * 本メソッドが例外を送出した場合、プロバイダは当該メッセージの確認応答を行わない。
+     *
+     * @param message 受信したメッセージ
+     */
+    void onMessage(ReceivedMessage message);
+}
@@ -3,6 +3,8 @@ package nablarch.fw.messaging;
 import static nablarch.core.util.StringUtil.isNullOrEmpty;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 
 import nablarch.core.log.Logger;
 import nablarch.core.log.LoggerManager;
@@ -54,13 +56,41 @@ public abstract class MessagingContext implements Closeable {
     
     /**
      * カレントスレッドにメッセージコンテキストを紐づける。
+     * <p/>
+     * {@code null}を指定した場合は、カレントスレッドとの紐づけを解除する。
+     * (スレッドローカル変数上にエントリを残さない。)
      * 
      * @param context カレントスレッドに紐づけるメッセージングコンテキスト
      */
     public static void attach(MessagingContext context) {
+        if (context == null) {
+            CONTEXT_FOR_EACH_THREAD.remove();
+            return;
+        }
         CONTEXT_FOR_EACH_THREAD.set(context);
     }
     
+    /**
+     * 指定したメッセージングコンテキストをカレントスレッドに紐づけた状態で処理を実行する。
+     * <p/>
+     * 処理の終了後は、カレントスレッドの紐づけを実行前の状態に戻す。
+     * メッセージングコンテキストは閉じないため、呼び出し元で閉じること。<br/>
+     * 仮想スレッドのように短命なスレッドを大量に生成する場合でも、
+     * スレッドローカル変数上にエントリを残さずに使用することができる。
+     * 
+     * @param context カレントスレッドに紐づけるメッセージングコンテキスト
+     * @param task 実行する処理
+     */
+    public static void runWith(MessagingContext context, Runnable task) {
+        MessagingContext previous = CONTEXT_FOR_EACH_THREAD.get();
+        attach(context);
+        try {
+            task.run();
+        } finally {
+            attach(previous);
+        }
+    }
+    
     /**
      * カレントスレッド上のメッセージコンテキストを閉じた上で除去する。
      * メッセージングコンテキストがカレントスレッド上に存在しない場合はなにもしない。
@@ -88,6 +118,28 @@ public abstract class MessagingContext implements Closeable {
         return messageId;
     }
     
+    /**
+     * 複数のメッセージを一括で送信する。
+     * <p/>
+     * メッセージは指定した順序で送信し、送信後にメッセージ毎に証跡ログを出力する。
+     * 送信処理は{@link #sendMessages(List)}で行うため、一括送信の機能を持つプロバイダでは、
+     * 確認応答の往復やディスクへの書き出しなどの送信毎のオーバーヘッドをまとめることができる。
+     * <p/>
+     * 送信中に例外が発生した場合、それまでに送信したメッセージが送信済みとなるか否かはプロバイダに依存する。
+     * 
+     * @param messages 送信メッセージ
+     * @return 送信メッセージのメッセージID(送信メッセージと同じ順序)
+     */
+    public List<String> send(List<SendingMessage> messages) {
+        List<String> messageIds = sendMessages(messages);
+        if (LOGGER.isInfoEnabled()) {
+            for (SendingMessage message : messages) {
+                emitLog(message);
+            }
+        }
+        return messageIds;
+    }
+    
     /**
      * メッセージの同期送信を行う。
      * 
@@ -197,8 +249,141 @@ public abstract class MessagingContext implements Closeable {
         }
         return received;
     }
-    
-    
+
+    /**
+     * 指定した受信キュー上のメッセージを、最大件数まで一括で取得する。
+     * <p/>
+     * 1件目のメッセージは、メッセージを受信するか、指定した時間が経過するまでブロックする。
+     * 1件目のメッセージを受信した後は、最大件数に達するか、
+     * 1件目の受信から受信待ち時間が経過するまでメッセージを取得する。
+     * 受信待ち時間に0以下の数値を設定した場合は、キュー上に存在するメッセージのみを取得する。
+     * <p/>
+     * デフォルト実装では{@link #receiveSync(String, long)}を繰り返し呼び出すため、
+     * 受信したメッセージ毎に証跡ログが出力される。
+     * 一括受信の機能を持つプロバイダは、本メソッドをオーバーライドしてもよい。
+     *
+     * @param receiveQueue 受信キューの論理名
+     * @param maxMessages  取得するメッセージの最大件数
+     * @param timeout      1件目のメッセージの受信タイムアウト
+     *                      (単位：ミリ秒、0以下の数値の場合はブロックし続ける)
+     * @param batchWindow  1件目の受信後、後続のメッセージを待機する時間(単位：ミリ秒)
+     * @return 受信したメッセージ（タイムアウトした場合は空のリスト）
+     */
+    public List<ReceivedMessage>
+    receiveBatch(String receiveQueue, int maxMessages, long timeout, long batchWindow) {
+        if (maxMessages <= 0) {
+            throw new IllegalArgumentException(
+                "maxMessages must be greater than 0. maxMessages = [" + maxMessages + "]");
+        }
+        List<ReceivedMessage> received = new ArrayList<ReceivedMessage>(Math.min(maxMessages, 64));
+        ReceivedMessage first = receiveSync(receiveQueue, timeout);
+        if (first == null) {
+            return received;
+        }
+        received.add(first);
+        long deadline = System.currentTimeMillis() + batchWindow;
+        while (received.size() < maxMessages) {
+            long remaining = deadline - System.currentTimeMillis();
+            ReceivedMessage message = receiveSync(receiveQueue, Math.max(remaining, RECEIVE_NO_WAIT));
+            if (message == null) {
+                break;
+            }
+            received.add(message);
+        }
+        return received;
+    }
+
+    /**
+     * 指定した受信キューにメッセージリスナーを登録する。
+     * <p/>
+     * 受信キューにメッセージが到着すると、プロバイダが管理するスレッドから
+     * リスナーが呼び出される。
+     * 受信したメッセージの証跡ログは、リスナーを呼び出す前に出力する。
+     * <p/>
+     * メッセージの確認応答は、{@link #acknowledge(ReceivedMessage)}で行う。
+     * リスナーを使用する場合、確認応答はリスナーを呼び出したスレッド以外から行われる可能性があるため、
+     * プロバイダは任意のスレッドからの確認応答を受け付けられなければならない。
+     *
+     * @param receiveQueue 受信キューの論理名
+     * @param listener メッセージリスナー
+     * @throws UnsupportedOperationException プロバイダがメッセージリスナーをサポートしていない場合
+     */
+    public void addMessageListener(String receiveQueue, final MessageListener listener) {
+        registerMessageListener(receiveQueue, new MessageListener() {
+            @Override
+            public void onMessage(ReceivedMessage message) {
+                if (LOGGER.isInfoEnabled()) {
+                    emitLog(message);
+                }
+                listener.onMessage(message);
+            }
+        });
+    }
+
+    /**
+     * 指定した受信キューに登録したメッセージリスナーを解除する。
+     * <p/>
+     * 本メソッドの終了後、リスナーは呼び出されない。
+     *
+     * @param receiveQueue 受信キューの論理名
+     * @throws UnsupportedOperationException プロバイダがメッセージリスナーをサポートしていない場合
+     */
+    public void removeMessageListener(String receiveQueue) {
+        unregisterMessageListener(receiveQueue);
+    }
+
+    /**
+     * 受信したメッセージの処理が完了したことをメッセージングサーバに通知する。
+     * <p/>
+     * メッセージの受信時に確認応答を行うプロバイダでは何もしない。(デフォルト実装)<br/>
+     * 処理の完了後に確認応答を行うプロバイダは、本メソッドをオーバーライドすること。<br/>
+     * 本メソッドは、当該メッセージを受信したコンテキストに対して呼び出す必要がある。
+     *
+     * @param message 処理が完了した受信メッセージ
+     */
+    public void acknowledge(ReceivedMessage message) {
+        // 受信時に確認応答済みのため、何もしない。
+    }
+
+    /**
+     * 一括で受信したメッセージの処理が完了したことをメッセージングサーバにまとめて通知する。
+     * <p/>
+     * デフォルト実装では、メッセージ毎に{@link #acknowledge(ReceivedMessage)}を呼び出す。
+     * まとめて確認応答を行う機能を持つプロバイダは、本メソッドをオーバーライドすること。
+     *
+     * @param messages 処理が完了した受信メッセージ
+     */
+    public void acknowledge(List<ReceivedMessage> messages) {
+        for (ReceivedMessage message : messages) {
+            acknowledge(message);
+        }
+    }
+
+    /**
+     * 本コンテキストで送信したメッセージと、受信したメッセージの確認応答を確定する。
+     * <p/>
+     * 送信および受信の都度確定するプロバイダでは何もしない。(デフォルト実装)<br/>
+     * トランザクションを使用するセッションで送受信を行うプロバイダは、本メソッドをオーバーライドすること。
+     *
+     * @throws MessagingException 確定に失敗した場合
+     */
+    public void commit() throws MessagingException {
+        // 送受信の都度確定済みのため、何もしない。
+    }
+
+    /**
+     * 本コンテキストで送信したメッセージのうち、確定していないものを取り消す。
+     * <p/>
+     * 確定していない受信メッセージは、再配信の対象となる。<br/>
+     * 送信および受信の都度確定するプロバイダでは何もしない。(デフォルト実装)<br/>
+     * トランザクションを使用するセッションで送受信を行うプロバイダは、本メソッドをオーバーライドすること。
+     *
+     * @throws MessagingException 取り消しに失敗した場合
+     */
+    public void rollback() throws MessagingException {
+        // 送受信の都度確定済みのため、何もしない。
+    }
+
     // ------------------------------- must be implemented by MessagingProvider
     /**
      * メッセージを送信する。
@@ -229,6 +414,53 @@ public abstract class MessagingContext implements Closeable {
     public abstract ReceivedMessage
     receiveMessage(String receiveQueue, String messageId, long timeout);
     
+    // ---------------------- may be implemented by MessagingProvider (optional)
+    /**
+     * 複数のメッセージを一括で送信する。
+     * <p/>
+     * デフォルト実装では、メッセージ毎に{@link #sendMessage(SendingMessage)}を呼び出す。
+     * 一括送信の機能を持つプロバイダは、本メソッドをオーバーライドすること。
+     *
+     * @param messages 送信メッセージ
+     * @return 送信メッセージのメッセージID(送信メッセージと同じ順序)
+     */
+    protected List<String> sendMessages(List<SendingMessage> messages) {
+        List<String> messageIds = new ArrayList<String>(messages.size());
+        for (SendingMessage message : messages) {
+            messageIds.add(sendMessage(message));
+        }
+        return messageIds;
+    }
+
+    /**
+     * 指定した受信キューにメッセージリスナーを登録する。
+     * <p/>
+     * メッセージリスナーをサポートするプロバイダは、本メソッドをオーバーライドすること。
+     * デフォルト実装では例外を送出する。
+     *
+     * @param receiveQueue 受信キューの論理名
+     * @param listener メッセージリスナー
+     * @throws UnsupportedOperationException プロバイダがメッセージリスナーをサポートしていない場合
+     */
+    protected void registerMessageListener(String receiveQueue, MessageListener listener) {
+        throw new UnsupportedOperationException(
+            "this messaging provider does not support message listeners. class = [" + getClass().getName() + "]");
+    }
+
+    /**
+     * 指定した受信キューに登録したメッセージリスナーを解除する。
+     * <p/>
+     * メッセージリスナーをサポートするプロバイダは、本メソッドをオーバーライドすること。
+     * デフォルト実装では例外を送出する。
+     *
+     * @param receiveQueue 受信キューの論理名
+     * @throws UnsupportedOperationException プロバイダがメッセージリスナーをサポートしていない場合
+     */
+    protected void unregisterMessageListener(String receiveQueue) {
+        throw new UnsupportedOperationException(
+            "this messaging provider does not support message listeners. class = [" + getClass().getName() + "]");
+    }
+
     // ----------------------------------------------------- Termination
     /**
      * 現在のセッションを終了し、保持しているリソースを開放する。
@@ -249,6 +481,9 @@ public abstract class MessagingContext implements Closeable {
         LOGGER.logInfo(log);
     }
     
+    /** 待機せずに受信する場合に使用する受信タイムアウト(単位：ミリ秒) */
+    private static final long RECEIVE_NO_WAIT = 1;
+
     /** メッセージングログを出力するロガー */
     private static final Logger LOGGER = LoggerManager.get("MESSAGING");
 }
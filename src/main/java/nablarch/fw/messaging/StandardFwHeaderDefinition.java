@@ -119,7 +119,7 @@ public class StandardFwHeaderDefinition implements FwHeaderDefinition {
      * フレームワーク制御ヘッダーのフォーマット定義を返す。
      * @return フレームワーク制御ヘッダーのフォーマット定義
      */
-    public synchronized DataRecordFormatter getFormatter() {
+    public DataRecordFormatter getFormatter() {
         return getFormatter(FilePathSetting.getInstance(), FormatterFactory.getInstance());
     }
 
@@ -131,8 +131,8 @@ public class StandardFwHeaderDefinition implements FwHeaderDefinition {
      * @param formatterFactory フォーマット定義を生成するファクトリ
      * @return フレームワーク制御ヘッダーのフォーマット定義
      */
-    public synchronized DataRecordFormatter getFormatter(FilePathSetting filePathSetting,
-                                                         FormatterFactory formatterFactory) {
+    public DataRecordFormatter getFormatter(FilePathSetting filePathSetting,
+                                            FormatterFactory formatterFactory) {
         File formatFile = filePathSetting.getFileWithoutCreate(formatFileDir, formatFileName);
         DataRecordFormatter formatter = formatterFactory.createFormatter(formatFile);
         return formatter;
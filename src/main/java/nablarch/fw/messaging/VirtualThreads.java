@@ -0,0 +1,116 @@
+package nablarch.fw.messaging;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * 仮想スレッドを扱うユーティリティクラス。
+ * <p/>
+ * 仮想スレッドをサポートしないJavaバージョンでも動作するよう、
+ * 仮想スレッドに関するAPIはリフレクションを使用して呼び出す。
+ * 仮想スレッドが使用できない環境では、{@link #isAvailable()}は{@code false}を返し、
+ * {@link #newThread(Runnable, String, boolean)}はプラットフォームスレッドを生成する。
+ */
+public final class VirtualThreads {
+
+    /** {@code Thread#isVirtual()} */
+    private static final Method IS_VIRTUAL;
+
+    /** {@code Thread#ofVirtual()} */
+    private static final Method OF_VIRTUAL;
+
+    /** {@code Thread.Builder#name(String)} */
+    private static final Method BUILDER_NAME;
+
+    /** {@code Thread.Builder#unstarted(Runnable)} */
+    private static final Method BUILDER_UNSTARTED;
+
+    /** 仮想スレッドが使用可能か否か */
+    private static final boolean AVAILABLE;
+
+    static {
+        Method isVirtual = null;
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        boolean available = false;
+        try {
+            isVirtual = Thread.class.getMethod("isVirtual");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            // プレビュー機能として提供されているバージョンでは、有効化されていない場合に例外が送出される。
+            unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            available = true;
+        } catch (Exception ignored) {
+            // 仮想スレッドは使用しない。
+        }
+        IS_VIRTUAL = isVirtual;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+        AVAILABLE = available;
+    }
+
+    /** 隠蔽コンストラクタ */
+    private VirtualThreads() {
+    }
+
+    /**
+     * 仮想スレッドが使用可能か否かを返す。
+     * @return 仮想スレッドが使用可能な場合は{@code true}
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * 指定されたスレッドが仮想スレッドか否かを返す。
+     * @param thread スレッド
+     * @return 仮想スレッドの場合は{@code true}
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (!AVAILABLE) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e); // can not happen.
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause()); // can not happen.
+        }
+    }
+
+    /**
+     * 未開始のスレッドを生成する。
+     * <p/>
+     * 仮想スレッドを使用する指定で、かつ仮想スレッドが使用可能な場合は仮想スレッドを生成する。
+     * それ以外の場合はデーモンスレッドとしてプラットフォームスレッドを生成する。
+     *
+     * @param task スレッドで実行する処理
+     * @param name スレッド名
+     * @param virtual 仮想スレッドを使用する場合は{@code true}
+     * @return 生成したスレッド
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && AVAILABLE) {
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e); // can not happen.
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause()); // can not happen.
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,737 @@
+package nablarch.fw.messaging.action;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.core.dataformat.DataRecordFormatter;
+import nablarch.core.dataformat.FormatterFactory;
+import nablarch.core.dataformat.InvalidDataFormatException;
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.core.db.connection.TransactionManagerConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.statement.SqlRow;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.Builder;
+import nablarch.core.util.FilePathSetting;
+import nablarch.core.util.FileUtil;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.tableschema.SendMessageTableSchema;
+
+/**
+ * 送信用テーブルに登録された応答不要電文を、複数スレッドで並列にキューへ転送するクラス。
+ * <p/>
+ * 送信先キュー、ヘッダフォーマット、ヘッダに格納する項目は{@link AsyncMessageSendActionSettings}の設定を使用する。
+ * 送信用テーブルの構造は{@link SendMessageTableSchema}を参照すること。
+ * <p/>
+ * 各スレッドは、以下の手順をチャンクごとに繰り返す。
+ * <pre>
+ * 1. 未送信のレコードの送信電文連番を、連番順に(チャンクサイズ × スレッド数)件検索し、
+ *    スレッドごとに異なる範囲のチャンクサイズ件を選択する。
+ * 2. 選択したレコードのステータスを、未送信を条件に取得済みに更新し、スレッド固有の取得トークンと取得日時を設定してコミットする。
+ *    (他のスレッドやプロセスが先に取得したレコードは更新されない。)
+ * 3. 取得トークンを条件にレコードを検索し、電文を組み立てて一括送信する。
+ * 4. 送信したレコードのステータスを送信済みに、組み立てに失敗したレコードを送信エラーにバッチ更新し、コミットする。
+ * </pre>
+ * 取得トークンによりレコードを排他的に取得するため、複数のスレッドやプロセスで同時に実行しても、
+ * 同じレコードが重複して送信されることはない。
+ * また、行ロックは取得時の更新の間のみ保持するため、電文の送信中に他のスレッドを待たせることはない。
+ * フォーマッタはスレッドごとに1度だけ生成し、全てのレコードの組み立てに使用する。
+ * 組み立てた電文は、チャンクごとに{@link MessagingContext#send(List)}で一括送信する。
+ * <p/>
+ * 送信に失敗した場合は、スレッドが取得済みで送信済みに更新していないレコードを未送信に戻し、例外を送出する。
+ * プロセスの停止などで取得済みのまま残ったレコードは、取得日時から{@link #setClaimTimeout(long)}が経過した後、
+ * 次回の{@link #forward()}の開始時に未送信に戻す。
+ * いずれの場合も、送信後にステータスを更新できなかったレコードは再度送信される(at-least-once)。
+ * <p/>
+ * 取得タイムアウトは、1チャンクの取得から送信後のステータス更新までに要する最長の時間より長くすること。
+ * 短い場合は、送信中のレコードが他のプロセスにより未送信に戻されて再度取得され、
+ * 送信後のステータス更新が取得トークンの不一致により更新件数0件となる。
+ * このようなレコードは重複して送信された可能性があるため、ワーニングレベルのログを出力し、
+ * {@link ForwardResult#getLostCount()}に件数を計上する。
+ * <p/>
+ * 送信電文の組み立てでは、ヘッダに{@code requestId}({@link #setRequestId(String)}の値)と
+ * {@link AsyncMessageSendActionSettings#getHeaderItemList()}の項目を設定し、
+ * データ部は"リクエストID + _SEND"のフォーマット定義ファイルでレコードの内容を出力する。
+ */
+public class AsyncMessageSendForwarder {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(AsyncMessageSendForwarder.class);
+
+    /** 応答不要電文送信の設定 */
+    private AsyncMessageSendActionSettings settings = null;
+
+    /** 送信用テーブルのスキーマ定義 */
+    private SendMessageTableSchema schema = new SendMessageTableSchema();
+
+    /** データベース接続を取得するファクトリ */
+    private ConnectionFactory connectionFactory = null;
+
+    /** データベース接続名 */
+    private String connectionName = "asyncMessageSendForwarder";
+
+    /** 送信に使用するプロバイダ */
+    private MessagingProvider messagingProvider = null;
+
+    /** 送信電文のリクエストID */
+    private String requestId = null;
+
+    /** スレッド数 */
+    private int threadCount = 4;
+
+    /** 1回のトランザクションで送信する最大件数 */
+    private int chunkSize = 500;
+
+    /** 取得済みのレコードを未送信に戻すまでの時間(単位：ミリ秒) */
+    private long claimTimeout = 10 * 60 * 1000;
+
+    /** 取得トークンに含めるプロセスの識別子 */
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    /**
+     * 未送信のレコードを全てキューに転送する。
+     * <p/>
+     * 全てのスレッドが、取得できる未送信のレコードが無くなった時点で終了する。
+     *
+     * @return 処理結果
+     * @throws IllegalStateException 必要な設定が行われていない場合
+     * @throws RuntimeException いずれかのスレッドで送信またはデータベースアクセスに失敗した場合
+     */
+    public ForwardResult forward() throws IllegalStateException {
+        validate();
+        long startTime = System.currentTimeMillis();
+        int released = releaseStaleClaims();
+        LOGGER.logInfo("start forwarding messages. table = [" + schema.getTableName()
+                     + "] queueName = [" + settings.getQueueName() + "] threads = [" + threadCount
+                     + "] released = [" + released + "]");
+
+        final String tokenPrefix = nodeId + "-" + Long.toString(startTime, 36) + "-";
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger sequence = new AtomicInteger();
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "AsyncMessageSendForwarder-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(new Worker(i, tokenPrefix + i)));
+        }
+        long sentCount = 0;
+        long errorCount = 0;
+        long lostCount = 0;
+        RuntimeException failure = null;
+        try {
+            for (Future<long[]> future : futures) {
+                try {
+                    long[] counts = future.get();
+                    sentCount += counts[0];
+                    errorCount += counts[1];
+                    lostCount += counts[2];
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof RuntimeException)
+                                ? (RuntimeException) e.getCause()
+                                : new RuntimeException(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    executor.shutdownNow();
+                    throw new IllegalStateException("forwarding messages was interrupted.", e);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        ForwardResult result = new ForwardResult(sentCount, errorCount, lostCount,
+                                                System.currentTimeMillis() - startTime);
+        LOGGER.logInfo("finished forwarding messages. " + result);
+        return result;
+    }
+
+    /**
+     * 必要な設定が行われていることを確認する。
+     * @throws IllegalStateException 必要な設定が行われていない場合
+     */
+    private void validate() throws IllegalStateException {
+        if (settings == null) {
+            throw new IllegalStateException("settings was not specified.");
+        }
+        if (connectionFactory == null) {
+            throw new IllegalStateException("connectionFactory was not specified.");
+        }
+        if (messagingProvider == null) {
+            throw new IllegalStateException("messagingProvider was not specified.");
+        }
+        if (requestId == null) {
+            throw new IllegalStateException("requestId was not specified.");
+        }
+        if (schema.getTableName() == null) {
+            throw new IllegalStateException("tableName of the send message table schema was not specified.");
+        }
+    }
+
+    /**
+     * 取得日時から取得タイムアウトが経過した取得済みのレコードを、未送信に戻す。
+     * @return 未送信に戻した件数
+     */
+    private int releaseStaleClaims() {
+        String dml = Builder.join(new String[] {
+            "UPDATE", schema.getTableName()
+        ,   "SET"   , schema.getStatusColumnName(),     "= ?", ","
+                    , schema.getClaimTokenColumnName(), "= NULL", ","
+                    , schema.getClaimedAtColumnName(),  "= NULL"
+        ,   "WHERE" , schema.getStatusColumnName(),     "= ?"
+        ,   "AND"   , schema.getClaimedAtColumnName(),  "< ?"
+        }, " ");
+        TransactionManagerConnection connection = connectionFactory.getConnection(connectionName);
+        try {
+            SqlPStatement stmt = connection.prepareStatement(dml);
+            stmt.setString(1, schema.getUnsentStatus());
+            stmt.setString(2, schema.getClaimedStatus());
+            stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() - claimTimeout));
+            int released = stmt.executeUpdate();
+            connection.commit();
+            return released;
+        } catch (RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.terminate();
+        }
+    }
+
+    /**
+     * フォーマッタを生成する。
+     * @param formatName フォーマット名
+     * @return フォーマッタ
+     */
+    private DataRecordFormatter createFormatter(String formatName) {
+        File formatFile = FilePathSetting.getInstance().getFileWithoutCreate(settings.getFormatDir(), formatName);
+        return FormatterFactory.getInstance().createFormatter(formatFile);
+    }
+
+    /**
+     * 1スレッド分の転送処理。
+     * <p/>
+     * 戻り値は、送信した件数、送信エラーとした件数、取得が解除されていてステータスを更新できなかった件数の配列。
+     */
+    private final class Worker implements Callable<long[]> {
+
+        /** スレッドの番号 */
+        private final int index;
+
+        /** 取得トークンの接頭辞 */
+        private final String tokenPrefix;
+
+        /** データベース接続 */
+        private TransactionManagerConnection connection;
+
+        /** 未送信のレコードを検索するステートメント */
+        private SqlPStatement findUnsentStmt;
+
+        /** レコードを取得済みに更新するステートメント */
+        private SqlPStatement claimStmt;
+
+        /** 取得したレコードを検索するステートメント */
+        private SqlPStatement findClaimedStmt;
+
+        /** ステータスを更新するステートメント */
+        private SqlPStatement updateStatusStmt;
+
+        /** 取得済みのレコードを未送信に戻すステートメント */
+        private SqlPStatement releaseStmt;
+
+        /**
+         * コンストラクタ。
+         * @param index スレッドの番号
+         * @param tokenPrefix 取得トークンの接頭辞
+         */
+        private Worker(int index, String tokenPrefix) {
+            this.index = index;
+            this.tokenPrefix = tokenPrefix;
+        }
+
+        /** {@inheritDoc} */
+        public long[] call() {
+            long sentCount = 0;
+            long errorCount = 0;
+            long lostCount = 0;
+            String token = null;
+            connection = connectionFactory.getConnection(connectionName);
+            MessagingContext messagingContext = null;
+            try {
+                prepareStatements();
+                messagingContext = messagingProvider.createContext();
+                DataRecordFormatter headerFormatter = createFormatter(settings.getHeaderFormatName());
+                DataRecordFormatter dataFormatter = createFormatter(requestId + "_SEND");
+                for (int round = 0; !Thread.currentThread().isInterrupted(); round++) {
+                    token = tokenPrefix + "-" + round;
+                    if (!claim(token)) {
+                        break;
+                    }
+                    List<Object> sentKeys = new ArrayList<Object>(chunkSize);
+                    List<Object> errorKeys = new ArrayList<Object>();
+                    List<SendingMessage> messages = new ArrayList<SendingMessage>(chunkSize);
+                    for (SqlRow row : findClaimed(token)) {
+                        Object key = row.get(schema.getKeyColumnName());
+                        try {
+                            messages.add(createSendingMessage(row, headerFormatter, dataFormatter));
+                        } catch (InvalidDataFormatException e) {
+                            LOGGER.logWarn("failed to create a sending message. key = [" + key + "]", e);
+                            errorKeys.add(key);
+                            continue;
+                        }
+                        sentKeys.add(key);
+                    }
+                    if (!messages.isEmpty()) {
+                        messagingContext.send(messages);
+                    }
+                    messagingContext.commit();
+                    int lost = updateStatus(sentKeys, schema.getSentStatus(), token)
+                             + updateStatus(errorKeys, schema.getErrorStatus(), token);
+                    connection.commit();
+                    token = null;
+                    sentCount += sentKeys.size();
+                    errorCount += errorKeys.size();
+                    lostCount += lost;
+                    LOGGER.logDebug("forwarded messages. sent = [" + sentKeys.size()
+                                  + "] error = [" + errorKeys.size() + "] lost = [" + lost + "]");
+                }
+                return new long[] {sentCount, errorCount, lostCount};
+            } catch (RuntimeException e) {
+                connection.rollback();
+                if (messagingContext != null) {
+                    messagingContext.rollback();
+                }
+                if (token != null) {
+                    release(token);
+                }
+                throw e;
+            } finally {
+                FileUtil.closeQuietly(messagingContext);
+                connection.terminate();
+            }
+        }
+
+        /**
+         * ステートメントを準備する。
+         */
+        private void prepareStatements() {
+            String table = schema.getTableName();
+            String key = schema.getKeyColumnName();
+            String status = schema.getStatusColumnName();
+            String token = schema.getClaimTokenColumnName();
+            String claimedAt = schema.getClaimedAtColumnName();
+            findUnsentStmt = connection.prepareStatement(Builder.join(new String[] {
+                "SELECT", key, "AS claimKey"
+            ,   "FROM"  , table
+            ,   "WHERE" , status, "= ?"
+            ,   "ORDER BY", key
+            }, " "));
+            findUnsentStmt.setMaxRows(chunkSize * threadCount);
+            claimStmt = connection.prepareStatement(Builder.join(new String[] {
+                "UPDATE", table
+            ,   "SET"   , status, "= ?", ",", token, "= ?", ",", claimedAt, "= ?"
+            ,   "WHERE" , key, "= ?"
+            ,   "AND"   , status, "= ?"
+            }, " "));
+            findClaimedStmt = connection.prepareStatement(Builder.join(new String[] {
+                "SELECT", "*"
+            ,   "FROM"  , table
+            ,   "WHERE" , token, "= ?"
+            ,   "ORDER BY", key
+            }, " "));
+            updateStatusStmt = connection.prepareStatement(Builder.join(new String[] {
+                "UPDATE", table
+            ,   "SET"   , status, "= ?"
+            ,   "WHERE" , key, "= ?"
+            ,   "AND"   , token, "= ?"
+            }, " "));
+            releaseStmt = connection.prepareStatement(Builder.join(new String[] {
+                "UPDATE", table
+            ,   "SET"   , status, "= ?", ",", token, "= NULL", ",", claimedAt, "= NULL"
+            ,   "WHERE" , token, "= ?"
+            ,   "AND"   , status, "= ?"
+            }, " "));
+        }
+
+        /**
+         * 未送信のレコードを取得済みに更新する。
+         * @param token 取得トークン
+         * @return 未送信のレコードが存在した場合は{@code true}
+         */
+        private boolean claim(String token) {
+            List<Object> candidates = new ArrayList<Object>(chunkSize * threadCount);
+            findUnsentStmt.setString(1, schema.getUnsentStatus());
+            ResultSetIterator rows = findUnsentStmt.executeQuery();
+            try {
+                for (SqlRow row : rows) {
+                    candidates.add(row.get("claimKey"));
+                }
+            } finally {
+                rows.close();
+            }
+            if (candidates.isEmpty()) {
+                connection.commit();
+                return false;
+            }
+            // スレッドごとに異なる範囲を選択し、取得の競合を減らす。
+            int from = (index * chunkSize) % candidates.size();
+            int to = Math.min(from + chunkSize, candidates.size());
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            for (Object key : candidates.subList(from, to)) {
+                claimStmt.setString(1, schema.getClaimedStatus());
+                claimStmt.setString(2, token);
+                claimStmt.setTimestamp(3, now);
+                claimStmt.setObject(4, key);
+                claimStmt.setString(5, schema.getUnsentStatus());
+                claimStmt.addBatch();
+            }
+            claimStmt.executeBatch();
+            connection.commit();
+            return true;
+        }
+
+        /**
+         * 取得したレコードを検索する。
+         * @param token 取得トークン
+         * @return 取得したレコード
+         */
+        private List<SqlRow> findClaimed(String token) {
+            findClaimedStmt.setString(1, token);
+            List<SqlRow> claimed = new ArrayList<SqlRow>(chunkSize);
+            ResultSetIterator rows = findClaimedStmt.executeQuery();
+            try {
+                for (SqlRow row : rows) {
+                    claimed.add(row);
+                }
+            } finally {
+                rows.close();
+            }
+            return claimed;
+        }
+
+        /**
+         * 取得したレコードのステータスをバッチ更新する。
+         * <p/>
+         * 取得タイムアウトにより取得が解除され、取得トークンが一致しなかったレコードは更新されない。
+         * このようなレコードは他のスレッドやプロセスにより重複して送信された可能性があるため、
+         * ワーニングレベルのログを出力する。
+         *
+         * @param keys 送信電文連番
+         * @param status ステータス
+         * @param token 取得トークン
+         * @return 取得トークンが一致せず、更新できなかった件数
+         */
+        private int updateStatus(List<Object> keys, String status, String token) {
+            if (keys.isEmpty()) {
+                return 0;
+            }
+            for (Object key : keys) {
+                updateStatusStmt.setString(1, status);
+                updateStatusStmt.setObject(2, key);
+                updateStatusStmt.setString(3, token);
+                updateStatusStmt.addBatch();
+            }
+            int[] counts = updateStatusStmt.executeBatch();
+            List<Object> lostKeys = new ArrayList<Object>();
+            for (int i = 0; i < counts.length; i++) {
+                // 件数が返却されないドライバ(SUCCESS_NO_INFO)の場合は、更新できたものとみなす。
+                if (counts[i] == 0) {
+                    lostKeys.add(keys.get(i));
+                }
+            }
+            if (!lostKeys.isEmpty()) {
+                LOGGER.logWarn("claims were released before updating the status. the records may have been sent twice."
+                             + " claimTimeout may be too short. status = [" + status + "] token = [" + token
+                             + "] keys = " + lostKeys);
+            }
+            return lostKeys.size();
+        }
+
+        /**
+         * 取得済みのレコードを未送信に戻す。
+         * <p/>
+         * 未送信に戻せなかった場合は、取得タイムアウト後に未送信に戻されるため、ログ出力のみ行う。
+         *
+         * @param token 取得トークン
+         */
+        private void release(String token) {
+            try {
+                releaseStmt.setString(1, schema.getUnsentStatus());
+                releaseStmt.setString(2, token);
+                releaseStmt.setString(3, schema.getClaimedStatus());
+                releaseStmt.executeUpdate();
+                connection.commit();
+            } catch (RuntimeException e) {
+                connection.rollback();
+                LOGGER.logWarn("failed to release claimed records. token = [" + token + "]", e);
+            }
+        }
+    }
+
+    /**
+     * レコードから送信電文を組み立てる。
+     * @param row レコード
+     * @param headerFormatter ヘッダのフォーマッタ
+     * @param dataFormatter データ部のフォーマッタ
+     * @return 送信電文
+     * @throws InvalidDataFormatException レコードの内容がフォーマット定義に違反している場合
+     */
+    private SendingMessage createSendingMessage(SqlRow row, DataRecordFormatter headerFormatter,
+                                                DataRecordFormatter dataFormatter) throws InvalidDataFormatException {
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put("requestId", requestId);
+        for (String item : settings.getHeaderItemList()) {
+            header.put(item, row.get(item));
+        }
+        SendingMessage message = new SendingMessage().setDestination(settings.getQueueName());
+        message.setFormatter(headerFormatter).addRecord(header);
+        message.setFormatter(dataFormatter).addRecord(row);
+        return message;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 応答不要電文送信の設定を設定する。
+     * <p/>
+     * この設定は必須である。
+     * 送信先キュー名、ヘッダフォーマット名、フォーマット定義ファイルの格納ディレクトリ、
+     * ヘッダに格納する項目のリストを使用する。
+     *
+     * @param settings 応答不要電文送信の設定
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setSettings(AsyncMessageSendActionSettings settings) {
+        this.settings = settings;
+        return this;
+    }
+
+    /**
+     * 送信用テーブルのスキーマ定義を設定する。
+     * <p/>
+     * テーブル名({@link SendMessageTableSchema#setTableName(String)})の設定は必須。
+     *
+     * @param schema スキーマ定義
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setSendMessageTableSchema(SendMessageTableSchema schema) {
+        this.schema = schema;
+        return this;
+    }
+
+    /**
+     * データベース接続を取得するファクトリを設定する。
+     * <p/>
+     * この設定は必須である。スレッドごとにデータベース接続を取得する。
+     *
+     * @param connectionFactory データベース接続を取得するファクトリ
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+        return this;
+    }
+
+    /**
+     * データベース接続名を設定する。
+     * <p/>
+     * デフォルトは"asyncMessageSendForwarder"。
+     *
+     * @param connectionName データベース接続名
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setConnectionName(String connectionName) {
+        this.connectionName = connectionName;
+        return this;
+    }
+
+    /**
+     * 送信に使用するプロバイダを設定する。
+     * <p/>
+     * この設定は必須である。スレッドごとにメッセージングコンテキストを生成する。
+     *
+     * @param messagingProvider 送信に使用するプロバイダ
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * 送信電文のリクエストIDを設定する。
+     * <p/>
+     * この設定は必須である。ヘッダの{@code requestId}と、データ部のフォーマット名に使用する。
+     *
+     * @param requestId 送信電文のリクエストID
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setRequestId(String requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+
+    /**
+     * スレッド数を設定する。
+     * <p/>
+     * デフォルトは4。
+     *
+     * @param threadCount スレッド数
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException(
+                "threadCount must be greater than 0. threadCount = [" + threadCount + "]");
+        }
+        this.threadCount = threadCount;
+        return this;
+    }
+
+    /**
+     * 1回のトランザクションで送信する最大件数を設定する。
+     * <p/>
+     * デフォルトは500件。
+     *
+     * @param chunkSize 1回のトランザクションで送信する最大件数
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(
+                "chunkSize must be greater than 0. chunkSize = [" + chunkSize + "]");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * 取得済みのレコードを未送信に戻すまでの時間を設定する。
+     * <p/>
+     * 1チャンクの取得から送信後のステータス更新までに要する最長の時間
+     * (電文の組み立て、送信のリトライやタイムアウトを含む)より長い時間を設定すること。
+     * 短い場合は、送信中のレコードが未送信に戻されて重複して送信される。
+     * デフォルトは10分。
+     *
+     * @param claimTimeout 取得済みのレコードを未送信に戻すまでの時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setClaimTimeout(long claimTimeout) {
+        if (claimTimeout <= 0) {
+            throw new IllegalArgumentException(
+                "claimTimeout must be greater than 0. claimTimeout = [" + claimTimeout + "]");
+        }
+        this.claimTimeout = claimTimeout;
+        return this;
+    }
+
+    /**
+     * 取得トークンに含めるプロセスの識別子を設定する。
+     * <p/>
+     * 取得トークンがプロセス間で重複しないよう、プロセスごとに異なる値を設定すること。
+     * デフォルトは、JVMの名称(プロセスID@ホスト名)。
+     *
+     * @param nodeId プロセスの識別子
+     * @return このオブジェクト自体
+     */
+    public AsyncMessageSendForwarder setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+        return this;
+    }
+
+    /**
+     * 転送処理の結果。
+     */
+    public static final class ForwardResult {
+
+        /** 送信した件数 */
+        private final long sentCount;
+
+        /** 送信エラーとした件数 */
+        private final long errorCount;
+
+        /** 取得が解除されていて、送信後にステータスを更新できなかった件数 */
+        private final long lostCount;
+
+        /** 処理時間(単位：ミリ秒) */
+        private final long elapsedTime;
+
+        /**
+         * コンストラクタ。
+         * @param sentCount 送信した件数
+         * @param errorCount 送信エラーとした件数
+         * @param lostCount 送信後にステータスを更新できなかった件数
+         * @param elapsedTime 処理時間(単位：ミリ秒)
+         */
+        ForwardResult(long sentCount, long errorCount, long lostCount, long elapsedTime) {
+            this.sentCount = sentCount;
+            this.errorCount = errorCount;
+            this.lostCount = lostCount;
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * 送信した件数を返す。
+         * @return 送信した件数
+         */
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        /**
+         * 電文の組み立てに失敗し、送信エラーとした件数を返す。
+         * @return 送信エラーとした件数
+         */
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * 取得タイムアウトにより取得が解除されていて、送信後にステータスを更新できなかった件数を返す。
+         * <p/>
+         * この件数が0でない場合、該当のレコードは重複して送信された可能性がある。
+         * 取得タイムアウトを見直すこと。
+         *
+         * @return 送信後にステータスを更新できなかった件数
+         */
+        public long getLostCount() {
+            return lostCount;
+        }
+
+        /**
+         * 処理時間を返す。
+         * @return 処理時間(単位：ミリ秒)
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        @Override
+        public String toString() {
+            return "sent = [" + sentCount + "] error = [" + errorCount + "] lost = [" + lostCount
+                 + "] elapsed = [" + elapsedTime + "]";
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package nablarch.fw.messaging.action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import nablarch.core.db.support.DbAccessSupport;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.transaction.Transaction;
+import nablarch.core.transaction.TransactionContext;
+import nablarch.core.util.annotation.Published;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.TransactionEventCallback;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.handler.AfterCommitHandler;
+
+/**
+ * 一括で受信した電文を、1つのトランザクションでまとめて処理する業務処理で使用するテンプレートクラス。
+ * <p/>
+ * {@link nablarch.fw.messaging.reader.BatchMessageReader}と組み合わせて使用する。
+ * 業務アクションハンドラは、本クラスを継承し、{@link #onReceive(ReceivedMessage, ExecutionContext)}を実装する。
+ * <p/>
+ * 本クラスでは以下の処理を行う。
+ * <pre>
+ * 1. 一括で受信した電文を順に業務処理に渡す。
+ *    全ての電文の処理が正常に終了した場合、トランザクション制御ハンドラがまとめてコミットする。
+ *
+ * 2. いずれかの電文の処理で例外が発生した場合、トランザクションをロールバックし、
+ *    電文を1件ずつ個別のトランザクションで処理し直す。
+ *    この処理で例外が発生した電文は、処理不能な電文(ポイズンメッセージ)とみなし、
+ *    {@link #onPoisonMessage(Throwable, ReceivedMessage, ExecutionContext)}を呼び出す。
+ *    これにより、1件の不正な電文によって一括受信した全ての電文の処理が失敗し続けることを防ぐ。
+ *    個別のトランザクションをコミットした電文は、その都度確認応答を行う。
+ *    このため、後続の電文の処理({@link #onPoisonMessage(Throwable, ReceivedMessage, ExecutionContext)}を含む)で
+ *    例外が発生しても、コミット済みの電文が再配信されて再度処理されることはない。
+ *    一括で受信した電文が1件のみの場合は、処理し直さずに
+ *    {@link #onPoisonMessage(Throwable, ReceivedMessage, ExecutionContext)}を呼び出す。
+ *
+ * 3. トランザクションのコミット後、確認応答を行っていない電文の確認応答をまとめて行う。
+ *    ({@link MessagingContext#acknowledge(List)})
+ *    トランザクションが異常終了した場合は確認応答を行わない。
+ * </pre>
+ * トランザクション制御ハンドラは、{@link #transactionNormalEnd(List, ExecutionContext)}をコミットの前に呼び出す。
+ * コミット後に確認応答を行うため、トランザクション制御ハンドラの直前に{@link AfterCommitHandler}を配置すること。
+ * {@link AfterCommitHandler}が配置されていない場合は、コミット前に確認応答を行うため、
+ * コミットに失敗した電文が再配信されずに失われる可能性がある。
+ *
+ * @see nablarch.fw.messaging.reader.BatchMessageReader
+ */
+public abstract class BatchMessagingAction
+extends    DbAccessSupport
+implements Handler<List<ReceivedMessage>, Result>,
+           TransactionEventCallback<List<ReceivedMessage>> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(BatchMessagingAction.class);
+
+    /** 確認応答済みの電文を格納するリクエストスコープ変数名 */
+    private static final String ACKNOWLEDGED_KEY = BatchMessagingAction.class.getName() + ".acknowledged";
+
+    /** 業務処理で使用するトランザクションの名前 */
+    private String transactionName = TransactionContext.DEFAULT_TRANSACTION_CONTEXT_KEY;
+
+    /** 処理不能な電文の転送先キューの論理名 */
+    private String poisonQueueName = null;
+
+    /**
+     * BatchMessagingActionオブジェクトを生成する。
+     */
+    @Published
+    public BatchMessagingAction() {
+        super();
+    }
+
+    /**
+     * 受信電文毎に起動され、電文の内容をもとに業務処理を実行する。
+     *
+     * @param message 受信電文オブジェクト
+     * @param context 実行コンテキスト
+     */
+    @Published
+    protected abstract void onReceive(ReceivedMessage message, ExecutionContext context);
+
+    /**
+     * 処理不能な電文(ポイズンメッセージ)を検知した場合の処理を実行する。
+     * <p/>
+     * 本メソッドは、当該電文の処理をロールバックした後、個別のトランザクションで呼び出される。
+     * デフォルト実装では、ワーニングログを出力し、転送先キューが設定されている場合は電文を転送する。
+     * 本メソッドの終了後、当該電文は処理済みとして確認応答される。
+     *
+     * @param e       発生したエラーオブジェクト
+     * @param message 受信電文オブジェクト
+     * @param context 実行コンテキスト
+     */
+    @Published
+    protected void onPoisonMessage(Throwable e, ReceivedMessage message, ExecutionContext context) {
+        LOGGER.logWarn("could not process the message. messageId = [" + message.getMessageId() + "]", e);
+        if (poisonQueueName == null) {
+            return;
+        }
+        SendingMessage poison = new SendingMessage()
+                .setDestination(poisonQueueName)
+                .setCorrelationId(message.getMessageId());
+        byte[] body = message.getBodyBytes();
+        poison.getBodyStream().write(body, 0, body.length);
+        MessagingContext.getInstance().send(poison);
+    }
+
+    /** {@inheritDoc}
+     * 本クラスの実装では、受信電文毎に{@link #onReceive(ReceivedMessage, ExecutionContext)}を呼び出す。
+     * 処理中に例外が発生した場合は、トランザクションをロールバックし、
+     * 電文を1件ずつ個別のトランザクションで処理し直す。
+     * 電文が1件のみの場合は、ロールバック後に{@link #onPoisonMessage(Throwable, ReceivedMessage, ExecutionContext)}を呼び出す。
+     */
+    public Result handle(List<ReceivedMessage> messages, ExecutionContext ctx) {
+        ctx.setRequestScopedVar(ACKNOWLEDGED_KEY, null);
+        try {
+            for (ReceivedMessage message : messages) {
+                onReceive(message, ctx);
+            }
+        } catch (RuntimeException e) {
+            if (!TransactionContext.containTransaction(transactionName)) {
+                throw e;
+            }
+            Transaction transaction = TransactionContext.getTransaction(transactionName);
+            transaction.rollback();
+            if (messages.size() == 1) {
+                // 処理し直しても同じ結果となるため、そのままポイズンメッセージとして扱う。
+                // コミットと確認応答は、トランザクション制御ハンドラに委ねる。
+                onPoisonMessage(e, messages.get(0), ctx);
+                return new Result.Success();
+            }
+            LOGGER.logWarn("an error occurred while processing a batch of messages. "
+                         + "the messages will be processed one by one. size = [" + messages.size() + "]", e);
+            processIndividually(messages, transaction, ctx);
+        }
+        return new Result.Success();
+    }
+
+    /**
+     * 電文を1件ずつ個別のトランザクションで処理する。
+     * <p/>
+     * 個別のトランザクションをコミットした電文は、その都度確認応答を行う。
+     * {@link #onPoisonMessage(Throwable, ReceivedMessage, ExecutionContext)}が例外を送出した場合は、
+     * ロールバックして例外を送出する。この場合、確認応答を行っていない電文のみが再配信される。
+     *
+     * @param messages    受信電文オブジェクト
+     * @param transaction トランザクション
+     * @param ctx         実行コンテキスト
+     */
+    private void processIndividually(List<ReceivedMessage> messages, Transaction transaction, ExecutionContext ctx) {
+        Set<ReceivedMessage> acknowledged = Collections.newSetFromMap(new IdentityHashMap<ReceivedMessage, Boolean>());
+        ctx.setRequestScopedVar(ACKNOWLEDGED_KEY, acknowledged);
+        MessagingContext messagingContext = MessagingContext.getInstance();
+        for (ReceivedMessage message : messages) {
+            try {
+                onReceive(message, ctx);
+            } catch (RuntimeException e) {
+                transaction.rollback();
+                try {
+                    onPoisonMessage(e, message, ctx);
+                } catch (RuntimeException poisonError) {
+                    transaction.rollback();
+                    throw poisonError;
+                }
+            }
+            transaction.commit();
+            messagingContext.acknowledge(message);
+            acknowledged.add(message);
+        }
+    }
+
+    /** {@inheritDoc}
+     * この実装では、確認応答を行っていない電文の確認応答をまとめて行う。
+     * {@link AfterCommitHandler}が配置されている場合は、コミット後に確認応答を行う。
+     */
+    public void transactionNormalEnd(List<ReceivedMessage> messages, ExecutionContext ctx) {
+        Set<ReceivedMessage> acknowledged = ctx.getRequestScopedVar(ACKNOWLEDGED_KEY);
+        ctx.setRequestScopedVar(ACKNOWLEDGED_KEY, null);
+        final List<ReceivedMessage> unacknowledged = new ArrayList<ReceivedMessage>();
+        for (ReceivedMessage message : messages) {
+            if (acknowledged == null || !acknowledged.contains(message)) {
+                unacknowledged.add(message);
+            }
+        }
+        if (unacknowledged.isEmpty()) {
+            return;
+        }
+        if (!AfterCommitHandler.isAvailable(ctx)) {
+            MessagingContext.getInstance().acknowledge(unacknowledged);
+            return;
+        }
+        final MessagingContext messagingContext = MessagingContext.getInstance();
+        AfterCommitHandler.register(ctx, new AfterCommitHandler.Callback() {
+            @Override
+            public void afterCommit(ExecutionContext context) {
+                messagingContext.acknowledge(unacknowledged);
+            }
+        });
+    }
+
+    /** {@inheritDoc}
+     * この実装では、確認応答を行わない。
+     * (確認応答を行わなかった電文の扱いはメッセージングサーバの設定に従う。)
+     */
+    public void transactionAbnormalEnd(Throwable e, List<ReceivedMessage> messages, ExecutionContext ctx) {
+        ctx.setRequestScopedVar(ACKNOWLEDGED_KEY, null);
+    }
+
+    // --------------------------------------------------------- accessors
+    /**
+     * 業務処理で使用するトランザクションの名前を設定する。
+     * <p/>
+     * トランザクション制御ハンドラに設定したトランザクション名と同じ値を設定すること。
+     * デフォルトは{@link TransactionContext#DEFAULT_TRANSACTION_CONTEXT_KEY}。
+     *
+     * @param transactionName トランザクション名
+     * @return このオブジェクト自体
+     */
+    public BatchMessagingAction setTransactionName(String transactionName) {
+        this.transactionName = transactionName;
+        return this;
+    }
+
+    /**
+     * 処理不能な電文の転送先キューの論理名を設定する。
+     * <p/>
+     * 設定しない場合、処理不能な電文はワーニングログを出力した上で破棄される。
+     *
+     * @param poisonQueueName 転送先キューの論理名
+     * @return このオブジェクト自体
+     */
+    public BatchMessagingAction setPoisonQueueName(String poisonQueueName) {
+        this.poisonQueueName = poisonQueueName;
+        return this;
+    }
+}
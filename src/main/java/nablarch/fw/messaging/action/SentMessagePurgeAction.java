@@ -0,0 +1,50 @@
+package nablarch.fw.messaging.action;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.handler.SentMessagePurger;
+
+/**
+ * 保持期間を過ぎた送信済電文を削除する業務アクション。
+ * <p/>
+ * 入力データを使用しないバッチのハンドラキューの末尾に設定し、
+ * {@link SentMessagePurger}による削除を1回実行する。
+ * 削除はチャンクごとに{@link SentMessagePurger}自身がコミットするため、
+ * トランザクション制御ハンドラを前段に配置する必要はない。
+ * <p/>
+ * 削除件数などの処理結果は、戻り値の{@link Result.Success}のメッセージとして返却する。
+ *
+ * @see SentMessagePurger
+ */
+public class SentMessagePurgeAction implements Handler<Object, Result> {
+
+    /** 送信済電文の削除処理 */
+    private SentMessagePurger sentMessagePurger = null;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 保持期間を過ぎた送信済電文を削除する。
+     */
+    public Result handle(Object data, ExecutionContext context) {
+        if (sentMessagePurger == null) {
+            throw new IllegalStateException("sentMessagePurger was not specified.");
+        }
+        SentMessagePurger.PurgeResult result = sentMessagePurger.purge();
+        return new Result.Success(result.toString());
+    }
+
+    /**
+     * 送信済電文の削除処理を設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param sentMessagePurger 送信済電文の削除処理
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurgeAction setSentMessagePurger(SentMessagePurger sentMessagePurger) {
+        this.sentMessagePurger = sentMessagePurger;
+        return this;
+    }
+}
@@ -0,0 +1,102 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+
+/**
+ * 業務トランザクションのコミット後に、後続ハンドラが登録した処理を実行するハンドラ。
+ * <p/>
+ * {@link nablarch.fw.TransactionEventCallback#transactionNormalEnd(Object, ExecutionContext)}は
+ * トランザクション制御ハンドラがコミットする前に呼び出されるため、
+ * コミットに失敗した場合もその処理は取り消されない。
+ * 本ハンドラは、後続ハンドラの処理が正常に終了した(トランザクション制御ハンドラがコミットに成功した)場合にのみ、
+ * {@link #register(ExecutionContext, Callback)}で登録された処理を実行する。
+ * 後続ハンドラが例外を送出した場合は、登録された処理を破棄する。
+ * <p/>
+ * 本ハンドラは、トランザクション制御ハンドラの直前に配置すること。
+ * <pre>
+ * - 本ハンドラ
+ * - トランザクション制御ハンドラ
+ * - 後続ハンドラ(コミット後の処理を登録するハンドラ)
+ * </pre>
+ * 登録された処理が例外を送出した場合は、業務トランザクションはコミット済みであるため、
+ * ワーニングレベルのログを出力して残りの処理を続行する。
+ *
+ * @see MessageResendHandler
+ */
+public class AfterCommitHandler implements Handler<Object, Object> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(AfterCommitHandler.class);
+
+    /** コミット後に実行する処理を格納するリクエストスコープ変数名 */
+    private static final String CALLBACKS_KEY = AfterCommitHandler.class.getName() + ".callbacks";
+
+    /**
+     * コミット後に実行する処理。
+     */
+    public interface Callback {
+
+        /**
+         * 業務トランザクションのコミット後に呼び出される。
+         *
+         * @param context 実行コンテキスト
+         */
+        void afterCommit(ExecutionContext context);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、後続ハンドラの処理が正常に終了した場合に、登録された処理を登録順に実行する。
+     */
+    public Object handle(Object data, ExecutionContext context) {
+        List<Callback> callbacks = new ArrayList<Callback>();
+        context.setRequestScopedVar(CALLBACKS_KEY, callbacks);
+        Object result;
+        try {
+            result = context.handleNext(data);
+        } finally {
+            context.setRequestScopedVar(CALLBACKS_KEY, null);
+        }
+        for (Callback callback : callbacks) {
+            try {
+                callback.afterCommit(context);
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("failed to execute the callback after commit. callback = ["
+                             + callback.getClass().getName() + "]", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * コミット後に実行する処理を登録する。
+     *
+     * @param context  実行コンテキスト
+     * @param callback コミット後に実行する処理
+     * @throws IllegalStateException 本ハンドラがハンドラキューに配置されていない場合
+     */
+    public static void register(ExecutionContext context, Callback callback) throws IllegalStateException {
+        List<Callback> callbacks = context.getRequestScopedVar(CALLBACKS_KEY);
+        if (callbacks == null) {
+            throw new IllegalStateException("AfterCommitHandler was not specified.");
+        }
+        callbacks.add(callback);
+    }
+
+    /**
+     * 本ハンドラがハンドラキューに配置されているか否かを返す。
+     *
+     * @param context 実行コンテキスト
+     * @return 配置されている場合は{@code true}
+     */
+    public static boolean isAvailable(ExecutionContext context) {
+        return context.getRequestScopedVar(CALLBACKS_KEY) != null;
+    }
+}
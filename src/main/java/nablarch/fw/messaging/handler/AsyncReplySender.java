@@ -0,0 +1,745 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.disposal.Disposable;
+import nablarch.core.repository.initialization.Initializable;
+import nablarch.core.util.FileUtil;
+import nablarch.fw.messaging.InterSystemMessage.HeaderName;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.VirtualThreads;
+import nablarch.fw.messaging.provider.JournalMessagingProvider;
+
+/**
+ * 応答電文を、業務処理を行うスレッドとは別の専用スレッドから送信するクラス。
+ * <p/>
+ * {@link MessageReplyHandler#setAsyncReplySender(AsyncReplySender)}で設定した場合、
+ * 業務処理を行うスレッドは応答電文を直列化してキューに格納するだけで、次の電文の処理に進むことができる。
+ * キューに格納された応答電文は、専用の送信スレッドが、それぞれ{@link #setMessagingProvider(MessagingProvider)}
+ * で設定したプロバイダから生成したメッセージングコンテキストを使用して送信する。
+ * これにより、永続キューへの送信時に発生するメッセージングサーバのディスク同期待ちなどを、
+ * 業務処理のスレッドから切り離すことができる。
+ * <p/>
+ * <b>順序保証</b>
+ * <p/>
+ * {@link #setPreserveOrder(boolean)}に{@code true}を設定した場合、同じ宛先の応答電文は
+ * 常に同じ送信スレッドが格納順に送信するため、宛先ごとの送信順序が保証される。
+ * {@code false}(デフォルト)の場合は、全ての送信スレッドが1つのキューから応答電文を取り出して送信するため、
+ * 送信順序は保証されない。
+ * <p/>
+ * <b>送信の保証</b>
+ * <p/>
+ * キューが満杯の場合、応答電文の格納は空きができるまで待機する。(応答電文を破棄することはない。)
+ * 送信に失敗した場合は、メッセージングコンテキストを生成し直し、
+ * {@link #setMaxRetries(int)}で設定した回数まで{@link #setRetryInterval(long)}の間隔で再送信する。
+ * 再送信しても送信できなかった応答電文、および{@link #close()}の時点で
+ * {@link #setShutdownTimeout(long)}の時間内に送信できなかった応答電文は、エラーログに出力して破棄する。
+ * <p/>
+ * 送信は業務トランザクションとは独立して行われるため、2相コミットを使用する構成では本クラスを使用しないこと。
+ * <p/>
+ * <b>永続性</b>
+ * <p/>
+ * デフォルトでは、キューに格納された応答電文はメモリ上にのみ存在するため、プロセスが異常終了した場合は失われる。
+ * 失われた応答電文については、送信元が再送要求電文を送信することで
+ * {@link MessageResendHandler}が保存した応答電文を再送できる。
+ * <p/>
+ * {@link #setJournalDirectory(String)}を設定した場合は、応答電文を{@link JournalMessagingProvider}の
+ * ジャーナルに書き出してから(ディスクへの書き出しの完了を待って)業務処理のスレッドに制御を戻し、
+ * 送信スレッドは送信が完了した時点でジャーナルに確認応答を記録する。
+ * この場合、プロセスが異常終了した時点で送信が完了していなかった応答電文や、
+ * {@link #close()}の時点で送信できなかった応答電文は破棄せず、次回の起動時に送信する。
+ * このため、応答電文は少なくとも1回(at-least-once)送信される。
+ * ジャーナルに応答電文が残っている間は、{@link #setSenderCount(int)}と{@link #setPreserveOrder(boolean)}の設定を変更しないこと。
+ * <p/>
+ * 本クラスは{@link Initializable}と{@link Disposable}を実装しているため、
+ * システムリポジトリの初期化対象と廃棄対象に設定することで、起動時に送信スレッドを開始し、
+ * 終了時にキューに残っている応答電文を送信できる。
+ * システムリポジトリを使用しない場合は、プロセスの終了時に{@link #close()}を呼び出すこと。
+ *
+ * @see MessageReplyHandler#setAsyncReplySender(AsyncReplySender)
+ */
+public class AsyncReplySender implements Initializable, Disposable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(AsyncReplySender.class);
+
+    /** ジャーナルのキュー名の接頭辞 */
+    private static final String JOURNAL_QUEUE_PREFIX = "ASYNC_REPLY_";
+
+    /** 元の宛先を格納するヘッダ名 */
+    private static final String DESTINATION_HEADER = "AsyncReplyDestination";
+
+    /** 元の有効期間を格納するヘッダ名 */
+    private static final String TIME_TO_LIVE_HEADER = "AsyncReplyTimeToLive";
+
+    /** メッセージング機能の実装 */
+    private MessagingProvider messagingProvider = null;
+
+    /** 送信スレッド数 */
+    private int senderCount = 1;
+
+    /** キューに格納できる最大件数(送信スレッドごと) */
+    private int queueCapacity = 1000;
+
+    /** 宛先ごとの送信順序を保証するかどうか */
+    private boolean preserveOrder = false;
+
+    /** 送信に失敗した場合の最大再送信回数 */
+    private int maxRetries = 3;
+
+    /** 再送信の間隔(単位：ミリ秒) */
+    private long retryInterval = 1000;
+
+    /** 終了時に送信の完了を待機する最大時間(単位：ミリ秒) */
+    private long shutdownTimeout = 30000;
+
+    /** 送信スレッドに仮想スレッドを使用するかどうか */
+    private boolean useVirtualThreads = false;
+
+    /** 応答電文を永続化するジャーナルを格納するディレクトリ */
+    private String journalDirectory = null;
+
+    /** 応答電文を永続化するジャーナル */
+    private JournalMessagingProvider journal = null;
+
+    /** 送信待ちの応答電文(送信スレッドごと。順序を保証しない場合は全スレッドで共有する1つのキュー) */
+    private volatile List<ReplyQueue> queues = null;
+
+    /** 送信スレッド */
+    private final List<Thread> senders = new ArrayList<Thread>();
+
+    /** この送信処理が閉じられたかどうか */
+    private volatile boolean closed = false;
+
+    /** 送信した応答電文の件数 */
+    private final AtomicLong sentCount = new AtomicLong();
+
+    /** 再送信した回数 */
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /** 送信できずに破棄した応答電文の件数 */
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * 送信スレッドを開始する。
+     * <p/>
+     * 既に開始している場合は何もしない。
+     * ジャーナルを使用する場合は、前回の起動時に送信できなかった応答電文の送信も開始する。
+     *
+     * @throws IllegalStateException プロバイダが設定されていない場合
+     */
+    public synchronized void initialize() throws IllegalStateException {
+        if (queues != null) {
+            return;
+        }
+        if (messagingProvider == null) {
+            throw new IllegalStateException("messagingProvider was not specified.");
+        }
+        if (journalDirectory != null) {
+            journal = new JournalMessagingProvider();
+            journal.setDirectory(journalDirectory).setAutoAcknowledge(false).setDefaultTimeToLive(0);
+        }
+        List<ReplyQueue> created = new ArrayList<ReplyQueue>();
+        int queueCount = preserveOrder ? senderCount : 1;
+        for (int i = 0; i < queueCount; i++) {
+            created.add((journal == null) ? new MemoryReplyQueue(queueCapacity)
+                                          : new JournaledReplyQueue(journal, JOURNAL_QUEUE_PREFIX + i, queueCapacity));
+        }
+        for (int i = 0; i < senderCount; i++) {
+            final ReplyQueue queue = created.get(preserveOrder ? i : 0);
+            Thread sender = VirtualThreads.newThread(new Runnable() {
+                public void run() {
+                    drain(queue);
+                }
+            }, "async-reply-sender-" + i, useVirtualThreads);
+            senders.add(sender);
+            sender.start();
+        }
+        queues = created;
+    }
+
+    /**
+     * 応答電文を直列化し、送信待ちのキューに格納する。
+     * <p/>
+     * 送信は送信スレッドで行うため、本メソッドは送信の完了を待たずに終了する。
+     * ただし、ジャーナルを使用する場合は、ジャーナルへの書き出しの完了を待機する。
+     * キューが満杯の場合は、空きができるまで待機する。
+     * 既に閉じられている場合は、呼び出し元のスレッドのメッセージングコンテキストで送信する。
+     *
+     * @param reply 応答電文
+     */
+    public void send(SendingMessage reply) {
+        if (queues == null) {
+            initialize();
+        }
+        SendingMessage serialized = serialize(reply);
+        if (closed) {
+            MessagingContext.getInstance().send(serialized);
+            return;
+        }
+        try {
+            queueOf(serialized).put(serialized);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while queueing a reply. messageId = ["
+                                          + reply.getCorrelationId() + "]", e);
+        }
+    }
+
+    /**
+     * 送信待ちの応答電文を全て送信し、送信スレッドを終了する。
+     * <p/>
+     * {@link #setShutdownTimeout(long)}で設定した時間内に送信できなかった応答電文は、エラーログに出力して破棄する。
+     * ジャーナルを使用する場合は破棄せず、次回の起動時に送信する。
+     */
+    public void close() {
+        List<ReplyQueue> current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            current = queues;
+        }
+        if (current == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        for (Thread sender : senders) {
+            try {
+                sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+        int kept = 0;
+        for (ReplyQueue queue : current) {
+            kept += queue.discardRemaining();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.logInfo("async reply sender was closed. sent = [" + sentCount.get()
+                         + "] retried = [" + retryCount.get() + "] failed = [" + failedCount.get()
+                         + "] kept in journal = [" + kept + "]");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link #close()}を呼び出す。
+     */
+    @Override
+    public void dispose() {
+        close();
+    }
+
+    /**
+     * 送信した応答電文の件数を返す。
+     * @return 送信した応答電文の件数
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * 再送信した回数を返す。
+     * @return 再送信した回数
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * 送信できずに破棄した応答電文の件数を返す。
+     * @return 破棄した応答電文の件数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 送信待ちの応答電文の件数を返す。
+     * @return 送信待ちの応答電文の件数
+     */
+    public int getBacklog() {
+        List<ReplyQueue> current = queues;
+        if (current == null) {
+            return 0;
+        }
+        int backlog = 0;
+        for (ReplyQueue queue : current) {
+            backlog += queue.size();
+        }
+        return backlog;
+    }
+
+    /**
+     * 応答電文を格納するキューを返す。
+     * @param message 応答電文
+     * @return キュー
+     */
+    private ReplyQueue queueOf(SendingMessage message) {
+        List<ReplyQueue> current = queues;
+        if (current.size() == 1) {
+            return current.get(0);
+        }
+        String destination = message.getDestination();
+        int hash = (destination == null) ? 0 : destination.hashCode();
+        return current.get((hash & Integer.MAX_VALUE) % current.size());
+    }
+
+    /**
+     * 応答電文を直列化する。
+     * <p/>
+     * ヘッダとボディ部のバイト列のみを保持する電文を作成し、
+     * 送信スレッドでフォーマッタや業務処理の状態を参照しないようにする。
+     *
+     * @param reply 応答電文
+     * @return 直列化した応答電文
+     */
+    private static SendingMessage serialize(SendingMessage reply) {
+        SendingMessage serialized = new SendingMessage();
+        serialized.setHeaderMap(reply.getHeaderMap());
+        byte[] body = reply.getBodyBytes();
+        serialized.getBodyStream().write(body, 0, body.length);
+        return serialized;
+    }
+
+    /**
+     * キューから応答電文を取り出して送信する。
+     * <p/>
+     * 閉じられた後は、キューが空になった時点で終了する。
+     *
+     * @param queue キュー
+     */
+    private void drain(ReplyQueue queue) {
+        MessagingContext context = null;
+        try {
+            while (true) {
+                Pending pending = queue.poll(closed ? 0 : 100);
+                if (pending == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                context = sendWithRetry(context, pending.message);
+                queue.complete(pending);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            FileUtil.closeQuietly(context);
+        }
+    }
+
+    /**
+     * 応答電文を送信する。送信に失敗した場合は、メッセージングコンテキストを生成し直して再送信する。
+     *
+     * @param context メッセージングコンテキスト(未生成の場合は{@code null})
+     * @param message 応答電文
+     * @return 以降の送信に使用するメッセージングコンテキスト
+     * @throws InterruptedException 再送信の待機中に割り込まれた場合
+     */
+    private MessagingContext sendWithRetry(MessagingContext context, SendingMessage message)
+    throws InterruptedException {
+        RuntimeException lastError = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            if (attempt > 0) {
+                retryCount.incrementAndGet();
+                Thread.sleep(retryInterval);
+            }
+            try {
+                if (context == null) {
+                    context = messagingProvider.createContext();
+                }
+                context.send(message);
+                sentCount.incrementAndGet();
+                return context;
+            } catch (RuntimeException e) {
+                lastError = e;
+                LOGGER.logWarn("failed to send a reply. it will be retried. messageId = ["
+                             + message.getCorrelationId() + "] attempt = [" + (attempt + 1) + "]", e);
+                FileUtil.closeQuietly(context);
+                context = null;
+            }
+        }
+        discard(message, lastError);
+        return null;
+    }
+
+    /**
+     * 送信できなかった応答電文をエラーログに出力して破棄する。
+     * @param message 応答電文
+     * @param error 送信時に発生した例外(送信していない場合は{@code null})
+     */
+    private void discard(SendingMessage message, Throwable error) {
+        failedCount.incrementAndGet();
+        LOGGER.logError("could not send a reply. it was discarded. destination = [" + message.getDestination()
+                      + "] correlationId = [" + message.getCorrelationId() + "]", error);
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 送信スレッドで使用するメッセージング機能の実装を設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param messagingProvider メッセージング機能の実装
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * 送信スレッド数を設定する。
+     * <p/>
+     * デフォルトは1。
+     *
+     * @param senderCount 送信スレッド数
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setSenderCount(int senderCount) {
+        if (senderCount <= 0) {
+            throw new IllegalArgumentException(
+                "senderCount must be greater than 0. senderCount = [" + senderCount + "]");
+        }
+        this.senderCount = senderCount;
+        return this;
+    }
+
+    /**
+     * キューに格納できる最大件数を設定する。
+     * <p/>
+     * 送信順序を保証する場合は、送信スレッドごとの最大件数となる。
+     * デフォルトは1000件。
+     *
+     * @param queueCapacity キューに格納できる最大件数
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException(
+                "queueCapacity must be greater than 0. queueCapacity = [" + queueCapacity + "]");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * 宛先ごとの送信順序を保証するかどうかを設定する。
+     * <p/>
+     * デフォルトは{@code false}。
+     *
+     * @param preserveOrder 宛先ごとの送信順序を保証する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setPreserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+        return this;
+    }
+
+    /**
+     * 送信に失敗した場合の最大再送信回数を設定する。
+     * <p/>
+     * 0を設定した場合は再送信しない。デフォルトは3回。
+     *
+     * @param maxRetries 最大再送信回数
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException(
+                "maxRetries must not be negative. maxRetries = [" + maxRetries + "]");
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * 再送信の間隔を設定する。
+     * <p/>
+     * デフォルトは1000ミリ秒。
+     *
+     * @param retryInterval 再送信の間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+        return this;
+    }
+
+    /**
+     * 終了時に送信の完了を待機する最大時間を設定する。
+     * <p/>
+     * デフォルトは30000ミリ秒。
+     *
+     * @param shutdownTimeout 送信の完了を待機する最大時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
+    /**
+     * 応答電文を永続化するジャーナルを格納するディレクトリを設定する。
+     * <p/>
+     * 設定した場合は、送信が完了するまで応答電文をジャーナルに保持し、
+     * プロセスが異常終了した場合も次回の起動時に送信する。
+     * ディレクトリは単一のプロセスが占有すること。
+     * デフォルトは設定なし(メモリ上にのみ保持する)。
+     *
+     * @param journalDirectory ジャーナルを格納するディレクトリ
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    /**
+     * 送信スレッドに仮想スレッドを使用するかどうかを設定する。
+     * <p/>
+     * 仮想スレッドをサポートしない実行環境では、プラットフォームスレッドを使用する。
+     * デフォルトは{@code false}。
+     *
+     * @param useVirtualThreads 仮想スレッドを使用する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public AsyncReplySender setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * キューから取り出した送信待ちの応答電文。
+     */
+    private static final class Pending {
+
+        /** 送信する応答電文 */
+        private final SendingMessage message;
+
+        /** ジャーナルから受信した電文(ジャーナルを使用しない場合は{@code null}) */
+        private final ReceivedMessage journaled;
+
+        /**
+         * コンストラクタ。
+         * @param message 送信する応答電文
+         * @param journaled ジャーナルから受信した電文
+         */
+        Pending(SendingMessage message, ReceivedMessage journaled) {
+            this.message = message;
+            this.journaled = journaled;
+        }
+    }
+
+    /**
+     * 送信待ちの応答電文を格納するキュー。
+     */
+    private abstract class ReplyQueue {
+
+        /**
+         * 応答電文を格納する。満杯の場合は、空きができるまで待機する。
+         * @param reply 直列化した応答電文
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        abstract void put(SendingMessage reply) throws InterruptedException;
+
+        /**
+         * 応答電文を取り出す。
+         * @param timeout 応答電文が格納されるまで待機する最大時間(単位：ミリ秒、0の場合は待機しない)
+         * @return 取り出した応答電文(格納されていない場合は{@code null})
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        abstract Pending poll(long timeout) throws InterruptedException;
+
+        /**
+         * 取り出した応答電文の送信(または破棄)が完了したことを記録する。
+         * @param pending 取り出した応答電文
+         */
+        abstract void complete(Pending pending);
+
+        /**
+         * 送信待ちの応答電文の件数を返す。
+         * @return 送信待ちの応答電文の件数
+         */
+        abstract int size();
+
+        /**
+         * 送信できなかった応答電文を破棄する。
+         * @return 破棄せずに次回の起動時に送信する応答電文の件数
+         */
+        abstract int discardRemaining();
+    }
+
+    /**
+     * 応答電文をメモリ上にのみ保持するキュー。
+     */
+    private final class MemoryReplyQueue extends ReplyQueue {
+
+        /** 応答電文 */
+        private final BlockingQueue<SendingMessage> queue;
+
+        /**
+         * コンストラクタ。
+         * @param capacity 格納できる最大件数
+         */
+        MemoryReplyQueue(int capacity) {
+            queue = new ArrayBlockingQueue<SendingMessage>(capacity);
+        }
+
+        @Override
+        void put(SendingMessage reply) throws InterruptedException {
+            queue.put(reply);
+        }
+
+        @Override
+        Pending poll(long timeout) throws InterruptedException {
+            SendingMessage message = (timeout <= 0) ? queue.poll() : queue.poll(timeout, TimeUnit.MILLISECONDS);
+            return (message == null) ? null : new Pending(message, null);
+        }
+
+        @Override
+        void complete(Pending pending) {
+        }
+
+        @Override
+        int size() {
+            return queue.size();
+        }
+
+        @Override
+        int discardRemaining() {
+            List<SendingMessage> unsent = new ArrayList<SendingMessage>();
+            queue.drainTo(unsent);
+            for (SendingMessage message : unsent) {
+                discard(message, null);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * 応答電文をジャーナルに永続化するキュー。
+     * <p/>
+     * 送信が完了した応答電文は、ジャーナルに確認応答を記録する。
+     * 格納できる件数は、確認応答していない(送信中の応答電文を含む)件数で制限する。
+     */
+    private final class JournaledReplyQueue extends ReplyQueue {
+
+        /** ジャーナル */
+        private final JournalMessagingProvider journal;
+
+        /** ジャーナルのメッセージングコンテキスト */
+        private final MessagingContext context;
+
+        /** ジャーナルのキュー名 */
+        private final String queueName;
+
+        /** 格納できる残りの件数 */
+        private final Semaphore permits;
+
+        /**
+         * コンストラクタ。
+         * <p/>
+         * 前回の起動時に送信できなかった応答電文は、格納できる件数に含める。
+         *
+         * @param journal ジャーナル
+         * @param queueName ジャーナルのキュー名
+         * @param capacity 格納できる最大件数
+         */
+        JournaledReplyQueue(JournalMessagingProvider journal, String queueName, int capacity) {
+            this.journal = journal;
+            this.queueName = queueName;
+            context = journal.createContext();
+            int remaining = journal.getQueueDepth(queueName);
+            if (remaining > 0 && LOGGER.isInfoEnabled()) {
+                LOGGER.logInfo("replies that were not sent before the last shutdown will be sent. queueName = ["
+                             + queueName + "] count = [" + remaining + "]");
+            }
+            permits = new Semaphore(capacity - remaining);
+        }
+
+        @Override
+        void put(SendingMessage reply) throws InterruptedException {
+            permits.acquire();
+            SendingMessage journaled = new SendingMessage();
+            journaled.setHeaderMap(reply.getHeaderMap());
+            journaled.setHeader(DESTINATION_HEADER, reply.getDestination())
+                     .setDestination(queueName);
+            if (reply.getHeaderMap().containsKey(HeaderName.TIME_TO_LIVE)) {
+                // ジャーナルでは有効期間を過ぎた応答電文を破棄し、送信時には元の有効期間を設定する。
+                journaled.setHeader(TIME_TO_LIVE_HEADER, reply.getTimeToLive());
+            }
+            byte[] body = reply.getBodyBytes();
+            journaled.getBodyStream().write(body, 0, body.length);
+            try {
+                context.send(journaled);
+            } catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        Pending poll(long timeout) {
+            // 0以下はデフォルトのタイムアウトとなるため、待機しない場合も最小の時間を指定する。
+            ReceivedMessage received = context.receiveMessage(queueName, null, Math.max(1, timeout));
+            if (received == null) {
+                return null;
+            }
+            Map<String, Object> headers = new HashMap<String, Object>(received.getHeaderMap());
+            String destination = (String) headers.remove(DESTINATION_HEADER);
+            Long timeToLive = (Long) headers.remove(TIME_TO_LIVE_HEADER);
+            headers.remove(HeaderName.MESSAGE_ID);
+            SendingMessage message = new SendingMessage();
+            message.setHeaderMap(headers);
+            message.setDestination(destination);
+            if (timeToLive != null) {
+                message.setTimeToLive(timeToLive);
+            }
+            byte[] body = received.getBodyBytes();
+            message.getBodyStream().write(body, 0, body.length);
+            return new Pending(message, received);
+        }
+
+        @Override
+        void complete(Pending pending) {
+            context.acknowledge(pending.journaled);
+            permits.release();
+        }
+
+        @Override
+        int size() {
+            return journal.getQueueDepth(queueName);
+        }
+
+        @Override
+        int discardRemaining() {
+            return journal.getQueueDepth(queueName);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package nablarch.fw.messaging.handler;
+
+import java.sql.SQLException;
+
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+
+/**
+ * 同じメッセージIDとリクエストIDの応答電文が、既に{@link SentMessageStore}に保存されていることを示す例外。
+ * <p/>
+ * {@link MessageResendHandler#insertNewSentMessage(java.util.Map)}が従来送出していた
+ * {@link DuplicateStatementException}を捕捉するコードが引き続き動作するよう、そのサブクラスとしている。
+ * データベース以外の保存先が送出する場合は、SQLステートに一意制約違反を示す{@value #SQL_STATE}を設定する。
+ */
+public class DuplicateSentMessageException extends DuplicateStatementException {
+
+    /** データベース以外の保存先が送出する場合のSQLステート(一意制約違反) */
+    public static final String SQL_STATE = "23000";
+
+    /**
+     * コンストラクタ。
+     * <p/>
+     * データベース以外の保存先が送出する場合に使用する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     */
+    public DuplicateSentMessageException(String messageId, String requestId) {
+        this(messageId, requestId, new SQLException(messageOf(messageId, requestId), SQL_STATE));
+    }
+
+    /**
+     * コンストラクタ。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @param cause 原因となった例外
+     */
+    public DuplicateSentMessageException(String messageId, String requestId, SQLException cause) {
+        super(messageOf(messageId, requestId), cause);
+    }
+
+    /**
+     * 例外メッセージを生成する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return 例外メッセージ
+     */
+    private static String messageOf(String messageId, String requestId) {
+        return "the reply of the message has been already saved. messageId = [" + messageId
+             + "] requestId = [" + requestId + "]";
+    }
+}
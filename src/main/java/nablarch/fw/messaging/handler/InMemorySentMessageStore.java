@@ -0,0 +1,110 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 応答電文をヒープ上に保存する{@link SentMessageStore}の実装クラス。
+ * <p/>
+ * 保存した応答電文はプロセス内でのみ参照でき、プロセスの終了とともに失われる。
+ * このため、単一プロセスで稼働し、再起動をまたいだ再送への応答が不要なシステムや、テストで使用する。
+ * <p/>
+ * 保存する件数が{@link #setMaxEntries(int)}で設定した上限を超えた場合は、最も古く保存した応答電文から破棄する。
+ * <p/>
+ * 本クラスはスレッドセーフである。
+ *
+ * @see MessageResendHandler#setSentMessageStore(SentMessageStore)
+ */
+public class InMemorySentMessageStore implements SentMessageStore {
+
+    /** 保存する応答電文の最大件数 */
+    private int maxEntries = 100000;
+
+    /** 保存した応答電文 */
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** 保存した順の、応答電文のキー */
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<String>();
+
+    /** {@inheritDoc} */
+    public Entry find(String messageId, String requestId) {
+        return entries.get(keyOf(messageId, requestId));
+    }
+
+    /** {@inheritDoc} */
+    public void save(String messageId, String requestId, String replyQueue, String statusCode, byte[] bodyData)
+    throws DuplicateSentMessageException {
+        String key = keyOf(messageId, requestId);
+        if (entries.putIfAbsent(key, new Entry(replyQueue, statusCode, bodyData)) != null) {
+            throw new DuplicateSentMessageException(messageId, requestId);
+        }
+        insertionOrder.add(key);
+        while (entries.size() > maxEntries) {
+            String eldest = insertionOrder.poll();
+            if (eldest == null) {
+                break;
+            }
+            entries.remove(eldest);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void loadMessageIds(SentMessageIdFilter filter) {
+        for (String key : entries.keySet()) {
+            filter.put(key.substring(0, key.indexOf('\u0000')));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、{@code false}を返す。
+     */
+    public boolean isTransactional() {
+        return false;
+    }
+
+    /**
+     * 保存している応答電文の件数を返す。
+     * @return 応答電文の件数
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 保存している応答電文を全て破棄する。
+     */
+    public void clear() {
+        entries.clear();
+        insertionOrder.clear();
+    }
+
+    /**
+     * ストアのキーを生成する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return ストアのキー
+     */
+    private static String keyOf(String messageId, String requestId) {
+        return messageId + '\u0000' + requestId;
+    }
+
+    /**
+     * 保存する応答電文の最大件数を設定する。
+     * <p/>
+     * デフォルトは100000件。
+     *
+     * @param maxEntries 保存する応答電文の最大件数
+     * @return このオブジェクト自体
+     */
+    public InMemorySentMessageStore setMaxEntries(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException(
+                "maxEntries must be greater than 0. maxEntries = [" + maxEntries + "]");
+        }
+        this.maxEntries = maxEntries;
+        return this;
+    }
+}
@@ -0,0 +1,184 @@
+package nablarch.fw.messaging.handler;
+
+import java.sql.SQLException;
+
+import nablarch.core.db.connection.DbConnectionContext;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.statement.SqlRow;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+import nablarch.core.util.Builder;
+import nablarch.fw.messaging.tableschema.SentMessageTableSchema;
+
+/**
+ * 応答電文を送信済電文テーブルに保存する{@link SentMessageStore}の実装クラス。
+ * <p/>
+ * 送信済電文テーブルへのアクセスには、{@link DbConnectionContext}に設定された
+ * 業務トランザクションのデータベース接続を使用する。
+ * このため、応答電文は業務トランザクションとともにコミットされる。
+ * <p/>
+ * 送信済電文テーブルのスキーマ構造については{@link SentMessageTableSchema}を参照すること。
+ *
+ * @see MessageResendHandler
+ */
+public class JdbcSentMessageStore implements SentMessageStore {
+
+    /** 送信済電文テーブルのスキーマ定義 */
+    private SentMessageTableSchema schema = new SentMessageTableSchema();
+
+    /** 送信済電文を検索するSQLクエリー */
+    private volatile String findQuery = null;
+
+    /** 送信済電文を新規登録するSQL文 */
+    private volatile String insertDml = null;
+
+    /** 全メッセージIDを検索するSQLクエリー */
+    private volatile String findAllIdsQuery = null;
+
+    /**
+     * 本ストアで使用するSQL文を構築する。
+     * <p/>
+     * SQL文はスキーマ定義のみから決まり、複数スレッドから同時に呼び出された場合も
+     * 同じ結果となるため、排他制御は行わない。
+     */
+    public void initialize() {
+        if (findQuery != null) {
+            return;
+        }
+        String query = Builder.join(new String[] {
+            "SELECT", schema.getReplyQueueColumnName(), "AS replyQueue",  ","
+                    , schema.getMessageIdColumnName(),  "AS messageId" ,  ","
+                    , schema.getBodyDataColumnName(),   "AS bodyData"  ,  ","
+                    , schema.getRequestIdColumnName(),  "AS requestId" ,  ","
+                    , schema.getStatusCodeColumnName(), "AS statusCode"
+        ,   "FROM"  , schema.getTableName()
+        ,   "WHERE" , schema.getMessageIdColumnName(), "= ?"
+        ,   "AND"   , schema.getRequestIdColumnName(), "= ?"
+        }, " ");
+
+        String dml = (schema.getSentAtColumnName() == null)
+        ? Builder.join(new String[]{
+            "INSERT INTO", schema.getTableName()
+        ,   "("
+        ,       schema.getMessageIdColumnName(),  ","
+        ,       schema.getRequestIdColumnName(),  ","
+        ,       schema.getReplyQueueColumnName(), ","
+        ,       schema.getStatusCodeColumnName(), ","
+        ,       schema.getBodyDataColumnName()
+        ,   ") VALUES ( ?, ?, ?, ?, ? )"
+        }, " ")
+        : Builder.join(new String[]{
+            "INSERT INTO", schema.getTableName()
+        ,   "("
+        ,       schema.getMessageIdColumnName(),  ","
+        ,       schema.getRequestIdColumnName(),  ","
+        ,       schema.getReplyQueueColumnName(), ","
+        ,       schema.getStatusCodeColumnName(), ","
+        ,       schema.getBodyDataColumnName(),   ","
+        ,       schema.getSentAtColumnName()
+        ,   ") VALUES ( ?, ?, ?, ?, ?, CURRENT_TIMESTAMP )"
+        }, " ");
+
+        String idsQuery = Builder.join(new String[] {
+            "SELECT", schema.getMessageIdColumnName(), "AS messageId"
+        ,   "FROM"  , schema.getTableName()
+        }, " ");
+
+        // 検索用SQLの設定を初期化済みの判定に使用するため、最後に設定する。
+        insertDml = dml;
+        findAllIdsQuery = idsQuery;
+        findQuery = query;
+    }
+
+    /**
+     * 送信済電文を新規登録するSQL文を返す。
+     * @return 送信済電文を新規登録するSQL文
+     */
+    String getInsertDml() {
+        initialize();
+        return insertDml;
+    }
+
+    /** {@inheritDoc} */
+    public Entry find(String messageId, String requestId) {
+        SqlRow row = findRow(messageId, requestId);
+        return (row != null)
+             ? new Entry(row.getString("replyQueue"), row.getString("statusCode"), row.getBytes("bodyData"))
+             : null;
+    }
+
+    /**
+     * 送信済電文テーブルを検索し、当該の電文のレコードを返却する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId 要求電文のリクエストID
+     * @return 当該電文のレコード(存在しない場合は{@code null})
+     */
+    public SqlRow findRow(String messageId, String requestId) {
+        initialize();
+        SqlPStatement stmt = DbConnectionContext
+                            .getConnection()
+                            .prepareStatement(findQuery);
+        stmt.setString(1, messageId);
+        stmt.setString(2, requestId);
+        ResultSetIterator results = stmt.executeQuery();
+        if (!results.next()) {
+            return null;
+        }
+        return results.getRow();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 一意制約違反が発生した場合、{@link DuplicateSentMessageException}を送出する。
+     */
+    public void save(String messageId, String requestId, String replyQueue, String statusCode, byte[] bodyData)
+    throws DuplicateSentMessageException {
+        initialize();
+        SqlPStatement stmt = DbConnectionContext
+                            .getConnection()
+                            .prepareStatement(insertDml);
+        stmt.setString(1, messageId);
+        stmt.setString(2, requestId);
+        stmt.setString(3, replyQueue);
+        stmt.setString(4, statusCode);
+        stmt.setBytes(5,  bodyData);
+        try {
+            stmt.execute();
+        } catch (DuplicateStatementException e) {
+            throw new DuplicateSentMessageException(messageId, requestId, (SQLException) e.getCause());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void loadMessageIds(SentMessageIdFilter filter) {
+        initialize();
+        SqlPStatement stmt = DbConnectionContext
+                            .getConnection()
+                            .prepareStatement(findAllIdsQuery);
+        ResultSetIterator results = stmt.executeQuery();
+        while (results.next()) {
+            filter.put(results.getRow().getString("messageId"));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、業務トランザクションのデータベース接続を使用するため、{@code true}を返す。
+     */
+    public boolean isTransactional() {
+        return true;
+    }
+
+    /**
+     * 送信済電文テーブルのスキーマ定義を設定する。
+     * @param schema スキーマ定義
+     * @return このオブジェクト自体
+     */
+    public JdbcSentMessageStore setSentMessageTableSchema(SentMessageTableSchema schema) {
+        this.schema = schema;
+        return this;
+    }
+}
@@ -0,0 +1,579 @@
+package nablarch.fw.messaging.handler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * 応答電文をメモリマップドファイル上の追記専用ログに保存する{@link SentMessageStore}の実装クラス。
+ * <p/>
+ * 応答電文は{@link #setDirectory(String)}で設定したディレクトリ内のセグメントファイルに追記し、
+ * 各応答電文の格納位置をヒープ上の索引(ハッシュ表)で管理する。
+ * 検索は索引とメモリマップドファイルの参照のみで行うため、データベースにはアクセスしない。
+ * 起動時(初回アクセス時)は、既存のセグメントファイルを先頭から読み込み、索引を再構築する。
+ * <p/>
+ * <b>保持期間</b>
+ * <p/>
+ * セグメントファイルが{@link #setSegmentSize(int)}で設定したサイズに達した場合、新しいセグメントファイルに切り替える。
+ * 保持するセグメントファイルは、使用中のものとその1つ前のものの2つまでとし、
+ * それより古いセグメントファイルに保存された応答電文は、ファイルとともに破棄する。
+ * このため、送信元が再送を行う可能性のある期間に保存される応答電文が、
+ * 1セグメントファイルに収まるようにサイズを設定すること。
+ * <p/>
+ * <b>耐久性</b>
+ * <p/>
+ * 応答電文はメモリマップドファイルに書き込んだ時点でOSのページキャッシュに反映されるため、
+ * プロセスが異常終了しても失われない。
+ * OSの停止に備える必要がある場合は{@link #setForceOnSave(boolean)}を設定し、保存の都度ディスクに書き出す。
+ * 各レコードは本体を書き込んだ後に長さを書き込むため、書き込み途中で停止した場合も、
+ * 再起動時には書き込みが完了したレコードまでを読み込む。
+ * <p/>
+ * 1つのディレクトリを複数のプロセスで共有することはできない。
+ * 本クラスはスレッドセーフである。
+ *
+ * @see MessageResendHandler#setSentMessageStore(SentMessageStore)
+ */
+public class MappedFileSentMessageStore implements SentMessageStore {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(MappedFileSentMessageStore.class);
+
+    /** 文字列のエンコーディング */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** セグメントファイルの拡張子 */
+    private static final String SUFFIX = ".log";
+
+    /** レコードの長さを格納する領域のサイズ */
+    private static final int LENGTH_SIZE = 4;
+
+    /** セグメントファイルを格納するディレクトリ */
+    private File directory = null;
+
+    /** セグメントファイル名の接頭辞 */
+    private String fileNamePrefix = "sent-message";
+
+    /** セグメントファイルのサイズ(単位：バイト) */
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /** 保存の都度ディスクに書き出すかどうか */
+    private boolean forceOnSave = false;
+
+    /** 応答電文の格納位置の索引 */
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+    /** 追記中のセグメント */
+    private Segment active = null;
+
+    /** 1つ前のセグメント */
+    private Segment previous = null;
+
+    /** 初期化済みかどうか */
+    private volatile boolean initialized = false;
+
+    /** 閉じられたかどうか */
+    private volatile boolean closed = false;
+
+    /**
+     * 既存のセグメントファイルを読み込み、索引を構築する。
+     * <p/>
+     * 既に初期化済みの場合は何もしない。
+     *
+     * @throws IllegalStateException ディレクトリが設定されていない場合、またはファイルの読み込みに失敗した場合
+     */
+    public synchronized void initialize() throws IllegalStateException {
+        if (initialized) {
+            return;
+        }
+        if (directory == null) {
+            throw new IllegalStateException("directory was not specified.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("failed to create the directory. directory = [" + directory + "]");
+        }
+        SortedMap<Long, File> files = listSegmentFiles();
+        try {
+            // 保持対象(最新の2つ)より古いセグメントファイルは削除する。
+            while (files.size() > 2) {
+                Long oldest = files.firstKey();
+                deleteFile(files.remove(oldest));
+            }
+            for (Map.Entry<Long, File> file : files.entrySet()) {
+                Segment segment = new Segment(file.getValue(), file.getKey(), segmentSize);
+                load(segment);
+                previous = active;
+                active = segment;
+            }
+            if (active == null) {
+                active = new Segment(fileOf(0), 0, segmentSize);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to open the sent message store. directory = [" + directory + "]", e);
+        }
+        initialized = true;
+        LOGGER.logInfo("opened the sent message store. directory = [" + directory
+                     + "] entries = [" + index.size() + "]");
+    }
+
+    /** {@inheritDoc} */
+    public Entry find(String messageId, String requestId) {
+        if (!initialized) {
+            initialize();
+        }
+        Location location = index.get(keyOf(messageId, requestId));
+        return (location != null) ? location.segment.read(location.offset) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalArgumentException 応答電文が1セグメントファイルに収まらない場合
+     * @throws IllegalStateException ストアが閉じられている場合、またはファイルの書き込みに失敗した場合
+     */
+    public synchronized void save(String messageId, String requestId,
+                                  String replyQueue, String statusCode, byte[] bodyData)
+    throws DuplicateSentMessageException, IllegalArgumentException, IllegalStateException {
+        if (!initialized) {
+            initialize();
+        }
+        if (closed) {
+            throw new IllegalStateException("the sent message store has been already closed.");
+        }
+        String key = keyOf(messageId, requestId);
+        if (index.containsKey(key)) {
+            throw new DuplicateSentMessageException(messageId, requestId);
+        }
+        byte[] record = encode(messageId, requestId, replyQueue, statusCode, bodyData);
+        if (LENGTH_SIZE + record.length > active.capacity) {
+            throw new IllegalArgumentException(
+                "the reply is too large to be stored. size = [" + record.length + "]");
+        }
+        if (!active.hasRoom(record.length)) {
+            roll();
+        }
+        int offset = active.append(record, forceOnSave);
+        index.put(key, new Location(active, offset));
+    }
+
+    /** {@inheritDoc} */
+    public void loadMessageIds(SentMessageIdFilter filter) {
+        if (!initialized) {
+            initialize();
+        }
+        for (String key : index.keySet()) {
+            filter.put(key.substring(0, key.indexOf('\u0000')));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、{@code false}を返す。
+     */
+    public boolean isTransactional() {
+        return false;
+    }
+
+    /**
+     * 保存している応答電文の件数を返す。
+     * @return 応答電文の件数
+     */
+    public int size() {
+        if (!initialized) {
+            initialize();
+        }
+        return index.size();
+    }
+
+    /**
+     * ストアを閉じる。
+     * <p/>
+     * 書き込んだ内容をディスクに書き出し、セグメントファイルを閉じる。
+     * 閉じた後は応答電文を保存できない。
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (active != null) {
+            active.buffer.force();
+            active.close();
+        }
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * 新しいセグメントファイルに切り替え、保持期間を過ぎたセグメントファイルを破棄する。
+     */
+    private void roll() {
+        Segment next;
+        try {
+            next = new Segment(fileOf(active.generation + 1), active.generation + 1, segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to create a new segment file. directory = [" + directory + "]", e);
+        }
+        if (previous != null) {
+            int discarded = 0;
+            for (Iterator<Location> it = index.values().iterator(); it.hasNext();) {
+                if (it.next().segment == previous) {
+                    it.remove();
+                    discarded++;
+                }
+            }
+            previous.close();
+            deleteFile(previous.file);
+            LOGGER.logInfo("discarded the oldest segment of the sent message store. file = [" + previous.file
+                         + "] discarded = [" + discarded + "]");
+        }
+        active.buffer.force();
+        previous = active;
+        active = next;
+    }
+
+    /**
+     * セグメントファイルを先頭から読み込み、索引に追加する。
+     * @param segment セグメント
+     */
+    private void load(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while (position + LENGTH_SIZE <= segment.capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + LENGTH_SIZE + length > segment.capacity) {
+                break;
+            }
+            buffer.position(position + LENGTH_SIZE);
+            String messageId = readString(buffer);
+            String requestId = readString(buffer);
+            // 同じキーのレコードは存在しないはずだが、存在した場合は先に保存されたものを正とする。
+            index.putIfAbsent(keyOf(messageId, requestId), new Location(segment, position));
+            position += LENGTH_SIZE + length;
+        }
+        segment.position = position;
+    }
+
+    /**
+     * ディレクトリ内のセグメントファイルを世代順に返す。
+     * @return 世代をキーとするセグメントファイル
+     */
+    private SortedMap<Long, File> listSegmentFiles() {
+        SortedMap<Long, File> files = new TreeMap<Long, File>();
+        File[] candidates = directory.listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        String prefix = fileNamePrefix + "-";
+        for (File file : candidates) {
+            String name = file.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                files.put(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                // 本クラスが作成したファイルではないため無視する。
+                continue;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * セグメントファイルを返す。
+     * @param generation 世代
+     * @return セグメントファイル
+     */
+    private File fileOf(long generation) {
+        return new File(directory, fileNamePrefix + "-" + String.format("%019d", generation) + SUFFIX);
+    }
+
+    /**
+     * ファイルを削除する。
+     * @param file ファイル
+     */
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            LOGGER.logWarn("failed to delete the segment file of the sent message store. file = [" + file + "]");
+        }
+    }
+
+    /**
+     * 応答電文をレコードに変換する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @param replyQueue 応答電文の宛先
+     * @param statusCode ステータスコード
+     * @param bodyData 応答電文のボディ部
+     * @return レコード
+     */
+    private static byte[] encode(String messageId, String requestId,
+                                 String replyQueue, String statusCode, byte[] bodyData) {
+        byte[][] strings = {bytesOf(messageId), bytesOf(requestId), bytesOf(replyQueue), bytesOf(statusCode)};
+        int length = 4 + (bodyData == null ? 0 : bodyData.length);
+        for (byte[] string : strings) {
+            length += 4 + (string == null ? 0 : string.length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] string : strings) {
+            writeBytes(buffer, string);
+        }
+        writeBytes(buffer, bodyData);
+        return buffer.array();
+    }
+
+    /**
+     * 文字列をバイト配列に変換する。
+     * @param value 文字列
+     * @return バイト配列(文字列が{@code null}の場合は{@code null})
+     */
+    private static byte[] bytesOf(String value) {
+        return (value == null) ? null : value.getBytes(UTF_8);
+    }
+
+    /**
+     * 長さを付与してバイト配列を書き込む。
+     * @param buffer 書き込み先
+     * @param bytes バイト配列
+     */
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * 長さが付与されたバイト配列を読み込む。
+     * @param buffer 読み込み元
+     * @return バイト配列
+     */
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 長さが付与された文字列を読み込む。
+     * @param buffer 読み込み元
+     * @return 文字列
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return (bytes == null) ? null : new String(bytes, UTF_8);
+    }
+
+    /**
+     * 索引のキーを生成する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return 索引のキー
+     */
+    private static String keyOf(String messageId, String requestId) {
+        return messageId + '\u0000' + requestId;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * セグメントファイルを格納するディレクトリを設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param directory ディレクトリのパス
+     * @return このオブジェクト自体
+     */
+    public MappedFileSentMessageStore setDirectory(String directory) {
+        this.directory = new File(directory);
+        return this;
+    }
+
+    /**
+     * セグメントファイル名の接頭辞を設定する。
+     * <p/>
+     * デフォルトは"sent-message"。
+     *
+     * @param fileNamePrefix セグメントファイル名の接頭辞
+     * @return このオブジェクト自体
+     */
+    public MappedFileSentMessageStore setFileNamePrefix(String fileNamePrefix) {
+        this.fileNamePrefix = fileNamePrefix;
+        return this;
+    }
+
+    /**
+     * セグメントファイルのサイズを設定する。
+     * <p/>
+     * 既存のセグメントファイルがこのサイズより大きい場合、そのファイルはファイルのサイズで使用する。
+     * デフォルトは64MB。
+     *
+     * @param segmentSize セグメントファイルのサイズ(単位：バイト)
+     * @return このオブジェクト自体
+     */
+    public MappedFileSentMessageStore setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException(
+                "segmentSize must be greater than 0. segmentSize = [" + segmentSize + "]");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * 保存の都度ディスクに書き出すかどうかを設定する。
+     * <p/>
+     * デフォルトは{@code false}。(OSのページキャッシュへの反映のみ)
+     *
+     * @param forceOnSave 保存の都度ディスクに書き出す場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public MappedFileSentMessageStore setForceOnSave(boolean forceOnSave) {
+        this.forceOnSave = forceOnSave;
+        return this;
+    }
+
+    /**
+     * 応答電文の格納位置。
+     */
+    private static final class Location {
+
+        /** セグメント */
+        private final Segment segment;
+
+        /** セグメント内のレコードの開始位置 */
+        private final int offset;
+
+        /**
+         * コンストラクタ。
+         * @param segment セグメント
+         * @param offset セグメント内のレコードの開始位置
+         */
+        Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * セグメントファイル。
+     */
+    private static final class Segment {
+
+        /** ファイル */
+        private final File file;
+
+        /** 世代 */
+        private final long generation;
+
+        /** ファイルのチャネル */
+        private final FileChannel channel;
+
+        /** ファイルをマップしたバッファ */
+        private final MappedByteBuffer buffer;
+
+        /** 容量(単位：バイト) */
+        private final int capacity;
+
+        /** 次のレコードの書き込み位置 */
+        private int position = 0;
+
+        /**
+         * セグメントファイルを開く。ファイルが存在しない場合は作成する。
+         * @param file ファイル
+         * @param generation 世代
+         * @param size セグメントファイルのサイズ
+         * @throws IOException ファイルを開けなかった場合
+         */
+        Segment(File file, long generation, int size) throws IOException {
+            this.file = file;
+            this.generation = generation;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                this.capacity = (int) Math.max(size, Math.min(raf.length(), Integer.MAX_VALUE));
+                this.channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * レコードを追記できるか否かを返す。
+         * @param length レコードの長さ
+         * @return 追記できる場合は{@code true}
+         */
+        boolean hasRoom(int length) {
+            return position + LENGTH_SIZE + length <= capacity;
+        }
+
+        /**
+         * レコードを追記する。
+         * <p/>
+         * レコードの本体を書き込んだ後に長さを書き込むことで、書き込み途中のレコードを読み込まないようにする。
+         *
+         * @param record レコード
+         * @param force ディスクに書き出す場合は{@code true}
+         * @return レコードの開始位置
+         */
+        int append(byte[] record, boolean force) {
+            int offset = position;
+            ByteBuffer body = buffer.duplicate();
+            body.position(offset + LENGTH_SIZE);
+            body.put(record);
+            buffer.putInt(offset, record.length);
+            if (force) {
+                buffer.force();
+            }
+            position = offset + LENGTH_SIZE + record.length;
+            return offset;
+        }
+
+        /**
+         * レコードを読み込む。
+         * @param offset レコードの開始位置
+         * @return 応答電文
+         */
+        Entry read(int offset) {
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + LENGTH_SIZE);
+            readBytes(record);  // メッセージID
+            readBytes(record);  // リクエストID
+            String replyQueue = readString(record);
+            String statusCode = readString(record);
+            return new Entry(replyQueue, statusCode, readBytes(record));
+        }
+
+        /**
+         * ファイルを閉じる。
+         * <p/>
+         * マップしたバッファは、参照されなくなるまで読み込みに使用できる。
+         */
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.logWarn("failed to close the segment file of the sent message store. file = [" + file + "]", e);
+            }
+        }
+    }
+}
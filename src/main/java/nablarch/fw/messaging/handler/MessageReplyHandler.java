@@ -68,6 +68,14 @@ import nablarch.fw.messaging.StandardFwHeaderDefinition;
  *      後続ハンドラが送出した例外を再送出する。　
  * </pre>
  * 
+ * <div><b>応答電文の非同期送信</b></div>
+ * <hr/>
+ * {@link #setAsyncReplySender(AsyncReplySender)}で送信処理を設定した場合、
+ * 応答電文の送信は専用の送信スレッドで行われる。
+ * この場合、上記の送信処理中のエラーは送信スレッドで発生するため本ハンドラには通知されず、
+ * 送信処理が再送信した上でエラーログに出力する。
+ * 詳細は{@link AsyncReplySender}を参照すること。
+ * 
  * @author Iwauo Tajima
  */
 public class MessageReplyHandler implements Handler<Object, Result> {
@@ -75,6 +83,9 @@ public class MessageReplyHandler implements Handler<Object, Result> {
     /** 応答電文中のフレームワークヘッダ定義 */
     private FwHeaderDefinition fwHeaderDefinition = new StandardFwHeaderDefinition();
 
+    /** 応答電文を専用スレッドから送信する送信処理(業務処理のスレッドで送信する場合は{@code null}) */
+    private AsyncReplySender asyncReplySender = null;
+
     /**
      * コンストラクタ。
      */
@@ -113,7 +124,11 @@ public class MessageReplyHandler implements Handler<Object, Result> {
             if (res.getFwHeader().getStatusCode() == null) {
                 res.getFwHeader().setStatusCode(getStatusCode(res));
             }
-            MessagingContext.getInstance().send(res);
+            if (asyncReplySender != null) {
+                asyncReplySender.send(res);
+            } else {
+                MessagingContext.getInstance().send(res);
+            }
 
         } catch (Throwable th) {
             if (error != null) {
@@ -202,6 +217,21 @@ public class MessageReplyHandler implements Handler<Object, Result> {
         return this;
     }
     
+    /**
+     * 応答電文を専用スレッドから送信する送信処理を設定する。
+     * <p/>
+     * 設定した場合、応答電文は直列化して送信処理のキューに格納し、送信の完了を待たずに処理を終了する。
+     * 送信時のエラーは本ハンドラには通知されず、送信処理がエラーログに出力する。
+     * デフォルトでは、業務処理のスレッドで同期的に送信する。
+     * 
+     * @param asyncReplySender 応答電文の送信処理
+     * @return このオブジェクト自体
+     */
+    public MessageReplyHandler setAsyncReplySender(AsyncReplySender asyncReplySender) {
+        this.asyncReplySender = asyncReplySender;
+        return this;
+    }
+    
     /** ロガー */
     private static final Logger LOGGER = LoggerManager.get(MessageReplyHandler.class);
 }
@@ -1,16 +1,15 @@
 package nablarch.fw.messaging.handler;
 
+import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
 
-import nablarch.core.db.connection.DbConnectionContext;
-import nablarch.core.db.statement.ResultSetIterator;
-import nablarch.core.db.statement.SqlPStatement;
 import nablarch.core.db.statement.SqlRow;
-import nablarch.core.db.statement.exception.DuplicateStatementException;
-import nablarch.core.util.Builder;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
 import nablarch.fw.ExecutionContext;
 import nablarch.fw.Handler;
+import nablarch.fw.TransactionEventCallback;
 import nablarch.fw.messaging.FwHeader;
 import nablarch.fw.messaging.FwHeaderDefinition;
 import nablarch.fw.messaging.RequestMessage;
@@ -84,25 +83,99 @@ import nablarch.fw.messaging.tableschema.SentMessageTableSchema;
  *    を参照すること。
  * </pre>
  * 
+ * <div><b>応答電文のキャッシュ</b></div>
+ * <hr/>
+ * {@link #setSentReplyCache(SentReplyCache)}でキャッシュを設定した場合、
+ * 送信済電文テーブルへの登録がコミットされた応答電文をキャッシュに格納し、
+ * 再送要求電文に対する応答をキャッシュから返却する。
+ * キャッシュに保持されていない応答電文は、従来通り送信済電文テーブルから取得する。
+ * <p/>
+ * {@link TransactionEventCallback#transactionNormalEnd(Object, ExecutionContext)}はコミット前に呼び出されるため、
+ * 応答電文は{@link AfterCommitHandler}によりコミットの成功を確認してからキャッシュに格納する。
+ * キャッシュを使用する場合は、本ハンドラをトランザクション制御ハンドラより後ろに配置し、
+ * {@link AfterCommitHandler}をトランザクション制御ハンドラの直前に配置すること。
+ * コミットに失敗した応答電文はキャッシュに格納されない。
+ * 
+ * <div><b>送信済メッセージIDのフィルタ</b></div>
+ * <hr/>
+ * {@link #setSentMessageIdFilter(SentMessageIdFilter)}でフィルタを設定した場合、
+ * 送信済電文テーブルに確実に登録されていないメッセージIDについては、送信済電文テーブルの検索を省略する。
+ * フィルタの読み込みと作り直しは専用のスレッドで行うため、
+ * 送信済電文テーブルを使用する場合は、フィルタにデータベース接続のファクトリを設定すること。
+ * 複数のプロセスで同じ受信キューを処理する場合の注意点については{@link SentMessageIdFilter}を参照すること。
+ * 
+ * <div><b>送信済電文の非同期登録</b></div>
+ * <hr/>
+ * {@link #setSentMessageWriter(SentMessageWriter)}でライタを設定した場合、
+ * 応答電文は業務トランザクション内で送信済電文テーブルに登録せず、
+ * コミット後にライタが別トランザクションでまとめて登録する。
+ * 応答電文は{@link AfterCommitHandler}によりコミットの成功を確認してからライタに渡すため、
+ * {@link AfterCommitHandler}をトランザクション制御ハンドラの直前に配置すること。
+ * この場合、並行処理された同一電文を一意制約によってロールバックする制御は行われない。
+ * 詳細は{@link SentMessageWriter}を参照すること。
+ * 
+ * <div><b>送信済電文の削除</b></div>
+ * <hr/>
+ * {@link SentMessageTableSchema#setSentAtColumnName(String)}で登録日時のカラムを設定した場合、
+ * 送信済電文の登録時にそのカラムに登録日時を設定する。
+ * 保持期間を過ぎた送信済電文は、{@link SentMessagePurger}で削除できる。
+ * 
+ * <div><b>応答電文の圧縮</b></div>
+ * <hr/>
+ * {@link #setSentReplyCompressor(SentReplyCompressor)}で圧縮処理を設定した場合、
+ * 応答電文のボディ部を圧縮して保存し、再送時に展開する。
+ * 圧縮の有無はボディ部に付与したヘッダで判定するため、送信済電文テーブルのスキーマを変更する必要はない。
+ * 圧縮処理を設定していない場合は、保存されたボディ部をそのまま再送する。
+ * 圧縮して保存した応答電文が残っている間は、圧縮処理の設定を削除しないこと。
+ * 
+ * <div><b>送信済電文の保存先</b></div>
+ * <hr/>
+ * {@link #setSentMessageStore(SentMessageStore)}で保存先を設定した場合、
+ * 応答電文を送信済電文テーブル以外に保存できる。
+ * デフォルトでは{@link JdbcSentMessageStore}を使用し、送信済電文テーブルに保存する。
+ * 業務トランザクションに参加しない保存先を使用する場合、応答電文は{@link AfterCommitHandler}により
+ * コミットの成功を確認してから保存されるため、本ハンドラをトランザクション制御ハンドラより後ろに配置し、
+ * {@link AfterCommitHandler}をトランザクション制御ハンドラの直前に配置すること。
+ * 詳細は{@link SentMessageStore}を参照すること。
+ * 
  * @see SentMessageTableSchema
  * @see FwHeader#isResendingRequest()
  * @author Iwauo Tajima
  */
 public class MessageResendHandler
-implements Handler<RequestMessage, ResponseMessage> {
+implements Handler<RequestMessage, ResponseMessage>, TransactionEventCallback<Object> {
     // ------------------------------------------------------- Structure    
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(MessageResendHandler.class);
+
+    /** コミット待ちの応答電文を格納するリクエストスコープ変数名 */
+    private static final String PENDING_REPLY_KEY = MessageResendHandler.class.getName() + ".pendingReply";
+    
     /** 再送電文管理テーブルスキーマ定義 */
     private SentMessageTableSchema schema = null;
     
-    /** 再送対象の電文を検索する際に使用するSQLクエリー */
-    private String findAlreadySentMessageQuery = null;
+
+    /** 送信済電文の保存先(デフォルトの送信済電文テーブルを使用する場合は{@code null}) */
+    private SentMessageStore sentMessageStore = null;
     
-    /** 再送電文管理テーブルに送信電文を新規登録するSQL文 */
-    private String insertNewSentMessageDml = null;
+    /** 初期化済みの保存先 */
+    private volatile SentMessageStore store = null;
     
     /** 応答電文中のフレームワークヘッダ定義 */
     private FwHeaderDefinition fwHeaderDefinition = new StandardFwHeaderDefinition();
 
+    /** 応答電文のキャッシュ(キャッシュを使用しない場合は{@code null}) */
+    private SentReplyCache sentReplyCache = null;
+
+    /** 送信済メッセージIDのフィルタ(フィルタを使用しない場合は{@code null}) */
+    private SentMessageIdFilter sentMessageIdFilter = null;
+
+    /** 応答電文のボディ部の圧縮処理(圧縮しない場合は{@code null}) */
+    private SentReplyCompressor sentReplyCompressor = null;
+
+    /** 送信済電文を非同期で登録するライタ(業務トランザクション内で登録する場合は{@code null}) */
+    private SentMessageWriter sentMessageWriter = null;
+
     // ------------------------------------------------------- Constructor
     /**
      * デフォルトコンストラクタ。
@@ -112,36 +185,30 @@ implements Handler<RequestMessage, ResponseMessage> {
     }
     
     /**
-     * 本ハンドラで使用するSQL文を構築する。
+     * 本ハンドラで使用する送信済電文の保存先を初期化する。
+     * <p/>
+     * 保存先が設定されていない場合は、スキーマ定義をもとに{@link JdbcSentMessageStore}を構築する。
+     * 初期化の結果は設定のみから決まり、複数スレッドから同時に呼び出された場合も
+     * 同じ結果となるため、排他制御は行わない。
+     * 
+     * @throws IllegalStateException 送信済電文テーブル以外の保存先とライタを同時に設定した場合
      */
-    public synchronized void initialize() {
-        if (findAlreadySentMessageQuery != null) {
+    public void initialize() throws IllegalStateException {
+        if (store != null) {
             return;
         }
-        findAlreadySentMessageQuery = Builder.join(new String[] {
-            "SELECT", schema.getReplyQueueColumnName(), "AS replyQueue",  ","
-                    , schema.getMessageIdColumnName(),  "AS messageId" ,  ","
-                    , schema.getBodyDataColumnName(),   "AS bodyData"  ,  ","
-                    , schema.getRequestIdColumnName(),  "AS requestId" ,  ","
-                    , schema.getStatusCodeColumnName(), "AS statusCode"
-        ,   "FROM"  , schema.getTableName()
-        ,   "WHERE" , schema.getMessageIdColumnName(), "= ?"
-        ,   "AND"   , schema.getRequestIdColumnName(), "= ?"
-        }, " ");
-        
-        if (insertNewSentMessageDml != null) {
-            return;
+        SentMessageStore initialized = (sentMessageStore != null)
+                                     ? sentMessageStore
+                                     : new JdbcSentMessageStore().setSentMessageTableSchema(schema);
+        if (sentMessageWriter != null) {
+            if (!(initialized instanceof JdbcSentMessageStore)) {
+                throw new IllegalStateException(
+                    "sentMessageWriter can be used only with JdbcSentMessageStore. sentMessageStore = ["
+                  + initialized.getClass().getName() + "]");
+            }
+            sentMessageWriter.initialize(((JdbcSentMessageStore) initialized).getInsertDml());
         }
-        insertNewSentMessageDml = Builder.join(new String[]{
-            "INSERT INTO", schema.getTableName()
-        ,   "("
-        ,       schema.getMessageIdColumnName(),  ","
-        ,       schema.getRequestIdColumnName(),  ","
-        ,       schema.getReplyQueueColumnName(), ","
-        ,       schema.getStatusCodeColumnName(), ","
-        ,       schema.getBodyDataColumnName()
-        ,   ") VALUES ( ?, ?, ?, ?, ? )"
-        }, " ");
+        store = initialized;
     }
     
     
@@ -153,12 +220,15 @@ implements Handler<RequestMessage, ResponseMessage> {
      * 登録されていない場合は、要求電文を初回電文として処理し、その応答電文を返す。
      */
     public ResponseMessage handle(RequestMessage request, ExecutionContext context) {
-        if (findAlreadySentMessageQuery == null) {
+        if (store == null) {
             initialize();
         }
         if (!request.getFwHeader().isResendingSupported()) {
             return context.handleNext(request);
         }
+        if (requiresAfterCommitHandler() && !AfterCommitHandler.isAvailable(context)) {
+            throw new IllegalStateException("AfterCommitHandler was not specified.");
+        }
         ResponseMessage reply = getAlreadySentReply(request);
         if (reply != null) {
             reply.setCorrelationId(request.getMessageId());
@@ -178,16 +248,28 @@ implements Handler<RequestMessage, ResponseMessage> {
             // 2. ロックを獲得した先行スレッドが正常にコミットした場合。
             //    開放されたロックを獲得後、処理を再開するが、insert時に一意制約違反
             //    が発生し、下のcatchブロックに進む。
-            saveReply(request, reply);
+            reply.setFwHeaderDefinition(fwHeaderDefinition);
+            PendingReply pending = new PendingReply(request, reply, storedBodyOf(reply));
+            boolean savedAfterCommit = sentMessageWriter != null || !store.isTransactional();
+            if (!savedAfterCommit) {
+                save(pending);
+            }
+            // 業務処理の正常終了後にコミット後の処理として登録し、
+            // コミットに成功した後にキャッシュに格納し、ライタ、または保存先が登録する。
+            if (requiresAfterCommitHandler()) {
+                context.setRequestScopedVar(PENDING_REPLY_KEY, pending);
+            }
             return reply;
             
-        } catch (DuplicateStatementException e) {
+        } catch (DuplicateSentMessageException e) {
             // 並行処理中の先行電文によって処理が完了し、既に再送用電文が
             // 登録されていた場合はinsert時に一意制約エラーが発生し
             // このcatchブロックに突入する。
             // この場合、業務処理自体は別スレッドで正常終了しているので、
             // 再送電文を取得して返却する。
-            ResponseMessage alreadySent = getAlreadySentReply(request);
+            // 他のプロセスが登録した電文はフィルタに反映されていない可能性があるため、
+            // フィルタを使用せずに検索する。
+            ResponseMessage alreadySent = getAlreadySentReply(request, false);
             if (alreadySent != null) {
                 alreadySent.setCorrelationId(request.getMessageId());
                 alreadySent.throwAsError();
@@ -197,72 +279,212 @@ implements Handler<RequestMessage, ResponseMessage> {
         }
     }
     
-    // --------------------------------------------------- DB Access
+    // --------------------------------------------------- TransactionEventCallback I/F
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、キャッシュ、ライタ、または業務トランザクションに参加しない保存先を使用する場合に、
+     * 応答電文をキャッシュに格納し、ライタに渡し、保存先に保存する処理を{@link AfterCommitHandler}に登録する。
+     * 本メソッドはコミット前に呼び出されるため、これらの処理はコミットの成功後に行う。
+     */
+    public void transactionNormalEnd(Object data, ExecutionContext ctx) {
+        final PendingReply pending = ctx.getRequestScopedVar(PENDING_REPLY_KEY);
+        if (pending == null) {
+            return;
+        }
+        ctx.setRequestScopedVar(PENDING_REPLY_KEY, null);
+        if (requiresAfterCommitHandler()) {
+            AfterCommitHandler.register(ctx, new AfterCommitHandler.Callback() {
+                public void afterCommit(ExecutionContext context) {
+                    completeCommit(pending);
+                }
+            });
+        }
+    }
+
+    /**
+     * コミットされた応答電文をライタに渡し、または保存先に保存し、キャッシュに格納する。
+     * @param pending コミットされた応答電文
+     */
+    private void completeCommit(PendingReply pending) {
+        if (sentMessageWriter != null) {
+            sentMessageWriter.write(pending.messageId, pending.requestId,
+                                    pending.replyQueue, pending.statusCode, pending.bodyData);
+            if (sentMessageIdFilter != null) {
+                sentMessageIdFilter.put(pending.messageId);
+            }
+        } else if (!store.isTransactional()) {
+            try {
+                store.save(pending.messageId, pending.requestId,
+                           pending.replyQueue, pending.statusCode, pending.bodyData);
+            } catch (DuplicateSentMessageException e) {
+                // 並行して処理された同じ電文の応答電文が先に保存されている。
+                LOGGER.logInfo(e.getMessage());
+                return;
+            }
+            if (sentMessageIdFilter != null) {
+                sentMessageIdFilter.put(pending.messageId);
+            }
+        }
+        if (sentReplyCache != null) {
+            sentReplyCache.put(pending.messageId, pending.requestId,
+                               pending.replyQueue, pending.statusCode, pending.bodyData);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * この実装では、ロールバックされた応答電文をキャッシュに格納せず、ライタや保存先にも渡さない。
+     */
+    public void transactionAbnormalEnd(Throwable e, Object data, ExecutionContext ctx) {
+        ctx.setRequestScopedVar(PENDING_REPLY_KEY, null);
+    }
+
+    /**
+     * コミット後の処理に{@link AfterCommitHandler}が必要か否かを返す。
+     * @return キャッシュ、ライタ、または業務トランザクションに参加しない保存先を使用する場合は{@code true}
+     */
+    private boolean requiresAfterCommitHandler() {
+        return sentReplyCache != null || sentMessageWriter != null || !store.isTransactional();
+    }
+
+    // --------------------------------------------------- Store Access
     /**
      * 応答電文を再送電文テーブルに格納する。
+     * <p/>
+     * 保存先を設定した場合は、保存先に格納する。
+     * 圧縮を使用する場合は、ボディ部を圧縮して格納する。
      * @param request  要求電文オブジェクト
      * @param response 応答電文オブジェクト
      */
     public void saveReply(RequestMessage request, ResponseMessage response) {
-        // 初回電文が遅延もしくはロストした場合、再送要求が初回実行の対象となる。
-        // この場合、初回電文のリクエストIDをキーとして保存しなければならない。
-        // 初回電文のリクエストIDは再送電文の関連IDに一致するため、ここでは
-        // その値を使用する。
-        FwHeader fwHeader = request.getFwHeader();
-        String messageId = fwHeader.isResendingRequest()
-                         ? request.getCorrelationId()
-                         : request.getMessageId();
         response.setFwHeaderDefinition(fwHeaderDefinition);
-
+        save(new PendingReply(request, response, storedBodyOf(response)));
+    }
+    
+    /**
+     * 応答電文を再送電文テーブルに格納する。
+     * @param reply 格納する応答電文
+     */
+    private void save(PendingReply reply) {
         Map<String, Object> record = new HashMap<String, Object>();
-        record.put("messageId",  messageId);
-        record.put("requestId",  fwHeader.getRequestId());
-        record.put("replyQueue", response.getDestination());
-        record.put("statusCode", response.getStatusCode());
-        record.put("bodyData",   response.getBodyBytes());
+        record.put("messageId",  reply.messageId);
+        record.put("requestId",  reply.requestId);
+        record.put("replyQueue", reply.replyQueue);
+        record.put("statusCode", reply.statusCode);
+        record.put("bodyData",   reply.bodyData);
         insertNewSentMessage(record);
     }
     
+    /**
+     * 再送用に保存するボディ部を返す。
+     * @param response 応答電文オブジェクト
+     * @return 保存するボディ部(圧縮を使用する場合は圧縮したもの)
+     */
+    private byte[] storedBodyOf(ResponseMessage response) {
+        byte[] body = response.getBodyBytes();
+        return (sentReplyCompressor != null) ? sentReplyCompressor.compress(body) : body;
+    }
+    
+    /**
+     * 再送電文テーブルに保存する際のメッセージIDを返す。
+     * @param request 要求電文オブジェクト
+     * @return 初回電文のメッセージID
+     */
+    private static String sentMessageIdOf(RequestMessage request) {
+        return request.getFwHeader().isResendingRequest()
+             ? request.getCorrelationId()
+             : request.getMessageId();
+    }
+
     /**
      * 再送電文管理テーブルに送信電文を新規登録する。
+     * <p/>
+     * 保存先を設定した場合は、保存先に登録する。
+     * 
      * @param values 登録するレコード
+     * @throws DuplicateSentMessageException 同じ電文の応答電文が既に登録されている場合
+     *         ({@link nablarch.core.db.statement.exception.DuplicateStatementException}のサブクラス)
      */
-    public void insertNewSentMessage(Map<String, Object> values) {
-        SqlPStatement stmt = DbConnectionContext
-                            .getConnection()
-                            .prepareStatement(insertNewSentMessageDml);
-        stmt.setString(1, values.get("messageId").toString());
-        stmt.setString(2, values.get("requestId").toString());
-        stmt.setString(3, values.get("replyQueue").toString());
-        stmt.setString(4, values.get("statusCode").toString());
-        stmt.setBytes(5,  (byte[]) values.get("bodyData"));
-        stmt.execute();
+    public void insertNewSentMessage(Map<String, Object> values) throws DuplicateSentMessageException {
+        if (store == null) {
+            initialize();
+        }
+        store.save(values.get("messageId").toString(),
+                   values.get("requestId").toString(),
+                   values.get("replyQueue").toString(),
+                   values.get("statusCode").toString(),
+                   (byte[]) values.get("bodyData"));
+        if (sentMessageIdFilter != null) {
+            // ロールバックされた場合もフィルタには残るが、検索が省略されないだけなので問題ない。
+            sentMessageIdFilter.put(values.get("messageId").toString());
+        }
     }
 
     /**
      * 再送電文テーブルの内容を確認し、メッセージIDが一致する電文があれば
      * その内容をもとに応答電文を作成して返す
      * 該当する電文が存在しなければnullを返す。
+     * <p/>
+     * キャッシュを使用する場合は、キャッシュに保持された電文を優先して使用する。
+     * ライタを使用する場合は、登録待ちの電文も検索の対象とする。
      * 
      * @param request 要求電文オブジェクト
      * @return 再送用応答電文オブジェクト。
      *          メッセージIDが一致するものが存在しない場合はnull
      */
     public ResponseMessage getAlreadySentReply(RequestMessage request) {
+        return getAlreadySentReply(request, true);
+    }
+
+    /**
+     * 再送電文テーブルの内容を確認し、メッセージIDが一致する電文があれば
+     * その内容をもとに応答電文を作成して返す
+     * 
+     * @param request   要求電文オブジェクト
+     * @param useFilter 送信済メッセージIDのフィルタを使用する場合は{@code true}
+     * @return 再送用応答電文オブジェクト。
+     *          メッセージIDが一致するものが存在しない場合はnull
+     */
+    private ResponseMessage getAlreadySentReply(RequestMessage request, boolean useFilter) {
+        if (store == null) {
+            initialize();
+        }
         String correlationId = request.getCorrelationId();
         if (correlationId == null) {
             correlationId = request.getMessageId();
         }
-        SqlRow record = findAlreadySentMessage(
-                            correlationId, request.getRequestPath()
-                        );
-        return (record != null) ? new ResentResponse(record, request)
-                                : null;
+        if (sentReplyCache != null) {
+            SentReplyCache.Entry cached = sentReplyCache.get(correlationId, request.getRequestPath());
+            if (cached != null) {
+                return new ResentResponse(cached.getReplyQueue(), cached.getStatusCode(),
+                                          cached.getBodyData(), request, sentReplyCompressor);
+            }
+        }
+        if (sentMessageWriter != null) {
+            SentMessageWriter.Record pending = sentMessageWriter.getPending(correlationId, request.getRequestPath());
+            if (pending != null) {
+                return new ResentResponse(pending.getReplyQueue(), pending.getStatusCode(),
+                                          pending.getBodyData(), request, sentReplyCompressor);
+            }
+        }
+        if (useFilter && isNeverSent(request, correlationId)) {
+            return null;
+        }
+        SentMessageStore.Entry sent = store.find(correlationId, request.getRequestPath());
+        return (sent != null) ? new ResentResponse(sent.getReplyQueue(), sent.getStatusCode(),
+                                                   sent.getBodyData(), request, sentReplyCompressor)
+                              : null;
     }
     
     /**
      * 再送対象の電文レコードを検索し、当該の電文のレコードを返却する。
      * レコードが存在しなかった場合はnullを返却する。
+     * <p/>
+     * 送信済電文テーブル以外の保存先を設定した場合は、保存先を検索し、
+     * 送信済電文テーブルの検索結果と同じ項目(replyQueue, messageId, bodyData, requestId, statusCode)
+     * を持つレコードを返却する。
      * 
      * @param messageId 初回電文のメッセージID (=再送要求電文の関連ID)
      * @param requestId 要求電文のリクエストID
@@ -270,16 +492,51 @@ implements Handler<RequestMessage, ResponseMessage> {
      */
     public SqlRow
     findAlreadySentMessage(String messageId, String requestId) {
-        SqlPStatement stmt = DbConnectionContext
-                            .getConnection()
-                            .prepareStatement(findAlreadySentMessageQuery);
-        stmt.setString(1, messageId);
-        stmt.setString(2, requestId);
-        ResultSetIterator results = stmt.executeQuery();
-        if (!results.next()) {
+        if (store == null) {
+            initialize();
+        }
+        if (store instanceof JdbcSentMessageStore) {
+            return ((JdbcSentMessageStore) store).findRow(messageId, requestId);
+        }
+        SentMessageStore.Entry sent = store.find(messageId, requestId);
+        if (sent == null) {
             return null;
         }
-        return results.getRow();
+        Map<String, Object> row = new HashMap<String, Object>();
+        Map<String, Integer> types = new HashMap<String, Integer>();
+        row.put("replyQueue", sent.getReplyQueue());
+        types.put("replyQueue", Types.VARCHAR);
+        row.put("messageId", messageId);
+        types.put("messageId", Types.VARCHAR);
+        row.put("bodyData", sent.getBodyData());
+        types.put("bodyData", Types.VARBINARY);
+        row.put("requestId", requestId);
+        types.put("requestId", Types.VARCHAR);
+        row.put("statusCode", sent.getStatusCode());
+        types.put("statusCode", Types.VARCHAR);
+        return new SqlRow(row, types);
+    }
+    
+    /**
+     * 送信済メッセージIDのフィルタにより、電文が送信済電文テーブルに確実に登録されていないか否かを判定する。
+     * <p/>
+     * フィルタの読み込み、または作り直しが必要な場合は、専用のスレッドで送信済電文の保存先から読み込む。
+     * 読み込みの完了は待たず、使用中のフィルタで判定する。
+     * 
+     * @param request   要求電文オブジェクト
+     * @param messageId 初回電文のメッセージID
+     * @return 確実に登録されていない場合は{@code true}
+     */
+    private boolean isNeverSent(RequestMessage request, String messageId) {
+        SentMessageIdFilter filter = sentMessageIdFilter;
+        if (filter == null) {
+            return false;
+        }
+        if (request.getFwHeader().isResendingRequest() && !filter.isCheckResendingRequests()) {
+            return false;
+        }
+        filter.rebuildInBackground(store);
+        return !filter.mightContain(messageId);
     }
     
     // ------------------------------------------------------------ helper
@@ -288,29 +545,89 @@ implements Handler<RequestMessage, ResponseMessage> {
      */
     private static class ResentResponse extends ResponseMessage {
         
-        /** 再送信応答電文のボディ部 */
-        private byte[] body;
+        /** 保存された再送信応答電文のボディ部 */
+        private byte[] storedBody;
+        
+        /** 展開済みの再送信応答電文のボディ部 */
+        private byte[] body = null;
+        
+        /** ボディ部の圧縮処理(圧縮を使用しない場合は{@code null}) */
+        private final SentReplyCompressor compressor;
         
         /**
-         * 再送管理テーブル上 のレコードからインスタンスを構成する。
-         * @param record  レコード
-         * @param request 要求電文オブジェクト
+         * 送信済み電文の内容からインスタンスを構成する。
+         * @param replyQueue 応答電文の宛先
+         * @param statusCode ステータスコード
+         * @param storedBody 保存された応答電文のボディ部
+         * @param request    要求電文オブジェクト
+         * @param compressor ボディ部の圧縮処理(圧縮を使用しない場合は{@code null})
          */
-        public ResentResponse(SqlRow record, RequestMessage request) {
+        public ResentResponse(String replyQueue, String statusCode, byte[] storedBody,
+                              RequestMessage request, SentReplyCompressor compressor) {
             super(request);
-            setDestination(record.getString("replyQueue"));
-            this.record = record;
-            getFwHeader().setStatusCode(record.getString("statusCode").trim());
-            body = record.getBytes("bodyData");
+            setDestination(replyQueue);
+            getFwHeader().setStatusCode(statusCode.trim());
+            this.storedBody = storedBody;
+            this.compressor = compressor;
         }
-        /** 送信済み電文レコード */
-        private final SqlRow record;
+        
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * 圧縮処理が設定されている場合、圧縮して保存されたボディ部は展開して返す。
+         * 圧縮処理が設定されていない場合は、保存されたボディ部をそのまま返す。
+         */
         @Override
         public byte[] getBodyBytes() {
+            if (body == null && storedBody != null) {
+                body = (compressor != null) ? compressor.decompress(storedBody)
+                                            : storedBody;
+                storedBody = null;
+            }
             return body;
         }
     }
 
+    /**
+     * コミット待ちの応答電文。
+     */
+    private static final class PendingReply {
+
+        /** 初回電文のメッセージID */
+        private final String messageId;
+
+        /** リクエストID */
+        private final String requestId;
+
+        /** 応答電文の宛先 */
+        private final String replyQueue;
+
+        /** ステータスコード */
+        private final String statusCode;
+
+        /** 保存する応答電文のボディ部 */
+        private final byte[] bodyData;
+
+        /**
+         * コンストラクタ。
+         * <p/>
+         * 初回電文が遅延もしくはロストした場合、再送要求が初回実行の対象となる。
+         * この場合、初回電文のメッセージIDをキーとして保存しなければならない。
+         * 初回電文のメッセージIDは再送電文の関連IDに一致するため、その値を使用する。
+         * 
+         * @param request  要求電文オブジェクト
+         * @param response 保存する応答電文オブジェクト
+         * @param bodyData 保存する応答電文のボディ部
+         */
+        PendingReply(RequestMessage request, ResponseMessage response, byte[] bodyData) {
+            this.messageId = sentMessageIdOf(request);
+            this.requestId = request.getFwHeader().getRequestId();
+            this.replyQueue = response.getDestination();
+            this.statusCode = String.valueOf(response.getStatusCode());
+            this.bodyData = bodyData;
+        }
+    }
+
     // ------------------------------------------------ Accessors
     /**
      * 再送電文管理テーブルのスキーマ定義を設定する。
@@ -323,6 +640,20 @@ implements Handler<RequestMessage, ResponseMessage> {
         return this;
     }
 
+    /**
+     * 送信済電文の保存先を設定する。
+     * <p/>
+     * デフォルトでは、{@link #setSentMessageTableSchema(SentMessageTableSchema)}で設定した
+     * スキーマ定義の送信済電文テーブルに保存する。
+     *
+     * @param sentMessageStore 送信済電文の保存先
+     * @return このオブジェクト自体
+     */
+    public MessageResendHandler setSentMessageStore(SentMessageStore sentMessageStore) {
+        this.sentMessageStore = sentMessageStore;
+        return this;
+    }
+
     /**
      * 応答電文中のフレームワーク制御ヘッダ定義を設定する。
      * @param def フレームワーク制御ヘッダ定義
@@ -332,4 +663,59 @@ implements Handler<RequestMessage, ResponseMessage> {
         fwHeaderDefinition = def;
         return this;
     }
+
+    /**
+     * 応答電文のキャッシュを設定する。
+     * <p/>
+     * デフォルトでは、キャッシュを使用しない。
+     * キャッシュを使用する場合は、{@link AfterCommitHandler}をトランザクション制御ハンドラの直前に配置すること。
+     *
+     * @param sentReplyCache 応答電文のキャッシュ
+     * @return このオブジェクト自体
+     */
+    public MessageResendHandler setSentReplyCache(SentReplyCache sentReplyCache) {
+        this.sentReplyCache = sentReplyCache;
+        return this;
+    }
+
+    /**
+     * 送信済メッセージIDのフィルタを設定する。
+     * <p/>
+     * デフォルトでは、フィルタを使用しない。
+     *
+     * @param sentMessageIdFilter 送信済メッセージIDのフィルタ
+     * @return このオブジェクト自体
+     */
+    public MessageResendHandler setSentMessageIdFilter(SentMessageIdFilter sentMessageIdFilter) {
+        this.sentMessageIdFilter = sentMessageIdFilter;
+        return this;
+    }
+
+    /**
+     * 応答電文のボディ部の圧縮処理を設定する。
+     * <p/>
+     * デフォルトでは、ボディ部を圧縮せずに保存し、保存されたボディ部をそのまま再送する。
+     *
+     * @param sentReplyCompressor 応答電文のボディ部の圧縮処理
+     * @return このオブジェクト自体
+     */
+    public MessageResendHandler setSentReplyCompressor(SentReplyCompressor sentReplyCompressor) {
+        this.sentReplyCompressor = sentReplyCompressor;
+        return this;
+    }
+
+    /**
+     * 送信済電文を非同期で登録するライタを設定する。
+     * <p/>
+     * デフォルトでは、業務トランザクション内で登録する。
+     * ライタを使用する場合は、本ハンドラをトランザクション制御ハンドラより後ろに配置し、
+     * {@link AfterCommitHandler}をトランザクション制御ハンドラの直前に配置すること。
+     *
+     * @param sentMessageWriter 送信済電文を非同期で登録するライタ
+     * @return このオブジェクト自体
+     */
+    public MessageResendHandler setSentMessageWriter(SentMessageWriter sentMessageWriter) {
+        this.sentMessageWriter = sentMessageWriter;
+        return this;
+    }
 }
@@ -0,0 +1,553 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.InterSystemMessage;
+import nablarch.fw.messaging.RequestMessage;
+import nablarch.fw.messaging.VirtualThreads;
+
+/**
+ * 受信電文をキー毎に振り分け、キー単位の順序を保ったまま並行処理するハンドラ。
+ * <p/>
+ * 本ハンドラは、データリーダから読み込んだ電文の振り分けキーのハッシュ値をもとに、
+ * 電文を指定された数のレーンに振り分ける。
+ * 各レーンは専用のスレッドで電文を1件ずつ順に処理し、レーン同士は並行して処理を行う。
+ * これにより、同じキー(例えば同じ利用者)の電文は受信した順序で処理しつつ、
+ * 異なるキーの電文を並行して処理することができる。
+ * <p/>
+ * 振り分けキーは、{@link #setPartitionKey(String)}で指定した名前の項目を以下の順に検索して取得する。
+ * <pre>
+ * 1. フレームワーク制御ヘッダ(電文が{@link RequestMessage}の場合)
+ * 2. 電文のデータ部の末尾レコード({@link InterSystemMessage#getParam(String)})
+ * </pre>
+ * 振り分けキーが取得できない電文は、先頭のレーンで処理する。
+ * <p/>
+ * 本ハンドラは、nablarch.fw.handler.MultiThreadExecutionHandler、
+ * nablarch.fw.handler.RequestThreadLoopHandler、nablarch.fw.handler.DataReadHandler
+ * の代わりに使用する。
+ * データリーダの読み込みは本ハンドラを実行するスレッドで行うため、
+ * 本ハンドラより前に{@link MessagingContextHandler}を配置すること。
+ * 後続ハンドラは、電文毎に実行コンテキストの複製を使用してレーンのスレッド上で実行される。
+ * (レーンのスレッドでメッセージングを使用する場合は、後続ハンドラにも{@link MessagingContextHandler}を配置すること。)
+ * <p/>
+ * 各レーンのキューは上限付きであり、キューが満杯の場合は空きができるまで電文の読み込みを待機する。
+ * データリーダから読み込むデータが無くなった場合は、各レーンのキューに残っている電文を全て処理した上で終了する。
+ * <p/>
+ * 後続ハンドラで実行時例外が発生した場合は、ワーニングログを出力し、当該レーンの後続の電文の処理を継続する。
+ * 実行時例外以外のエラーが発生した場合は、電文の読み込みを中止し、他のレーンに割り込みを行った上で
+ * 全てのレーンの終了後に当該エラーを再送出する。
+ *
+ * @see VirtualThreadExecutionHandler
+ */
+public class PartitionedExecutionHandler implements Handler<Object, Result.MultiStatus> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(PartitionedExecutionHandler.class);
+
+    /** レーンの終了を表すマーカ */
+    private static final Task END_OF_DATA = new Task(null, null);
+
+    /** 電文をレーンのキューに追加する際の待機間隔。(単位：ミリ秒) */
+    private static final long OFFER_INTERVAL = 100;
+
+    /** レーン数 */
+    private int laneCount = 1;
+
+    /** 各レーンのキューの上限件数 */
+    private int laneCapacity = 100;
+
+    /** 振り分けキーの項目名 */
+    private String partitionKey = null;
+
+    /** 直近の実行における各レーンの統計情報 */
+    private volatile List<Lane> lanes = new ArrayList<Lane>();
+
+    /** {@inheritDoc}
+     * この実装では、データリーダから読み込んだ電文を振り分けキー毎のレーンで並行処理し、
+     * 全てのレーンの処理結果をまとめて返却する。
+     */
+    public Result.MultiStatus handle(Object data, ExecutionContext context) {
+        if (partitionKey == null) {
+            throw new IllegalStateException("partitionKey must be assigned.");
+        }
+        final AtomicReference<Throwable> fatal = new AtomicReference<Throwable>();
+        final List<Lane> current = new ArrayList<Lane>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            current.add(new Lane(i, laneCapacity, fatal));
+        }
+        lanes = current;
+
+        try {
+            for (Lane lane : current) {
+                lane.start();
+            }
+            dispatch(context, current, fatal);
+        } finally {
+            try {
+                finish(current, fatal.get() != null);
+            } finally {
+                context.closeReader();
+            }
+        }
+
+        Throwable error = fatal.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+        Result.MultiStatus status = new Result.MultiStatus();
+        for (Lane lane : current) {
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.logInfo(lane.getStatistics().toString());
+            }
+            status.addResults(new Result.Success());
+        }
+        return status;
+    }
+
+    /**
+     * データリーダから電文を読み込み、各レーンに振り分ける。
+     * @param context 実行コンテキスト
+     * @param lanes レーン
+     * @param fatal レーンで発生したエラー
+     */
+    private void dispatch(ExecutionContext context, List<Lane> lanes, AtomicReference<Throwable> fatal) {
+        while (fatal.get() == null && context.hasNextData()) {
+            Object data = context.readNextData();
+            if (data == null) {
+                continue; // timeout
+            }
+            Lane lane = lanes.get(laneOf(getKey(data), lanes.size()));
+            Task task = new Task(data, new ExecutionContext(context));
+            try {
+                while (!lane.offer(task, OFFER_INTERVAL)) {
+                    if (fatal.get() != null) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                fatal.compareAndSet(null, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 全てのレーンを終了させ、レーンのスレッドの終了を待機する。
+     * @param lanes レーン
+     * @param abort 処理を中断する場合は{@code true}
+     */
+    private static void finish(List<Lane> lanes, boolean abort) {
+        for (Lane lane : lanes) {
+            if (abort) {
+                lane.abort();
+            } else {
+                lane.end();
+            }
+        }
+        boolean interrupted = false;
+        for (Lane lane : lanes) {
+            while (true) {
+                try {
+                    lane.join();
+                    break;
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        for (Lane other : lanes) {
+                            other.abort();
+                        }
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 電文から振り分けキーを取得する。
+     * @param data 電文
+     * @return 振り分けキー(取得できない場合は{@code null})
+     */
+    private Object getKey(Object data) {
+        if (data instanceof RequestMessage) {
+            Object key = ((RequestMessage) data).getFwHeader().get(partitionKey);
+            if (key != null) {
+                return key;
+            }
+        }
+        if (data instanceof InterSystemMessage) {
+            return ((InterSystemMessage<?>) data).getParam(partitionKey);
+        }
+        return null;
+    }
+
+    /**
+     * 振り分けキーに対応するレーンの番号を返す。
+     * @param key 振り分けキー
+     * @param count レーン数
+     * @return レーンの番号
+     */
+    private static int laneOf(Object key, int count) {
+        if (key == null) {
+            return 0;
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * 直近の実行における各レーンの統計情報を返す。
+     * <p/>
+     * 実行中に呼び出した場合は、呼び出し時点の統計情報を返す。
+     * @return 各レーンの統計情報
+     */
+    public List<LaneStatistics> getLaneStatistics() {
+        List<LaneStatistics> statistics = new ArrayList<LaneStatistics>();
+        for (Lane lane : lanes) {
+            statistics.add(lane.getStatistics());
+        }
+        return statistics;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * レーン数を設定する。
+     * <p/>
+     * デフォルトは1。
+     *
+     * @param laneCount レーン数
+     * @return このオブジェクト自体
+     */
+    public PartitionedExecutionHandler setLaneCount(int laneCount) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException(
+                "laneCount must be greater than 0. laneCount = [" + laneCount + "]");
+        }
+        this.laneCount = laneCount;
+        return this;
+    }
+
+    /**
+     * 各レーンのキューの上限件数を設定する。
+     * <p/>
+     * キューが満杯の場合、空きができるまで電文の読み込みを待機する。
+     * デフォルトは100。
+     *
+     * @param laneCapacity 各レーンのキューの上限件数
+     * @return このオブジェクト自体
+     */
+    public PartitionedExecutionHandler setLaneCapacity(int laneCapacity) {
+        if (laneCapacity <= 0) {
+            throw new IllegalArgumentException(
+                "laneCapacity must be greater than 0. laneCapacity = [" + laneCapacity + "]");
+        }
+        this.laneCapacity = laneCapacity;
+        return this;
+    }
+
+    /**
+     * 振り分けキーの項目名を設定する。
+     * <p/>
+     * フレームワーク制御ヘッダの項目名(例えば"userId")、
+     * または電文のデータ部の項目名を設定する。
+     * 本プロパティは必須である。
+     *
+     * @param partitionKey 振り分けキーの項目名
+     * @return このオブジェクト自体
+     */
+    public PartitionedExecutionHandler setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+        return this;
+    }
+
+    /**
+     * レーンで処理する電文と実行コンテキストの組。
+     */
+    private static final class Task {
+
+        /** 電文 */
+        private final Object data;
+
+        /** 実行コンテキスト */
+        private final ExecutionContext context;
+
+        /**
+         * コンストラクタ。
+         * @param data 電文
+         * @param context 実行コンテキスト
+         */
+        Task(Object data, ExecutionContext context) {
+            this.data = data;
+            this.context = context;
+        }
+    }
+
+    /**
+     * 電文を順に処理するレーン。
+     */
+    private static final class Lane implements Runnable {
+
+        /** レーンの番号 */
+        private final int index;
+
+        /** 処理待ちの電文 */
+        private final BlockingQueue<Task> queue;
+
+        /** レーンで発生したエラー */
+        private final AtomicReference<Throwable> fatal;
+
+        /** レーンのスレッド */
+        private final Thread thread;
+
+        /** 振り分けられた電文の件数 */
+        private final AtomicLong dispatched = new AtomicLong();
+
+        /** 処理が完了した電文の件数 */
+        private final AtomicLong processed = new AtomicLong();
+
+        /** 処理に失敗した電文の件数 */
+        private final AtomicLong failed = new AtomicLong();
+
+        /** 処理待ちの電文の最大件数 */
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        /** 処理が中断されたか否か */
+        private volatile boolean aborted = false;
+
+        /**
+         * コンストラクタ。
+         * @param index レーンの番号
+         * @param capacity キューの上限件数
+         * @param fatal レーンで発生したエラー
+         */
+        Lane(int index, int capacity, AtomicReference<Throwable> fatal) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<Task>(capacity);
+            this.fatal = fatal;
+            this.thread = VirtualThreads.newThread(this, "messaging-lane-" + (index + 1), false);
+        }
+
+        /** レーンのスレッドを開始する。 */
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * 電文をキューに追加する。
+         * @param task 電文と実行コンテキスト
+         * @param timeout 待機時間(単位：ミリ秒)
+         * @return 追加できた場合は{@code true}
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        boolean offer(Task task, long timeout) throws InterruptedException {
+            if (!queue.offer(task, timeout, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            dispatched.incrementAndGet();
+            long depth = queue.size();
+            long max = maxDepth.get();
+            while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+                max = maxDepth.get();
+            }
+            return true;
+        }
+
+        /**
+         * キューに残っている電文を全て処理した後、レーンを終了させる。
+         * <p/>
+         * キューが満杯のまま、レーンのスレッドが終了した場合やいずれかのレーンでエラーが発生した場合は、
+         * 終了のマーカを追加できないため、処理を中断させる。
+         */
+        void end() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (queue.offer(END_OF_DATA, OFFER_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    continue;
+                }
+                if (!thread.isAlive() || fatal.get() != null) {
+                    abort();
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * キューに残っている電文を破棄し、レーンの処理を中断させる。
+         */
+        void abort() {
+            aborted = true;
+            queue.clear();
+            thread.interrupt();
+        }
+
+        /**
+         * レーンのスレッドの終了を待機する。
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        void join() throws InterruptedException {
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            while (!aborted) {
+                Task task;
+                try {
+                    task = queue.poll(OFFER_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    continue;
+                }
+                if (task == END_OF_DATA) {
+                    return;
+                }
+                try {
+                    task.context.handleNext(task.data);
+                    processed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    LOGGER.logWarn("an error occurred while processing a message. lane = [" + (index + 1) + "]", e);
+                } catch (Throwable e) {
+                    failed.incrementAndGet();
+                    fatal.compareAndSet(null, e);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 統計情報を返す。
+         * @return 統計情報
+         */
+        LaneStatistics getStatistics() {
+            return new LaneStatistics(index, dispatched.get(), processed.get(), failed.get(),
+                                      queue.size(), maxDepth.get());
+        }
+    }
+
+    /**
+     * レーンの統計情報。
+     */
+    public static final class LaneStatistics {
+
+        /** レーンの番号 */
+        private final int lane;
+
+        /** 振り分けられた電文の件数 */
+        private final long dispatchedCount;
+
+        /** 処理が完了した電文の件数 */
+        private final long processedCount;
+
+        /** 処理に失敗した電文の件数 */
+        private final long failedCount;
+
+        /** 処理待ちの電文の件数 */
+        private final long queueDepth;
+
+        /** 処理待ちの電文の最大件数 */
+        private final long maxQueueDepth;
+
+        /**
+         * コンストラクタ。
+         * @param lane レーンの番号
+         * @param dispatchedCount 振り分けられた電文の件数
+         * @param processedCount 処理が完了した電文の件数
+         * @param failedCount 処理に失敗した電文の件数
+         * @param queueDepth 処理待ちの電文の件数
+         * @param maxQueueDepth 処理待ちの電文の最大件数
+         */
+        LaneStatistics(int lane, long dispatchedCount, long processedCount, long failedCount,
+                       long queueDepth, long maxQueueDepth) {
+            this.lane = lane;
+            this.dispatchedCount = dispatchedCount;
+            this.processedCount = processedCount;
+            this.failedCount = failedCount;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+        }
+
+        /**
+         * レーンの番号(0始まり)を返す。
+         * @return レーンの番号
+         */
+        public int getLane() {
+            return lane;
+        }
+
+        /**
+         * 振り分けられた電文の件数を返す。
+         * @return 振り分けられた電文の件数
+         */
+        public long getDispatchedCount() {
+            return dispatchedCount;
+        }
+
+        /**
+         * 処理が完了した電文の件数を返す。
+         * @return 処理が完了した電文の件数
+         */
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+        /**
+         * 処理に失敗した電文の件数を返す。
+         * @return 処理に失敗した電文の件数
+         */
+        public long getFailedCount() {
+            return failedCount;
+        }
+
+        /**
+         * 処理待ちの電文の件数を返す。
+         * @return 処理待ちの電文の件数
+         */
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * 処理待ちの電文の最大件数を返す。
+         * @return 処理待ちの電文の最大件数
+         */
+        public long getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        @Override
+        public String toString() {
+            return "lane = [" + (lane + 1) + "] dispatched = [" + dispatchedCount + "] processed = [" + processedCount
+                 + "] failed = [" + failedCount + "] queue depth = [" + queueDepth
+                 + "] max queue depth = [" + maxQueueDepth + "]";
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.core.db.connection.DbConnectionContext;
+import nablarch.core.db.connection.TransactionManagerConnection;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * 送信済電文テーブルに登録されたメッセージIDを保持するブルームフィルタ。
+ * <p/>
+ * {@link MessageResendHandler}が再送電文を検索する前に、当該のメッセージIDが
+ * 送信済電文テーブルに「確実に存在しない」ことを判定するために使用する。
+ * 存在しないと判定された場合、送信済電文テーブルの検索は行わない。
+ * (存在する可能性があると判定された場合は、従来通り検索を行う。)
+ * <p/>
+ * フィルタの内容は以下のタイミングで更新される。
+ * <pre>
+ * 1. ハンドラの初回実行時に、送信済電文テーブルの全メッセージIDを読み込む。
+ * 2. 送信済電文テーブルに送信電文を登録する度に、そのメッセージIDを追加する。
+ * 3. {@link #setRebuildInterval(long)}で設定した間隔で、送信済電文テーブルから作り直す。
+ *    (削除されたメッセージIDを除去し、他のプロセスが登録したメッセージIDを取り込む。)
+ * </pre>
+ * 作り直し中に他のスレッドが登録したメッセージIDは、作り直し後のフィルタにも追加される。
+ * <p/>
+ * <b>作り直しのスレッド</b>
+ * <p/>
+ * {@link MessageResendHandler}は、{@link #rebuildInBackground(SentMessageStore)}により、
+ * 読み込みと作り直しを専用のスレッドで行う。
+ * 電文を処理するスレッドは作り直しの完了を待たず、作り直しが完了するまでは使用中のフィルタで判定する。
+ * (初回の読み込みが完了するまでは、全てのメッセージIDを「登録されている可能性がある」と判定し、
+ * 送信済電文テーブルを検索する。)
+ * 作り直しに失敗した場合は、使用中のフィルタを使い続け、{@link #setRetryInterval(long)}の経過後に再度作り直す。
+ * <p/>
+ * 作り直しのスレッドは業務トランザクションのデータベース接続を使用できないため、
+ * 送信済電文テーブルに保存する場合は、{@link #setConnectionFactory(ConnectionFactory)}で
+ * 作り直しに使用するデータベース接続のファクトリを設定すること。
+ * <p/>
+ * <b>複数のプロセスで同じ受信キューを処理する場合</b>
+ * <p/>
+ * 他のプロセスが登録したメッセージIDは、次回の作り直しまでフィルタに反映されない。
+ * このため、他のプロセスが処理済みの電文に対する再送要求電文を受信した場合、
+ * 当該電文を初回電文として処理してしまう可能性がある。
+ * 本クラスでは以下の方法でこれに対処する。
+ * <pre>
+ * - デフォルトでは、再送要求電文(再送要求フラグがオンの電文)にはフィルタを適用せず、
+ *   常に送信済電文テーブルを検索する。
+ *   フィルタを適用するのは、大半を占める初回電文のみとなる。
+ * - 初回電文が複数のプロセスで重複して処理された場合は、送信済電文テーブルへの登録時の
+ *   一意制約違反により後続の電文がロールバックされ、先行する電文の応答が返却される。
+ *   (フィルタを使用しない場合に、初回電文と再送要求電文を並行処理した場合と同じ動作となる。)
+ * </pre>
+ * 単一のプロセスでのみ処理する場合は、{@link #setCheckResendingRequests(boolean)}に
+ * {@code true}を設定することで、再送要求電文にもフィルタを適用できる。
+ * <p/>
+ * 本クラスはスレッドセーフである。
+ *
+ * @see MessageResendHandler#setSentMessageIdFilter(SentMessageIdFilter)
+ */
+public class SentMessageIdFilter {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SentMessageIdFilter.class);
+
+    /** 想定する登録件数 */
+    private int expectedInsertions = 1000000;
+
+    /** 偽陽性率 */
+    private double falsePositiveProbability = 0.01;
+
+    /** 作り直しの間隔(単位：ミリ秒、0以下の場合は作り直さない) */
+    private long rebuildInterval = 60L * 60 * 1000;
+
+    /** 作り直しに失敗した場合の再試行間隔(単位：ミリ秒) */
+    private long retryInterval = 60000;
+
+    /** 再送要求電文にもフィルタを適用するか否か */
+    private boolean checkResendingRequests = false;
+
+    /** 作り直しに使用するデータベース接続を取得するファクトリ */
+    private ConnectionFactory connectionFactory = null;
+
+    /** 作り直しに使用するデータベース接続名 */
+    private String connectionName = "sentMessageIdFilter";
+
+    /** 使用中のフィルタ(読み込み前は{@code null}) */
+    private volatile Bits current = null;
+
+    /** 作り直し中のフィルタ(作り直し中でない場合は{@code null}) */
+    private volatile Bits building = null;
+
+    /** 次回の作り直しの時刻(エポックミリ秒) */
+    private volatile long nextRebuildAt = 0;
+
+    /**
+     * 作り直し中か否か。
+     * (作り直しを開始したスレッドとは別のスレッドで完了できるよう、ロックではなくフラグで排他制御する。)
+     */
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    /**
+     * 指定したメッセージIDが送信済電文テーブルに登録されている可能性があるか否かを返す。
+     * <p/>
+     * フィルタの読み込みが完了していない場合は、常に{@code true}を返す。
+     *
+     * @param messageId メッセージID
+     * @return 登録されている可能性がある場合は{@code true}、確実に登録されていない場合は{@code false}
+     */
+    public boolean mightContain(String messageId) {
+        Bits bits = current;
+        return bits == null || bits.mightContain(messageId);
+    }
+
+    /**
+     * メッセージIDをフィルタに追加する。
+     * @param messageId メッセージID
+     */
+    public void put(String messageId) {
+        Bits bits = current;
+        if (bits != null) {
+            bits.put(messageId);
+        }
+        Bits next = building;
+        if (next != null) {
+            next.put(messageId);
+        }
+    }
+
+    /**
+     * 作り直しが必要であれば、専用のスレッドで送信済電文の保存先からフィルタを作り直す。
+     * <p/>
+     * 本メソッドは作り直しの完了を待たずに終了する。
+     * 他のスレッドが作り直し中の場合は何もしない。
+     *
+     * @param store 送信済電文の保存先
+     * @throws IllegalStateException 業務トランザクションに参加する保存先に対して、
+     *                               データベース接続のファクトリが設定されていない場合
+     */
+    public void rebuildInBackground(final SentMessageStore store) throws IllegalStateException {
+        if (!needsRebuild()) {
+            return;
+        }
+        if (store.isTransactional() && connectionFactory == null) {
+            throw new IllegalStateException("connectionFactory was not specified.");
+        }
+        if (!startRebuild()) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                rebuild(store);
+            }
+        }, "SentMessageIdFilter-rebuild");
+        thread.setDaemon(true);
+        try {
+            thread.start();
+        } catch (RuntimeException e) {
+            abortRebuild();
+            throw e;
+        }
+    }
+
+    /**
+     * 送信済電文の保存先からフィルタを作り直す。
+     * <p/>
+     * {@link #startRebuild()}の呼び出し後に、作り直しのスレッドで呼び出される。
+     *
+     * @param store 送信済電文の保存先
+     */
+    private void rebuild(SentMessageStore store) {
+        boolean completed = false;
+        TransactionManagerConnection connection = null;
+        try {
+            if (store.isTransactional()) {
+                connection = connectionFactory.getConnection(connectionName);
+                DbConnectionContext.setConnection(connection);
+            }
+            store.loadMessageIds(this);
+            completeRebuild();
+            completed = true;
+        } catch (RuntimeException e) {
+            LOGGER.logWarn("failed to rebuild the sent message id filter. the current filter is used until the next rebuild. "
+                         + "retryInterval = [" + retryInterval + "]", e);
+        } finally {
+            if (!completed) {
+                abortRebuild();
+            }
+            if (connection != null) {
+                DbConnectionContext.removeConnection();
+                connection.terminate();
+            }
+        }
+    }
+
+    /**
+     * フィルタの作り直しを開始する。
+     * <p/>
+     * 作り直しが必要であり、かつ他のスレッドが作り直し中でない場合に作り直しを開始し{@code true}を返す。
+     * {@code true}を返した場合、呼び出し元は全てのメッセージIDを{@link #put(String)}で追加した後、
+     * 必ず{@link #completeRebuild()}または{@link #abortRebuild()}を呼び出すこと。
+     *
+     * @return 作り直しを開始した場合は{@code true}
+     */
+    public boolean startRebuild() {
+        if (!needsRebuild() || !rebuilding.compareAndSet(false, true)) {
+            return false;
+        }
+        if (!needsRebuild()) {
+            rebuilding.set(false);
+            return false;
+        }
+        building = new Bits(expectedInsertions, falsePositiveProbability);
+        return true;
+    }
+
+    /**
+     * フィルタの作り直しを完了し、作り直したフィルタの使用を開始する。
+     * <p/>
+     * 作り直しを開始したスレッドとは別のスレッドから呼び出してもよい。
+     */
+    public void completeRebuild() {
+        try {
+            Bits next = building;
+            current = next;
+            building = null;
+            nextRebuildAt = rebuildInterval > 0 ? System.currentTimeMillis() + rebuildInterval : Long.MAX_VALUE;
+            if (next.count() > expectedInsertions) {
+                LOGGER.logWarn("the number of sent messages exceeds expectedInsertions. "
+                             + "the false positive probability of the filter increases. "
+                             + "count = [" + next.count() + "] expectedInsertions = [" + expectedInsertions + "]");
+            }
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * フィルタの作り直しを中止する。
+     * <p/>
+     * 使用中のフィルタはそのまま使用し、{@link #setRetryInterval(long)}の経過後に再度作り直しを行う。
+     */
+    public void abortRebuild() {
+        building = null;
+        nextRebuildAt = System.currentTimeMillis() + retryInterval;
+        rebuilding.set(false);
+    }
+
+    /**
+     * フィルタの作り直しが必要か否かを返す。
+     * @return 作り直しが必要な場合は{@code true}
+     */
+    public boolean needsRebuild() {
+        return System.currentTimeMillis() >= nextRebuildAt;
+    }
+
+    /**
+     * 再送要求電文にもフィルタを適用するか否かを返す。
+     * @return 再送要求電文にも適用する場合は{@code true}
+     */
+    public boolean isCheckResendingRequests() {
+        return checkResendingRequests;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 想定する登録件数を設定する。
+     * <p/>
+     * 送信済電文テーブルの件数がこの値を超えると、偽陽性率が上昇する。
+     * デフォルトは1000000。
+     *
+     * @param expectedInsertions 想定する登録件数
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setExpectedInsertions(int expectedInsertions) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException(
+                "expectedInsertions must be greater than 0. expectedInsertions = [" + expectedInsertions + "]");
+        }
+        this.expectedInsertions = expectedInsertions;
+        return this;
+    }
+
+    /**
+     * 偽陽性率を設定する。
+     * <p/>
+     * 登録されていないメッセージIDを「登録されている可能性がある」と判定する確率。
+     * デフォルトは0.01。
+     *
+     * @param falsePositiveProbability 偽陽性率(0より大きく1未満)
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setFalsePositiveProbability(double falsePositiveProbability) {
+        if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException(
+                "falsePositiveProbability must be between 0 and 1. falsePositiveProbability = ["
+                + falsePositiveProbability + "]");
+        }
+        this.falsePositiveProbability = falsePositiveProbability;
+        return this;
+    }
+
+    /**
+     * フィルタを作り直す間隔を設定する。
+     * <p/>
+     * 0以下の値を設定した場合は、初回の読み込み後は作り直さない。
+     * デフォルトは1時間。
+     *
+     * @param rebuildInterval 作り直しの間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setRebuildInterval(long rebuildInterval) {
+        this.rebuildInterval = rebuildInterval;
+        return this;
+    }
+
+    /**
+     * 作り直しに失敗した場合の再試行間隔を設定する。
+     * <p/>
+     * デフォルトは60000ミリ秒。
+     *
+     * @param retryInterval 再試行間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setRetryInterval(long retryInterval) {
+        if (retryInterval <= 0) {
+            throw new IllegalArgumentException(
+                "retryInterval must be greater than 0. retryInterval = [" + retryInterval + "]");
+        }
+        this.retryInterval = retryInterval;
+        return this;
+    }
+
+    /**
+     * 作り直しに使用するデータベース接続を取得するファクトリを設定する。
+     * <p/>
+     * 送信済電文テーブルなど、業務トランザクションに参加する保存先を使用する場合は必須である。
+     *
+     * @param connectionFactory データベース接続を取得するファクトリ
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+        return this;
+    }
+
+    /**
+     * 作り直しに使用するデータベース接続名を設定する。
+     * <p/>
+     * デフォルトは"sentMessageIdFilter"。
+     *
+     * @param connectionName データベース接続名
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setConnectionName(String connectionName) {
+        this.connectionName = connectionName;
+        return this;
+    }
+
+    /**
+     * 再送要求電文にもフィルタを適用するか否かを設定する。
+     * <p/>
+     * 同じ受信キューを他のプロセスと共有しない場合にのみ{@code true}を設定すること。
+     * デフォルトは{@code false}。
+     *
+     * @param checkResendingRequests 再送要求電文にも適用する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public SentMessageIdFilter setCheckResendingRequests(boolean checkResendingRequests) {
+        this.checkResendingRequests = checkResendingRequests;
+        return this;
+    }
+
+    /**
+     * ブルームフィルタのビット配列。
+     */
+    private static final class Bits {
+
+        /** ビット配列 */
+        private final AtomicLongArray words;
+
+        /** ビット数 */
+        private final long bitSize;
+
+        /** ハッシュ関数の数 */
+        private final int hashCount;
+
+        /** 追加されたメッセージIDの件数 */
+        private final AtomicLong count = new AtomicLong();
+
+        /**
+         * コンストラクタ。
+         * @param expectedInsertions 想定する登録件数
+         * @param falsePositiveProbability 偽陽性率
+         */
+        Bits(int expectedInsertions, double falsePositiveProbability) {
+            double ln2 = Math.log(2);
+            long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (ln2 * ln2));
+            int wordCount = (int) Math.max(1, (bits + 63) / 64);
+            this.words = new AtomicLongArray(wordCount);
+            this.bitSize = wordCount * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitSize / expectedInsertions * ln2));
+        }
+
+        /**
+         * メッセージIDを追加する。
+         * @param messageId メッセージID
+         */
+        void put(String messageId) {
+            long hash = hash(messageId);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitSize;
+                int word = (int) (index >>> 6);
+                long mask = 1L << index;
+                long value = words.get(word);
+                while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask)) {
+                    value = words.get(word);
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        /**
+         * メッセージIDが追加されている可能性があるか否かを返す。
+         * @param messageId メッセージID
+         * @return 追加されている可能性がある場合は{@code true}
+         */
+        boolean mightContain(String messageId) {
+            long hash = hash(messageId);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % bitSize;
+                if ((words.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 追加されたメッセージIDの件数を返す。
+         * @return 追加されたメッセージIDの件数
+         */
+        long count() {
+            return count.get();
+        }
+
+        /**
+         * メッセージIDの64ビットハッシュ値を算出する。(FNV-1a + MurmurHash3のファイナライザ)
+         * <p/>
+         * 固定長の列から読み込んだ値と一致させるため、末尾の空白は無視する。
+         * @param messageId メッセージID
+         * @return ハッシュ値
+         */
+        private static long hash(String messageId) {
+            int length = messageId.length();
+            while (length > 0 && messageId.charAt(length - 1) == ' ') {
+                length--;
+            }
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < length; i++) {
+                h ^= messageId.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
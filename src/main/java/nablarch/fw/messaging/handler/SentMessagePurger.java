@@ -0,0 +1,404 @@
+package nablarch.fw.messaging.handler;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.core.db.connection.TransactionManagerConnection;
+import nablarch.core.db.statement.ResultSetIterator;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.statement.SqlRow;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.Builder;
+import nablarch.fw.messaging.tableschema.SentMessageTableSchema;
+
+/**
+ * 保持期間を過ぎた送信済電文を、送信済電文テーブルから少量ずつ削除するクラス。
+ * <p/>
+ * {@link SentMessageTableSchema#setSentAtColumnName(String)}で設定した登録日時のカラムをもとに、
+ * {@link #setRetentionPeriod(long)}で設定した保持期間を過ぎたレコードを削除する。
+ * <p/>
+ * 削除は、{@link #setChunkSize(int)}で設定した件数ずつ以下の手順で行う。
+ * <pre>
+ * 1. 登録日時が削除基準日時より前のレコードの主キーを、最大でチャンクサイズ件検索する。
+ *    (登録日時のカラムのインデックスを使用した範囲検索となる。)
+ * 2. 検索した主キーを指定して、レコードをバッチ更新で削除し、コミットする。
+ * 3. {@link #setPauseInterval(long)}で設定した時間だけ待機する。
+ * </pre>
+ * 1回のトランザクションで削除する件数とロックの保持時間を抑え、
+ * チャンク間で待機することで、オンラインの電文処理を阻害せずに削除を進めることができる。
+ * 削除基準日時は処理開始時に決定するため、処理中に登録されたレコードは削除しない。
+ * <p/>
+ * 進捗は、{@link #setProgressLogInterval(int)}で設定したチャンク数ごとにINFOレベルでログ出力する。
+ * 処理結果は{@link #purge()}の戻り値で参照できる。
+ * <p/>
+ * 削除した電文に対する再送要求電文は、初回電文として処理される。
+ * このため保持期間には、送信元が再送を行う可能性のある期間より十分長い期間を設定すること。
+ *
+ * @see nablarch.fw.messaging.action.SentMessagePurgeAction
+ */
+public class SentMessagePurger {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SentMessagePurger.class);
+
+    /** 送信済電文テーブルのスキーマ定義 */
+    private SentMessageTableSchema schema = new SentMessageTableSchema();
+
+    /** データベース接続を取得するファクトリ */
+    private ConnectionFactory connectionFactory = null;
+
+    /** データベース接続名 */
+    private String connectionName = "sentMessagePurger";
+
+    /** 送信済電文の保持期間(単位：ミリ秒) */
+    private long retentionPeriod = 0;
+
+    /** 1回のトランザクションで削除する最大件数 */
+    private int chunkSize = 500;
+
+    /** チャンク間の待機時間(単位：ミリ秒) */
+    private long pauseInterval = 100;
+
+    /** 1回の処理で削除する最大チャンク数 */
+    private int maxChunks = 0;
+
+    /** 進捗をログ出力する間隔(チャンク数) */
+    private int progressLogInterval = 10;
+
+    /**
+     * 保持期間を過ぎた送信済電文を削除する。
+     * <p/>
+     * 削除対象のレコードが無くなるか、{@link #setMaxChunks(int)}で設定したチャンク数を削除するまで処理を続ける。
+     * 処理中にスレッドが割り込まれた場合は、削除済みのチャンクをコミットした状態で処理を中断する。
+     *
+     * @return 処理結果
+     * @throws IllegalStateException 必要な設定が行われていない場合
+     */
+    public PurgeResult purge() throws IllegalStateException {
+        if (connectionFactory == null) {
+            throw new IllegalStateException("connectionFactory was not specified.");
+        }
+        if (schema.getSentAtColumnName() == null) {
+            throw new IllegalStateException("sentAtColumnName of the sent message table schema was not specified.");
+        }
+        if (retentionPeriod <= 0) {
+            throw new IllegalStateException("retentionPeriod was not specified.");
+        }
+
+        String findQuery = Builder.join(new String[] {
+            "SELECT", schema.getMessageIdColumnName(), "AS messageId", ","
+                    , schema.getRequestIdColumnName(), "AS requestId"
+        ,   "FROM"  , schema.getTableName()
+        ,   "WHERE" , schema.getSentAtColumnName(), "< ?"
+        }, " ");
+        // 検索後に同じ主キーで登録し直されたレコードを削除しないよう、登録日時も条件に含める。
+        String deleteDml = Builder.join(new String[] {
+            "DELETE FROM", schema.getTableName()
+        ,   "WHERE" , schema.getMessageIdColumnName(), "= ?"
+        ,   "AND"   , schema.getRequestIdColumnName(), "= ?"
+        ,   "AND"   , schema.getSentAtColumnName(),    "< ?"
+        }, " ");
+
+        long startTime = System.currentTimeMillis();
+        Timestamp cutoff = new Timestamp(startTime - retentionPeriod);
+        LOGGER.logInfo("start purging sent messages. table = [" + schema.getTableName()
+                     + "] cutoff = [" + cutoff + "]");
+
+        long deletedCount = 0;
+        int chunkCount = 0;
+        boolean completed = false;
+        TransactionManagerConnection connection = connectionFactory.getConnection(connectionName);
+        try {
+            SqlPStatement findStmt = connection.prepareStatement(findQuery);
+            findStmt.setMaxRows(chunkSize);
+            SqlPStatement deleteStmt = connection.prepareStatement(deleteDml);
+            while (maxChunks <= 0 || chunkCount < maxChunks) {
+                List<String[]> keys = findExpiredKeys(findStmt, cutoff);
+                if (keys.isEmpty()) {
+                    completed = true;
+                    break;
+                }
+                deletedCount += deleteChunk(deleteStmt, keys, cutoff);
+                connection.commit();
+                chunkCount++;
+
+                if (chunkCount % progressLogInterval == 0) {
+                    LOGGER.logInfo("purging sent messages. chunks = [" + chunkCount
+                                 + "] deleted = [" + deletedCount
+                                 + "] elapsed = [" + (System.currentTimeMillis() - startTime) + "]");
+                }
+                if (keys.size() < chunkSize) {
+                    completed = true;
+                    break;
+                }
+                if (!pause()) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.terminate();
+        }
+
+        PurgeResult result = new PurgeResult(
+                deletedCount, chunkCount, completed, System.currentTimeMillis() - startTime);
+        LOGGER.logInfo("finished purging sent messages. " + result);
+        return result;
+    }
+
+    /**
+     * 保持期間を過ぎたレコードの主キーを検索する。
+     * @param stmt 検索用のステートメント
+     * @param cutoff 削除基準日時
+     * @return 主キー(メッセージID、リクエストIDの順)のリスト
+     */
+    private List<String[]> findExpiredKeys(SqlPStatement stmt, Timestamp cutoff) {
+        stmt.setTimestamp(1, cutoff);
+        List<String[]> keys = new ArrayList<String[]>(chunkSize);
+        ResultSetIterator rows = stmt.executeQuery();
+        try {
+            for (SqlRow row : rows) {
+                keys.add(new String[] {row.getString("messageId"), row.getString("requestId")});
+            }
+        } finally {
+            rows.close();
+        }
+        return keys;
+    }
+
+    /**
+     * 主キーを指定してレコードを削除する。
+     * @param stmt 削除用のステートメント
+     * @param keys 削除するレコードの主キー
+     * @param cutoff 削除基準日時
+     * @return 削除した件数
+     */
+    private static long deleteChunk(SqlPStatement stmt, List<String[]> keys, Timestamp cutoff) {
+        for (String[] key : keys) {
+            stmt.setString(1, key[0]);
+            stmt.setString(2, key[1]);
+            stmt.setTimestamp(3, cutoff);
+            stmt.addBatch();
+        }
+        long count = 0;
+        for (int updated : stmt.executeBatch()) {
+            // 件数が返却されないドライバ(SUCCESS_NO_INFO)の場合は、1件削除したものとみなす。
+            count += (updated >= 0) ? updated : 1;
+        }
+        return count;
+    }
+
+    /**
+     * チャンク間で待機する。
+     * @return 処理を継続する場合は{@code true}、割り込まれた場合は{@code false}
+     */
+    private boolean pause() {
+        if (pauseInterval <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(pauseInterval);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.logInfo("purging sent messages was interrupted.");
+            return false;
+        }
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 送信済電文テーブルのスキーマ定義を設定する。
+     * <p/>
+     * 登録日時のカラム({@link SentMessageTableSchema#setSentAtColumnName(String)})の設定は必須。
+     *
+     * @param schema スキーマ定義
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setSentMessageTableSchema(SentMessageTableSchema schema) {
+        this.schema = schema;
+        return this;
+    }
+
+    /**
+     * データベース接続を取得するファクトリを設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param connectionFactory データベース接続を取得するファクトリ
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+        return this;
+    }
+
+    /**
+     * データベース接続名を設定する。
+     * <p/>
+     * デフォルトは"sentMessagePurger"。
+     *
+     * @param connectionName データベース接続名
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setConnectionName(String connectionName) {
+        this.connectionName = connectionName;
+        return this;
+    }
+
+    /**
+     * 送信済電文の保持期間を設定する。
+     * <p/>
+     * 登録日時がこの期間より前のレコードを削除する。この設定は必須である。
+     *
+     * @param retentionPeriod 保持期間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setRetentionPeriod(long retentionPeriod) {
+        if (retentionPeriod <= 0) {
+            throw new IllegalArgumentException(
+                "retentionPeriod must be greater than 0. retentionPeriod = [" + retentionPeriod + "]");
+        }
+        this.retentionPeriod = retentionPeriod;
+        return this;
+    }
+
+    /**
+     * 1回のトランザクションで削除する最大件数を設定する。
+     * <p/>
+     * デフォルトは500件。
+     *
+     * @param chunkSize 1回のトランザクションで削除する最大件数
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(
+                "chunkSize must be greater than 0. chunkSize = [" + chunkSize + "]");
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * チャンク間の待機時間を設定する。
+     * <p/>
+     * 0以下の値を設定した場合は待機しない。デフォルトは100ミリ秒。
+     *
+     * @param pauseInterval チャンク間の待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setPauseInterval(long pauseInterval) {
+        this.pauseInterval = pauseInterval;
+        return this;
+    }
+
+    /**
+     * 1回の処理で削除する最大チャンク数を設定する。
+     * <p/>
+     * 削除が夜間のバッチウィンドウなどに収まるよう、処理量を制限する場合に設定する。
+     * 0以下の値を設定した場合は制限しない。デフォルトは0。
+     *
+     * @param maxChunks 1回の処理で削除する最大チャンク数
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setMaxChunks(int maxChunks) {
+        this.maxChunks = maxChunks;
+        return this;
+    }
+
+    /**
+     * 進捗をログ出力する間隔を設定する。
+     * <p/>
+     * デフォルトは10チャンクごと。
+     *
+     * @param progressLogInterval 進捗をログ出力する間隔(チャンク数)
+     * @return このオブジェクト自体
+     */
+    public SentMessagePurger setProgressLogInterval(int progressLogInterval) {
+        if (progressLogInterval <= 0) {
+            throw new IllegalArgumentException(
+                "progressLogInterval must be greater than 0. progressLogInterval = [" + progressLogInterval + "]");
+        }
+        this.progressLogInterval = progressLogInterval;
+        return this;
+    }
+
+    /**
+     * 削除処理の結果。
+     */
+    public static final class PurgeResult {
+
+        /** 削除した件数 */
+        private final long deletedCount;
+
+        /** 削除したチャンク数 */
+        private final int chunkCount;
+
+        /** 削除対象のレコードを全て削除したかどうか */
+        private final boolean completed;
+
+        /** 処理時間(単位：ミリ秒) */
+        private final long elapsedTime;
+
+        /**
+         * コンストラクタ。
+         * @param deletedCount 削除した件数
+         * @param chunkCount 削除したチャンク数
+         * @param completed 削除対象のレコードを全て削除したかどうか
+         * @param elapsedTime 処理時間(単位：ミリ秒)
+         */
+        PurgeResult(long deletedCount, int chunkCount, boolean completed, long elapsedTime) {
+            this.deletedCount = deletedCount;
+            this.chunkCount = chunkCount;
+            this.completed = completed;
+            this.elapsedTime = elapsedTime;
+        }
+
+        /**
+         * 削除した件数を返す。
+         * @return 削除した件数
+         */
+        public long getDeletedCount() {
+            return deletedCount;
+        }
+
+        /**
+         * 削除したチャンク数を返す。
+         * @return 削除したチャンク数
+         */
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * 削除対象のレコードを全て削除したかどうかを返す。
+         * <p/>
+         * 最大チャンク数に達した場合や、処理が中断された場合は{@code false}を返す。
+         *
+         * @return 全て削除した場合は{@code true}
+         */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /**
+         * 処理時間を返す。
+         * @return 処理時間(単位：ミリ秒)
+         */
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        @Override
+        public String toString() {
+            return "deleted = [" + deletedCount + "] chunks = [" + chunkCount
+                 + "] completed = [" + completed + "] elapsed = [" + elapsedTime + "]";
+        }
+    }
+}
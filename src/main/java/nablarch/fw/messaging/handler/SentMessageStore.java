@@ -0,0 +1,121 @@
+package nablarch.fw.messaging.handler;
+
+/**
+ * {@link MessageResendHandler}が再送用の応答電文を保存するストア。
+ * <p/>
+ * 応答電文は、初回電文のメッセージIDとリクエストIDの組で識別する。
+ * 以下の実装を提供する。
+ * <pre>
+ * {@link JdbcSentMessageStore}:
+ *    送信済電文テーブルに保存する。(デフォルト)
+ *    業務トランザクションとともにコミットされるため、複数のプロセスで共有できる。
+ *
+ * {@link InMemorySentMessageStore}:
+ *    ヒープ上に保存する。
+ *    単一プロセスで稼働するシステムや、テストで使用する。
+ *
+ * {@link MappedFileSentMessageStore}:
+ *    メモリマップドファイル上の追記専用ログに保存し、ヒープ上の索引で検索する。
+ *    単一プロセスで稼働し、プロセスの再起動後も再送に応答する必要があるシステムで使用する。
+ * </pre>
+ * <p/>
+ * 業務トランザクションに参加しないストア({@link #isTransactional()}が{@code false})の場合、
+ * {@link MessageResendHandler}は業務トランザクションのコミット後に応答電文を保存する。
+ * この場合、同じ電文を並行して処理した際に後続の業務トランザクションをロールバックする制御は行われず、
+ * 先に保存された応答電文を正とする。
+ * <p/>
+ * 実装クラスはスレッドセーフでなければならない。
+ *
+ * @see MessageResendHandler#setSentMessageStore(SentMessageStore)
+ */
+public interface SentMessageStore {
+
+    /**
+     * 保存された応答電文を検索する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return 応答電文(保存されていない場合は{@code null})
+     */
+    Entry find(String messageId, String requestId);
+
+    /**
+     * 応答電文を保存する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @param replyQueue 応答電文の宛先
+     * @param statusCode ステータスコード
+     * @param bodyData 応答電文のボディ部
+     * @throws DuplicateSentMessageException 同じメッセージIDとリクエストIDの応答電文が既に保存されている場合
+     */
+    void save(String messageId, String requestId, String replyQueue, String statusCode, byte[] bodyData)
+    throws DuplicateSentMessageException;
+
+    /**
+     * 保存された全ての応答電文のメッセージIDをフィルタに追加する。
+     * <p/>
+     * 送信済メッセージIDのフィルタを読み込む、または作り直す際に呼び出される。
+     *
+     * @param filter 送信済メッセージIDのフィルタ
+     */
+    void loadMessageIds(SentMessageIdFilter filter);
+
+    /**
+     * 応答電文の保存が業務トランザクションに参加するか否かを返す。
+     *
+     * @return 業務トランザクションとともにコミット、ロールバックされる場合は{@code true}
+     */
+    boolean isTransactional();
+
+    /**
+     * 保存された応答電文。
+     */
+    final class Entry {
+
+        /** 応答電文の宛先 */
+        private final String replyQueue;
+
+        /** ステータスコード */
+        private final String statusCode;
+
+        /** 応答電文のボディ部 */
+        private final byte[] bodyData;
+
+        /**
+         * コンストラクタ。
+         * @param replyQueue 応答電文の宛先
+         * @param statusCode ステータスコード
+         * @param bodyData 応答電文のボディ部
+         */
+        public Entry(String replyQueue, String statusCode, byte[] bodyData) {
+            this.replyQueue = replyQueue;
+            this.statusCode = statusCode;
+            this.bodyData = bodyData;
+        }
+
+        /**
+         * 応答電文の宛先を返す。
+         * @return 応答電文の宛先
+         */
+        public String getReplyQueue() {
+            return replyQueue;
+        }
+
+        /**
+         * ステータスコードを返す。
+         * @return ステータスコード
+         */
+        public String getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * 応答電文のボディ部を返す。
+         * @return 応答電文のボディ部
+         */
+        public byte[] getBodyData() {
+            return bodyData;
+        }
+    }
+}
@@ -0,0 +1,685 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.core.db.DbAccessException;
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.core.db.connection.TransactionManagerConnection;
+import nablarch.core.db.statement.SqlPStatement;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.messaging.VirtualThreads;
+
+/**
+ * 再送用の応答電文を、業務トランザクションとは別のトランザクションでまとめて送信済電文テーブルに登録するライタ。
+ * <p/>
+ * {@link MessageResendHandler#setSentMessageWriter(SentMessageWriter)}で設定した場合、
+ * 応答電文は業務トランザクションのコミットに成功した後({@link AfterCommitHandler}を参照)に本クラスのキューに格納され、
+ * 専用のスレッドがJDBCのバッチ更新で送信済電文テーブルに登録する。
+ * <p/>
+ * キューに格納された応答電文は、遅くとも{@link #setFlushInterval(long)}で設定した時間(耐久性の猶予期間)
+ * の経過後、または{@link #setBatchSize(int)}で設定した件数に達した時点で登録される。
+ * 登録前の応答電文は、{@link MessageResendHandler}による再送電文の検索時に参照されるため、
+ * 登録の遅延中に受信した再送要求電文にも正しく応答できる。
+ * ただし、登録前にプロセスが異常終了した場合、その応答電文は失われる。
+ * (当該電文に対する再送要求電文は、初回電文として処理される。)
+ * <p/>
+ * <b>重複の扱い</b>
+ * <p/>
+ * 業務トランザクション内で送信済電文テーブルに登録しないため、同じ電文を並行して処理した場合に
+ * 一意制約によって後続の業務トランザクションをロールバックすることはできない。
+ * 登録時に一意制約違反が発生した場合は、先に登録された応答電文を正とし、後続の応答電文は登録しない。
+ * (バッチ更新が失敗した場合は、1件ずつ登録し直し、一意制約違反となった応答電文のみを除外する。)
+ * 同じ電文を並行して処理する可能性があり、かつ業務処理が冪等でない場合は、本クラスを使用しないこと。
+ * <p/>
+ * 一意制約違反以外の理由で登録に失敗した場合は、{@link #setFlushInterval(long)}で設定した間隔で登録を再試行する。
+ * 再試行中にキューが満杯になった場合、応答電文の格納は空きができるまで待機する。
+ * <p/>
+ * プロセスの終了時は{@link #close()}を呼び出し、キューに残っている応答電文を登録すること。
+ *
+ * @see MessageResendHandler#setSentMessageWriter(SentMessageWriter)
+ */
+public class SentMessageWriter {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SentMessageWriter.class);
+
+    /** 登録を行うスレッドの待機を解除するためのマーカ */
+    private static final Record WAKE_UP = new Record(null, null, null, null, null);
+
+    /** データベース接続を取得するファクトリ */
+    private ConnectionFactory connectionFactory = null;
+
+    /** データベース接続名 */
+    private String connectionName = "sentMessageWriter";
+
+    /** 1回のバッチ更新で登録する最大件数 */
+    private int batchSize = 100;
+
+    /** 応答電文をキューに格納してから登録するまでの最大待機時間。(単位：ミリ秒) */
+    private long flushInterval = 200;
+
+    /** キューに格納できる最大件数 */
+    private int maxBacklog = 10000;
+
+    /** 送信済電文テーブルに送信電文を登録するSQL文 */
+    private volatile String insertDml = null;
+
+    /** 登録待ちの応答電文 */
+    private volatile BlockingQueue<Record> queue = null;
+
+    /** 登録待ちの応答電文(検索用) */
+    private final Map<String, Record> pending = new ConcurrentHashMap<String, Record>();
+
+    /** 登録を行うスレッド */
+    private volatile Thread writer = null;
+
+    /** このライタが閉じられたかどうか。 */
+    private volatile boolean closed = false;
+
+    /** バッチ更新の回数 */
+    private final AtomicLong flushCount = new AtomicLong();
+
+    /** 登録した応答電文の件数 */
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    /** 一意制約違反により除外した応答電文の件数 */
+    private final AtomicLong duplicateCount = new AtomicLong();
+
+    /** 登録に失敗した回数 */
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /** 1回のバッチ更新で登録した最大件数 */
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    /** キューに格納してから登録が完了するまでの時間の合計(単位：ミリ秒) */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /** キューに格納してから登録が完了するまでの最大時間(単位：ミリ秒) */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * 登録に使用するSQL文を設定し、登録を行うスレッドを開始する。
+     * <p/>
+     * 既に開始している場合は何もしない。
+     *
+     * @param dml 送信済電文テーブルに送信電文を登録するSQL文
+     */
+    synchronized void initialize(String dml) {
+        if (writer != null) {
+            return;
+        }
+        if (connectionFactory == null) {
+            throw new IllegalStateException("connectionFactory must be assigned.");
+        }
+        insertDml = dml;
+        queue = new ArrayBlockingQueue<Record>(maxBacklog);
+        writer = VirtualThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "sent-message-writer", false);
+        writer.start();
+    }
+
+    /**
+     * 応答電文を登録待ちのキューに格納する。
+     * <p/>
+     * キューが満杯の場合は、空きができるまで待機する。
+     * 既にライタが閉じられている場合は、呼び出し元のスレッドで登録する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @param replyQueue 応答電文の宛先
+     * @param statusCode ステータスコード
+     * @param bodyData 応答電文のボディ部
+     */
+    public void write(String messageId, String requestId,
+                      String replyQueue, String statusCode, byte[] bodyData) {
+        Record record = new Record(messageId, requestId, replyQueue, statusCode, bodyData);
+        if (closed || queue == null) {
+            List<Record> single = new ArrayList<Record>(1);
+            single.add(record);
+            flush(single);
+            return;
+        }
+        pending.put(keyOf(messageId, requestId), record);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(record);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (closed && !writer.isAlive()) {
+                // 格納と同時にライタが閉じられた場合は、呼び出し元のスレッドで登録する。
+                List<Record> rest = new ArrayList<Record>();
+                queue.drainTo(rest);
+                if (!rest.isEmpty()) {
+                    flush(rest);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * 登録待ちの応答電文を取得する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return 登録待ちの応答電文(存在しない場合は{@code null})
+     */
+    public Record getPending(String messageId, String requestId) {
+        return pending.get(keyOf(messageId, requestId));
+    }
+
+    /**
+     * このライタを閉じる。
+     * <p/>
+     * キューに残っている応答電文を全て登録した後、登録を行うスレッドを終了する。
+     */
+    public void close() {
+        Thread current;
+        synchronized (this) {
+            closed = true;
+            current = writer;
+        }
+        if (current == null) {
+            return;
+        }
+        // キューが満杯の場合は、登録を行うスレッドが待機していないため、マーカは不要。
+        queue.offer(WAKE_UP);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                current.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.logInfo(getStatistics().toString());
+        }
+    }
+
+    /**
+     * 登録待ちのキューから応答電文を取り出して登録する。
+     */
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<Record>(batchSize);
+        while (true) {
+            try {
+                Record first = closed ? queue.poll() : queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                if (first == WAKE_UP) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - batch.size());
+                long deadline = first.enqueuedAt + flushInterval;
+                while (batch.size() < batchSize && !closed) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    Record next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                    if (next == null || next == WAKE_UP) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+                batch.remove(WAKE_UP);
+            } catch (InterruptedException e) {
+                // 割り込まれた場合も、取り出した応答電文を登録してから終了の判定を行う。
+                closed = true;
+            }
+            while (!batch.isEmpty() && !flush(batch)) {
+                if (closed) {
+                    // 終了時は再試行せず、登録できなかった応答電文を破棄する。
+                    LOGGER.logWarn("discarded sent messages which could not be written. count = [" + batch.size() + "]");
+                    for (Record record : batch) {
+                        pending.remove(keyOf(record.messageId, record.requestId), record);
+                    }
+                    break;
+                }
+                try {
+                    Thread.sleep(flushInterval);
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 応答電文を1つのトランザクションで登録する。
+     * <p/>
+     * バッチ更新に失敗した場合は、1件ずつ登録し直し、一意制約違反となった応答電文を除外する。
+     *
+     * @param batch 登録する応答電文
+     * @return 登録が完了した場合は{@code true}、登録に失敗した場合は{@code false}
+     */
+    private boolean flush(List<Record> batch) {
+        Map<String, Record> unique = new LinkedHashMap<String, Record>();
+        for (Record record : batch) {
+            String key = keyOf(record.messageId, record.requestId);
+            if (unique.containsKey(key)) {
+                duplicateCount.incrementAndGet();
+                pending.remove(key, record);
+            } else {
+                unique.put(key, record);
+            }
+        }
+        TransactionManagerConnection connection = connectionFactory.getConnection(connectionName);
+        try {
+            try {
+                SqlPStatement stmt = connection.prepareStatement(insertDml);
+                for (Record record : unique.values()) {
+                    bind(stmt, record);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                connection.commit();
+                writtenCount.addAndGet(unique.size());
+            } catch (DbAccessException e) {
+                connection.rollback();
+                writeOneByOne(connection, unique.values());
+            }
+        } catch (RuntimeException e) {
+            failureCount.incrementAndGet();
+            LOGGER.logWarn("failed to write sent messages. they will be retried. count = [" + unique.size() + "]", e);
+            return false;
+        } finally {
+            connection.terminate();
+        }
+
+        long now = System.currentTimeMillis();
+        long latency = 0;
+        for (Map.Entry<String, Record> entry : unique.entrySet()) {
+            pending.remove(entry.getKey(), entry.getValue());
+            latency = Math.max(latency, now - entry.getValue().enqueuedAt);
+        }
+        flushCount.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        updateMax(maxLatency, latency);
+        updateMax(maxBatchSize, unique.size());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.logDebug("wrote sent messages. count = [" + unique.size() + "] latency = [" + latency + "]");
+        }
+        return true;
+    }
+
+    /**
+     * 応答電文を1件ずつ登録する。
+     * <p/>
+     * 一意制約違反となった応答電文は、先に登録された応答電文を正として除外する。
+     *
+     * @param connection データベース接続
+     * @param records 登録する応答電文
+     */
+    private void writeOneByOne(TransactionManagerConnection connection, Iterable<Record> records) {
+        for (Record record : records) {
+            try {
+                SqlPStatement stmt = connection.prepareStatement(insertDml);
+                bind(stmt, record);
+                stmt.execute();
+                connection.commit();
+                writtenCount.incrementAndGet();
+            } catch (DuplicateStatementException e) {
+                connection.rollback();
+                duplicateCount.incrementAndGet();
+                LOGGER.logInfo("the reply of the message has been already saved. messageId = [" + record.messageId
+                             + "] requestId = [" + record.requestId + "]");
+            }
+        }
+    }
+
+    /**
+     * 登録するSQL文に応答電文の内容を設定する。
+     * @param stmt SQL文
+     * @param record 応答電文
+     */
+    private static void bind(SqlPStatement stmt, Record record) {
+        stmt.setString(1, record.messageId);
+        stmt.setString(2, record.requestId);
+        stmt.setString(3, record.replyQueue);
+        stmt.setString(4, record.statusCode);
+        stmt.setBytes(5,  record.bodyData);
+    }
+
+    /**
+     * 最大値を更新する。
+     * @param max 最大値
+     * @param value 値
+     */
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * 登録待ちの応答電文のキーを生成する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return キー
+     */
+    private static String keyOf(String messageId, String requestId) {
+        return messageId + '\u0000' + requestId;
+    }
+
+    /**
+     * 統計情報を返す。
+     * @return 統計情報
+     */
+    public Statistics getStatistics() {
+        long flushes = flushCount.get();
+        return new Statistics(flushes, writtenCount.get(), duplicateCount.get(), failureCount.get(),
+                              pending.size(), maxBatchSize.get(),
+                              flushes == 0 ? 0 : totalLatency.get() / flushes, maxLatency.get());
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * データベース接続を取得するファクトリを設定する。
+     * <p/>
+     * 本プロパティは必須である。
+     *
+     * @param connectionFactory データベース接続を取得するファクトリ
+     * @return このオブジェクト自体
+     */
+    public SentMessageWriter setConnectionFactory(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+        return this;
+    }
+
+    /**
+     * データベース接続名を設定する。
+     * <p/>
+     * デフォルトは"sentMessageWriter"。
+     *
+     * @param connectionName データベース接続名
+     * @return このオブジェクト自体
+     */
+    public SentMessageWriter setConnectionName(String connectionName) {
+        this.connectionName = connectionName;
+        return this;
+    }
+
+    /**
+     * 1回のバッチ更新で登録する最大件数を設定する。
+     * <p/>
+     * デフォルトは100。
+     *
+     * @param batchSize 1回のバッチ更新で登録する最大件数
+     * @return このオブジェクト自体
+     */
+    public SentMessageWriter setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(
+                "batchSize must be greater than 0. batchSize = [" + batchSize + "]");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 応答電文をキューに格納してから登録するまでの最大待機時間(耐久性の猶予期間)を設定する。
+     * <p/>
+     * 登録に失敗した場合の再試行の間隔にも使用する。
+     * デフォルトは200ミリ秒。
+     *
+     * @param flushInterval 最大待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public SentMessageWriter setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException(
+                "flushInterval must be greater than 0. flushInterval = [" + flushInterval + "]");
+        }
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * キューに格納できる最大件数を設定する。
+     * <p/>
+     * デフォルトは10000。
+     *
+     * @param maxBacklog キューに格納できる最大件数
+     * @return このオブジェクト自体
+     */
+    public SentMessageWriter setMaxBacklog(int maxBacklog) {
+        if (maxBacklog <= 0) {
+            throw new IllegalArgumentException(
+                "maxBacklog must be greater than 0. maxBacklog = [" + maxBacklog + "]");
+        }
+        this.maxBacklog = maxBacklog;
+        return this;
+    }
+
+    /**
+     * 登録待ちの応答電文。
+     */
+    public static final class Record {
+
+        /** 初回電文のメッセージID */
+        private final String messageId;
+
+        /** リクエストID */
+        private final String requestId;
+
+        /** 応答電文の宛先 */
+        private final String replyQueue;
+
+        /** ステータスコード */
+        private final String statusCode;
+
+        /** 応答電文のボディ部 */
+        private final byte[] bodyData;
+
+        /** キューに格納した時刻(エポックミリ秒) */
+        private final long enqueuedAt = System.currentTimeMillis();
+
+        /**
+         * コンストラクタ。
+         * @param messageId 初回電文のメッセージID
+         * @param requestId リクエストID
+         * @param replyQueue 応答電文の宛先
+         * @param statusCode ステータスコード
+         * @param bodyData 応答電文のボディ部
+         */
+        Record(String messageId, String requestId, String replyQueue, String statusCode, byte[] bodyData) {
+            this.messageId = messageId;
+            this.requestId = requestId;
+            this.replyQueue = replyQueue;
+            this.statusCode = statusCode;
+            this.bodyData = bodyData;
+        }
+
+        /**
+         * 応答電文の宛先を返す。
+         * @return 応答電文の宛先
+         */
+        public String getReplyQueue() {
+            return replyQueue;
+        }
+
+        /**
+         * ステータスコードを返す。
+         * @return ステータスコード
+         */
+        public String getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * 応答電文のボディ部を返す。
+         * @return 応答電文のボディ部
+         */
+        public byte[] getBodyData() {
+            return bodyData;
+        }
+    }
+
+    /**
+     * ライタの統計情報。
+     */
+    public static final class Statistics {
+
+        /** バッチ更新の回数 */
+        private final long flushCount;
+
+        /** 登録した応答電文の件数 */
+        private final long writtenCount;
+
+        /** 一意制約違反により除外した応答電文の件数 */
+        private final long duplicateCount;
+
+        /** 登録に失敗した回数 */
+        private final long failureCount;
+
+        /** 登録待ちの応答電文の件数 */
+        private final long backlog;
+
+        /** 1回のバッチ更新で登録した最大件数 */
+        private final long maxBatchSize;
+
+        /** キューに格納してから登録が完了するまでの平均時間(単位：ミリ秒) */
+        private final long averageLatency;
+
+        /** キューに格納してから登録が完了するまでの最大時間(単位：ミリ秒) */
+        private final long maxLatency;
+
+        /**
+         * コンストラクタ。
+         * @param flushCount バッチ更新の回数
+         * @param writtenCount 登録した応答電文の件数
+         * @param duplicateCount 一意制約違反により除外した応答電文の件数
+         * @param failureCount 登録に失敗した回数
+         * @param backlog 登録待ちの応答電文の件数
+         * @param maxBatchSize 1回のバッチ更新で登録した最大件数
+         * @param averageLatency 平均時間(単位：ミリ秒)
+         * @param maxLatency 最大時間(単位：ミリ秒)
+         */
+        Statistics(long flushCount, long writtenCount, long duplicateCount, long failureCount,
+                   long backlog, long maxBatchSize, long averageLatency, long maxLatency) {
+            this.flushCount = flushCount;
+            this.writtenCount = writtenCount;
+            this.duplicateCount = duplicateCount;
+            this.failureCount = failureCount;
+            this.backlog = backlog;
+            this.maxBatchSize = maxBatchSize;
+            this.averageLatency = averageLatency;
+            this.maxLatency = maxLatency;
+        }
+
+        /**
+         * バッチ更新の回数を返す。
+         * @return バッチ更新の回数
+         */
+        public long getFlushCount() {
+            return flushCount;
+        }
+
+        /**
+         * 登録した応答電文の件数を返す。
+         * @return 登録した応答電文の件数
+         */
+        public long getWrittenCount() {
+            return writtenCount;
+        }
+
+        /**
+         * 一意制約違反により除外した応答電文の件数を返す。
+         * @return 除外した応答電文の件数
+         */
+        public long getDuplicateCount() {
+            return duplicateCount;
+        }
+
+        /**
+         * 登録に失敗した回数を返す。
+         * @return 登録に失敗した回数
+         */
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * 登録待ちの応答電文の件数を返す。
+         * @return 登録待ちの応答電文の件数
+         */
+        public long getBacklog() {
+            return backlog;
+        }
+
+        /**
+         * 1回のバッチ更新で登録した最大件数を返す。
+         * @return 1回のバッチ更新で登録した最大件数
+         */
+        public long getMaxBatchSize() {
+            return maxBatchSize;
+        }
+
+        /**
+         * 1回のバッチ更新で登録した平均件数を返す。
+         * @return 1回のバッチ更新で登録した平均件数
+         */
+        public double getAverageBatchSize() {
+            return flushCount == 0 ? 0 : (double) writtenCount / flushCount;
+        }
+
+        /**
+         * キューに格納してから登録が完了するまでの平均時間を返す。
+         * @return 平均時間(単位：ミリ秒)
+         */
+        public long getAverageLatency() {
+            return averageLatency;
+        }
+
+        /**
+         * キューに格納してから登録が完了するまでの最大時間を返す。
+         * @return 最大時間(単位：ミリ秒)
+         */
+        public long getMaxLatency() {
+            return maxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "flushes = [" + flushCount + "] written = [" + writtenCount + "] duplicates = [" + duplicateCount
+                 + "] failures = [" + failureCount + "] backlog = [" + backlog + "] max batch size = [" + maxBatchSize
+                 + "] average latency = [" + averageLatency + "] max latency = [" + maxLatency + "]";
+        }
+    }
+}
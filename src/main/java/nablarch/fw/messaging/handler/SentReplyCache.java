@@ -0,0 +1,224 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link MessageResendHandler}が再送用に保存した応答電文を保持するキャッシュ。
+ * <p/>
+ * 送信済電文テーブルへの登録がコミットされた応答電文を保持し、
+ * 再送要求電文に対する応答をデータベースにアクセスせずに返却するために使用する。
+ * <p/>
+ * 保持する応答電文の合計サイズは{@link #setMaxBytes(long)}で設定した上限を超えないように、
+ * 最も長く参照されていないものから破棄する。
+ * また、{@link #setTimeToLive(long)}で設定した時間を経過した応答電文は破棄する。
+ * キャッシュに保持されていない応答電文は、送信済電文テーブルから取得する。
+ * <p/>
+ * 本クラスはスレッドセーフである。
+ *
+ * @see MessageResendHandler#setSentReplyCache(SentReplyCache)
+ */
+public class SentReplyCache {
+
+    /** 1件あたりのサイズの見積もりに加算する固定のバイト数 */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /** 保持する応答電文の合計サイズの上限(単位：バイト) */
+    private long maxBytes = 16L * 1024 * 1024;
+
+    /** 応答電文を保持する時間(単位：ミリ秒) */
+    private long timeToLive = 10L * 60 * 1000;
+
+    /** 保持している応答電文(参照順) */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /** 保持している応答電文の合計サイズ(単位：バイト) */
+    private long totalBytes = 0;
+
+    /**
+     * 応答電文をキャッシュに格納する。
+     * <p/>
+     * 1件で上限サイズを超える応答電文は格納しない。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @param replyQueue 応答電文の宛先
+     * @param statusCode ステータスコード
+     * @param bodyData 応答電文のボディ部
+     */
+    public synchronized void put(String messageId, String requestId,
+                                 String replyQueue, String statusCode, byte[] bodyData) {
+        Entry entry = new Entry(replyQueue, statusCode, bodyData, System.currentTimeMillis() + timeToLive);
+        String key = keyOf(messageId, requestId);
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old.size;
+        }
+        if (entry.size > maxBytes) {
+            return;
+        }
+        entries.put(key, entry);
+        totalBytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            totalBytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * キャッシュから応答電文を取得する。
+     *
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return 応答電文(保持していない場合、または保持期間を経過した場合は{@code null})
+     */
+    public synchronized Entry get(String messageId, String requestId) {
+        String key = keyOf(messageId, requestId);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key);
+            totalBytes -= entry.size;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 保持している応答電文を全て破棄する。
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * 保持している応答電文の件数を返す。
+     * @return 応答電文の件数
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 保持している応答電文の合計サイズの見積もりを返す。
+     * @return 応答電文の合計サイズ(単位：バイト)
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * キャッシュのキーを生成する。
+     * @param messageId 初回電文のメッセージID
+     * @param requestId リクエストID
+     * @return キャッシュのキー
+     */
+    private static String keyOf(String messageId, String requestId) {
+        return messageId + '\u0000' + requestId;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 保持する応答電文の合計サイズの上限を設定する。
+     * <p/>
+     * 応答電文のボディ部、宛先、ステータスコードのサイズに1件あたりの固定値を加えた値で見積もる。
+     * デフォルトは16MB。
+     *
+     * @param maxBytes 合計サイズの上限(単位：バイト)
+     * @return このオブジェクト自体
+     */
+    public synchronized SentReplyCache setMaxBytes(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException(
+                "maxBytes must be greater than 0. maxBytes = [" + maxBytes + "]");
+        }
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * 応答電文を保持する時間を設定する。
+     * <p/>
+     * 送信済電文テーブルのレコードを削除する運用を行う場合は、
+     * 削除までの期間より短い時間を設定すること。
+     * デフォルトは10分。
+     *
+     * @param timeToLive 応答電文を保持する時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public synchronized SentReplyCache setTimeToLive(long timeToLive) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException(
+                "timeToLive must be greater than 0. timeToLive = [" + timeToLive + "]");
+        }
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * キャッシュに保持された応答電文。
+     */
+    public static final class Entry {
+
+        /** 応答電文の宛先 */
+        private final String replyQueue;
+
+        /** ステータスコード */
+        private final String statusCode;
+
+        /** 応答電文のボディ部 */
+        private final byte[] bodyData;
+
+        /** 保持期限(エポックミリ秒) */
+        private final long expiresAt;
+
+        /** サイズの見積もり(単位：バイト) */
+        private final long size;
+
+        /**
+         * コンストラクタ。
+         * @param replyQueue 応答電文の宛先
+         * @param statusCode ステータスコード
+         * @param bodyData 応答電文のボディ部
+         * @param expiresAt 保持期限(エポックミリ秒)
+         */
+        Entry(String replyQueue, String statusCode, byte[] bodyData, long expiresAt) {
+            this.replyQueue = replyQueue;
+            this.statusCode = statusCode;
+            this.bodyData = bodyData;
+            this.expiresAt = expiresAt;
+            this.size = ENTRY_OVERHEAD
+                      + (bodyData == null ? 0 : bodyData.length)
+                      + 2L * (replyQueue == null ? 0 : replyQueue.length())
+                      + 2L * (statusCode == null ? 0 : statusCode.length());
+        }
+
+        /**
+         * 応答電文の宛先を返す。
+         * @return 応答電文の宛先
+         */
+        public String getReplyQueue() {
+            return replyQueue;
+        }
+
+        /**
+         * ステータスコードを返す。
+         * @return ステータスコード
+         */
+        public String getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * 応答電文のボディ部を返す。
+         * @return 応答電文のボディ部
+         */
+        public byte[] getBodyData() {
+            return bodyData;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package nablarch.fw.messaging.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+
+/**
+ * {@link MessageResendHandler}が再送用に保存する応答電文のボディ部を圧縮するクラス。
+ * <p/>
+ * 固定長の電文は空白やゼロで埋められた項目が多く、圧縮により保存先のサイズと入出力量を大きく削減できる。
+ * 圧縮したボディ部は、先頭に以下のヘッダを付与して保存する。
+ * このため、送信済電文テーブルのスキーマを変更する必要はない。
+ * <pre>
+ * =====================================
+ * マジックナンバー  4バイト (0xFE 0xED 'N' 'Z')
+ * 格納方式          1バイト (0:無圧縮 1:Deflate)
+ * 圧縮前のサイズ    4バイト
+ * 格納データ        可変長
+ * =====================================
+ * </pre>
+ * {@link #setMinSize(int)}で設定したサイズ未満のボディ部や、圧縮してもサイズが小さくならないボディ部は、
+ * ヘッダを付与せずにそのまま保存する。
+ * (ただし、ボディ部がマジックナンバーで始まる場合は、無圧縮のヘッダを付与して保存する。)
+ * <p/>
+ * 保存された応答電文を再送する際は、ヘッダの有無により圧縮の要否を判定して展開する。
+ * このため、圧縮を有効にする前に保存された応答電文もそのまま再送できる。
+ * <p/>
+ * 展開は、{@link MessageResendHandler}に本クラスを設定している場合にのみ行う。
+ * (圧縮を使用しない場合、保存したボディ部は業務データそのものであり、
+ * 偶然マジックナンバーで始まるボディ部を誤って展開しないようにするため。)
+ * このため、圧縮して保存された応答電文が保持期間内に残っている間は、本クラスの設定を削除しないこと。
+ * 圧縮を停止する場合は、{@link #setMinSize(int)}に{@link Integer#MAX_VALUE}を設定する。
+ * <p/>
+ * 圧縮率と圧縮・展開に要した時間は{@link #getStatistics()}で参照できる。
+ * また、{@link #setReportInterval(int)}で設定した件数を圧縮するごとに、INFOレベルでログ出力する。
+ * <p/>
+ * 本クラスはスレッドセーフである。
+ *
+ * @see MessageResendHandler#setSentReplyCompressor(SentReplyCompressor)
+ */
+public class SentReplyCompressor {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(SentReplyCompressor.class);
+
+    /** マジックナンバー */
+    private static final byte[] MAGIC = {(byte) 0xFE, (byte) 0xED, 'N', 'Z'};
+
+    /** ヘッダのサイズ */
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+    /** 格納方式：無圧縮 */
+    private static final byte STORED = 0;
+
+    /** 格納方式：Deflate */
+    private static final byte DEFLATED = 1;
+
+    /** 圧縮レベル */
+    private int compressionLevel = Deflater.BEST_SPEED;
+
+    /** 圧縮するボディ部の最小サイズ(単位：バイト) */
+    private int minSize = 256;
+
+    /** 統計情報をログ出力する間隔(圧縮した件数) */
+    private int reportInterval = 10000;
+
+    /** 圧縮した件数 */
+    private final AtomicLong compressedCount = new AtomicLong();
+
+    /** 圧縮しなかった件数 */
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    /** 圧縮したボディ部の圧縮前の合計サイズ(単位：バイト) */
+    private final AtomicLong originalBytes = new AtomicLong();
+
+    /** 圧縮したボディ部の圧縮後の合計サイズ(単位：バイト) */
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /** 圧縮に要した時間の合計(単位：ナノ秒) */
+    private final AtomicLong compressTime = new AtomicLong();
+
+    /** 展開した件数 */
+    private final AtomicLong decompressedCount = new AtomicLong();
+
+    /** 展開に要した時間の合計(単位：ナノ秒) */
+    private final AtomicLong decompressTime = new AtomicLong();
+
+    /**
+     * 応答電文のボディ部を圧縮する。
+     *
+     * @param body 応答電文のボディ部
+     * @return 保存するボディ部
+     */
+    public byte[] compress(byte[] body) {
+        if (body == null) {
+            return null;
+        }
+        if (body.length < minSize) {
+            skippedCount.incrementAndGet();
+            return wrapIfNeeded(body);
+        }
+        long start = System.nanoTime();
+        byte[] compressed = deflate(body);
+        long elapsed = System.nanoTime() - start;
+        compressTime.addAndGet(elapsed);
+        if (compressed.length >= body.length) {
+            skippedCount.incrementAndGet();
+            return wrapIfNeeded(body);
+        }
+        originalBytes.addAndGet(body.length);
+        compressedBytes.addAndGet(compressed.length);
+        long count = compressedCount.incrementAndGet();
+        if (count % reportInterval == 0 && LOGGER.isInfoEnabled()) {
+            LOGGER.logInfo("sent reply compression statistics. " + getStatistics());
+        }
+        return compressed;
+    }
+
+    /**
+     * 保存されたボディ部を展開する。
+     * <p/>
+     * ヘッダが付与されていない場合は、そのまま返す。
+     *
+     * @param stored 保存されたボディ部
+     * @return 応答電文のボディ部
+     * @throws IllegalArgumentException 保存されたボディ部が不正な場合
+     */
+    public byte[] decompress(byte[] stored) throws IllegalArgumentException {
+        if (!hasHeader(stored)) {
+            return stored;
+        }
+        long start = System.nanoTime();
+        byte[] body = decode(stored);
+        decompressTime.addAndGet(System.nanoTime() - start);
+        decompressedCount.incrementAndGet();
+        return body;
+    }
+
+    /**
+     * 圧縮の統計情報を返す。
+     * @return 統計情報
+     */
+    public Statistics getStatistics() {
+        return new Statistics(compressedCount.get(), skippedCount.get(),
+                              originalBytes.get(), compressedBytes.get(), compressTime.get(),
+                              decompressedCount.get(), decompressTime.get());
+    }
+
+    /**
+     * ボディ部をDeflateで圧縮し、ヘッダを付与する。
+     * @param body ボディ部
+     * @return ヘッダを付与した圧縮データ
+     */
+    private byte[] deflate(byte[] body) {
+        Deflater deflater = new Deflater(compressionLevel);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + body.length / 2);
+            out.write(header(DEFLATED, body.length), 0, HEADER_SIZE);
+            byte[] buffer = new byte[Math.max(64, Math.min(body.length, 8192))];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * ボディ部がマジックナンバーで始まる場合、無圧縮のヘッダを付与する。
+     * @param body ボディ部
+     * @return 保存するボディ部
+     */
+    private static byte[] wrapIfNeeded(byte[] body) {
+        if (!startsWithMagic(body)) {
+            return body;
+        }
+        byte[] wrapped = new byte[HEADER_SIZE + body.length];
+        System.arraycopy(header(STORED, body.length), 0, wrapped, 0, HEADER_SIZE);
+        System.arraycopy(body, 0, wrapped, HEADER_SIZE, body.length);
+        return wrapped;
+    }
+
+    /**
+     * ヘッダを生成する。
+     * @param method 格納方式
+     * @param originalLength 圧縮前のサイズ
+     * @return ヘッダ
+     */
+    private static byte[] header(byte method, int originalLength) {
+        return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put(method).putInt(originalLength).array();
+    }
+
+    /**
+     * ヘッダが付与されたボディ部を展開する。
+     * @param stored 保存されたボディ部
+     * @return ボディ部
+     * @throws IllegalArgumentException 保存されたボディ部が不正な場合
+     */
+    private static byte[] decode(byte[] stored) throws IllegalArgumentException {
+        ByteBuffer header = ByteBuffer.wrap(stored, MAGIC.length, HEADER_SIZE - MAGIC.length);
+        byte method = header.get();
+        int originalLength = header.getInt();
+        if (originalLength < 0) {
+            throw new IllegalArgumentException("invalid stored reply body. originalLength = [" + originalLength + "]");
+        }
+        byte[] body = new byte[originalLength];
+        if (method == STORED) {
+            if (stored.length - HEADER_SIZE != originalLength) {
+                throw new IllegalArgumentException("invalid stored reply body. length = [" + stored.length + "]");
+            }
+            System.arraycopy(stored, HEADER_SIZE, body, 0, originalLength);
+            return body;
+        }
+        if (method != DEFLATED) {
+            throw new IllegalArgumentException("unknown compression method. method = [" + method + "]");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+            int offset = 0;
+            while (offset < originalLength) {
+                int length = inflater.inflate(body, offset, originalLength - offset);
+                if (length == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += length;
+            }
+            if (offset != originalLength) {
+                throw new IllegalArgumentException("invalid stored reply body. the compressed data is truncated.");
+            }
+            return body;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("invalid stored reply body.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * ヘッダが付与されているか否かを判定する。
+     * @param stored 保存されたボディ部
+     * @return ヘッダが付与されている場合は{@code true}
+     */
+    private static boolean hasHeader(byte[] stored) {
+        return stored != null && stored.length >= HEADER_SIZE && startsWithMagic(stored);
+    }
+
+    /**
+     * マジックナンバーで始まるか否かを判定する。
+     * @param data データ
+     * @return マジックナンバーで始まる場合は{@code true}
+     */
+    private static boolean startsWithMagic(byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 圧縮レベルを設定する。
+     * <p/>
+     * {@link Deflater}の圧縮レベル(0～9)を設定する。
+     * デフォルトは{@link Deflater#BEST_SPEED}。
+     *
+     * @param compressionLevel 圧縮レベル
+     * @return このオブジェクト自体
+     */
+    public SentReplyCompressor setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(
+                "compressionLevel must be between 0 and 9. compressionLevel = [" + compressionLevel + "]");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * 圧縮するボディ部の最小サイズを設定する。
+     * <p/>
+     * このサイズ未満のボディ部は圧縮しない。デフォルトは256バイト。
+     *
+     * @param minSize 圧縮するボディ部の最小サイズ(単位：バイト)
+     * @return このオブジェクト自体
+     */
+    public SentReplyCompressor setMinSize(int minSize) {
+        this.minSize = minSize;
+        return this;
+    }
+
+    /**
+     * 統計情報をログ出力する間隔を設定する。
+     * <p/>
+     * デフォルトは10000件。
+     *
+     * @param reportInterval 統計情報をログ出力する間隔(圧縮した件数)
+     * @return このオブジェクト自体
+     */
+    public SentReplyCompressor setReportInterval(int reportInterval) {
+        if (reportInterval <= 0) {
+            throw new IllegalArgumentException(
+                "reportInterval must be greater than 0. reportInterval = [" + reportInterval + "]");
+        }
+        this.reportInterval = reportInterval;
+        return this;
+    }
+
+    /**
+     * 圧縮の統計情報。
+     */
+    public static final class Statistics {
+
+        /** 圧縮した件数 */
+        private final long compressedCount;
+
+        /** 圧縮しなかった件数 */
+        private final long skippedCount;
+
+        /** 圧縮前の合計サイズ(単位：バイト) */
+        private final long originalBytes;
+
+        /** 圧縮後の合計サイズ(単位：バイト) */
+        private final long compressedBytes;
+
+        /** 圧縮に要した時間の合計(単位：ナノ秒) */
+        private final long compressTime;
+
+        /** 展開した件数 */
+        private final long decompressedCount;
+
+        /** 展開に要した時間の合計(単位：ナノ秒) */
+        private final long decompressTime;
+
+        /**
+         * コンストラクタ。
+         * @param compressedCount 圧縮した件数
+         * @param skippedCount 圧縮しなかった件数
+         * @param originalBytes 圧縮前の合計サイズ
+         * @param compressedBytes 圧縮後の合計サイズ
+         * @param compressTime 圧縮に要した時間の合計
+         * @param decompressedCount 展開した件数
+         * @param decompressTime 展開に要した時間の合計
+         */
+        Statistics(long compressedCount, long skippedCount, long originalBytes, long compressedBytes,
+                   long compressTime, long decompressedCount, long decompressTime) {
+            this.compressedCount = compressedCount;
+            this.skippedCount = skippedCount;
+            this.originalBytes = originalBytes;
+            this.compressedBytes = compressedBytes;
+            this.compressTime = compressTime;
+            this.decompressedCount = decompressedCount;
+            this.decompressTime = decompressTime;
+        }
+
+        /**
+         * 圧縮した件数を返す。
+         * @return 圧縮した件数
+         */
+        public long getCompressedCount() {
+            return compressedCount;
+        }
+
+        /**
+         * 圧縮しなかった件数を返す。
+         * <p/>
+         * 最小サイズ未満のボディ部と、圧縮してもサイズが小さくならなかったボディ部の件数。
+         *
+         * @return 圧縮しなかった件数
+         */
+        public long getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * 圧縮前の合計サイズを返す。
+         * @return 圧縮前の合計サイズ(単位：バイト)
+         */
+        public long getOriginalBytes() {
+            return originalBytes;
+        }
+
+        /**
+         * 圧縮後の合計サイズを返す。
+         * @return 圧縮後の合計サイズ(単位：バイト)
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * 圧縮率(圧縮前の合計サイズ÷圧縮後の合計サイズ)を返す。
+         * @return 圧縮率(圧縮していない場合は1)
+         */
+        public double getCompressionRatio() {
+            return compressedBytes == 0 ? 1.0 : (double) originalBytes / compressedBytes;
+        }
+
+        /**
+         * 1件あたりの平均圧縮時間を返す。
+         * <p/>
+         * 圧縮しなかったボディ部の試行に要した時間も含む。
+         *
+         * @return 平均圧縮時間(単位：マイクロ秒)
+         */
+        public long getAverageCompressTime() {
+            long count = compressedCount + skippedCount;
+            return count == 0 ? 0 : compressTime / count / 1000;
+        }
+
+        /**
+         * 展開した件数を返す。
+         * @return 展開した件数
+         */
+        public long getDecompressedCount() {
+            return decompressedCount;
+        }
+
+        /**
+         * 1件あたりの平均展開時間を返す。
+         * @return 平均展開時間(単位：マイクロ秒)
+         */
+        public long getAverageDecompressTime() {
+            return decompressedCount == 0 ? 0 : decompressTime / decompressedCount / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "compressed = [" + compressedCount + "] skipped = [" + skippedCount
+                 + "] originalBytes = [" + originalBytes + "] compressedBytes = [" + compressedBytes
+                 + "] ratio = [" + String.format("%.2f", getCompressionRatio())
+                 + "] averageCompressTime = [" + getAverageCompressTime()
+                 + "] decompressed = [" + decompressedCount
+                 + "] averageDecompressTime = [" + getAverageDecompressTime() + "]";
+        }
+    }
+}
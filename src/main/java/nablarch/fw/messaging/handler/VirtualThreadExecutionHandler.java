@@ -0,0 +1,376 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.VirtualThreads;
+
+/**
+ * 後続ハンドラの処理を、仮想スレッドを使用して並行実行するハンドラ。
+ * <p/>
+ * 常駐型のメッセージ受信処理では、{@link nablarch.fw.messaging.MessagingContext#receiveSync(String, long)}
+ * や同期送信の応答待ちでスレッドがブロックするため、同時に処理できる電文の数が
+ * プラットフォームスレッドの数によって制限される。
+ * 本ハンドラは、プラットフォームスレッドを占有せずに多数の電文を並行して処理するために使用する。
+ * 実行方式は{@link #setPerMessage(boolean)}で選択する。
+ *
+ * <div><b>常駐スレッド方式(デフォルト)</b></div>
+ * <hr/>
+ * nablarch.fw.handler.MultiThreadExecutionHandlerの代わりに使用し、
+ * 後続ハンドラを指定された数の仮想スレッド上で実行する。
+ * 各スレッドは、後続のnablarch.fw.handler.RequestThreadLoopHandlerなどにより電文の読み込みと処理を繰り返す常駐スレッドであり、
+ * 電文ごとにスレッドを生成するものではない。
+ * 同時に処理できる電文の数はスレッド数であるため、{@link #setConcurrentNumber(int)}には並行して処理する電文の数を設定すること。
+ * <p/>
+ * 各スレッドには、実行コンテキストの複製を渡す。
+ * いずれかのスレッドで例外が発生した場合は、他のスレッドに割り込みを行って処理を中断させ、
+ * 全てのスレッドの終了後に最初に発生した例外を再送出する。
+ * 全てのスレッドの終了後、データリーダを閉じる。
+ *
+ * <div><b>電文単位方式</b></div>
+ * <hr/>
+ * nablarch.fw.handler.MultiThreadExecutionHandler、nablarch.fw.handler.RequestThreadLoopHandler、
+ * nablarch.fw.handler.DataReadHandlerの代わりに使用する。
+ * データリーダの読み込みは本ハンドラを実行するスレッドで行い、読み込んだ電文ごとに仮想スレッドを生成して
+ * 実行コンテキストの複製で後続ハンドラを実行する。
+ * 処理中の電文の数が{@link #setConcurrentNumber(int)}に達している場合は、処理が完了するまで電文の読み込みを待機する。
+ * 本ハンドラより前に{@link MessagingContextHandler}を配置し、
+ * 電文ごとのスレッドでメッセージングを使用する場合は、後続ハンドラにも{@link MessagingContextHandler}を配置すること。
+ * <p/>
+ * 後続ハンドラで実行時例外が発生した場合は、ワーニングログを出力し、後続の電文の処理を継続する。
+ * 実行時例外以外のエラーが発生した場合は、電文の読み込みを中止し、処理中のスレッドに割り込みを行った上で
+ * 全てのスレッドの終了後に当該エラーを再送出する。
+ * 全てのスレッドの終了後、データリーダを閉じる。
+ *
+ * <div><b>仮想スレッドの制約</b></div>
+ * <hr/>
+ * 仮想スレッドが使用できない環境では、プラットフォームスレッドを使用する。
+ * <p/>
+ * JDK 21では、モニタロック(synchronized)を保持したまま待機やI/Oを行うと、仮想スレッドがキャリアスレッドを占有する(ピン留め)。
+ * {@link nablarch.fw.messaging.provider.JournalMessagingProvider}と
+ * {@link nablarch.fw.messaging.provider.BatchingMessagingProvider}は{@link java.util.concurrent.locks.ReentrantLock}を
+ * 使用するためピン留めは発生しないが、{@link nablarch.fw.messaging.provider.JmsMessagingProvider}の
+ * 接続の管理やメッセージリスナーの流量制御、JMSプロバイダやJDBCドライバの内部ではモニタロックを使用しており、
+ * これらの処理中はピン留めが発生しうる。
+ * このため、並行して処理できる電文の数は、これらの処理の割合に応じてキャリアスレッドの数に制限される場合がある。
+ *
+ * @see VirtualThreads
+ */
+public class VirtualThreadExecutionHandler implements Handler<Object, Result.MultiStatus> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(VirtualThreadExecutionHandler.class);
+
+    /** 並行実行するスレッド数 */
+    private int concurrentNumber = 1;
+
+    /** 仮想スレッドを使用するか否か */
+    private boolean useVirtualThreads = true;
+
+    /** 電文ごとにスレッドを生成するか否か */
+    private boolean perMessage = false;
+
+    /** {@inheritDoc}
+     * この実装では、常駐スレッド方式の場合は後続ハンドラの処理を指定された数のスレッドで並行実行し、
+     * 全てのスレッドの処理結果をまとめて返却する。
+     * 電文単位方式の場合は、データリーダから読み込んだ電文ごとにスレッドを生成して後続ハンドラを実行する。
+     */
+    public Result.MultiStatus handle(final Object data, ExecutionContext context) {
+        boolean virtual = useVirtualThreads && VirtualThreads.isAvailable();
+        if (useVirtualThreads && !virtual && LOGGER.isInfoEnabled()) {
+            LOGGER.logInfo("virtual threads are not available. platform threads are used instead.");
+        }
+        if (perMessage) {
+            return handlePerMessage(context, virtual);
+        }
+
+        final List<Thread> threads = new ArrayList<Thread>(concurrentNumber);
+        final Queue<Result> results = new ConcurrentLinkedQueue<Result>();
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+        try {
+            for (int i = 0; i < concurrentNumber; i++) {
+                final ExecutionContext childContext = new ExecutionContext(context);
+                threads.add(VirtualThreads.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Object result = childContext.handleNext(data);
+                            results.add(result instanceof Result ? (Result) result : new Result.Success());
+                        } catch (Throwable e) {
+                            errors.add(e);
+                            interruptOthers(threads);
+                        }
+                    }
+                }, "messaging-worker-" + (i + 1), virtual));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            joinAll(threads);
+        } finally {
+            context.closeReader();
+        }
+
+        Throwable error = errors.peek();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+        Result.MultiStatus status = new Result.MultiStatus();
+        status.addResults(results.toArray(new Result[results.size()]));
+        return status;
+    }
+
+    /**
+     * データリーダから読み込んだ電文ごとにスレッドを生成し、後続ハンドラを実行する。
+     * @param context 実行コンテキスト
+     * @param virtual 仮想スレッドを使用する場合は{@code true}
+     * @return 処理結果
+     */
+    private Result.MultiStatus handlePerMessage(ExecutionContext context, boolean virtual) {
+        final Semaphore permits = new Semaphore(concurrentNumber);
+        final Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final AtomicReference<Throwable> fatal = new AtomicReference<Throwable>();
+        final AtomicLong failed = new AtomicLong();
+        long dispatched = 0;
+        try {
+            while (fatal.get() == null && context.hasNextData()) {
+                Object data = context.readNextData();
+                if (data == null) {
+                    continue; // timeout
+                }
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    fatal.compareAndSet(null, e);
+                    break;
+                }
+                if (fatal.get() != null) {
+                    permits.release();
+                    break;
+                }
+                dispatched++;
+                Thread thread = VirtualThreads.newThread(
+                        new PerMessageTask(data, new ExecutionContext(context), permits, running, fatal, failed),
+                        "messaging-worker-" + dispatched, virtual);
+                running.add(thread);
+                thread.start();
+            }
+        } finally {
+            try {
+                awaitPerMessageTasks(permits, running, fatal);
+            } finally {
+                context.closeReader();
+            }
+        }
+
+        Throwable error = fatal.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.logInfo("finished processing messages. dispatched = [" + dispatched
+                         + "] failed = [" + failed.get() + "]");
+        }
+        Result.MultiStatus status = new Result.MultiStatus();
+        status.addResults(new Result.Success());
+        return status;
+    }
+
+    /**
+     * 電文ごとのスレッドが全て終了するまで待機する。
+     * <p/>
+     * エラーが発生している場合、または待機中に割り込まれた場合は、処理中のスレッドに割り込みを行った上で待機を続ける。
+     * @param permits 処理中の電文の数を制限するセマフォ
+     * @param running 処理中のスレッド
+     * @param fatal 発生したエラー
+     */
+    private void awaitPerMessageTasks(Semaphore permits, Set<Thread> running, AtomicReference<Throwable> fatal) {
+        boolean interrupted = false;
+        boolean aborted = false;
+        while (true) {
+            if (!aborted && fatal.get() != null) {
+                aborted = true;
+                interruptOthers(new ArrayList<Thread>(running));
+            }
+            try {
+                permits.acquire(concurrentNumber);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                fatal.compareAndSet(null, e);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 1件の電文を処理するタスク。
+     */
+    private static final class PerMessageTask implements Runnable {
+
+        /** 電文 */
+        private final Object data;
+
+        /** 実行コンテキスト */
+        private final ExecutionContext context;
+
+        /** 処理中の電文の数を制限するセマフォ */
+        private final Semaphore permits;
+
+        /** 処理中のスレッド */
+        private final Set<Thread> running;
+
+        /** 発生したエラー */
+        private final AtomicReference<Throwable> fatal;
+
+        /** 処理に失敗した電文の件数 */
+        private final AtomicLong failed;
+
+        /**
+         * コンストラクタ。
+         * @param data 電文
+         * @param context 実行コンテキスト
+         * @param permits 処理中の電文の数を制限するセマフォ
+         * @param running 処理中のスレッド
+         * @param fatal 発生したエラー
+         * @param failed 処理に失敗した電文の件数
+         */
+        PerMessageTask(Object data, ExecutionContext context, Semaphore permits, Set<Thread> running,
+                       AtomicReference<Throwable> fatal, AtomicLong failed) {
+            this.data = data;
+            this.context = context;
+            this.permits = permits;
+            this.running = running;
+            this.fatal = fatal;
+            this.failed = failed;
+        }
+
+        @Override
+        public void run() {
+            try {
+                context.handleNext(data);
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                LOGGER.logWarn("an error occurred while processing a message.", e);
+            } catch (Throwable e) {
+                fatal.compareAndSet(null, e);
+            } finally {
+                running.remove(Thread.currentThread());
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * カレントスレッド以外のスレッドに割り込みを行う。
+     * @param threads スレッド
+     */
+    private static void interruptOthers(List<Thread> threads) {
+        Thread current = Thread.currentThread();
+        for (Thread thread : threads) {
+            if (thread != current) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * 全てのスレッドの終了を待機する。
+     * <p/>
+     * 待機中に割り込まれた場合は、全てのスレッドに割り込みを行った上で待機を続ける。
+     * @param threads スレッド
+     */
+    private static void joinAll(List<Thread> threads) {
+        boolean interrupted = false;
+        for (Thread thread : threads) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    if (!interrupted) {
+                        interrupted = true;
+                        interruptOthers(threads);
+                    }
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 並行実行するスレッド数を設定する。
+     * <p/>
+     * 仮想スレッドを使用する場合は、プラットフォームスレッドの数に制限されずに大きな値を設定することができる。
+     * デフォルトは1。
+     *
+     * @param concurrentNumber 並行実行するスレッド数
+     * @return このオブジェクト自体
+     */
+    public VirtualThreadExecutionHandler setConcurrentNumber(int concurrentNumber) {
+        if (concurrentNumber <= 0) {
+            throw new IllegalArgumentException(
+                "concurrentNumber must be greater than 0. concurrentNumber = [" + concurrentNumber + "]");
+        }
+        this.concurrentNumber = concurrentNumber;
+        return this;
+    }
+
+    /**
+     * 電文ごとにスレッドを生成するか否かを設定する。
+     * <p/>
+     * {@code true}を設定した場合は電文単位方式、{@code false}を設定した場合は常駐スレッド方式で実行する。
+     * 電文単位方式では、{@link #setConcurrentNumber(int)}は同時に処理する電文の最大数となる。
+     * デフォルトは{@code false}。
+     *
+     * @param perMessage 電文ごとにスレッドを生成する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public VirtualThreadExecutionHandler setPerMessage(boolean perMessage) {
+        this.perMessage = perMessage;
+        return this;
+    }
+
+    /**
+     * 仮想スレッドを使用するか否かを設定する。
+     * <p/>
+     * デフォルトは{@code true}。
+     * {@code false}を設定した場合、または仮想スレッドが使用できない環境では、プラットフォームスレッドを使用する。
+     *
+     * @param useVirtualThreads 仮想スレッドを使用する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public VirtualThreadExecutionHandler setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+}
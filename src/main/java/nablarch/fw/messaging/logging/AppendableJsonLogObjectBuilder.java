@@ -0,0 +1,29 @@
+package nablarch.fw.messaging.logging;
+
+import java.io.IOException;
+
+import nablarch.core.log.basic.JsonLogObjectBuilder;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 中間の{@link java.util.Map}を生成せずに、出力先のバッファへ直接書き込むことができる
+ * JSON形式のログ出力項目のビルダー。
+ * <p/>
+ * {@link MessagingJsonLogFormatter}は、出力項目のビルダーがすべて本インタフェースを実装しており、
+ * かつ{@link nablarch.core.text.json.BasicJsonSerializationManager}を使用している場合に、
+ * {@link #build(java.util.Map, Object)}の代わりに{@link #appendTo(JsonLogAppender, Object)}を呼び出す。
+ * 両メソッドの出力内容は同一でなければならない。
+ *
+ * @param <CTX> ログ出力項目の生成に使用するコンテキストの型
+ */
+@Published(tag = "architect")
+public interface AppendableJsonLogObjectBuilder<CTX> extends JsonLogObjectBuilder<CTX> {
+
+    /**
+     * ログ出力項目を出力先に書き込む。
+     * @param appender 出力先
+     * @param context ログ出力項目の生成に使用するコンテキスト
+     * @throws IOException 出力に失敗した場合
+     */
+    void appendTo(JsonLogAppender appender, CTX context) throws IOException;
+}
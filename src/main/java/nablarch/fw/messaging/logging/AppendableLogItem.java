@@ -0,0 +1,24 @@
+package nablarch.fw.messaging.logging;
+
+import nablarch.core.log.LogItem;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * 出力内容を文字列として返さずに、出力先のバッファへ直接書き込むことができるログ出力項目。
+ * <p/>
+ * {@link MessagingLogFormatter}は、本インタフェースを実装したログ出力項目について
+ * {@link #get(Object)}の代わりに{@link #appendTo(StringBuilder, Object)}を呼び出す。
+ * 両メソッドの出力内容は同一でなければならない。
+ *
+ * @param <CTX> ログ出力項目の生成に使用するコンテキストの型
+ */
+@Published(tag = "architect")
+public interface AppendableLogItem<CTX> extends LogItem<CTX> {
+
+    /**
+     * ログ出力項目を出力先に書き込む。
+     * @param out 出力先
+     * @param context ログ出力項目の生成に使用するコンテキスト
+     */
+    void appendTo(StringBuilder out, CTX context);
+}
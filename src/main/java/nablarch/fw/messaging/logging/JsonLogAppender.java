@@ -0,0 +1,280 @@
+package nablarch.fw.messaging.logging;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import nablarch.core.text.json.JsonSerializationManager;
+import nablarch.core.util.annotation.Published;
+
+/**
+ * JSON形式のログの項目を出力先のバッファに直接書き込むクラス。
+ * <p/>
+ * {@link nablarch.core.text.json.BasicJsonSerializationManager}と同じ規則で文字列をエスケープし、
+ * 中間の{@link java.util.Map}や文字列を生成せずにバッファへ書き込む。
+ * 文字列、数値以外の値は{@link JsonSerializationManager}から取得したシリアライザで書き込む。
+ * <p/>
+ * 本クラスのインスタンスはスレッド毎に使い回されるため、
+ * {@link AppendableJsonLogObjectBuilder#appendTo(JsonLogAppender, Object)}の外で保持してはならない。
+ *
+ * @see AppendableJsonLogObjectBuilder
+ */
+@Published(tag = "architect")
+public final class JsonLogAppender {
+
+    /** エスケープに使用する16進数表記の文字 */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** 出力先 */
+    private StringBuilder out;
+
+    /** 値の変換に使用する{@link JsonSerializationManager} */
+    private JsonSerializationManager manager;
+
+    /** 値がnullの項目を出力しない場合は{@code true} */
+    private boolean ignoreNullValueMember;
+
+    /** 最初の項目を出力する前の場合は{@code true} */
+    private boolean first;
+
+    /** 出力先に書き込む{@link Writer} */
+    private final Writer writer = new Writer() {
+        @Override
+        public void write(int c) {
+            out.append((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            out.append(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            out.append(str, off, off + len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            out.append(csq);
+            return this;
+        }
+
+        @Override
+        public Writer append(char c) {
+            out.append(c);
+            return this;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /** 文字列をエスケープして出力先に書き込む{@link Appendable} */
+    private final Appendable escaper = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) {
+            appendEscaped(out, csq, 0, csq.length());
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            appendEscaped(out, csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            appendEscaped(out, c);
+            return this;
+        }
+    };
+
+    /**
+     * コンストラクタ。
+     */
+    JsonLogAppender() {
+    }
+
+    /**
+     * 出力先を設定し、初期状態に戻す。
+     * @param out 出力先
+     * @param manager 値の変換に使用する{@link JsonSerializationManager}
+     * @param ignoreNullValueMember 値がnullの項目を出力しない場合は{@code true}
+     */
+    void reset(StringBuilder out, JsonSerializationManager manager, boolean ignoreNullValueMember) {
+        this.out = out;
+        this.manager = manager;
+        this.ignoreNullValueMember = ignoreNullValueMember;
+        this.first = true;
+    }
+
+    /**
+     * 文字列の項目を出力する。
+     * @param name 項目名
+     * @param value 値
+     */
+    public void appendMember(String name, CharSequence value) {
+        if (value == null) {
+            appendNullMember(name);
+            return;
+        }
+        appendName(name);
+        out.append('"');
+        appendEscaped(out, value, 0, value.length());
+        out.append('"');
+    }
+
+    /**
+     * 数値の項目を出力する。
+     * @param name 項目名
+     * @param value 値
+     */
+    public void appendMember(String name, long value) {
+        appendName(name);
+        out.append(value);
+    }
+
+    /**
+     * 任意の値の項目を出力する。
+     * <p/>
+     * 値は{@link JsonSerializationManager}から取得したシリアライザで出力する。
+     * @param name 項目名
+     * @param value 値
+     * @throws IOException 出力に失敗した場合
+     */
+    public void appendMember(String name, Object value) throws IOException {
+        if (value == null) {
+            appendNullMember(name);
+            return;
+        }
+        appendName(name);
+        manager.getSerializer(value).serialize(writer, value);
+    }
+
+    /**
+     * 文字列の項目の出力を開始する。
+     * <p/>
+     * 返却された{@link Appendable}に書き込んだ文字列はエスケープして出力される。
+     * 書き込み終了後は{@link #endStringMember()}を呼び出すこと。
+     * @param name 項目名
+     * @return 値の書き込み先
+     */
+    public Appendable beginStringMember(String name) {
+        appendName(name);
+        out.append('"');
+        return escaper;
+    }
+
+    /**
+     * 文字列の項目の出力を終了する。
+     */
+    public void endStringMember() {
+        out.append('"');
+    }
+
+    /**
+     * 値がエスケープ不要な文字のみで構成される文字列の項目の出力を開始する。
+     * <p/>
+     * 返却されたバッファに値をそのまま書き込む。
+     * 書き込み終了後は{@link #endStringMember()}を呼び出すこと。
+     * @param name 項目名
+     * @return 値の書き込み先
+     */
+    public StringBuilder beginRawStringMember(String name) {
+        appendName(name);
+        out.append('"');
+        return out;
+    }
+
+    /**
+     * 値がnullの項目を出力する。
+     * @param name 項目名
+     */
+    private void appendNullMember(String name) {
+        if (ignoreNullValueMember) {
+            return;
+        }
+        appendName(name);
+        out.append("null");
+    }
+
+    /**
+     * 項目名を出力する。
+     * @param name 項目名
+     */
+    private void appendName(String name) {
+        if (first) {
+            first = false;
+        } else {
+            out.append(',');
+        }
+        out.append('"');
+        appendEscaped(out, name, 0, name.length());
+        out.append('"').append(':');
+    }
+
+    /**
+     * 文字列をJSONの規則に従ってエスケープして出力する。
+     * @param out 出力先
+     * @param value 文字列
+     * @param start 開始位置(この位置を含む)
+     * @param end 終了位置(この位置を含まない)
+     */
+    static void appendEscaped(StringBuilder out, CharSequence value, int start, int end) {
+        int unescaped = start;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\') {
+                out.append(value, unescaped, i);
+                appendEscaped(out, c);
+                unescaped = i + 1;
+            }
+        }
+        out.append(value, unescaped, end);
+    }
+
+    /**
+     * 1文字をJSONの規則に従ってエスケープして出力する。
+     * @param out 出力先
+     * @param c 文字
+     */
+    static void appendEscaped(StringBuilder out, char c) {
+        switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\b':
+                out.append("\\b");
+                break;
+            case '\f':
+                out.append("\\f");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00")
+                       .append(HEX_DIGITS[c >>> 4])
+                       .append(HEX_DIGITS[c & 0x0F]);
+                } else {
+                    out.append(c);
+                }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package nablarch.fw.messaging.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import nablarch.core.ThreadContext;
+import nablarch.core.util.StringUtil;
+import nablarch.core.util.annotation.Published;
+import nablarch.fw.messaging.InterSystemMessage;
+
+/**
+ * メッセージボディのログ出力に関する設定を保持するクラス。
+ * <p/>
+ * 以下の設定を保持する。
+ * <pre>
+ * 1. メッセージボディの最大出力長
+ *   出力するメッセージボディの最大文字数(ヘキサダンプの場合は最大バイト数)。
+ *   0の場合は制限しない。
+ *   ヘキサダンプの最大出力バイト長(messagingLogFormatter.bodyHexMaxBytes)も指定されている場合は、
+ *   ヘキサダンプには両者のうち小さい方を適用する。
+ *
+ * 2. メッセージボディの出力割合(サンプリングレート)
+ *   メッセージボディを出力する電文の割合を0.0～1.0の範囲で指定する。
+ *   リクエストID毎、宛先キュー毎に個別の割合を設定することができる。
+ *   リクエストIDの設定、宛先キューの設定、デフォルトの設定の順に優先される。
+ * </pre>
+ *
+ * 出力対象となるかどうかはメッセージIDから決定的に判定するため、
+ * 同一の電文に対するメッセージボディ、ヘキサダンプの出力有無は常に一致する。
+ * なお、メッセージヘッダやメッセージボディのバイト長などの項目は、本設定によらず常に出力される。
+ * <p/>
+ * 本クラスの設定値は実行中に変更することができる。
+ * 変更した設定値は、以降に出力されるログから反映される。
+ * 実行中に変更する場合は{@link MessagingLogUtil#getMessageBodyLogSettings()}で取得したインスタンスを使用すること。
+ *
+ * @see MessagingLogFormatter
+ */
+@Published(tag = "architect")
+public class MessageBodyLogSettings {
+
+    /** メッセージボディの最大出力長を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_MAX_LENGTH = MessagingLogFormatter.PROPS_PREFIX + "bodyMaxLength";
+
+    /** デフォルトの出力割合を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_SAMPLING_RATE = MessagingLogFormatter.PROPS_PREFIX + "bodySamplingRate";
+
+    /** リクエストID毎の出力割合を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_SAMPLING_RATES_BY_REQUEST_ID
+            = MessagingLogFormatter.PROPS_PREFIX + "bodySamplingRatesByRequestId";
+
+    /** 宛先キュー毎の出力割合を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_SAMPLING_RATES_BY_DESTINATION
+            = MessagingLogFormatter.PROPS_PREFIX + "bodySamplingRatesByDestination";
+
+    /** 多値指定(カンマ区切り)のプロパティを分割する際に使用するパターン */
+    private static final Pattern MULTIVALUE_SEPARATOR_PATTERN = Pattern.compile(",");
+
+    /** キーと値の区切り文字 */
+    private static final char KEY_VALUE_SEPARATOR = ':';
+
+    /** 出力割合の判定に使用する乱数の分解能 */
+    private static final double SAMPLING_RESOLUTION = 1 << 24;
+
+    /** メッセージボディの最大出力長 */
+    private volatile int maxBodyLength = 0;
+
+    /** デフォルトの出力割合 */
+    private volatile double defaultSamplingRate = 1.0;
+
+    /** リクエストID毎の出力割合 */
+    private final Map<String, Double> samplingRatesByRequestId = new ConcurrentHashMap<String, Double>();
+
+    /** 宛先キュー毎の出力割合 */
+    private final Map<String, Double> samplingRatesByDestination = new ConcurrentHashMap<String, Double>();
+
+    /**
+     * デフォルト設定(最大出力長の制限なし、全件出力)でインスタンスを生成する。
+     */
+    public MessageBodyLogSettings() {
+    }
+
+    /**
+     * 各種ログの設定情報からインスタンスを生成する。
+     * <p/>
+     * 以下のプロパティを使用する。
+     * <pre>
+     * messagingLogFormatter.bodyMaxLength                  : メッセージボディの最大出力長
+     * messagingLogFormatter.bodySamplingRate               : デフォルトの出力割合
+     * messagingLogFormatter.bodySamplingRatesByRequestId   : リクエストID毎の出力割合(例: RM11AC0101:0.1,RM11AC0102:0)
+     * messagingLogFormatter.bodySamplingRatesByDestination : 宛先キュー毎の出力割合(例: TEST.REQUEST:0.01)
+     * </pre>
+     * @param props 各種ログの設定情報
+     */
+    public MessageBodyLogSettings(Map<String, String> props) {
+        String maxLength = props.get(PROPS_BODY_MAX_LENGTH);
+        if (!StringUtil.isNullOrEmpty(maxLength)) {
+            setMaxBodyLength(MessagingLogUtil.parseNonNegativeInt(PROPS_BODY_MAX_LENGTH, maxLength));
+        }
+        String rate = props.get(PROPS_BODY_SAMPLING_RATE);
+        if (!StringUtil.isNullOrEmpty(rate)) {
+            setDefaultSamplingRate(parseRate(PROPS_BODY_SAMPLING_RATE, rate));
+        }
+        putSamplingRates(samplingRatesByRequestId, PROPS_BODY_SAMPLING_RATES_BY_REQUEST_ID,
+                         props.get(PROPS_BODY_SAMPLING_RATES_BY_REQUEST_ID));
+        putSamplingRates(samplingRatesByDestination, PROPS_BODY_SAMPLING_RATES_BY_DESTINATION,
+                         props.get(PROPS_BODY_SAMPLING_RATES_BY_DESTINATION));
+    }
+
+    /**
+     * 指定された電文のメッセージボディを出力するか否かを判定する。
+     * <p/>
+     * 実行中のリクエストIDは{@link ThreadContext#getRequestId()}から取得する。
+     *
+     * @param message 電文オブジェクト
+     * @return メッセージボディを出力する場合は{@code true}
+     */
+    public boolean isBodyLoggable(InterSystemMessage<?> message) {
+        double rate = getSamplingRate(ThreadContext.getRequestId(), message.getDestination());
+        if (rate >= 1.0) {
+            return true;
+        }
+        if (rate <= 0.0) {
+            return false;
+        }
+        String messageId = message.getMessageId();
+        int hash = (messageId != null) ? messageId.hashCode() : System.identityHashCode(message);
+        // ハッシュ値の偏りを抑えるため、黄金比に基づく乗数で攪拌した上位ビットを使用する。
+        int mixed = (hash * 0x9E3779B9) >>> 8;
+        return (mixed / SAMPLING_RESOLUTION) < rate;
+    }
+
+    /**
+     * リクエストID、宛先キューに適用される出力割合を取得する。
+     * @param requestId リクエストID
+     * @param destination 宛先キュー名
+     * @return 出力割合
+     */
+    public double getSamplingRate(String requestId, String destination) {
+        if (!samplingRatesByRequestId.isEmpty() && requestId != null) {
+            Double rate = samplingRatesByRequestId.get(requestId);
+            if (rate != null) {
+                return rate;
+            }
+        }
+        if (!samplingRatesByDestination.isEmpty() && destination != null) {
+            Double rate = samplingRatesByDestination.get(destination);
+            if (rate != null) {
+                return rate;
+            }
+        }
+        return defaultSamplingRate;
+    }
+
+    /**
+     * メッセージボディの最大出力長を取得する。
+     * @return メッセージボディの最大出力長(0の場合は制限なし)
+     */
+    public int getMaxBodyLength() {
+        return maxBodyLength;
+    }
+
+    /**
+     * メッセージボディの最大出力長を設定する。
+     * @param maxBodyLength メッセージボディの最大出力長(0の場合は制限なし)
+     */
+    public void setMaxBodyLength(int maxBodyLength) {
+        if (maxBodyLength < 0) {
+            throw new IllegalArgumentException(
+                String.format("maxBodyLength must not be negative. maxBodyLength = [%s]", maxBodyLength));
+        }
+        this.maxBodyLength = maxBodyLength;
+    }
+
+    /**
+     * デフォルトの出力割合を取得する。
+     * @return デフォルトの出力割合
+     */
+    public double getDefaultSamplingRate() {
+        return defaultSamplingRate;
+    }
+
+    /**
+     * デフォルトの出力割合を設定する。
+     * @param rate 出力割合(0.0～1.0)
+     */
+    public void setDefaultSamplingRate(double rate) {
+        this.defaultSamplingRate = checkRate(rate);
+    }
+
+    /**
+     * リクエストID毎の出力割合を設定する。
+     * @param requestId リクエストID
+     * @param rate 出力割合(0.0～1.0)
+     */
+    public void setSamplingRateByRequestId(String requestId, double rate) {
+        samplingRatesByRequestId.put(requestId, checkRate(rate));
+    }
+
+    /**
+     * リクエストID毎の出力割合の設定を削除する。
+     * @param requestId リクエストID
+     */
+    public void removeSamplingRateByRequestId(String requestId) {
+        samplingRatesByRequestId.remove(requestId);
+    }
+
+    /**
+     * 宛先キュー毎の出力割合を設定する。
+     * @param destination 宛先キュー名
+     * @param rate 出力割合(0.0～1.0)
+     */
+    public void setSamplingRateByDestination(String destination, double rate) {
+        samplingRatesByDestination.put(destination, checkRate(rate));
+    }
+
+    /**
+     * 宛先キュー毎の出力割合の設定を削除する。
+     * @param destination 宛先キュー名
+     */
+    public void removeSamplingRateByDestination(String destination) {
+        samplingRatesByDestination.remove(destination);
+    }
+
+    /**
+     * 出力割合が0.0～1.0の範囲であることを確認する。
+     * @param rate 出力割合
+     * @return 出力割合
+     */
+    private static double checkRate(double rate) {
+        if (!(rate >= 0.0 && rate <= 1.0)) {
+            throw new IllegalArgumentException(
+                String.format("sampling rate must be between 0.0 and 1.0. rate = [%s]", rate));
+        }
+        return rate;
+    }
+
+    /**
+     * 「キー:出力割合」形式のカンマ区切りの設定値を解析し、出力割合のマップに設定する。
+     * @param rates 設定先のマップ
+     * @param propName プロパティ名
+     * @param value 設定値
+     */
+    private static void putSamplingRates(Map<String, Double> rates, String propName, String value) {
+        if (StringUtil.isNullOrEmpty(value)) {
+            return;
+        }
+        for (String entry : MULTIVALUE_SEPARATOR_PATTERN.split(value)) {
+            entry = entry.trim();
+            if (entry.length() == 0) {
+                continue;
+            }
+            int separator = entry.lastIndexOf(KEY_VALUE_SEPARATOR);
+            if (separator <= 0) {
+                throw new IllegalArgumentException(
+                    String.format("%s must be specified as 'key:rate'. %s = [%s]", propName, propName, value));
+            }
+            rates.put(entry.substring(0, separator).trim(),
+                      parseRate(propName, entry.substring(separator + 1).trim()));
+        }
+    }
+
+    /**
+     * 出力割合の設定値を解析する。
+     * @param propName プロパティ名
+     * @param value 設定値
+     * @return 出力割合
+     */
+    private static double parseRate(String propName, String value) {
+        try {
+            double rate = Double.parseDouble(value.trim());
+            if (rate >= 0.0 && rate <= 1.0) {
+                return rate;
+            }
+        } catch (NumberFormatException ignored) {
+            // 下で例外を送出する。
+        }
+        throw new IllegalArgumentException(
+            String.format("%s must be between 0.0 and 1.0. %s = [%s]", propName, propName, value));
+    }
+}
@@ -11,6 +11,7 @@ import nablarch.core.util.annotation.Published;
 import nablarch.fw.messaging.ReceivedMessage;
 import nablarch.fw.messaging.SendingMessage;
 
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -51,6 +52,13 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
     /** 出力項目(メッセージヘッダ)の項目名 */
     private static final String TARGET_NAME_MESSAGE_HEADER = "messageHeader";
 
+    /** 構造化済みメッセージのプレフィックスのプロパティ名 */
+    private static final String PROPS_STRUCTURED_MESSAGE_PREFIX = "structuredMessagePrefix";
+    /** デフォルトの構造化済みメッセージのプレフィックス */
+    private static final String DEFAULT_STRUCTURED_MESSAGE_PREFIX = "$JSON$";
+    /** 値がnullの項目を出力しないか否かのプロパティ名 */
+    private static final String PROPS_IGNORE_NULL_VALUE_MEMBER = "ignoreNullValueMember";
+
     /** MOM送信メッセージの出力項目のプロパティ名 */
     private static final String PROPS_SENT_MESSAGE_TARGETS = PROPS_PREFIX + "sentMessageTargets";
     /** MOM受信メッセージの出力項目のプロパティ名 */
@@ -104,6 +112,24 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
     /** 各種ログのJSONフォーマット支援オブジェクト */
     private JsonLogFormatterSupport support;
 
+    /** 変換処理に使用する{@link JsonSerializationManager} */
+    private JsonSerializationManager serializationManager;
+
+    /** 構造化済みメッセージのプレフィックス */
+    private String structuredMessagePrefix;
+
+    /** 値がnullの項目を出力しない場合は{@code true} */
+    private boolean ignoreNullValueMember;
+
+    /** MOM送信メッセージの出力項目をバッファに直接書き込む場合は{@code true} */
+    private boolean sentMessageAppendable;
+    /** MOM受信メッセージの出力項目をバッファに直接書き込む場合は{@code true} */
+    private boolean receivedMessageAppendable;
+    /** HTTP送信メッセージの出力項目をバッファに直接書き込む場合は{@code true} */
+    private boolean httpSentMessageAppendable;
+    /** HTTP受信メッセージの出力項目をバッファに直接書き込む場合は{@code true} */
+    private boolean httpReceivedMessageAppendable;
+
     /**
      * コンストラクタ。
      */
@@ -118,8 +144,10 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      */
     protected void initialize(Map<String, String> props) {
         JsonSerializationSettings settings = new JsonSerializationSettings(props, PROPS_PREFIX, AppLogUtil.getFilePath());
-        JsonSerializationManager serializationManager = createSerializationManager(settings);
+        serializationManager = createSerializationManager(settings);
         support = new JsonLogFormatterSupport(serializationManager, settings);
+        structuredMessagePrefix = getStructuredMessagePrefix(settings);
+        ignoreNullValueMember = isIgnoreNullValueMember(settings);
 
         Map<String, JsonLogObjectBuilder<MessagingLogContext>> objectBuilders = getObjectBuilders(props);
 
@@ -138,6 +166,90 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         String httpReceivedMessageLabel = getProp(props, PROPS_HTTP_RECEIVED_MESSAGE_LABEL, DEFAULT_HTTP_RECEIVED_MESSAGE_LABEL);
         objectBuilders.put(TARGET_NAME_LABEL, new LabelBuilder(httpReceivedMessageLabel));
         httpReceivedMessageTargets = getStructuredTargets(objectBuilders, props, PROPS_HTTP_RECEIVED_MESSAGE_TARGETS, DEFAULT_HTTP_RECEIVED_MESSAGE_TARGETS);
+
+        sentMessageAppendable = isAppendable(sentMessageTargets);
+        receivedMessageAppendable = isAppendable(receivedMessageTargets);
+        httpSentMessageAppendable = isAppendable(httpSentMessageTargets);
+        httpReceivedMessageAppendable = isAppendable(httpReceivedMessageTargets);
+    }
+
+    /**
+     * 構造化済みメッセージのプレフィックスを取得する。
+     * <p/>
+     * {@link JsonLogFormatterSupport}と同じ設定値、デフォルト値を使用する。
+     * @param settings 各種ログ出力の設定情報
+     * @return 構造化済みメッセージのプレフィックス
+     */
+    private String getStructuredMessagePrefix(JsonSerializationSettings settings) {
+        String prefix = settings.getProp(PROPS_STRUCTURED_MESSAGE_PREFIX);
+        return StringUtil.isNullOrEmpty(prefix) ? DEFAULT_STRUCTURED_MESSAGE_PREFIX : prefix;
+    }
+
+    /**
+     * 値がnullの項目を出力しないか否かを取得する。
+     * <p/>
+     * {@link nablarch.core.text.json.MapToJsonSerializer}と同じ設定値、デフォルト値を使用する。
+     * @param settings 各種ログ出力の設定情報
+     * @return 値がnullの項目を出力しない場合は{@code true}
+     */
+    private boolean isIgnoreNullValueMember(JsonSerializationSettings settings) {
+        String ignore = settings.getProp(PROPS_IGNORE_NULL_VALUE_MEMBER);
+        return StringUtil.isNullOrEmpty(ignore) || Boolean.parseBoolean(ignore);
+    }
+
+    /**
+     * 出力項目をバッファに直接書き込むことができるか否かを判定する。
+     * <p/>
+     * 変換処理に{@link BasicJsonSerializationManager}を使用しており、
+     * 出力項目のビルダーがすべて{@link AppendableJsonLogObjectBuilder}を実装している場合に
+     * バッファに直接書き込むことができる。
+     * {@link JsonSerializationManager}を差し替えた場合は、差し替えた実装で変換するため直接書き込まない。
+     * @param targets 出力項目
+     * @return バッファに直接書き込むことができる場合は{@code true}
+     */
+    private boolean isAppendable(List<JsonLogObjectBuilder<MessagingLogContext>> targets) {
+        if (serializationManager.getClass() != BasicJsonSerializationManager.class) {
+            return false;
+        }
+        for (JsonLogObjectBuilder<MessagingLogContext> target : targets) {
+            if (!(target instanceof AppendableJsonLogObjectBuilder)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 出力項目からログ文字列を生成する。
+     * <p/>
+     * バッファに直接書き込むことができる場合は、スレッド毎に使い回すバッファに各項目を書き込む。
+     * それ以外の場合は{@link JsonLogFormatterSupport}で構造化済みメッセージを生成する。
+     * @param targets 出力項目
+     * @param appendable バッファに直接書き込むことができる場合は{@code true}
+     * @param context ログの出力内容
+     * @return ログ文字列
+     */
+    @SuppressWarnings("unchecked")
+    private String format(List<JsonLogObjectBuilder<MessagingLogContext>> targets, boolean appendable,
+                          MessagingLogContext context) {
+        if (!appendable) {
+            return support.getStructuredMessage(targets, context);
+        }
+        MessagingLogBuffers buffers = MessagingLogBuffers.acquire();
+        try {
+            StringBuilder out = buffers.output();
+            out.append(structuredMessagePrefix).append('{');
+            JsonLogAppender appender = buffers.jsonAppender(out, serializationManager, ignoreNullValueMember);
+            for (JsonLogObjectBuilder<MessagingLogContext> target : targets) {
+                ((AppendableJsonLogObjectBuilder<MessagingLogContext>) target).appendTo(appender, context);
+            }
+            out.append('}');
+            return out.toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            buffers.release();
+        }
     }
 
     /**
@@ -168,8 +280,13 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         objectBuilders.put(TARGET_NAME_CORRELATION_ID, new CorrelationIdBuilder());
         objectBuilders.put(TARGET_NAME_REPLY_TO, new ReplyToBuilder());
         objectBuilders.put(TARGET_NAME_TIME_TO_LIVE, new TimeToLiveBuilder());
-        objectBuilders.put(TARGET_NAME_MESSAGE_BODY, new MessageBodyBuilder(maskingChar, maskingPatterns));
-        objectBuilders.put(TARGET_NAME_MESSAGE_BODY_HEX, new MessageBodyHexBuilder(maskingChar, maskingPatterns));
+        MessageBodyLogSettings bodyLogSettings = getMessageBodyLogSettings();
+        objectBuilders.put(TARGET_NAME_MESSAGE_BODY, new MessageBodyBuilder(maskingChar, maskingPatterns,
+                                                                             bodyLogSettings));
+        objectBuilders.put(TARGET_NAME_MESSAGE_BODY_HEX, new MessageBodyHexBuilder(maskingChar, maskingPatterns,
+                                                                                   getBodyHexOffset(props),
+                                                                                   getBodyHexMaxBytes(props),
+                                                                                   bodyLogSettings));
         objectBuilders.put(TARGET_NAME_MESSAGE_BODY_LENGTH, new MessageBodyLengthBuilder());
         objectBuilders.put(TARGET_NAME_MESSAGE_HEADER, new MessageHeaderBuilder());
         
@@ -220,7 +337,7 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      */
     @Override
     public String getSentMessageLog(SendingMessage message) {
-        return support.getStructuredMessage(sentMessageTargets, new MessagingLogContext(message));
+        return format(sentMessageTargets, sentMessageAppendable, new MessagingLogContext(message));
     }
 
     /**
@@ -228,7 +345,7 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      */
     @Override
     public String getReceivedMessageLog(ReceivedMessage message) {
-        return support.getStructuredMessage(receivedMessageTargets, new MessagingLogContext(message));
+        return format(receivedMessageTargets, receivedMessageAppendable, new MessagingLogContext(message));
     }
 
     /**
@@ -236,7 +353,7 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      */
     @Override
     public String getHttpSentMessageLog(SendingMessage message, Charset charset) {
-        return support.getStructuredMessage(httpSentMessageTargets, new MessagingLogContext(message, charset));
+        return format(httpSentMessageTargets, httpSentMessageAppendable, new MessagingLogContext(message, charset));
     }
 
     /**
@@ -244,14 +361,14 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      */
     @Override
     public String getHttpReceivedMessageLog(ReceivedMessage message, Charset charset) {
-        return support.getStructuredMessage(httpReceivedMessageTargets, new MessagingLogContext(message, charset));
+        return format(httpReceivedMessageTargets, httpReceivedMessageAppendable, new MessagingLogContext(message, charset));
     }
 
     /**
      * ラベルを処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class LabelBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class LabelBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         private final String label;
 
@@ -270,13 +387,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_LABEL, label);
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_LABEL, label);
+        }
     }
 
     /**
      * 出力項目(スレッド名)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class ThreadNameBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class ThreadNameBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -285,13 +410,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_THREAD_NAME, Thread.currentThread().getName());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_THREAD_NAME, Thread.currentThread().getName());
+        }
     }
 
     /**
      * 出力項目(メッセージID)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class MessageIdBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class MessageIdBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -300,13 +433,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_MESSAGE_ID, context.getMessage().getMessageId());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_MESSAGE_ID, context.getMessage().getMessageId());
+        }
     }
 
     /**
      * 出力項目(宛先キュー名)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class DestinationBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class DestinationBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -315,13 +456,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_DESTINATION, context.getMessage().getDestination());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_DESTINATION, context.getMessage().getDestination());
+        }
     }
 
     /**
      * 出力項目(関連メッセージID)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class CorrelationIdBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class CorrelationIdBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -330,13 +479,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_CORRELATION_ID, context.getMessage().getCorrelationId());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_CORRELATION_ID, context.getMessage().getCorrelationId());
+        }
     }
 
     /**
      * 出力項目(応答宛先キュー名)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class ReplyToBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class ReplyToBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -345,13 +502,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_REPLY_TO, context.getMessage().getReplyTo());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_REPLY_TO, context.getMessage().getReplyTo());
+        }
     }
 
     /**
      * 出力項目(メッセージ有効期間)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class TimeToLiveBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class TimeToLiveBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -365,13 +530,28 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
                 structuredObject.put(TARGET_NAME_TIME_TO_LIVE, message.getTimeToLive());
             }
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) throws IOException {
+            if (!(context.getMessage() instanceof SendingMessage)) {
+                appender.appendMember(TARGET_NAME_TIME_TO_LIVE, (Object) null);
+            } else {
+                SendingMessage message = (SendingMessage) context.getMessage();
+                appender.appendMember(TARGET_NAME_TIME_TO_LIVE, message.getTimeToLive());
+            }
+        }
     }
 
     /**
      * 出力項目(メッセージボディ内容)を処理するクラス。
+     * <p/>
+     * メッセージボディのログ出力設定で出力対象外と判定された電文の場合は、項目自体を出力しない。
      * @author Shuji Kitamura
      */
-    public static class MessageBodyBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class MessageBodyBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
         private final MessageBody messageBody;
 
         /**
@@ -380,20 +560,48 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
          * @param maskingPatterns マスク対象のパターン
          */
         public MessageBodyBuilder(char maskingChar, Pattern[] maskingPatterns) {
-            messageBody = new MessageBody(maskingChar, maskingPatterns);
+            this(maskingChar, maskingPatterns, null);
+        }
+
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param bodyLogSettings メッセージボディのログ出力設定 (nullの場合は全件を制限なしで出力する)
+         */
+        public MessageBodyBuilder(char maskingChar, Pattern[] maskingPatterns, MessageBodyLogSettings bodyLogSettings) {
+            messageBody = new MessageBody(maskingChar, maskingPatterns, bodyLogSettings);
         }
 
         @Override
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
-            structuredObject.put(TARGET_NAME_MESSAGE_BODY, messageBody.get(context));
+            if (messageBody.isLoggable(context)) {
+                structuredObject.put(TARGET_NAME_MESSAGE_BODY, messageBody.get(context));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * マスク処理、エスケープ処理を行いながら出力先に直接書き込む。
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) throws IOException {
+            if (messageBody.isLoggable(context)) {
+                Appendable out = appender.beginStringMember(TARGET_NAME_MESSAGE_BODY);
+                messageBody.appendBodyTo(out, context);
+                appender.endStringMember();
+            }
         }
     }
 
     /**
      * 出力項目(メッセージボディ内容)を処理するクラス。
+     * <p/>
+     * メッセージボディのログ出力設定で出力対象外と判定された電文の場合は、項目自体を出力しない。
      * @author Shuji Kitamura
      */
-    public static class MessageBodyHexBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class MessageBodyHexBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
         private final MessageBodyHex messageBodyHex;
 
         /**
@@ -402,12 +610,51 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
          * @param maskingPatterns マスク対象のパターン
          */
         public MessageBodyHexBuilder(char maskingChar, Pattern[] maskingPatterns) {
-            messageBodyHex = new MessageBodyHex(maskingChar, maskingPatterns);
+            this(maskingChar, maskingPatterns, 0, 0);
+        }
+
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param offset 出力を開始するバイト位置
+         * @param maxBytes 最大出力バイト長 (0以下の場合は制限しない)
+         */
+        public MessageBodyHexBuilder(char maskingChar, Pattern[] maskingPatterns, int offset, int maxBytes) {
+            this(maskingChar, maskingPatterns, offset, maxBytes, null);
+        }
+
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param offset 出力を開始するバイト位置
+         * @param maxBytes 最大出力バイト長 (0以下の場合は制限しない)
+         * @param bodyLogSettings メッセージボディのログ出力設定 (nullの場合は全件を制限なしで出力する)
+         */
+        public MessageBodyHexBuilder(char maskingChar, Pattern[] maskingPatterns, int offset, int maxBytes,
+                                     MessageBodyLogSettings bodyLogSettings) {
+            messageBodyHex = new MessageBodyHex(maskingChar, maskingPatterns, offset, maxBytes, bodyLogSettings);
         }
 
         @Override
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
-            structuredObject.put(TARGET_NAME_MESSAGE_BODY_HEX, messageBodyHex.get(context));
+            if (messageBodyHex.isLoggable(context)) {
+                structuredObject.put(TARGET_NAME_MESSAGE_BODY_HEX, messageBodyHex.get(context));
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * ヘキサダンプはエスケープ不要な文字のみで構成されるため、出力先に直接書き込む。
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            if (messageBodyHex.isLoggable(context)) {
+                messageBodyHex.appendTo(appender.beginRawStringMember(TARGET_NAME_MESSAGE_BODY_HEX), context);
+                appender.endStringMember();
+            }
         }
     }
 
@@ -415,7 +662,7 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
      * 出力項目(メッセージボディバイト長)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class MessageBodyLengthBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class MessageBodyLengthBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -424,13 +671,21 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_MESSAGE_BODY_LENGTH, context.getMessage().getBodyBytes().length);
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) {
+            appender.appendMember(TARGET_NAME_MESSAGE_BODY_LENGTH, context.getMessage().getBodyBytes().length);
+        }
     }
 
     /**
      * 出力項目(メッセージヘッダ)を処理するクラス。
      * @author Shuji Kitamura
      */
-    public static class MessageHeaderBuilder implements JsonLogObjectBuilder<MessagingLogContext> {
+    public static class MessageHeaderBuilder implements AppendableJsonLogObjectBuilder<MessagingLogContext> {
 
         /**
          * {@inheritDoc}
@@ -439,5 +694,13 @@ public class MessagingJsonLogFormatter extends MessagingLogFormatter {
         public void build(Map<String, Object> structuredObject, MessagingLogContext context) {
             structuredObject.put(TARGET_NAME_MESSAGE_HEADER, context.getMessage().getHeaderMap());
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void appendTo(JsonLogAppender appender, MessagingLogContext context) throws IOException {
+            appender.appendMember(TARGET_NAME_MESSAGE_HEADER, (Object) context.getMessage().getHeaderMap());
+        }
     }
 }
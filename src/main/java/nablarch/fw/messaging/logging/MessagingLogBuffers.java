@@ -0,0 +1,255 @@
+package nablarch.fw.messaging.logging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.core.text.json.JsonSerializationManager;
+import nablarch.fw.messaging.VirtualThreads;
+
+/**
+ * メッセージングログの出力内容を組み立てる際に使用するバッファをスレッド毎に保持するクラス。
+ * <p/>
+ * ログ1行の出力のたびに一時オブジェクトを生成しないよう、各種バッファを使い回す。
+ * バッファは{@link #acquire()}で取得し、使用後は必ずfinallyブロックで{@link #release()}を呼び出すこと。
+ * 同じスレッドで入れ子に取得した場合(ログ1行の組み立て中に各出力項目が取得する場合など)は同じインスタンスを返し、
+ * 最も外側の{@link #release()}で解放する。
+ * <p/>
+ * 解放時には、大きな電文を出力した後にバッファを保持し続けないよう、一定サイズを超えたバッファを破棄する。
+ * <p/>
+ * 仮想スレッドはログ1行の出力ごとに生成されることが多く、スレッド毎にバッファを保持しても使い回されない。
+ * このため、仮想スレッドでは全スレッドで共有するプールからバッファを取得し、
+ * 解放時にカレントスレッドとの紐付けを解除してプールに返却する。
+ */
+final class MessagingLogBuffers {
+
+    /** バッファの初期サイズ */
+    private static final int INITIAL_CAPACITY = 512;
+
+    /** 使い回す対象とするバッファの最大サイズ */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    /** 仮想スレッド用のプールに保持するバッファの最大数 */
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+
+    /** スレッド毎のバッファ */
+    private static final ThreadLocal<MessagingLogBuffers> BUFFERS = new ThreadLocal<MessagingLogBuffers>();
+
+    /** 仮想スレッド用のバッファのプール */
+    private static final Queue<MessagingLogBuffers> POOL = new ConcurrentLinkedQueue<MessagingLogBuffers>();
+
+    /** 仮想スレッド用のプールに保持しているバッファの数 */
+    private static final AtomicInteger POOLED_COUNT = new AtomicInteger();
+
+    /** 仮想スレッド用のプールから取得したバッファか否か */
+    private boolean pooled;
+
+    /** 取得の入れ子の深さ */
+    private int depth = 0;
+
+    /** ログ出力内容のバッファ */
+    private StringBuilder output = new StringBuilder(INITIAL_CAPACITY);
+
+    /**
+     * マスク処理の途中結果を保持するバッファ。
+     * 0と1はマスク処理の途中結果、2はマスク処理の最終結果の保持に使用する。
+     */
+    private final StringBuilder[] scratch = {
+        new StringBuilder(INITIAL_CAPACITY), new StringBuilder(INITIAL_CAPACITY), new StringBuilder(INITIAL_CAPACITY)
+    };
+
+    /** メッセージボディの復号結果を保持するバッファ */
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+    /** マスク済みのメッセージボディの符号化結果を保持するバッファ */
+    private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+    /** 直前に使用したデコーダ */
+    private CharsetDecoder decoder;
+
+    /** 直前に使用したエンコーダ */
+    private CharsetEncoder encoder;
+
+    /** JSON形式の出力に使用するオブジェクト */
+    private JsonLogAppender jsonAppender;
+
+    /** 隠蔽コンストラクタ */
+    private MessagingLogBuffers() {
+    }
+
+    /**
+     * 現在のスレッドに紐付くバッファを取得する。
+     * <p/>
+     * 使用後は{@link #release()}を呼び出すこと。
+     * @return バッファ
+     */
+    static MessagingLogBuffers acquire() {
+        MessagingLogBuffers buffers = BUFFERS.get();
+        if (buffers == null) {
+            if (VirtualThreads.isVirtual(Thread.currentThread())) {
+                buffers = POOL.poll();
+                if (buffers != null) {
+                    POOLED_COUNT.decrementAndGet();
+                } else {
+                    buffers = new MessagingLogBuffers();
+                }
+                buffers.pooled = true;
+            } else {
+                buffers = new MessagingLogBuffers();
+            }
+            BUFFERS.set(buffers);
+        }
+        buffers.depth++;
+        return buffers;
+    }
+
+    /**
+     * 現在のスレッドが、解放されていないバッファを保持しているか否かを返す。
+     * @return 解放されていないバッファを保持している場合は{@code true}
+     */
+    static boolean isAcquired() {
+        MessagingLogBuffers buffers = BUFFERS.get();
+        return buffers != null && buffers.depth > 0;
+    }
+
+    /**
+     * 空にしたログ出力内容のバッファを取得する。
+     * @return ログ出力内容のバッファ
+     */
+    StringBuilder output() {
+        output.setLength(0);
+        return output;
+    }
+
+    /**
+     * 空にしたマスク処理用のバッファを取得する。
+     * @param index バッファの番号(0～2)
+     * @return マスク処理用のバッファ
+     */
+    StringBuilder scratch(int index) {
+        StringBuilder buffer = scratch[index];
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * JSON形式の出力に使用するオブジェクトを取得する。
+     * @param out 出力先
+     * @param manager {@link JsonSerializationManager}
+     * @param ignoreNullValueMember 値がnullの項目を出力しない場合は{@code true}
+     * @return JSON形式の出力に使用するオブジェクト
+     */
+    JsonLogAppender jsonAppender(StringBuilder out, JsonSerializationManager manager, boolean ignoreNullValueMember) {
+        if (jsonAppender == null) {
+            jsonAppender = new JsonLogAppender();
+        }
+        jsonAppender.reset(out, manager, ignoreNullValueMember);
+        return jsonAppender;
+    }
+
+    /**
+     * バイト列を指定された文字セットで復号する。
+     * <p/>
+     * 不正なバイト列は置換文字に置き換える({@link String#String(byte[], int, int, Charset)}と同じ動作)。
+     * 返却するバッファは次回の呼び出しで上書きされる。
+     *
+     * @param src 復号対象のバイト列
+     * @param offset 復号を開始する位置
+     * @param length 復号するバイト長
+     * @param charset 文字セット
+     * @return 復号結果(読み取り可能な状態のバッファ)
+     */
+    CharBuffer decode(byte[] src, int offset, int length, Charset charset) {
+        if (decoder == null || !decoder.charset().equals(charset)) {
+            decoder = charset.newDecoder()
+                             .onMalformedInput(CodingErrorAction.REPLACE)
+                             .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        int required = (int) Math.ceil(length * (double) decoder.maxCharsPerByte()) + 1;
+        if (chars.capacity() < required) {
+            chars = CharBuffer.allocate(required);
+        }
+        chars.clear();
+        decoder.reset();
+        ByteBuffer in = ByteBuffer.wrap(src, offset, length);
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * 文字列を指定された文字セットで符号化する。
+     * <p/>
+     * 符号化できない文字は置換バイトに置き換える({@link String#getBytes(Charset)}と同じ動作)。
+     * 返却するバッファは次回の呼び出しで上書きされる。
+     *
+     * @param src 符号化対象の文字列
+     * @param charset 文字セット
+     * @return 符号化結果(読み取り可能な状態のバッファ)
+     */
+    ByteBuffer encode(CharSequence src, Charset charset) {
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                             .onMalformedInput(CodingErrorAction.REPLACE)
+                             .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        int required = (int) Math.ceil(src.length() * (double) encoder.maxBytesPerChar()) + 16;
+        if (bytes.capacity() < required) {
+            bytes = ByteBuffer.allocate(required);
+        }
+        bytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(src), bytes, true);
+        encoder.flush(bytes);
+        bytes.flip();
+        return bytes;
+    }
+
+    /**
+     * {@link #acquire()}で取得したバッファを解放する。
+     * <p/>
+     * 最も外側の取得に対する解放の場合は、一定サイズを超えたバッファを破棄し、初期サイズのバッファに置き換える。
+     * また、仮想スレッド用のプールから取得したバッファの場合は、カレントスレッドとの紐付けを解除し、プールに返却する。
+     */
+    void release() {
+        if (--depth > 0) {
+            return;
+        }
+        trim();
+        if (pooled) {
+            BUFFERS.remove();
+            if (POOLED_COUNT.incrementAndGet() <= MAX_POOLED) {
+                POOL.offer(this);
+            } else {
+                POOLED_COUNT.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 一定サイズを超えたバッファを破棄し、初期サイズのバッファに置き換える。
+     */
+    private void trim() {
+        if (output.capacity() > MAX_RETAINED_CAPACITY) {
+            output = new StringBuilder(INITIAL_CAPACITY);
+        }
+        for (int i = 0; i < scratch.length; i++) {
+            if (scratch[i].capacity() > MAX_RETAINED_CAPACITY) {
+                scratch[i] = new StringBuilder(INITIAL_CAPACITY);
+            }
+        }
+        if (chars.capacity() > MAX_RETAINED_CAPACITY) {
+            chars = CharBuffer.allocate(INITIAL_CAPACITY);
+        }
+        if (bytes.capacity() > MAX_RETAINED_CAPACITY) {
+            bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    }
+}
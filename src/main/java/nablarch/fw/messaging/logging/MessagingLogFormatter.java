@@ -1,6 +1,7 @@
 package nablarch.fw.messaging.logging;
 
-import java.math.BigInteger;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -44,6 +45,7 @@ import nablarch.fw.messaging.SendingMessage;
  *   - メッセージボディのヘキサダンプ
  *   
  *   ※メッセージボディに含まれる個人情報や機密情報はマスクして出力することが可能である(マスク用の設定が必要)
+ *   ※メッセージボディの最大出力長、出力割合を設定することが可能である({@link MessageBodyLogSettings}を参照)
  *   
  * 3. MOM固有プロトコルヘッダ(以下はJmsMessagingProviderの場合)
  *     JMSType
@@ -81,12 +83,21 @@ public class MessagingLogFormatter {
     /** デフォルトのマスク対象のパターン */
     private static final Pattern[] DEFAULT_MASKING_PATTERNS = new Pattern[0];
 
+    /** ヘキサダンプの出力を開始するバイト位置を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_HEX_OFFSET = PROPS_PREFIX + "bodyHexOffset";
+
+    /** ヘキサダンプの最大出力バイト長を取得する際に使用するプロパティ名 */
+    private static final String PROPS_BODY_HEX_MAX_BYTES = PROPS_PREFIX + "bodyHexMaxBytes";
+
     /** 多値指定(カンマ区切り)のプロパティを分割する際に使用するパターン */
     private static final Pattern MULTIVALUE_SEPARATOR_PATTERN = Pattern.compile(",");
 
     /** プロパティ */
     private Map<String, String> props = AppLogUtil.getProps();
     
+    /** メッセージボディのログ出力設定 */
+    private final MessageBodyLogSettings bodyLogSettings = createMessageBodyLogSettings(props);
+    
     /** ログ出力項目  */
     private Map<String, LogItem<MessagingLogContext>> logItems = getLogItems();
 
@@ -97,7 +108,7 @@ public class MessagingLogFormatter {
      * @return ログ文字列
      */
     public String getSentMessageLog(SendingMessage message) {
-        return LogUtil.formatMessage(
+        return formatMessage(
             sentMessageLogItems, new MessagingLogContext(message)
         );
     }
@@ -132,7 +143,7 @@ public class MessagingLogFormatter {
      * @return ログ文字列
      */
     public String getReceivedMessageLog(ReceivedMessage message) {
-        return LogUtil.formatMessage(
+        return formatMessage(
             receivedMessageLogItems, new MessagingLogContext(message)
         );
     }
@@ -166,7 +177,7 @@ public class MessagingLogFormatter {
      * @return ログ文字列
      */
     public String getHttpSentMessageLog(SendingMessage message, Charset charset) {
-        return LogUtil.formatMessage(
+        return formatMessage(
             httpSentMessageLogItems, new MessagingLogContext(message, charset)
         );
     }
@@ -201,7 +212,7 @@ public class MessagingLogFormatter {
      * @return ログ文字列
      */
     public String getHttpReceivedMessageLog(ReceivedMessage message, Charset charset) {
-        return LogUtil.formatMessage(
+        return formatMessage(
             httpReceivedMessageLogItems, new MessagingLogContext(message, charset)
         );
     }
@@ -228,6 +239,34 @@ public class MessagingLogFormatter {
         + "\n\tmessage_header = [$messageHeader$]"
         + "\n\tmessage_body   = [$messageBody$]";
     
+    /**
+     * ログ出力項目を使用してログ文字列を生成する。
+     * <p/>
+     * スレッド毎に使い回すバッファに各項目を書き込み、ログ文字列を生成する。
+     * {@link AppendableLogItem}を実装したログ出力項目は、文字列を生成せずにバッファに直接書き込む。
+     * 
+     * @param logItems ログ出力項目
+     * @param ctx ログの出力内容
+     * @return ログ文字列
+     */
+    @SuppressWarnings("unchecked")
+    protected String formatMessage(LogItem<MessagingLogContext>[] logItems, MessagingLogContext ctx) {
+        MessagingLogBuffers buffers = MessagingLogBuffers.acquire();
+        try {
+            StringBuilder out = buffers.output();
+            for (LogItem<MessagingLogContext> logItem : logItems) {
+                if (logItem instanceof AppendableLogItem) {
+                    ((AppendableLogItem<MessagingLogContext>) logItem).appendTo(out, ctx);
+                } else {
+                    out.append(logItem.get(ctx));
+                }
+            }
+            return out.toString();
+        } finally {
+            buffers.release();
+        }
+    }
+    
     /**
      * フォーマット済みのログ出力項目を取得する。
      * @param logItems フォーマット対象のログ出力項目
@@ -263,8 +302,11 @@ public class MessagingLogFormatter {
         logItems.put("$timeToLive$",        new TimeToLive());
         char maskingChar = getMaskingChar(props);
         Pattern[] bodyMaskingPatterns = getBodyMaskingPatterns(props);
-        logItems.put("$messageBody$",       new MessageBody(maskingChar, bodyMaskingPatterns));
-        logItems.put("$messageBodyHex$",    new MessageBodyHex(maskingChar, bodyMaskingPatterns));
+        logItems.put("$messageBody$",       new MessageBody(maskingChar, bodyMaskingPatterns, bodyLogSettings));
+        logItems.put("$messageBodyHex$",    new MessageBodyHex(maskingChar, bodyMaskingPatterns,
+                                                               getBodyHexOffset(props),
+                                                               getBodyHexMaxBytes(props),
+                                                               bodyLogSettings));
         logItems.put("$messageBodyLength$", new MessageBodyLength());
         logItems.put("$messageHeader$",     new MessageHeader());
         return logItems;
@@ -284,6 +326,63 @@ public class MessagingLogFormatter {
         return maskingChar.charAt(0);
     }
     
+    /**
+     * メッセージボディのログ出力設定を生成する。
+     * @param props 各種ログの設定情報
+     * @return メッセージボディのログ出力設定
+     */
+    protected MessageBodyLogSettings createMessageBodyLogSettings(Map<String, String> props) {
+        return new MessageBodyLogSettings(props);
+    }
+    
+    /**
+     * メッセージボディのログ出力設定を取得する。
+     * <p/>
+     * 取得したインスタンスの設定値を変更すると、以降のログ出力に反映される。
+     * @return メッセージボディのログ出力設定
+     */
+    public MessageBodyLogSettings getMessageBodyLogSettings() {
+        return bodyLogSettings;
+    }
+    
+    /**
+     * ヘキサダンプの出力を開始するバイト位置を取得する。<br>
+     * プロパティの指定がない場合は0(先頭から出力)を返す。
+     * @param props 各種ログの設定情報
+     * @return ヘキサダンプの出力を開始するバイト位置
+     */
+    protected int getBodyHexOffset(Map<String, String> props) {
+        return getNonNegativeIntProp(props, PROPS_BODY_HEX_OFFSET);
+    }
+
+    /**
+     * ヘキサダンプの最大出力バイト長を取得する。<br>
+     * プロパティの指定がない場合は0(制限なし)を返す。
+     * <p/>
+     * メッセージボディの最大出力長({@link MessageBodyLogSettings#getMaxBodyLength()})も指定されている場合は、
+     * 両者のうち小さい方をヘキサダンプの最大出力バイト長とする。
+     * @param props 各種ログの設定情報
+     * @return ヘキサダンプの最大出力バイト長
+     */
+    protected int getBodyHexMaxBytes(Map<String, String> props) {
+        return getNonNegativeIntProp(props, PROPS_BODY_HEX_MAX_BYTES);
+    }
+
+    /**
+     * 0以上の整数値のプロパティを取得する。<br>
+     * プロパティの指定がない場合は0を返す。
+     * @param props 各種ログの設定情報
+     * @param propName プロパティ名
+     * @return プロパティの値
+     */
+    private int getNonNegativeIntProp(Map<String, String> props, String propName) {
+        String value = props.get(propName);
+        if (StringUtil.isNullOrEmpty(value)) {
+            return 0;
+        }
+        return MessagingLogUtil.parseNonNegativeInt(propName, value);
+    }
+
     /**
      * 本文のマスク対象のパラメータ名を取得する。<br>
      * プロパティの指定がない場合はデフォルト値を返す。
@@ -368,47 +467,72 @@ public class MessagingLogFormatter {
     }
     
     /** 出力項目(スレッド名) */
-    public static class ThreadName implements LogItem<MessagingLogContext> {
+    public static class ThreadName implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return Thread.currentThread().getName();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(Thread.currentThread().getName());
+        }
     }
     
     /** 出力項目(メッセージID) */
-    public static class MessageId implements LogItem<MessagingLogContext> {
+    public static class MessageId implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return ctx.getMessage().getMessageId();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(ctx.getMessage().getMessageId());
+        }
     }
     
     /** 出力項目(宛先キュー名) */
-    public static class Destination implements LogItem<MessagingLogContext> {
+    public static class Destination implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return ctx.getMessage().getDestination();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(ctx.getMessage().getDestination());
+        }
     }
     
     /** 出力項目(関連メッセージID) */
-    public static class CorrelationId implements LogItem<MessagingLogContext> {
+    public static class CorrelationId implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return ctx.getMessage().getCorrelationId();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(ctx.getMessage().getCorrelationId());
+        }
     }
     
     /** 出力項目(応答宛先キュー名) */
-    public static class ReplyTo implements LogItem<MessagingLogContext> {
+    public static class ReplyTo implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return ctx.getMessage().getReplyTo();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(ctx.getMessage().getReplyTo());
+        }
     }
     
     /** 出力項目(メッセージ有効期間) */
-    public static class TimeToLive implements LogItem<MessagingLogContext> {
+    public static class TimeToLive implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             if (!(ctx.getMessage() instanceof SendingMessage)) {
@@ -417,14 +541,28 @@ public class MessagingLogFormatter {
             SendingMessage message = (SendingMessage) ctx.getMessage();
             return Long.toString(message.getTimeToLive());
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            if (!(ctx.getMessage() instanceof SendingMessage)) {
+                out.append('-');
+                return;
+            }
+            out.append(((SendingMessage) ctx.getMessage()).getTimeToLive());
+        }
     }
     
     /** 出力項目(メッセージボディバイト長) */
-    public static class MessageBodyLength implements LogItem<MessagingLogContext> {
+    public static class MessageBodyLength implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */
         public String get(MessagingLogContext ctx) {
             return Integer.toString(ctx.getMessage().getBodyBytes().length);
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            out.append(ctx.getMessage().getBodyBytes().length);
+        }
     }
 
     /**
@@ -434,12 +572,21 @@ public class MessagingLogFormatter {
      * このため、データタイプ P/B のフィールド部分は文字化けする。
      * 
      * また、マスク対象パターンが設定されている場合、該当箇所がマスクされて出力される。
+     * <p/>
+     * メッセージボディのログ出力設定が指定されている場合、
+     * 出力対象外と判定された電文は空文字を出力し、出力対象の電文は最大出力長で切り詰めて出力する。
+     * 切り詰めはマスク処理の後に行う。
+     * <p/>
+     * 復号結果やマスク処理の途中結果はスレッド毎のバッファに保持し、
+     * マスク処理の最後の段階で出力先に直接書き込む。
      */
-    public static class MessageBody implements LogItem<MessagingLogContext> {
+    public static class MessageBody implements AppendableLogItem<MessagingLogContext> {
         /** マスク文字 */
         private char maskingChar;
         /** マスク対象のパターン */
         private Pattern[] maskingPatterns;
+        /** メッセージボディのログ出力設定 */
+        private final MessageBodyLogSettings bodyLogSettings;
         
         /**
          * コンストラクタ。
@@ -447,12 +594,95 @@ public class MessagingLogFormatter {
          * @param maskingPatterns マスク対象のパターン
          */
         public MessageBody(char maskingChar, Pattern[] maskingPatterns) {
+            this(maskingChar, maskingPatterns, null);
+        }
+        
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param bodyLogSettings メッセージボディのログ出力設定 (nullの場合は全件を制限なしで出力する)
+         */
+        public MessageBody(char maskingChar, Pattern[] maskingPatterns, MessageBodyLogSettings bodyLogSettings) {
             this.maskingPatterns = maskingPatterns;
             this.maskingChar = maskingChar;
+            this.bodyLogSettings = bodyLogSettings;
         }
         
         /** {@inheritDoc} */ 
         public String get(MessagingLogContext ctx) {
+            StringBuilder out = new StringBuilder();
+            appendTo(out, ctx);
+            return out.toString();
+        }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            try {
+                appendBodyTo(out, ctx);
+            } catch (IOException e) {
+                // StringBuilderへの書き込みでは発生しない。
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        /**
+         * マスク処理後のメッセージボディを出力先に書き込む。
+         * @param out 出力先
+         * @param ctx ログの出力内容
+         * @throws IOException 出力先への書き込みに失敗した場合
+         */
+        protected void appendBodyTo(Appendable out, MessagingLogContext ctx) throws IOException {
+            if (!isLoggable(ctx)) {
+                return;
+            }
+            int maxLength = getMaxBodyLength();
+            MessagingLogBuffers buffers = MessagingLogBuffers.acquire();
+            try {
+                CharSequence bodyText = decodeBody(ctx, maxLength, buffers);
+                appendMasked(out, bodyText, buffers, maxLength > 0 ? maxLength : -1);
+            } finally {
+                buffers.release();
+            }
+        }
+        
+        /**
+         * メッセージボディを出力対象とするか否かを判定する。
+         * @param ctx ログの出力内容
+         * @return 出力対象の場合は{@code true}
+         */
+        public boolean isLoggable(MessagingLogContext ctx) {
+            return bodyLogSettings == null || bodyLogSettings.isBodyLoggable(ctx.getMessage());
+        }
+        
+        /**
+         * メッセージボディの最大出力長を取得する。
+         * @return メッセージボディの最大出力長 (0の場合は制限なし)
+         */
+        protected int getMaxBodyLength() {
+            return (bodyLogSettings == null) ? 0 : bodyLogSettings.getMaxBodyLength();
+        }
+        
+        /**
+         * マスク対象パターンが設定されているか否か。
+         * @return マスク対象パターンが設定されている場合は{@code true}
+         */
+        protected boolean hasMaskingPatterns() {
+            return maskingPatterns.length > 0;
+        }
+        
+        /**
+         * メッセージボディを文字列に復号する。
+         * <p/>
+         * マスク対象パターンが設定されておらず、出力文字数の上限が指定されている場合は、
+         * 上限の文字数を確実に含む範囲のバイト列のみを復号する。
+         * 
+         * @param ctx ログの出力内容
+         * @param maxLength 出力文字数の上限 (0の場合は制限なし)
+         * @param buffers 復号に使用するバッファ
+         * @return 復号結果
+         */
+        private CharSequence decodeBody(MessagingLogContext ctx, int maxLength, MessagingLogBuffers buffers) {
             InterSystemMessage<?> message = ctx.getMessage();
             
             Charset charset = ctx.getCharset();
@@ -461,7 +691,29 @@ public class MessagingLogFormatter {
             }
             byte[] bodyBytes = message.getBodyBytes();
             
-            return maskBodyText(new String(bodyBytes, charset));
+            int length = bodyBytes.length;
+            if (maxLength > 0 && maskingPatterns.length == 0 && charset.canEncode()) {
+                long bytesForMaxLength = (long) Math.ceil(charset.newEncoder().maxBytesPerChar()) * maxLength;
+                if (bytesForMaxLength < length) {
+                    length = (int) bytesForMaxLength;
+                }
+            }
+            return buffers.decode(bodyBytes, 0, length, charset);
+        }
+        
+        /**
+         * マスク処理後のメッセージボディの文字列をバッファに書き込む。
+         * @param ctx ログの出力内容
+         * @param buffers 使用するバッファ
+         * @param out 出力先のバッファ
+         */
+        void appendMaskedBodyText(MessagingLogContext ctx, MessagingLogBuffers buffers, StringBuilder out) {
+            try {
+                appendMasked(out, decodeBody(ctx, 0, buffers), buffers, -1);
+            } catch (IOException e) {
+                // StringBuilderへの書き込みでは発生しない。
+                throw new IllegalStateException(e);
+            }
         }
         
         /**
@@ -483,29 +735,86 @@ public class MessagingLogFormatter {
         }
         
         /**
-         * マスキングパターンに従い、メッセージ本文のマスク処理を行う。
+         * マスキングパターンに従い、メッセージ本文のマスク処理を行い出力先に書き込む。
+         * <p/>
+         * 最後のパターン以外の処理結果はバッファに書き込み、
+         * 最後のパターンの処理結果を出力先に直接書き込む。
+         * 
+         * @param out 出力先
          * @param bodyText メッセージ本文
-         * @return マスク済みのメッセージ本文
+         * @param buffers マスク処理の途中結果を保持するバッファ
+         * @param limit 出力文字数の上限 (負数の場合は制限なし)
+         * @throws IOException 出力先への書き込みに失敗した場合
          */
-        private String maskBodyText(String bodyText) {
-            for (Pattern p : maskingPatterns) {
-                StringBuilder sb = new StringBuilder();
-                
-                Matcher m = p.matcher(bodyText);
-                int lastEnd = 0;
-                while (m.find(lastEnd)) {
-                    int start = m.start(1);
-                    int end = m.end(1);
-                    sb.append(bodyText.substring(lastEnd, start));
-                    sb.append(StringUtil.repeat(maskingChar, (end - start)));
-                    lastEnd = end;
+        private void appendMasked(Appendable out, CharSequence bodyText, MessagingLogBuffers buffers, int limit)
+                throws IOException {
+            CharSequence current = bodyText;
+            int last = maskingPatterns.length - 1;
+            for (int i = 0; i < last; i++) {
+                StringBuilder next = buffers.scratch(i % 2);
+                mask(next, current, maskingPatterns[i], -1);
+                current = next;
+            }
+            if (last < 0) {
+                appendLimited(out, current, 0, current.length(), limit);
+            } else {
+                mask(out, current, maskingPatterns[last], limit);
+            }
+        }
+        
+        /**
+         * 1つのマスキングパターンに従い、マスク処理を行い出力先に書き込む。
+         * @param out 出力先
+         * @param bodyText メッセージ本文
+         * @param pattern マスキングパターン
+         * @param limit 出力文字数の上限 (負数の場合は制限なし)
+         * @throws IOException 出力先への書き込みに失敗した場合
+         */
+        private void mask(Appendable out, CharSequence bodyText, Pattern pattern, int limit) throws IOException {
+            Matcher m = pattern.matcher(bodyText);
+            int lastEnd = 0;
+            while (limit != 0 && m.find(lastEnd)) {
+                int start = m.start(1);
+                int end = m.end(1);
+                limit = appendLimited(out, bodyText, lastEnd, start, limit);
+                for (int i = start; i < end && limit != 0; i++) {
+                    out.append(maskingChar);
+                    limit = (limit > 0) ? limit - 1 : limit;
                 }
-                sb.append(bodyText.substring(lastEnd));
-                
-                bodyText = sb.toString();
+                lastEnd = end;
             }
-            
-            return bodyText;
+            appendLimited(out, bodyText, lastEnd, bodyText.length(), limit);
+        }
+        
+        /**
+         * 出力文字数の上限の範囲で文字列を出力先に書き込む。
+         * <p/>
+         * サロゲートペアが分断される場合は、その直前までを書き込む。
+         * @param out 出力先
+         * @param text 文字列
+         * @param start 開始位置(この位置を含む)
+         * @param end 終了位置(この位置を含まない)
+         * @param limit 出力文字数の上限 (負数の場合は制限なし)
+         * @return 残りの出力可能な文字数 (負数の場合は制限なし)
+         * @throws IOException 出力先への書き込みに失敗した場合
+         */
+        private static int appendLimited(Appendable out, CharSequence text, int start, int end, int limit)
+                throws IOException {
+            if (limit < 0) {
+                out.append(text, start, end);
+                return limit;
+            }
+            int length = end - start;
+            if (length <= limit) {
+                out.append(text, start, end);
+                return limit - length;
+            }
+            int writable = limit;
+            if (writable > 0 && Character.isHighSurrogate(text.charAt(start + writable - 1))) {
+                writable--;
+            }
+            out.append(text, start, start + writable);
+            return 0;
         }
     }
     
@@ -515,41 +824,172 @@ public class MessagingLogFormatter {
      * メッセージボディのヘキサダンプを出力する。
      * 
      * また、マスク対象パターンが設定されている場合、該当箇所がマスクされた後のヘキサダンプが出力される。
+     * <p/>
+     * 出力範囲(開始バイト位置および最大バイト長)を指定した場合は、
+     * その範囲に含まれるバイトのみを出力する。
+     * メッセージボディのログ出力設定の最大出力長はバイト数として扱い、
+     * 最大バイト長と両方指定された場合は小さい方を適用する。
+     * いずれの上限も、開始バイト位置から数えたバイト数に適用する。
+     * (例: 開始バイト位置が10、最大バイト長が100、最大出力長が50の場合は、10バイト目から50バイトを出力する。)
      */
     public static class MessageBodyHex extends MessageBody {
         
+        /** 16進数表記に使用する文字の変換テーブル */
+        private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+        
+        /** 出力を開始するバイト位置 */
+        private final int offset;
+        
+        /** 最大出力バイト長 (0以下の場合は制限しない) */
+        private final int maxBytes;
+        
         /**
          * コンストラクタ。
          * @param maskingChar マスク文字
          * @param maskingPatterns マスク対象のパターン
          */
         public MessageBodyHex(char maskingChar, Pattern[] maskingPatterns) {
-            super(maskingChar, maskingPatterns);
+            this(maskingChar, maskingPatterns, 0, 0);
+        }
+        
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param offset 出力を開始するバイト位置
+         * @param maxBytes 最大出力バイト長 (0以下の場合は制限しない)
+         */
+        public MessageBodyHex(char maskingChar, Pattern[] maskingPatterns, int offset, int maxBytes) {
+            this(maskingChar, maskingPatterns, offset, maxBytes, null);
+        }
+        
+        /**
+         * コンストラクタ。
+         * @param maskingChar マスク文字
+         * @param maskingPatterns マスク対象のパターン
+         * @param offset 出力を開始するバイト位置
+         * @param maxBytes 最大出力バイト長 (0以下の場合は制限しない)
+         * @param bodyLogSettings メッセージボディのログ出力設定 (nullの場合は全件を制限なしで出力する)
+         */
+        public MessageBodyHex(char maskingChar, Pattern[] maskingPatterns, int offset, int maxBytes,
+                              MessageBodyLogSettings bodyLogSettings) {
+            super(maskingChar, maskingPatterns, bodyLogSettings);
+            this.offset = Math.max(offset, 0);
+            this.maxBytes = maxBytes;
         }
         
         /** {@inheritDoc} */ 
         public String get(MessagingLogContext ctx) {
-            String bodyString = super.get(ctx);
-            if (StringUtil.isNullOrEmpty(bodyString)) {
-                return "";
+            StringBuilder out = new StringBuilder();
+            appendTo(out, ctx);
+            return out.toString();
+        }
+        
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * マスク対象パターンが設定されていない場合は、メッセージボディのバイト列を直接変換する。
+         * マスク対象パターンが設定されている場合は、マスク済みの本文を
+         * メッセージのエンコーディングで符号化したバイト列を変換する。
+         */
+        @Override
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            if (!isLoggable(ctx)) {
+                return;
+            }
+            if (!hasMaskingPatterns()) {
+                byte[] bodyBytes = ctx.getMessage().getBodyBytes();
+                appendWindow(out, bodyBytes, 0, bodyBytes.length);
+                return;
+            }
+            MessagingLogBuffers buffers = MessagingLogBuffers.acquire();
+            try {
+                StringBuilder maskedText = buffers.scratch(2);
+                appendMaskedBodyText(ctx, buffers, maskedText);
+                ByteBuffer encoded = buffers.encode(maskedText, getCharset(ctx.getMessage()));
+                appendWindow(out, encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+            } finally {
+                buffers.release();
+            }
+        }
+        
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * ヘキサダンプはエスケープ不要な文字のみで構成されるため、出力先にそのまま書き込む。
+         */
+        @Override
+        protected void appendBodyTo(Appendable out, MessagingLogContext ctx) throws IOException {
+            if (out instanceof StringBuilder) {
+                appendTo((StringBuilder) out, ctx);
+            } else {
+                out.append(get(ctx));
+            }
+        }
+        
+        /**
+         * 出力範囲に含まれるバイトをヘキサダンプに変換して追記する。
+         * @param out 出力先
+         * @param bytes 変換対象のバイト列
+         * @param start 変換対象の開始位置
+         * @param length 変換対象のバイト長
+         */
+        private void appendWindow(StringBuilder out, byte[] bytes, int start, int length) {
+            int limit = maxBytes;
+            int maxLength = getMaxBodyLength();
+            if (maxLength > 0 && (limit <= 0 || maxLength < limit)) {
+                limit = maxLength;
+            }
+            int from = Math.min(offset, length);
+            int to = (limit > 0) ? from + Math.min(limit, length - from) : length;
+            appendHex(out, bytes, start + from, start + to);
+        }
+        
+        /**
+         * バイト列の指定範囲をヘキサダンプ(大文字の16進数表記)に変換して追記する。
+         * <p/>
+         * 各バイトは必ず2桁で出力されるため、先頭の0x00も欠落しない。
+         * 
+         * @param out 出力先
+         * @param bytes 変換対象のバイト列
+         * @param from 変換を開始する位置(この位置を含む)
+         * @param to 変換を終了する位置(この位置を含まない)
+         */
+        protected static void appendHex(StringBuilder out, byte[] bytes, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int b = bytes[i] & 0xFF;
+                out.append(HEX_DIGITS[b >>> 4]);
+                out.append(HEX_DIGITS[b & 0x0F]);
             }
-            
-            Charset charset = getCharset(ctx.getMessage());
-            byte[] bodyBytes = bodyString.getBytes(charset);
-            
-            return new BigInteger(bodyBytes).toString(16).toUpperCase();
         }
     }
     
     /**
      * 出力項目(メッセージヘッダ)
      * 
-     * メッセージヘッダの内容を出力する。
+     * メッセージヘッダの内容を{@link java.util.Map#toString()}と同じ形式で出力する。
      */
-    public static class MessageHeader implements LogItem<MessagingLogContext> {
+    public static class MessageHeader implements AppendableLogItem<MessagingLogContext> {
         /** {@inheritDoc} */ 
         public String get(MessagingLogContext ctx) {
             return ctx.getMessage().getHeaderMap().toString();
         }
+        
+        /** {@inheritDoc} */
+        public void appendTo(StringBuilder out, MessagingLogContext ctx) {
+            Map<String, Object> headers = ctx.getMessage().getHeaderMap();
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> header : headers.entrySet()) {
+                if (!first) {
+                    out.append(',').append(' ');
+                }
+                first = false;
+                out.append(header.getKey()).append('=');
+                Object value = header.getValue();
+                out.append(value == headers ? "(this Map)" : value);
+            }
+            out.append('}');
+        }
     }
 }
@@ -96,4 +96,36 @@ public final class MessagingLogUtil {
     public static String getHttpReceivedMessageLog(ReceivedMessage message, Charset charset) {
         return getLogWriter().getHttpReceivedMessageLog(message, charset);
     }
+    
+    /**
+     * クラスローダに紐付くフォーマッタが使用するメッセージボディのログ出力設定を返す。
+     * <p/>
+     * 返却されたインスタンスの設定値を変更することで、
+     * 実行中にメッセージボディの最大出力長や出力割合を変更することができる。
+     * @return メッセージボディのログ出力設定
+     */
+    @Published(tag = "architect")
+    public static MessageBodyLogSettings getMessageBodyLogSettings() {
+        return getLogWriter().getMessageBodyLogSettings();
+    }
+
+    /**
+     * 0以上の整数値のプロパティの設定値を解析する。
+     * @param propName プロパティ名
+     * @param value 設定値
+     * @return 設定値
+     * @throws IllegalArgumentException 設定値が0以上の整数値でない場合
+     */
+    static int parseNonNegativeInt(String propName, String value) throws IllegalArgumentException {
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue >= 0) {
+                return intValue;
+            }
+        } catch (NumberFormatException ignored) {
+            // 下で例外を送出する。
+        }
+        throw new IllegalArgumentException(
+            String.format("%s was not a non-negative integer. %s = [%s]", propName, propName, value));
+    }
 }
@@ -0,0 +1,471 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * 送受信の確定を一定件数または一定時間ごとにまとめて行うメッセージングコンテキスト。
+ * <p/>
+ * 本クラスは{@link BatchingMessagingProvider}が生成する。
+ * 送受信はラップしたコンテキストにそのまま委譲し、確定({@link MessagingContext#commit()})のみをまとめて行う。
+ * ラップしたコンテキストがトランザクションを使用するセッションで送受信を行う場合、
+ * 永続メッセージの送信ごとに発生していたメッセージングサーバでのディスク同期がバッチ単位となる。
+ * <p/>
+ * 確定は以下のいずれかの時点で行う。
+ * <ul>
+ * <li>確定していない送受信の件数がバッチサイズに達した時点(送信時、または次の受信の直前。処理中の受信メッセージがない場合のみ)</li>
+ * <li>最初の未確定の送受信からバッチ間隔が経過した時点(送信時、次の受信の直前または受信待ちの途中、
+ *     または{@link BatchingMessagingProvider}の確定スレッド。処理中の受信メッセージがない場合のみ)</li>
+ * <li>メッセージIDを指定して応答電文を受信する直前(同期送信の要求電文を、応答電文の待機前に確定するため)</li>
+ * <li>{@link #flush()}、{@link #commit()}、{@link #close()}の呼び出し時</li>
+ * </ul>
+ * <p/>
+ * <b>要求の境界</b>
+ * <p/>
+ * メッセージを受信してから、次の受信、{@link #commit()}、{@link #rollback()}、{@link #close()}の呼び出しまでを
+ * 1つの要求の処理中とみなす。
+ * 要求の処理中は、件数、経過時間のいずれによっても確定しない。
+ * 要求の境界では、確定の時点に達していなければ確定せず、要求の受信とその処理中の送信を丸ごと
+ * 開いているトランザクションに加えたまま次の要求を受信する。
+ * このため、複数の要求の受信と応答が1回の確定にまとめられる一方、
+ * 要求の処理の途中で受信メッセージだけが確認応答済みとなり、障害時に処理結果が失われることはない。
+ * 確定の取り消し時は、まとめた要求の受信メッセージが全て再配信され、その応答は全て破棄される。
+ * ただし、要求の処理中に同期送信を行った場合は、応答電文の待機前に確定する。
+ * <p/>
+ * 確定していない送受信が残っている状態での受信待ちは、バッチ間隔が経過する時点までに区切って行い、
+ * メッセージが届かないまま経過した場合は確定した上で受信待ちを続ける。
+ * <p/>
+ * <b>送信の耐久性</b>
+ * <p/>
+ * 送信メソッドが正常に終了しても、確定するまでメッセージはメッセージングサーバに永続化されない。
+ * 確定前にプロセスが異常終了した場合、最大でバッチサイズ分(または、要求の処理中の全て)の送信メッセージが失われる。
+ * 送信の完了を保証する必要がある時点では、{@link #commit()}を呼び出すこと。
+ * 確定に失敗した場合は、取り消した上で未確定の送信メッセージを再送信し、再度確定する。
+ * 再送信によってメッセージIDが変わった場合も、送信時に返したメッセージIDで応答電文を受信できる。
+ * 最大再試行回数を超えても確定できなかった場合は、確定できなかったメッセージを全てエラーログに出力し、
+ * {@link MessagingException}を送出する。
+ * 確定スレッドでの確定に失敗した場合は、本コンテキストに対する次の操作で例外を送出する。
+ * <p/>
+ * 確定前の受信メッセージは、確定の取り消しにより再配信される。
+ * このため、受信側の業務処理は同一メッセージの再配信を考慮すること。
+ * <p/>
+ * 本クラスは、確定スレッドとの排他制御のためにスレッドセーフとしているが、
+ * 他のメッセージングコンテキストと同様、単一のスレッドから使用すること。
+ * 排他制御には{@link ReentrantLock}を使用し、モニタロックは使用しない。
+ * このため、仮想スレッドから使用した場合も、確定時の通信の間にキャリアスレッドを占有しない。
+ * 確定スレッドは、他のスレッドが使用中のコンテキストの確定を待たずに読み飛ばす。
+ *
+ * @see BatchingMessagingProvider
+ */
+public class BatchingMessagingContext extends MessagingContext {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(BatchingMessagingContext.class);
+
+    /** ラップしたメッセージングコンテキスト */
+    private final MessagingContext delegate;
+
+    /** 本コンテキストを生成したプロバイダ */
+    private final BatchingMessagingProvider provider;
+
+    /** バッチサイズ */
+    private final int batchSize;
+
+    /** バッチ間隔(単位：ミリ秒) */
+    private final long batchInterval;
+
+    /** 確定の最大再試行回数 */
+    private final int maxCommitRetries;
+
+    /** 確定していない送信メッセージ */
+    private final List<Pending> pending = new ArrayList<Pending>();
+
+    /** 再送信により変わったメッセージID(送信時に返したメッセージID → 再送信後のメッセージID) */
+    private final Map<String, String> reissuedIds = new HashMap<String, String>();
+
+    /** 確定していない送受信の件数 */
+    private int uncommittedCount = 0;
+
+    /** 最初の未確定の送受信を行った時刻 */
+    private long batchStartedAt = 0;
+
+    /** 確定スレッドでの確定に失敗した場合の例外 */
+    private MessagingException deferredFailure = null;
+
+    /** 受信したメッセージを処理中(要求の境界の前)か否か */
+    private boolean inRequest = false;
+
+    /** ロックの外で受信待ちを行っているか否か */
+    private boolean receiving = false;
+
+    /** 閉じられたか否か */
+    private boolean closed = false;
+
+    /** 確定スレッドとの排他制御を行うロック */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param delegate ラップするメッセージングコンテキスト
+     * @param provider 本コンテキストを生成したプロバイダ
+     * @param batchSize バッチサイズ
+     * @param batchInterval バッチ間隔(単位：ミリ秒)
+     * @param maxCommitRetries 確定の最大再試行回数
+     */
+    BatchingMessagingContext(MessagingContext delegate, BatchingMessagingProvider provider,
+                             int batchSize, long batchInterval, int maxCommitRetries) {
+        this.delegate = delegate;
+        this.provider = provider;
+        this.batchSize = batchSize;
+        this.batchInterval = batchInterval;
+        this.maxCommitRetries = maxCommitRetries;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 送信したメッセージは、バッチサイズに達するかバッチ間隔が経過した時点で確定する。
+     * 受信したメッセージを処理中の場合は、要求の境界まで確定しない。
+     */
+    @Override
+    public String sendMessage(SendingMessage message) {
+        lock.lock();
+        try {
+            throwDeferredFailure();
+            long now = System.currentTimeMillis();
+            String messageId = delegate.sendMessage(message);
+            markUncommitted(now);
+            pending.add(new Pending(message, messageId));
+            if (!inRequest && isDue(now)) {
+                flush();
+            }
+            return reissuedIdOf(messageId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * メッセージIDを指定した場合(応答電文の受信)は、受信の前に確定していない送受信を確定する。
+     * それ以外の場合は、バッチサイズに達しているかバッチ間隔が経過している場合のみ確定し、
+     * 確定していない送受信が残る場合は、バッチ間隔が経過する時点で受信待ちを区切って確定する。
+     * メッセージを受信した場合は、次の要求の境界まで確定しない。
+     */
+    @Override
+    public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+        while (true) {
+            String actualId;
+            long wait;
+            boolean bounded;
+            lock.lock();
+            try {
+                throwDeferredFailure();
+                long now = System.currentTimeMillis();
+                if (messageId != null || isDue(now)) {
+                    flush();
+                }
+                inRequest = false;
+                actualId = reissuedIdOf(messageId);
+                wait = (deadline > 0) ? Math.max(1, deadline - now) : timeout;
+                bounded = false;
+                if (uncommittedCount > 0) {
+                    long untilDue = Math.max(1, batchStartedAt + batchInterval - now);
+                    if (wait <= 0 || untilDue < wait) {
+                        wait = untilDue;
+                        bounded = true;
+                    }
+                }
+                receiving = true;
+            } finally {
+                lock.unlock();
+            }
+            // 受信待ちの間に確定スレッドを待たせないよう、ロックの外で受信する。
+            // 受信中は確定スレッドが確定しないため、受信中のセッションを操作することはない。
+            ReceivedMessage received;
+            try {
+                received = delegate.receiveMessage(receiveQueue, actualId, wait);
+            } finally {
+                lock.lock();
+                try {
+                    receiving = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (received != null) {
+                lock.lock();
+                try {
+                    markUncommitted(System.currentTimeMillis());
+                    inRequest = true;
+                } finally {
+                    lock.unlock();
+                }
+                return received;
+            }
+            if (!bounded || (deadline > 0 && System.currentTimeMillis() >= deadline)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 確定していない送受信を確定する。
+     *
+     * @throws MessagingException 確定に失敗した場合
+     */
+    @Override
+    public void commit() throws MessagingException {
+        lock.lock();
+        try {
+            throwDeferredFailure();
+            flush();
+            inRequest = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 確定していない送信メッセージは破棄する。
+     */
+    @Override
+    public void rollback() throws MessagingException {
+        lock.lock();
+        try {
+            delegate.rollback();
+        } finally {
+            clearBatch();
+            inRequest = false;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 確定していない送受信を確定する。
+     * <p/>
+     * 確定に失敗した場合は、取り消した上で未確定の送信メッセージを再送信し、
+     * 最大再試行回数まで確定を再試行する。
+     *
+     * @throws MessagingException 最大再試行回数を超えても確定できなかった場合
+     */
+    public void flush() throws MessagingException {
+        lock.lock();
+        try {
+            if (uncommittedCount == 0) {
+                return;
+            }
+            reissuedIds.clear();
+            try {
+                commitWithRetry();
+            } finally {
+                clearBatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * バッチ間隔が経過していれば、確定していない送受信を確定する。
+     * <p/>
+     * 確定スレッドから呼び出す。確定に失敗した場合は、本コンテキストに対する次の操作で例外を送出する。
+     * 受信したメッセージを処理中の場合は、要求の境界まで確定しない。
+     * 受信待ちの間は、受信中のセッションを操作しないよう確定せず、受信待ちを区切った時点で確定する。
+     * 他のスレッドが本コンテキストを使用中の場合は、そのスレッドが確定するため何もしない。
+     *
+     * @param now 現在時刻
+     */
+    void flushIfDue(long now) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (closed || inRequest || receiving || !isDue(now)) {
+                return;
+            }
+            flush();
+        } catch (MessagingException e) {
+            deferredFailure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void acknowledge(ReceivedMessage message) {
+        delegate.acknowledge(message);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void acknowledge(List<ReceivedMessage> messages) {
+        delegate.acknowledge(messages);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 証跡ログはラップしたコンテキストで出力するため、そのまま委譲する。
+     */
+    @Override
+    public void addMessageListener(String receiveQueue, MessageListener listener) {
+        delegate.addMessageListener(receiveQueue, listener);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void removeMessageListener(String receiveQueue) {
+        delegate.removeMessageListener(receiveQueue);
+    }
+
+    /**
+     * 確定していない送受信を確定した上で、ラップしたコンテキストを閉じる。
+     *
+     * @throws MessagingException 確定に失敗した場合
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                throwDeferredFailure();
+                flush();
+            } finally {
+                provider.unregister(this);
+                delegate.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 確定を行い、失敗した場合は未確定の送信メッセージを再送信して再試行する。
+     *
+     * @throws MessagingException 最大再試行回数を超えても確定できなかった場合
+     */
+    private void commitWithRetry() throws MessagingException {
+        RuntimeException lastError;
+        try {
+            delegate.commit();
+            return;
+        } catch (RuntimeException e) {
+            lastError = e;
+        }
+        for (int retry = 1; retry <= maxCommitRetries; retry++) {
+            LOGGER.logWarn("failed to commit messages. they will be sent again. messages = ["
+                         + pending.size() + "] retry = [" + retry + "]", lastError);
+            try {
+                delegate.rollback();
+                for (Pending message : pending) {
+                    reissuedIds.put(message.originalId, delegate.sendMessage(message.message));
+                }
+                delegate.commit();
+                return;
+            } catch (RuntimeException e) {
+                lastError = e;
+            }
+        }
+        for (Pending message : pending) {
+            LOGGER.logError("could not commit a sent message. destination = [" + message.message.getDestination()
+                          + "] correlationId = [" + message.message.getCorrelationId()
+                          + "] messageId = [" + message.originalId + "]");
+        }
+        throw new MessagingException("failed to commit messages. "
+                                   + pending.size() + " sent messages were not committed.", lastError);
+    }
+
+    /**
+     * 確定していない送受信が、確定の時点(バッチサイズまたはバッチ間隔)に達しているか否かを判定する。
+     * @param now 現在時刻
+     * @return 確定の時点に達している場合は{@code true}
+     */
+    private boolean isDue(long now) {
+        return uncommittedCount > 0 && (uncommittedCount >= batchSize || now - batchStartedAt >= batchInterval);
+    }
+
+    /**
+     * 確定していない送受信の件数を加算する。
+     * @param now 現在時刻
+     */
+    private void markUncommitted(long now) {
+        if (uncommittedCount == 0) {
+            batchStartedAt = now;
+        }
+        uncommittedCount++;
+    }
+
+    /**
+     * 確定していない送受信の情報を破棄する。
+     */
+    private void clearBatch() {
+        pending.clear();
+        uncommittedCount = 0;
+    }
+
+    /**
+     * 再送信後のメッセージIDを返す。
+     * @param messageId 送信時に返したメッセージID
+     * @return 再送信後のメッセージID(再送信していない場合は引数のメッセージID)
+     */
+    private String reissuedIdOf(String messageId) {
+        String reissued = (messageId == null) ? null : reissuedIds.get(messageId);
+        return (reissued == null) ? messageId : reissued;
+    }
+
+    /**
+     * 確定スレッドでの確定に失敗していた場合、その例外を送出する。
+     * @throws MessagingException 確定スレッドでの確定に失敗していた場合
+     */
+    private void throwDeferredFailure() throws MessagingException {
+        MessagingException failure = deferredFailure;
+        if (failure != null) {
+            deferredFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * 確定していない送信メッセージ。
+     */
+    private static final class Pending {
+
+        /** 送信メッセージ */
+        private final SendingMessage message;
+
+        /** 送信時に返したメッセージID */
+        private final String originalId;
+
+        /**
+         * コンストラクタ。
+         * @param message 送信メッセージ
+         * @param messageId メッセージID
+         */
+        private Pending(SendingMessage message, String messageId) {
+            this.message = message;
+            this.originalId = messageId;
+        }
+    }
+}
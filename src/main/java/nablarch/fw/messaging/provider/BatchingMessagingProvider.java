@@ -0,0 +1,227 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+
+/**
+ * 他のプロバイダが生成したメッセージングコンテキストをラップし、
+ * 送受信の確定を一定件数または一定時間ごとにまとめて行うプロバイダ。
+ * <p/>
+ * {@link #setMessagingProvider(MessagingProvider)}で設定したプロバイダが、
+ * トランザクションを使用するセッションで送受信を行い、
+ * {@link MessagingContext#commit()}で確定するものである場合に使用する。
+ * 永続メッセージを送信する場合、メッセージングサーバでのディスク同期が確定ごとにまとめられるため、
+ * スループットが向上する。
+ * 一方で、送信したメッセージが宛先に到達するまでの時間は、最大でバッチ間隔分長くなる。
+ * <p/>
+ * 確定は、未確定の送受信の件数が{@link #setBatchSize(int)}に達するか、
+ * 最初の未確定の送受信から{@link #setBatchInterval(long)}が経過した時点で行う。
+ * 送受信が途絶えた場合も時間経過で確定できるよう、本プロバイダは確定スレッドを1つ起動する。
+ * 確定スレッドは{@link #close()}で停止する。
+ * 受信したメッセージの処理中は確定せず、要求の境界でまとめて確定する。
+ * 確定前の送信がプロセスの異常終了により失われる点を含め、詳細は{@link BatchingMessagingContext}を参照すること。
+ * <p/>
+ * {@link #setDefaultResponseTimeout(long)}などの設定は、ラップしたプロバイダに委譲する。
+ *
+ * @see BatchingMessagingContext
+ */
+public class BatchingMessagingProvider implements MessagingProvider {
+
+    /** ラップするプロバイダ */
+    private MessagingProvider messagingProvider = null;
+
+    /** バッチサイズ */
+    private int batchSize = 100;
+
+    /** バッチ間隔(単位：ミリ秒) */
+    private long batchInterval = 100;
+
+    /** 確定の最大再試行回数 */
+    private int maxCommitRetries = 3;
+
+    /** 生成したメッセージングコンテキストのうち、閉じられていないもの */
+    private final Set<BatchingMessagingContext> contexts =
+            Collections.newSetFromMap(new ConcurrentHashMap<BatchingMessagingContext, Boolean>());
+
+    /** 確定スレッド */
+    private Thread flusher = null;
+
+    /** 閉じられたか否か */
+    private boolean closed = false;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * ラップしたプロバイダが生成したコンテキストを、{@link BatchingMessagingContext}でラップして返す。
+     *
+     * @throws IllegalStateException ラップするプロバイダが設定されていない場合、または本プロバイダが閉じられている場合
+     */
+    public MessagingContext createContext() {
+        MessagingProvider provider = getMessagingProvider();
+        startFlusher();
+        BatchingMessagingContext context = new BatchingMessagingContext(
+                provider.createContext(), this, batchSize, batchInterval, maxCommitRetries);
+        contexts.add(context);
+        return context;
+    }
+
+    /**
+     * 閉じられたメッセージングコンテキストを、確定スレッドの対象から除外する。
+     * @param context 閉じられたメッセージングコンテキスト
+     */
+    void unregister(BatchingMessagingContext context) {
+        contexts.remove(context);
+    }
+
+    /**
+     * 確定スレッドを停止する。
+     * <p/>
+     * 生成したコンテキストの未確定の送受信は、各コンテキストの{@link BatchingMessagingContext#close()}などで確定すること。
+     * 本メソッドの呼び出し後は、コンテキストを生成できない。
+     */
+    public void close() {
+        Thread stopping;
+        synchronized (this) {
+            closed = true;
+            stopping = flusher;
+            flusher = null;
+        }
+        if (stopping == null) {
+            return;
+        }
+        stopping.interrupt();
+        try {
+            stopping.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 確定スレッドが開始されていなければ開始する。
+     * @throws IllegalStateException 本プロバイダが閉じられている場合
+     */
+    private synchronized void startFlusher() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("this messaging provider was closed.");
+        }
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(batchInterval);
+                        long now = System.currentTimeMillis();
+                        for (BatchingMessagingContext context : contexts) {
+                            context.flushIfDue(now);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "BatchingMessagingProvider-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * ラップするプロバイダを返す。
+     * @return ラップするプロバイダ
+     * @throws IllegalStateException ラップするプロバイダが設定されていない場合
+     */
+    private MessagingProvider getMessagingProvider() throws IllegalStateException {
+        if (messagingProvider == null) {
+            throw new IllegalStateException("messagingProvider was not specified.");
+        }
+        return messagingProvider;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        getMessagingProvider().setDefaultResponseTimeout(timeout);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        getMessagingProvider().setDefaultTimeToLive(timeToLive);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        getMessagingProvider().setMessagingExceptionFactory(messagingExceptionFactory);
+        return this;
+    }
+
+    /**
+     * ラップするプロバイダを設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param messagingProvider ラップするプロバイダ
+     * @return このオブジェクト自体
+     */
+    public BatchingMessagingProvider setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * バッチサイズ(1回の確定でまとめる送受信の最大件数)を設定する。
+     * <p/>
+     * デフォルトは100件。
+     *
+     * @param batchSize バッチサイズ
+     * @return このオブジェクト自体
+     */
+    public BatchingMessagingProvider setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(
+                "batchSize must be greater than 0. batchSize = [" + batchSize + "]");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * バッチ間隔(最初の未確定の送受信から確定までの最大時間)を設定する。
+     * <p/>
+     * デフォルトは100ミリ秒。
+     *
+     * @param batchInterval バッチ間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public BatchingMessagingProvider setBatchInterval(long batchInterval) {
+        if (batchInterval <= 0) {
+            throw new IllegalArgumentException(
+                "batchInterval must be greater than 0. batchInterval = [" + batchInterval + "]");
+        }
+        this.batchInterval = batchInterval;
+        return this;
+    }
+
+    /**
+     * 確定に失敗した場合の最大再試行回数を設定する。
+     * <p/>
+     * デフォルトは3回。
+     *
+     * @param maxCommitRetries 確定の最大再試行回数
+     * @return このオブジェクト自体
+     */
+    public BatchingMessagingProvider setMaxCommitRetries(int maxCommitRetries) {
+        if (maxCommitRetries < 0) {
+            throw new IllegalArgumentException(
+                "maxCommitRetries must not be negative. maxCommitRetries = [" + maxCommitRetries + "]");
+        }
+        this.maxCommitRetries = maxCommitRetries;
+        return this;
+    }
+}
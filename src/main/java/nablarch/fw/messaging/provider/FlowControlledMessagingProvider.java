@@ -0,0 +1,867 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * 他のプロバイダが生成したメッセージングコンテキストをラップし、宛先ごとに送信の流量を制御するプロバイダ。
+ * <p/>
+ * 送信側が短時間に大量のメッセージを送信し、受信側の処理が追いつかない宛先のキューに滞留することを防ぐ。
+ * 滞留したメッセージがメッセージングサーバでディスクに退避されると、同じサーバを使用する全ての宛先の応答時間が悪化するため、
+ * 送信側で流量を抑える。
+ *
+ * <div><b>流量制御の方式</b></div>
+ * <hr/>
+ * 以下の2つの方式を、宛先ごとに組み合わせて使用できる。いずれも設定しなかった宛先は流量を制御しない。
+ * <ul>
+ * <li>送信レート({@link #setRate(double)})：トークンバケットにより、1秒あたりの送信件数を制限する。
+ *     バケットの容量({@link #setBurst(int)})までは、連続して送信できる。</li>
+ * <li>滞留件数の上限({@link #setMaxQueueDepth(int)})：宛先キューの滞留件数が上限に達している間は、送信を待機させる。
+ *     滞留件数は{@link QueueDepthSource}から取得する。
+ *     ラップしたプロバイダが{@link QueueDepthSource}を実装している場合(
+ *     {@link InMemoryMessagingProvider}、{@link JournalMessagingProvider})は、設定を省略できる。</li>
+ * </ul>
+ * 宛先ごとの値は{@link #setDestinationRates(Map)}、{@link #setDestinationMaxQueueDepths(Map)}で設定する。
+ * <p/>
+ * 滞留件数の上限は、取得した滞留件数に、本プロバイダが送信を許可して送信中のメッセージの件数を加えて判定する。
+ * 送信の許可は宛先ごとに排他制御して行うため、複数のスレッドから同時に送信しても上限を超えて許可することはない。
+ * (ただし、滞留件数の取得先が送信直後のメッセージを滞留件数に含めない場合は、その分だけ上限を超えることがある。)
+ * <p/>
+ * 送信できない場合は、最大{@link #setMaxWait(long)}の時間だけ待機し、
+ * それまでに送信できなかった場合は{@link SendThrottledException}を送出する。
+ * 待機時間を0とした場合は、待機せずに例外を送出する。
+ * {@link MessagingContext#send(List)}で一括送信する場合は、全てのメッセージの送信が許可された時点で一括送信し、
+ * いずれかのメッセージが送信できなかった場合は、1件も送信せずに例外を送出する。
+ * 最大待機時間は、メッセージごとではなく一括送信全体に適用する。
+ * 1つの宛先へのメッセージの件数が、その宛先の滞留件数の上限を超える一括送信は、待機しても送信が許可されることはないため、
+ * 送信の許可を得る前に{@link SendThrottledException}を送出する。
+ * (上限以下の一括送信が許可を待機する間は、許可を得たメッセージの枠を確保したままとなる。)
+ * <p/>
+ * ラップしたコンテキストでの送信に失敗した場合は、送信されなかったメッセージの分のトークンを返却する。
+ * 送信されたか否かは、ラップしたコンテキストがメッセージIDを設定したか否かで判定する。
+ * (メッセージIDが設定されたメッセージは送信済みとみなし、トークンを返却しない。)
+ *
+ * <div><b>監視</b></div>
+ * <hr/>
+ * {@link #getStatistics()}で、宛先ごとに送信件数、待機した件数、送信できなかった件数、待機時間を取得できる。
+ * 待機や送信できなかった件数が多い宛先は、受信側の処理能力が不足しているか、流量制御の設定が厳しすぎることを表す。
+ * <p/>
+ * 流量制御は、本プロバイダが生成したコンテキストからの送信を対象とし、JVMごとに行う。
+ * 複数のプロセスから同じ宛先に送信する場合の送信レートは、プロセス数を考慮して設定すること。
+ * <p/>
+ * {@link #setDefaultResponseTimeout(long)}などの設定は、ラップしたプロバイダに委譲する。
+ */
+public class FlowControlledMessagingProvider implements MessagingProvider {
+
+    /** 流量を制御しない場合の状態 */
+    private static final Flow UNLIMITED = new Flow(null, 0, 0, 0);
+
+    /** ラップするプロバイダ */
+    private MessagingProvider messagingProvider = null;
+
+    /** 滞留件数の取得先 */
+    private QueueDepthSource queueDepthSource = null;
+
+    /** 送信レート(1秒あたりの送信件数、0の場合は制限しない) */
+    private double rate = 0;
+
+    /** トークンバケットの容量(0の場合は送信レートの1秒分) */
+    private int burst = 0;
+
+    /** 滞留件数の上限(0の場合は制限しない) */
+    private int maxQueueDepth = 0;
+
+    /** 宛先ごとの送信レート */
+    private Map<String, Double> destinationRates = Collections.emptyMap();
+
+    /** 宛先ごとの滞留件数の上限 */
+    private Map<String, Integer> destinationMaxQueueDepths = Collections.emptyMap();
+
+    /** 送信を待機する最大時間 (msec) */
+    private long maxWait = 100;
+
+    /** 滞留件数を再確認する間隔 (msec) */
+    private long pollInterval = 10;
+
+    /** 宛先ごとの流量制御の状態 */
+    private final ConcurrentHashMap<String, Flow> flows = new ConcurrentHashMap<String, Flow>();
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * ラップしたプロバイダが生成したコンテキストを、流量を制御するコンテキストでラップして返す。
+     *
+     * @throws IllegalStateException ラップするプロバイダが設定されていない場合、
+     *                               または滞留件数の上限を設定したが、滞留件数の取得先が無い場合
+     */
+    public MessagingContext createContext() {
+        MessagingProvider provider = getMessagingProvider();
+        if (getQueueDepthSource() == null && (maxQueueDepth > 0 || !destinationMaxQueueDepths.isEmpty())) {
+            throw new IllegalStateException(
+                "queueDepthSource was not specified, and messagingProvider does not provide queue depths. class = ["
+                + provider.getClass().getName() + "]");
+        }
+        return new Context(this, provider.createContext());
+    }
+
+    /**
+     * 宛先ごとの流量制御の統計情報を返す。
+     * <p/>
+     * 戻り値は、宛先の論理名をキーとし、宛先の昇順に並べたMapである。
+     * 送信を行っていない宛先は含まない。
+     *
+     * @return 宛先ごとの統計情報
+     */
+    public Map<String, FlowStatistics> getStatistics() {
+        Map<String, FlowStatistics> statistics = new TreeMap<String, FlowStatistics>();
+        for (Flow flow : flows.values()) {
+            statistics.put(flow.destination, flow.toStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * 送信を待機する期限を返す。
+     * @return 送信を待機する期限({@link System#nanoTime()}の値)
+     */
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * 送信の許可を得る。
+     * <p/>
+     * 許可を得られるまで、指定した期限まで待機する。
+     * 許可を得た場合は、送信の完了後に{@link Flow#release()}を呼び出すこと。
+     *
+     * @param destination 宛先
+     * @param deadline 待機する期限({@link System#nanoTime()}の値)
+     * @return 宛先の流量制御の状態
+     * @throws SendThrottledException 期限までに許可を得られなかった場合
+     */
+    private Flow acquire(String destination, long deadline) throws SendThrottledException {
+        if (destination == null) {
+            // 宛先が無いメッセージは、ラップしたコンテキストでエラーとする。
+            return UNLIMITED;
+        }
+        Flow flow = flowOf(destination);
+        if (!flow.isLimited()) {
+            return flow;
+        }
+        long startedAt = System.nanoTime();
+        boolean throttled = false;
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                long waitNanos;
+                boolean depthLimited;
+                synchronized (flow) {
+                    depthLimited = flow.maxQueueDepth > 0
+                            && flow.observeQueueDepth(getQueueDepthSource()) + flow.inFlight >= flow.maxQueueDepth;
+                    if (depthLimited) {
+                        waitNanos = TimeUnit.MILLISECONDS.toNanos(pollInterval);
+                    } else {
+                        waitNanos = flow.tryTake(now);
+                        if (waitNanos == 0) {
+                            flow.reserve();
+                            return flow;
+                        }
+                    }
+                }
+                throttled = true;
+                if (depthLimited) {
+                    if (now >= deadline) {
+                        throw flow.reject("the queue depth reached the limit. maxQueueDepth = ["
+                                          + flow.maxQueueDepth + "]", maxWait);
+                    }
+                } else if (now + waitNanos > deadline) {
+                    throw flow.reject("the send rate reached the limit. rate = [" + flow.rate + "]", maxWait);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, deadline - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw flow.reject("interrupted while waiting for the send permission.", maxWait);
+                }
+            }
+        } finally {
+            if (throttled) {
+                flow.throttledCount.incrementAndGet();
+                flow.waitTimeNanos.addAndGet(System.nanoTime() - startedAt);
+            }
+        }
+    }
+
+    /**
+     * 宛先の流量制御の状態を返す。
+     * @param destination 宛先
+     * @return 宛先の流量制御の状態
+     */
+    private Flow flowOf(String destination) {
+        Flow flow = flows.get(destination);
+        if (flow != null) {
+            return flow;
+        }
+        Double destinationRate = destinationRates.get(destination);
+        Integer destinationMaxQueueDepth = destinationMaxQueueDepths.get(destination);
+        flow = new Flow(destination,
+                        (destinationRate == null) ? rate : destinationRate,
+                        burst,
+                        (destinationMaxQueueDepth == null) ? maxQueueDepth : destinationMaxQueueDepth);
+        Flow existing = flows.putIfAbsent(destination, flow);
+        return (existing == null) ? flow : existing;
+    }
+
+    /**
+     * ラップするプロバイダを返す。
+     * @return ラップするプロバイダ
+     * @throws IllegalStateException ラップするプロバイダが設定されていない場合
+     */
+    private MessagingProvider getMessagingProvider() throws IllegalStateException {
+        if (messagingProvider == null) {
+            throw new IllegalStateException("messagingProvider was not specified.");
+        }
+        return messagingProvider;
+    }
+
+    /**
+     * 滞留件数の取得先を返す。
+     * @return 滞留件数の取得先(無い場合は{@code null})
+     */
+    private QueueDepthSource getQueueDepthSource() {
+        if (queueDepthSource != null) {
+            return queueDepthSource;
+        }
+        return (messagingProvider instanceof QueueDepthSource) ? (QueueDepthSource) messagingProvider : null;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        getMessagingProvider().setDefaultResponseTimeout(timeout);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        getMessagingProvider().setDefaultTimeToLive(timeToLive);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        getMessagingProvider().setMessagingExceptionFactory(messagingExceptionFactory);
+        return this;
+    }
+
+    /**
+     * ラップするプロバイダを設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param messagingProvider ラップするプロバイダ
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * 滞留件数の取得先を設定する。
+     * <p/>
+     * 設定しなかった場合は、ラップしたプロバイダが{@link QueueDepthSource}を実装していれば、
+     * ラップしたプロバイダから取得する。
+     *
+     * @param queueDepthSource 滞留件数の取得先
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setQueueDepthSource(QueueDepthSource queueDepthSource) {
+        this.queueDepthSource = queueDepthSource;
+        return this;
+    }
+
+    /**
+     * 全ての宛先に適用する送信レート(1秒あたりの送信件数)を設定する。
+     * <p/>
+     * デフォルトは0(制限しない)。
+     *
+     * @param rate 送信レート
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setRate(double rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("rate must not be negative. rate = [" + rate + "]");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * トークンバケットの容量(連続して送信できる最大件数)を設定する。
+     * <p/>
+     * デフォルトは0で、送信レートの1秒分(最小1件)となる。
+     *
+     * @param burst トークンバケットの容量
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setBurst(int burst) {
+        if (burst < 0) {
+            throw new IllegalArgumentException("burst must not be negative. burst = [" + burst + "]");
+        }
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * 全ての宛先に適用する滞留件数の上限を設定する。
+     * <p/>
+     * 宛先キューの滞留件数がこの値に達している間は、送信を待機させる。
+     * デフォルトは0(制限しない)。
+     *
+     * @param maxQueueDepth 滞留件数の上限
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setMaxQueueDepth(int maxQueueDepth) {
+        if (maxQueueDepth < 0) {
+            throw new IllegalArgumentException(
+                "maxQueueDepth must not be negative. maxQueueDepth = [" + maxQueueDepth + "]");
+        }
+        this.maxQueueDepth = maxQueueDepth;
+        return this;
+    }
+
+    /**
+     * 宛先ごとの送信レートを設定する。
+     * <p/>
+     * 宛先の論理名をキー、送信レート(1秒あたりの送信件数、0の場合は制限しない)を値とするMapを指定する。
+     * 設定しなかった宛先には、{@link #setRate(double)}で設定した送信レートを使用する。
+     *
+     * @param rates 宛先ごとの送信レート
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setDestinationRates(Map<String, String> rates) {
+        Map<String, Double> values = new HashMap<String, Double>();
+        for (Entry<String, String> entry : rates.entrySet()) {
+            double value = Double.parseDouble(entry.getValue());
+            if (value < 0) {
+                throw new IllegalArgumentException("rate must not be negative. destination = ["
+                                                   + entry.getKey() + "] rate = [" + value + "]");
+            }
+            values.put(entry.getKey(), value);
+        }
+        destinationRates = values;
+        return this;
+    }
+
+    /**
+     * 宛先ごとの滞留件数の上限を設定する。
+     * <p/>
+     * 宛先の論理名をキー、滞留件数の上限(0の場合は制限しない)を値とするMapを指定する。
+     * 設定しなかった宛先には、{@link #setMaxQueueDepth(int)}で設定した上限を使用する。
+     *
+     * @param maxQueueDepths 宛先ごとの滞留件数の上限
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setDestinationMaxQueueDepths(Map<String, String> maxQueueDepths) {
+        Map<String, Integer> values = new HashMap<String, Integer>();
+        for (Entry<String, String> entry : maxQueueDepths.entrySet()) {
+            int value = Integer.parseInt(entry.getValue());
+            if (value < 0) {
+                throw new IllegalArgumentException("maxQueueDepth must not be negative. destination = ["
+                                                   + entry.getKey() + "] maxQueueDepth = [" + value + "]");
+            }
+            values.put(entry.getKey(), value);
+        }
+        destinationMaxQueueDepths = values;
+        return this;
+    }
+
+    /**
+     * 送信を待機する最大時間を設定する。
+     * <p/>
+     * 0を設定した場合は、送信できなければ待機せずに例外を送出する。
+     * デフォルトは100ミリ秒。
+     *
+     * @param maxWait 送信を待機する最大時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setMaxWait(long maxWait) {
+        if (maxWait < 0) {
+            throw new IllegalArgumentException("maxWait must not be negative. maxWait = [" + maxWait + "]");
+        }
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    /**
+     * 滞留件数が上限に達している間、滞留件数を再確認する間隔を設定する。
+     * <p/>
+     * デフォルトは10ミリ秒。
+     *
+     * @param pollInterval 滞留件数を再確認する間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public FlowControlledMessagingProvider setPollInterval(long pollInterval) {
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException(
+                "pollInterval must be greater than 0. pollInterval = [" + pollInterval + "]");
+        }
+        this.pollInterval = pollInterval;
+        return this;
+    }
+
+    /**
+     * 宛先の流量制御の状態。
+     */
+    private static final class Flow {
+
+        /** 宛先 */
+        private final String destination;
+
+        /** 送信レート(1秒あたりの送信件数、0の場合は制限しない) */
+        private final double rate;
+
+        /** トークンバケットの容量 */
+        private final double capacity;
+
+        /** 滞留件数の上限(0の場合は制限しない) */
+        private final int maxQueueDepth;
+
+        /** 残りのトークン */
+        private double tokens;
+
+        /** 最後にトークンを補充した時刻(ナノ秒) */
+        private long refilledAt = System.nanoTime();
+
+        /** 最後に取得した滞留件数(取得していない場合は-1) */
+        private volatile int lastQueueDepth = -1;
+
+        /** 送信を許可し、送信が完了していないメッセージの件数(滞留件数の上限を設定した場合のみ) */
+        private int inFlight = 0;
+
+        /** 送信件数 */
+        private final AtomicLong sentCount = new AtomicLong();
+
+        /** 待機または送信できなかった件数 */
+        private final AtomicLong throttledCount = new AtomicLong();
+
+        /** 送信できなかった件数 */
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        /** 待機時間の合計(ナノ秒) */
+        private final AtomicLong waitTimeNanos = new AtomicLong();
+
+        /**
+         * コンストラクタ。
+         * @param destination 宛先
+         * @param rate 送信レート
+         * @param burst トークンバケットの容量(0の場合は送信レートの1秒分)
+         * @param maxQueueDepth 滞留件数の上限
+         */
+        private Flow(String destination, double rate, int burst, int maxQueueDepth) {
+            this.destination = destination;
+            this.rate = rate;
+            this.capacity = (burst > 0) ? burst : Math.max(1, rate);
+            this.maxQueueDepth = maxQueueDepth;
+            this.tokens = capacity;
+        }
+
+        /**
+         * 流量を制御するか否か。
+         * @return 送信レートまたは滞留件数の上限が設定されている場合は{@code true}
+         */
+        private boolean isLimited() {
+            return rate > 0 || maxQueueDepth > 0;
+        }
+
+        /**
+         * 宛先キューの滞留件数を取得する。
+         * @param source 滞留件数の取得先
+         * @return 滞留件数
+         */
+        private int observeQueueDepth(QueueDepthSource source) {
+            int depth = source.getQueueDepth(destination);
+            lastQueueDepth = depth;
+            return depth;
+        }
+
+        /**
+         * トークンを1つ取得する。
+         * @param now 現在時刻(ナノ秒)
+         * @return 取得できた場合は0、取得できなかった場合はトークンが補充されるまでの時間(ナノ秒)
+         */
+        private synchronized long tryTake(long now) {
+            if (rate <= 0) {
+                return 0;
+            }
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / rate));
+        }
+
+        /**
+         * 送信中のメッセージとして、滞留件数の上限の枠を確保する。
+         */
+        private synchronized void reserve() {
+            if (maxQueueDepth > 0) {
+                inFlight++;
+            }
+        }
+
+        /**
+         * 送信が完了した(または失敗した)メッセージの、滞留件数の上限の枠を解放する。
+         */
+        private synchronized void release() {
+            if (maxQueueDepth > 0) {
+                inFlight--;
+            }
+        }
+
+        /**
+         * 送信しなかったメッセージのトークンを返却する。
+         */
+        private synchronized void refund() {
+            if (rate > 0) {
+                tokens = Math.min(capacity, tokens + 1);
+            }
+        }
+
+        /**
+         * 送信できなかったことを記録し、例外を生成する。
+         * @param reason 送信できなかった理由
+         * @param maxWait 送信を待機する最大時間
+         * @return 例外
+         */
+        private SendThrottledException reject(String reason, long maxWait) {
+            rejectedCount.incrementAndGet();
+            return new SendThrottledException("could not send the message because of flow control. "
+                                              + reason + " destination = [" + destination
+                                              + "] maxWait = [" + maxWait + "]", destination);
+        }
+
+        /**
+         * 統計情報を返す。
+         * @return 統計情報
+         */
+        private FlowStatistics toStatistics() {
+            return new FlowStatistics(destination, sentCount.get(), throttledCount.get(), rejectedCount.get(),
+                                      TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get()), lastQueueDepth);
+        }
+    }
+
+    /**
+     * 宛先ごとの流量制御の統計情報。
+     */
+    public static final class FlowStatistics {
+
+        /** 宛先 */
+        private final String destination;
+
+        /** 送信件数 */
+        private final long sentCount;
+
+        /** 待機または送信できなかった件数 */
+        private final long throttledCount;
+
+        /** 送信できなかった件数 */
+        private final long rejectedCount;
+
+        /** 待機時間の合計(単位：ミリ秒) */
+        private final long waitTime;
+
+        /** 最後に取得した滞留件数 */
+        private final int queueDepth;
+
+        /**
+         * コンストラクタ。
+         * @param destination 宛先
+         * @param sentCount 送信件数
+         * @param throttledCount 待機または送信できなかった件数
+         * @param rejectedCount 送信できなかった件数
+         * @param waitTime 待機時間の合計(単位：ミリ秒)
+         * @param queueDepth 最後に取得した滞留件数
+         */
+        FlowStatistics(String destination, long sentCount, long throttledCount, long rejectedCount,
+                       long waitTime, int queueDepth) {
+            this.destination = destination;
+            this.sentCount = sentCount;
+            this.throttledCount = throttledCount;
+            this.rejectedCount = rejectedCount;
+            this.waitTime = waitTime;
+            this.queueDepth = queueDepth;
+        }
+
+        /**
+         * 宛先を返す。
+         * @return 宛先
+         */
+        public String getDestination() {
+            return destination;
+        }
+
+        /**
+         * 送信件数を返す。
+         * @return 送信件数
+         */
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        /**
+         * 流量制御により待機した件数を返す。
+         * <p/>
+         * 送信できなかったものを含む。
+         *
+         * @return 待機または送信できなかった件数
+         */
+        public long getThrottledCount() {
+            return throttledCount;
+        }
+
+        /**
+         * 流量制御により送信できなかった件数を返す。
+         * @return 送信できなかった件数
+         */
+        public long getRejectedCount() {
+            return rejectedCount;
+        }
+
+        /**
+         * 流量制御により待機した時間の合計を返す。
+         * @return 待機時間の合計(単位：ミリ秒)
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * 最後に取得した宛先キューの滞留件数を返す。
+         * @return 滞留件数(滞留件数の上限を設定していない場合は-1)
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * 送信要求のうち、流量制御により待機または送信できなかったものの割合を返す。
+         * <p/>
+         * 1に近いほど、宛先が飽和していることを表す。
+         *
+         * @return 待機または送信できなかった割合(送信要求が無い場合は0)
+         */
+        public double getSaturation() {
+            long requested = sentCount + rejectedCount;
+            return (requested == 0) ? 0 : (double) throttledCount / requested;
+        }
+
+        @Override
+        public String toString() {
+            return "destination = [" + destination + "] sent = [" + sentCount + "] throttled = [" + throttledCount
+                 + "] rejected = [" + rejectedCount + "] waitTime = [" + waitTime + "] queueDepth = ["
+                 + queueDepth + "]";
+        }
+    }
+
+    /**
+     * 流量を制御するメッセージングコンテキスト。
+     */
+    public static class Context extends MessagingContext {
+
+        /** 本コンテキストを生成したプロバイダ */
+        private final FlowControlledMessagingProvider provider;
+
+        /** ラップしたメッセージングコンテキスト */
+        private final MessagingContext delegate;
+
+        /**
+         * コンストラクタ。
+         * @param provider 本コンテキストを生成したプロバイダ
+         * @param delegate ラップするメッセージングコンテキスト
+         */
+        Context(FlowControlledMessagingProvider provider, MessagingContext delegate) {
+            this.provider = provider;
+            this.delegate = delegate;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * 宛先の流量制御により送信が許可されるまで待機した上で、ラップしたコンテキストで送信する。
+         *
+         * @throws SendThrottledException 最大待機時間内に送信が許可されなかった場合
+         */
+        @Override
+        public String sendMessage(SendingMessage message) {
+            Flow flow = provider.acquire(message.getDestination(), provider.deadline());
+            String messageId;
+            try {
+                messageId = delegate.sendMessage(message);
+            } catch (RuntimeException e) {
+                settle(flow, message, false);
+                throw e;
+            }
+            settle(flow, message, true);
+            return messageId;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * 全てのメッセージの送信が許可された時点で、ラップしたコンテキストで一括送信する。
+         * いずれかのメッセージが最大待機時間内に許可されなかった場合は、1件も送信しない。
+         * 宛先ごとのメッセージの件数が滞留件数の上限を超える場合は、許可を待機せずに例外を送出する。
+         * ラップしたコンテキストでの送信に失敗した場合は、送信されなかったメッセージの分のトークンのみを返却する。
+         * 証跡ログはラップしたコンテキストで出力する。
+         *
+         * @throws SendThrottledException 最大待機時間内に送信が許可されなかった場合、
+         *                                またはいずれかの宛先のメッセージの件数が滞留件数の上限を超える場合
+         */
+        @Override
+        public List<String> send(List<SendingMessage> messages) {
+            rejectIfExceedsMaxQueueDepth(messages);
+            long deadline = provider.deadline();
+            List<Flow> acquired = new ArrayList<Flow>(messages.size());
+            try {
+                for (SendingMessage message : messages) {
+                    acquired.add(provider.acquire(message.getDestination(), deadline));
+                }
+            } catch (RuntimeException e) {
+                for (Flow flow : acquired) {
+                    flow.release();
+                    flow.refund();
+                }
+                throw e;
+            }
+            List<String> messageIds;
+            try {
+                messageIds = delegate.send(messages);
+            } catch (RuntimeException e) {
+                for (int i = 0; i < acquired.size(); i++) {
+                    settle(acquired.get(i), messages.get(i), false);
+                }
+                throw e;
+            }
+            for (int i = 0; i < acquired.size(); i++) {
+                settle(acquired.get(i), messages.get(i), true);
+            }
+            return messageIds;
+        }
+
+        /**
+         * 一括送信するメッセージのうち、1つの宛先へのメッセージの件数が滞留件数の上限を超える場合に例外を送出する。
+         * <p/>
+         * 上限を超えるメッセージは待機しても送信が許可されず、許可を得たメッセージの枠によって
+         * 他の送信を待機させるだけとなるため、許可を得る前に送信できないことを確定させる。
+         *
+         * @param messages 送信メッセージ
+         * @throws SendThrottledException いずれかの宛先のメッセージの件数が滞留件数の上限を超える場合
+         */
+        private void rejectIfExceedsMaxQueueDepth(List<SendingMessage> messages) throws SendThrottledException {
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (SendingMessage message : messages) {
+                String destination = message.getDestination();
+                if (destination == null) {
+                    continue;
+                }
+                Integer count = counts.get(destination);
+                counts.put(destination, (count == null) ? 1 : count + 1);
+            }
+            for (Entry<String, Integer> entry : counts.entrySet()) {
+                Flow flow = provider.flowOf(entry.getKey());
+                if (flow.maxQueueDepth > 0 && entry.getValue() > flow.maxQueueDepth) {
+                    throw flow.reject("the batch has more messages than the limit of the queue depth. messages = ["
+                                      + entry.getValue() + "] maxQueueDepth = [" + flow.maxQueueDepth + "]",
+                                      provider.maxWait);
+                }
+            }
+        }
+
+        /**
+         * 送信を許可したメッセージの送信結果を、宛先の流量制御の状態に反映する。
+         * <p/>
+         * 送信に失敗した場合でも、ラップしたコンテキストがメッセージIDを設定したメッセージは送信済みとみなす。
+         *
+         * @param flow 宛先の流量制御の状態
+         * @param message 送信メッセージ
+         * @param succeeded 送信に成功した場合は{@code true}
+         */
+        private static void settle(Flow flow, SendingMessage message, boolean succeeded) {
+            flow.release();
+            if (succeeded || message.getMessageId() != null) {
+                flow.sentCount.incrementAndGet();
+            } else {
+                flow.refund();
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+            return delegate.receiveMessage(receiveQueue, messageId, timeout);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void acknowledge(ReceivedMessage message) {
+            delegate.acknowledge(message);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void acknowledge(List<ReceivedMessage> messages) {
+            delegate.acknowledge(messages);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void commit() {
+            delegate.commit();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void rollback() {
+            delegate.rollback();
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * 証跡ログはラップしたコンテキストで出力するため、そのまま委譲する。
+         */
+        @Override
+        public void addMessageListener(String receiveQueue, MessageListener listener) {
+            delegate.addMessageListener(receiveQueue, listener);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void removeMessageListener(String receiveQueue) {
+            delegate.removeMessageListener(receiveQueue);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import nablarch.fw.messaging.InterSystemMessage.HeaderName;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * JVM内のキューでメッセージを送受信するメッセージング機能の実装。
+ * <p/>
+ * メッセージングサーバを使用せず、同一JVM内に配置されたコンポーネント間でメッセージを送受信する。
+ * また、メッセージングサーバの処理時間を含まないため、フレームワーク自体の処理時間を計測する際の基準としても使用できる。
+ * メッセージはヒープ上にのみ保持するため、JVMの停止とともに失われる。
+ * <p/>
+ * キューは、最初に送受信した時点で生成する。
+ * 関連メッセージIDを持たないメッセージは、キューごとのロックフリーなリングバッファに格納する。
+ * 関連メッセージIDを持つメッセージは、関連メッセージIDをキーとする索引と、格納順の一覧に格納し、
+ * 関連メッセージIDを指定した受信(同期送信の応答受信)では索引から直接取り出す。
+ * メッセージには格納順の通番を付与し、関連メッセージIDを指定しない受信では、
+ * リングバッファの先頭と格納順の一覧の先頭のうち、先に格納されたメッセージを取り出す。
+ * このため、関連メッセージIDの有無にかかわらず、格納した順に受信する。
+ * (複数のスレッドが同時に送信または受信した場合、その間の順序は保証しない。)
+ * <p/>
+ * 受信のタイムアウトと有効期間の扱いは{@link JmsMessagingProvider}に合わせている。
+ * <ul>
+ * <li>受信タイムアウトに0以下の数値を指定した場合は、{@link #setDefaultResponseTimeout(long)}の値を使用する。</li>
+ * <li>有効期間ヘッダが設定されていない送信メッセージには、{@link #setDefaultTimeToLive(long)}の値を使用する。
+ *     有効期間を過ぎたメッセージは受信されずに破棄される。</li>
+ * </ul>
+ * キューが満杯の場合、送信は空きができるまで{@link #setSendTimeout(long)}の時間だけ待機し、
+ * 空きができなかった場合は{@link MessagingException}を送出する。
+ */
+public class InMemoryMessagingProvider implements MessagingProvider, QueueDepthSource {
+
+    /** 待機中のスレッドが再確認を行う最大間隔(ナノ秒) */
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /** キューが満杯の場合に送信側が待機する間隔(ナノ秒) */
+    private static final long SEND_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /** メッセージIDの採番に使用するプロバイダの識別子 */
+    private static final AtomicLong INSTANCE_SEQUENCE = new AtomicLong();
+
+    /** キューの論理名をキーとするキューのMap */
+    private final ConcurrentHashMap<String, MemoryQueue> queues = new ConcurrentHashMap<String, MemoryQueue>();
+
+    /** メッセージIDの接頭辞 */
+    private final String messageIdPrefix = "ID:inmemory-" + INSTANCE_SEQUENCE.incrementAndGet() + "-";
+
+    /** メッセージIDの通番 */
+    private final AtomicLong messageSequence = new AtomicLong();
+
+    /** キューの容量 */
+    private int queueCapacity = 8192;
+
+    /** キューが満杯の場合に送信を待機する時間 (msec) */
+    private long sendTimeout = 1000;
+
+    /** 受信デフォルトタイムアウト値 (msec) */
+    private long timeout = 300 * 1000;
+
+    /** 送信電文デフォルト有効期間 (msec) */
+    private long timeToLive = 60 * 1000;
+
+    /** {@link MessagingException}ファクトリ */
+    private MessagingExceptionFactory messagingExceptionFactory = null;
+
+    // ------------------------------------------------- MessagingProvider API
+    /**
+     * {@inheritDoc}
+     * この実装では、保持するリソースを持たないコンテキストを返す。
+     */
+    public MessagingContext createContext() {
+        return new Context(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 受信処理におけるデフォルトタイムアウト値を設定する。
+     * デフォルトタイムアウトを明示的に設定しなかった場合のデフォルトタイムアウトは
+     * 5分間となる。
+     */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 送信電文のデフォルト有効期間を設定する。
+     * デフォルト値を明示的に設定しなかった場合の有効期間は60秒(60000msec)となる。
+     */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * この実装では、キューが満杯の場合に送出する例外の生成に使用する。
+     */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        this.messagingExceptionFactory = messagingExceptionFactory;
+        return this;
+    }
+
+    /**
+     * キューの容量を設定する。
+     * <p/>
+     * 容量は、指定した値以上の最小の2のべき乗に切り上げる。
+     * 既に生成されたキューの容量は変更しない。
+     * デフォルトは8192件。
+     *
+     * @param queueCapacity キューの容量
+     * @return このオブジェクト自体
+     */
+    public InMemoryMessagingProvider setQueueCapacity(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException(
+                "queueCapacity must be greater than 0. queueCapacity = [" + queueCapacity + "]");
+        }
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    /**
+     * キューが満杯の場合に、送信を待機する時間を設定する。
+     * <p/>
+     * 0を指定した場合は待機せずに例外を送出する。
+     * デフォルトは1000ミリ秒。
+     *
+     * @param sendTimeout 送信を待機する時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public InMemoryMessagingProvider setSendTimeout(long sendTimeout) {
+        if (sendTimeout < 0) {
+            throw new IllegalArgumentException(
+                "sendTimeout must not be negative. sendTimeout = [" + sendTimeout + "]");
+        }
+        this.sendTimeout = sendTimeout;
+        return this;
+    }
+
+    /**
+     * 指定したキューに滞留しているメッセージの件数を返す。
+     * <p/>
+     * 有効期間を過ぎたが、まだ破棄されていないメッセージも含む。
+     *
+     * @param queueName キューの論理名
+     * @return メッセージの件数
+     */
+    public int getQueueDepth(String queueName) {
+        MemoryQueue queue = queues.get(queueName);
+        return (queue == null) ? 0 : queue.size();
+    }
+
+    /**
+     * 全てのキューのメッセージを破棄する。
+     */
+    public void clear() {
+        queues.clear();
+    }
+
+    /**
+     * 指定した論理名のキューを返す。存在しない場合は生成する。
+     * @param queueName キューの論理名
+     * @return キュー
+     * @throws MessagingException キューの論理名が指定されていない場合
+     */
+    private MemoryQueue queueOf(String queueName) throws MessagingException {
+        if (queueName == null) {
+            throw new MessagingException("unknown queue name: " + queueName);
+        }
+        MemoryQueue queue = queues.get(queueName);
+        if (queue == null) {
+            MemoryQueue created = new MemoryQueue(queueName, queueCapacity);
+            queue = queues.putIfAbsent(queueName, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * メッセージングコンテキストのJVM内キューによる実装。
+     */
+    public static class Context extends MessagingContext {
+
+        /** 各種設定 */
+        private final InMemoryMessagingProvider provider;
+
+        /**
+         * コンストラクタ。
+         * @param provider 各種設定
+         */
+        Context(InMemoryMessagingProvider provider) {
+            this.provider = provider;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、宛先キューにメッセージを格納する。
+         */
+        public String sendMessage(SendingMessage message) {
+            String messageId = provider.messageIdPrefix + provider.messageSequence.incrementAndGet();
+            message.setMessageId(messageId);
+            Map<String, Object> headers = new HashMap<String, Object>(message.getHeaderMap());
+            headers.remove(HeaderName.TIME_TO_LIVE);
+            long ttl = message.getHeaderMap().containsKey(HeaderName.TIME_TO_LIVE) ? message.getTimeToLive()
+                                                                                   : provider.timeToLive;
+            Envelope envelope = new Envelope(message.getCorrelationId(), headers, message.getBodyBytes(),
+                                             (ttl > 0) ? System.currentTimeMillis() + ttl : 0);
+            MemoryQueue queue = provider.queueOf(message.getDestination());
+            if (!queue.put(envelope, provider.sendTimeout)) {
+                String error = "queue is full. queueName = [" + queue.name + "]";
+                throw (provider.messagingExceptionFactory == null)
+                        ? new MessagingException(error)
+                        : provider.messagingExceptionFactory.createMessagingException(error, null);
+            }
+            return messageId;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、受信キューからメッセージを取り出す。
+         */
+        public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+            timeout = (timeout <= 0) ? provider.timeout
+                                     : timeout;
+            Envelope envelope = provider.queueOf(receiveQueue).take(messageId, timeout);
+            if (envelope == null) {
+                return null;
+            }
+            ReceivedMessage message = new ReceivedMessage(envelope.body);
+            message.setHeaderMap(envelope.headers);
+            return message;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、保持するリソースが無いため何もしない。
+         */
+        public void close() {
+        }
+    }
+
+    /**
+     * キューに格納するメッセージ。
+     */
+    private static final class Envelope {
+
+        /** 関連メッセージID */
+        private final String correlationId;
+
+        /** ヘッダ */
+        private final Map<String, Object> headers;
+
+        /** ボディ部 */
+        private final byte[] body;
+
+        /** 有効期限(エポックミリ秒、無期限の場合は0) */
+        private final long expiresAt;
+
+        /** キューへの格納順の通番 */
+        private long arrival;
+
+        /** 取り出し済み、または破棄済みか否か(関連メッセージIDを持つメッセージのみ) */
+        private boolean taken = false;
+
+        /**
+         * コンストラクタ。
+         * @param correlationId 関連メッセージID
+         * @param headers ヘッダ
+         * @param body ボディ部
+         * @param expiresAt 有効期限
+         */
+        private Envelope(String correlationId, Map<String, Object> headers, byte[] body, long expiresAt) {
+            this.correlationId = correlationId;
+            this.headers = headers;
+            this.body = body;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * 有効期限を過ぎたか否か。
+         * @param now 現在時刻
+         * @return 有効期限を過ぎた場合は{@code true}
+         */
+        private boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    /**
+     * JVM内のキュー。
+     */
+    private static final class MemoryQueue {
+
+        /** キューの論理名 */
+        private final String name;
+
+        /** 関連メッセージIDを持たないメッセージ */
+        private final RingBuffer<Envelope> ring;
+
+        /** 関連メッセージIDを持つメッセージ(関連メッセージIDごと、格納順) */
+        private final LinkedHashMap<String, ArrayDeque<Envelope>> correlated =
+                new LinkedHashMap<String, ArrayDeque<Envelope>>();
+
+        /** 関連メッセージIDを持つメッセージ(格納順。取り出し済みのメッセージを含む) */
+        private final ArrayDeque<Envelope> correlatedArrivals = new ArrayDeque<Envelope>();
+
+        /** 関連メッセージIDを持つメッセージの件数 */
+        private int correlatedCount = 0;
+
+        /** 格納順の通番 */
+        private final AtomicLong arrivals = new AtomicLong();
+
+        /** 関連メッセージIDを指定せずに受信を待機しているスレッド */
+        private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+        /** 関連メッセージIDを指定して受信を待機しているスレッド */
+        private final ConcurrentHashMap<String, Thread> replyWaiters = new ConcurrentHashMap<String, Thread>();
+
+        /**
+         * コンストラクタ。
+         * @param name キューの論理名
+         * @param capacity 容量
+         */
+        private MemoryQueue(String name, int capacity) {
+            this.name = name;
+            this.ring = new RingBuffer<Envelope>(capacity);
+        }
+
+        /**
+         * メッセージを格納し、受信を待機しているスレッドを起こす。
+         *
+         * @param envelope メッセージ
+         * @param sendTimeout キューが満杯の場合に待機する時間(単位：ミリ秒)
+         * @return 格納できた場合は{@code true}
+         */
+        private boolean put(Envelope envelope, long sendTimeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sendTimeout);
+            while (!offer(envelope)) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, SEND_BACKOFF_NANOS);
+            }
+            if (envelope.correlationId != null) {
+                Thread replyWaiter = replyWaiters.get(envelope.correlationId);
+                if (replyWaiter != null) {
+                    LockSupport.unpark(replyWaiter);
+                }
+            }
+            Thread waiter = waiters.poll();
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+            return true;
+        }
+
+        /**
+         * メッセージを格納する。
+         * @param envelope メッセージ
+         * @return 格納できた場合は{@code true}、満杯の場合は{@code false}
+         */
+        private boolean offer(Envelope envelope) {
+            if (envelope.correlationId == null) {
+                envelope.arrival = arrivals.incrementAndGet();
+                return ring.offer(envelope);
+            }
+            synchronized (correlated) {
+                if (correlatedCount >= ring.capacity() && purgeExpired() == 0) {
+                    return false;
+                }
+                envelope.arrival = arrivals.incrementAndGet();
+                ArrayDeque<Envelope> envelopes = correlated.get(envelope.correlationId);
+                if (envelopes == null) {
+                    envelopes = new ArrayDeque<Envelope>(1);
+                    correlated.put(envelope.correlationId, envelopes);
+                }
+                envelopes.add(envelope);
+                correlatedArrivals.add(envelope);
+                correlatedCount++;
+                compactArrivals();
+                return true;
+            }
+        }
+
+        /**
+         * メッセージを取り出す。メッセージが存在しない場合は、格納されるかタイムアウトするまで待機する。
+         *
+         * @param correlationId 関連メッセージID(指定しない場合は{@code null})
+         * @param timeout タイムアウト(単位：ミリ秒)
+         * @return メッセージ(タイムアウトした場合、または割り込まれた場合は{@code null})
+         */
+        private Envelope take(String correlationId, long timeout) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            Thread current = Thread.currentThread();
+            while (true) {
+                Envelope envelope = poll(correlationId);
+                if (envelope != null) {
+                    return envelope;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return null;
+                }
+                register(correlationId, current);
+                try {
+                    // 登録前に格納されたメッセージを取りこぼさないよう、登録後に再確認する。
+                    envelope = poll(correlationId);
+                    if (envelope != null) {
+                        return envelope;
+                    }
+                    LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NANOS));
+                } finally {
+                    deregister(correlationId, current);
+                }
+            }
+        }
+
+        /**
+         * 受信を待機するスレッドを登録する。
+         * @param correlationId 関連メッセージID
+         * @param thread スレッド
+         */
+        private void register(String correlationId, Thread thread) {
+            if (correlationId == null) {
+                waiters.add(thread);
+            } else {
+                replyWaiters.put(correlationId, thread);
+            }
+        }
+
+        /**
+         * 受信を待機するスレッドの登録を解除する。
+         * @param correlationId 関連メッセージID
+         * @param thread スレッド
+         */
+        private void deregister(String correlationId, Thread thread) {
+            if (correlationId == null) {
+                waiters.remove(thread);
+            } else {
+                replyWaiters.remove(correlationId, thread);
+            }
+        }
+
+        /**
+         * 有効期間内のメッセージを取り出す。
+         * @param correlationId 関連メッセージID(指定しない場合は{@code null})
+         * @return メッセージ(存在しない場合は{@code null})
+         */
+        private Envelope poll(String correlationId) {
+            long now = System.currentTimeMillis();
+            if (correlationId != null) {
+                synchronized (correlated) {
+                    ArrayDeque<Envelope> envelopes = correlated.get(correlationId);
+                    if (envelopes == null) {
+                        return null;
+                    }
+                    Envelope envelope = pollUnexpired(envelopes, now);
+                    if (envelopes.isEmpty()) {
+                        correlated.remove(correlationId);
+                    }
+                    return envelope;
+                }
+            }
+            while (true) {
+                Envelope head = ring.peek();
+                synchronized (correlated) {
+                    Envelope oldest = oldestCorrelated();
+                    if (oldest != null && (head == null || oldest.arrival < head.arrival)) {
+                        // 関連メッセージIDごとの一覧も格納順のため、その先頭が最も先に格納されたメッセージとなる。
+                        ArrayDeque<Envelope> envelopes = correlated.get(oldest.correlationId);
+                        envelopes.poll();
+                        if (envelopes.isEmpty()) {
+                            correlated.remove(oldest.correlationId);
+                        }
+                        correlatedArrivals.poll();
+                        correlatedCount--;
+                        oldest.taken = true;
+                        if (!oldest.isExpired(now)) {
+                            return oldest;
+                        }
+                        continue;
+                    }
+                }
+                if (head == null) {
+                    return null;
+                }
+                Envelope envelope = ring.poll();
+                if (envelope != null && !envelope.isExpired(now)) {
+                    return envelope;
+                }
+            }
+        }
+
+        /**
+         * 関連メッセージIDを持つメッセージのうち、最も先に格納されたメッセージを返す。
+         * 取り出し済みのメッセージは、格納順の一覧から除く。
+         * 呼び出し元で{@link #correlated}のロックを取得していること。
+         *
+         * @return メッセージ(存在しない場合は{@code null})
+         */
+        private Envelope oldestCorrelated() {
+            Envelope oldest;
+            while ((oldest = correlatedArrivals.peek()) != null && oldest.taken) {
+                correlatedArrivals.poll();
+            }
+            return oldest;
+        }
+
+        /**
+         * 格納順の一覧に取り出し済みのメッセージが多く残っている場合に、それらを除く。
+         * <p/>
+         * 関連メッセージIDを指定した受信では一覧の途中のメッセージを取り出すため、
+         * 先頭のメッセージが取り出されない間も一覧が増え続けないようにする。
+         * 呼び出し元で{@link #correlated}のロックを取得していること。
+         */
+        private void compactArrivals() {
+            if (correlatedArrivals.size() <= correlatedCount * 2 + 16) {
+                return;
+            }
+            Iterator<Envelope> iterator = correlatedArrivals.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().taken) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * 関連メッセージIDが同じメッセージのうち、有効期間内の最も古いメッセージを取り出す。
+         * 取り出す前に見つかった、有効期間を過ぎたメッセージは破棄する。
+         * 呼び出し元で{@link #correlated}のロックを取得していること。
+         *
+         * @param envelopes 関連メッセージIDが同じメッセージ
+         * @param now 現在時刻
+         * @return メッセージ(存在しない場合は{@code null})
+         */
+        private Envelope pollUnexpired(ArrayDeque<Envelope> envelopes, long now) {
+            Envelope envelope;
+            while ((envelope = envelopes.poll()) != null) {
+                correlatedCount--;
+                envelope.taken = true;
+                if (!envelope.isExpired(now)) {
+                    return envelope;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 有効期間を過ぎた、関連メッセージIDを持つメッセージを破棄する。
+         * 呼び出し元で{@link #correlated}のロックを取得していること。
+         * @return 破棄した件数
+         */
+        private int purgeExpired() {
+            long now = System.currentTimeMillis();
+            int purged = 0;
+            Iterator<ArrayDeque<Envelope>> values = correlated.values().iterator();
+            while (values.hasNext()) {
+                ArrayDeque<Envelope> envelopes = values.next();
+                Iterator<Envelope> iterator = envelopes.iterator();
+                while (iterator.hasNext()) {
+                    Envelope envelope = iterator.next();
+                    if (envelope.isExpired(now)) {
+                        envelope.taken = true;
+                        iterator.remove();
+                        purged++;
+                    }
+                }
+                if (envelopes.isEmpty()) {
+                    values.remove();
+                }
+            }
+            correlatedCount -= purged;
+            return purged;
+        }
+
+        /**
+         * 滞留しているメッセージの件数を返す。
+         * @return メッセージの件数
+         */
+        private int size() {
+            synchronized (correlated) {
+                return ring.size() + correlatedCount;
+            }
+        }
+    }
+}
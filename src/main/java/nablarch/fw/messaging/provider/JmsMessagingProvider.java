@@ -0,0 +1,1772 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.jms.BytesMessage;
+import jakarta.jms.Connection;
+import jakarta.jms.ConnectionFactory;
+import jakarta.jms.DeliveryMode;
+import jakarta.jms.Destination;
+import jakarta.jms.ExceptionListener;
+import jakarta.jms.JMSException;
+import jakarta.jms.Message;
+import jakarta.jms.MessageConsumer;
+import jakarta.jms.MessageProducer;
+import jakarta.jms.Queue;
+import jakarta.jms.Session;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.annotation.Published;
+import nablarch.fw.messaging.InterSystemMessage.HeaderName;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * Jakarta Messaging(JMS)を利用したメッセージング機能の実装。
+ * <p/>
+ * 各JMSプロバイダが実装するConnectionFactoryおよびQueueオブジェクトを設定することにより、
+ * メッセージング機能が利用可能となる。
+ *
+ * <div><b>コネクションとセッションの共有</b></div>
+ * <hr/>
+ * 本実装では、JMSコネクションを1つだけ生成し、全てのメッセージングコンテキストで共有する。
+ * JMSセッションはプールし、{@link MessagingContext#close()}でプールに返却する。
+ * セッションごとに以下のオブジェクトを保持し、セッションとともに再利用する。
+ * <ul>
+ * <li>宛先を指定せずに生成したMessageProducer(送信ごとに宛先を指定する)</li>
+ * <li>受信キューごとのMessageConsumer(関連メッセージIDを指定しない受信で使用する)</li>
+ * </ul>
+ * このため、コンテキストの生成や送受信ごとに、コネクション、セッション、
+ * MessageProducerを生成するコストは発生しない。
+ * ただし、関連メッセージIDを指定した受信(同期送信の応答受信)は、
+ * JMSの仕様上メッセージセレクタを変更できないため、受信ごとにMessageConsumerを生成する。
+ * <p/>
+ * JMSコネクションで障害を検知した場合は、コネクションとプール中のセッションを破棄し、
+ * 次のコンテキスト生成時にコネクションを生成し直す。
+ * 送受信中にエラーが発生したセッションは、プールに返却せずに破棄する。
+ *
+ * <div><b>配信モード</b></div>
+ * <hr/>
+ * 送信メッセージの配信モードは、以下の優先順位で決定する。
+ * <ol>
+ * <li>送信メッセージのJMSDeliveryModeヘッダ</li>
+ * <li>{@link #setDestinationDeliveryModes(Map)}で宛先ごとに設定した配信モード</li>
+ * <li>{@link #setDeliveryMode(String)}で設定した配信モード(デフォルトは{@code PERSISTENT})</li>
+ * </ol>
+ * 非永続メッセージはメッセージングサーバでのディスク同期が発生しないため、永続メッセージに比べて高スループットとなるが、
+ * メッセージングサーバの障害時に失われる可能性がある。
+ * 永続メッセージのスループットを向上させる場合は、{@link #setTransacted(boolean)}でトランザクションを使用するセッションとし、
+ * {@link BatchingMessagingProvider}で確定をまとめること。
+ *
+ * <div><b>確認応答とトランザクション</b></div>
+ * <hr/>
+ * 受信したメッセージの確認応答は、以下のいずれかの方式で行う。
+ * <ul>
+ * <li>受信時に確認応答する({@code AUTO_ACKNOWLEDGE}。デフォルト)。</li>
+ * <li>{@link MessagingContext#acknowledge(ReceivedMessage)}で処理完了となった時点で確認応答する
+ *     ({@link #setAcknowledgeMode(String)}に{@code CLIENT_ACKNOWLEDGE}を設定した場合)。
+ *     JMSの確認応答はセッションで受信済みの全てのメッセージに対して行われるため、
+ *     コンテキストで受信したメッセージが全て処理完了となった時点でまとめて確認応答する。
+ *     確認応答していないメッセージが{@link #setAcknowledgeBatchSize(int)}の件数に達した場合は、
+ *     処理中のメッセージが全て処理完了となって確認応答を行うまで、次の受信を待機させる。
+ *     処理完了としないメッセージは、{@link MessagingContext#rollback()}またはコンテキストを閉じた時点で再配信の対象となる。
+ *     このため、確認応答を行うリーダ({@link nablarch.fw.messaging.reader.PrefetchingMessageReader}など)と組み合わせて使用すること。</li>
+ * <li>{@link MessagingContext#commit()}で送受信とともに確定する({@link #setTransacted(boolean)}に{@code true}を設定した場合)。
+ *     <b>確定しないままコンテキストを閉じた場合、送信したメッセージは破棄される。</b>
+ *     ハンドラキューは{@link MessagingContext#commit()}を呼び出さないため、
+ *     必ず{@link BatchingMessagingProvider}と組み合わせるか、アプリケーションで明示的に確定すること。</li>
+ * </ul>
+ *
+ * <div><b>メッセージリスナー</b></div>
+ * <hr/>
+ * {@link MessagingContext#addMessageListener(String, MessageListener)}をサポートする。
+ * リスナーの登録ごとに、共有するJMSコネクションから専用のJMSセッション({@code CLIENT_ACKNOWLEDGE})を生成し、
+ * 受信キューのMessageConsumerにJMSのメッセージリスナーを設定する。
+ * <p/>
+ * JMSの確認応答は、セッションで受信済みの全てのメッセージに対して行われる。
+ * このため、リスナーに配信したメッセージが全て{@link MessagingContext#acknowledge(ReceivedMessage)}で処理完了となった時点で、
+ * まとめて確認応答を行う。処理完了となったメッセージが{@link #setListenerAcknowledgeBatchSize(int)}の件数に達した場合は、
+ * 処理中のメッセージが全て処理完了となるまで、次のメッセージの配信を待機させる。
+ * 確認応答はリスナーを呼び出したスレッド以外から行われるため、JMSプロバイダが
+ * 任意のスレッドからの{@code Message#acknowledge()}を受け付けられる必要がある。
+ * <p/>
+ * リスナーが例外を送出した場合、およびJMSコネクションで障害を検知した場合は、
+ * リスナー専用のセッションを閉じて確認応答していないメッセージを再配信させ、
+ * {@link #setListenerRecoveryInterval(long)}の間隔でセッションの生成をリトライする。
+ * このため、処理済みのメッセージが再度配信される場合がある。
+ *
+ * <div><b>Poison電文の退避</b></div>
+ * <hr/>
+ * リトライ上限、退避キュー名称を指定することで、Poison電文を退避キューに転送することができる。
+ * ただし、この機能はJMSXDeliveryCountヘッダに依存しているため、同ヘッダを
+ * サポートしない一部のMOM製品/バージョンでは利用できない。
+ * メッセージリスナーに配信されたPoison電文は、退避キューに転送した上で、リスナーを呼び出さずに処理完了とする。
+ */
+public class JmsMessagingProvider implements MessagingProvider {
+
+    /** メッセージングログを出力するロガー */
+    private static final Logger LOGGER = LoggerManager.get("MESSAGING");
+
+    // ------------------------------------------------------ structure
+    /** JMSプロバイダによるコネクションファクトリ実装 */
+    private ConnectionFactory factory;
+
+    /** キューの論理名をキーとするJMS QueueオブジェクトのMap */
+    private volatile Map<String, Queue> queueTable = Collections.emptyMap();
+
+    /** JMS Queueオブジェクトをキーとする、キューの論理名のMap(逆引き用) */
+    private volatile Map<Destination, String> queueNameIndex = Collections.emptyMap();
+
+    /** キューの物理名をキーとする、キューの論理名のMap(逆引き用) */
+    private volatile Map<String, String> physicalQueueNameIndex = Collections.emptyMap();
+
+    /** 退避キュー論理名のパターン */
+    private String poisonQueueNamePattern = "%s.POISON";
+
+    /** デフォルト退避キューの論理名 */
+    private String defaultPoisonQueue = "DEFAULT.POISON";
+
+    /** MOMによる受信リトライ上限値 */
+    private int redeliveryLimit = 0;
+
+    /** 同期送信デフォルトタイムアウト値 (msec) */
+    private long timeout = 300 * 1000;
+
+    /** 送信電文デフォルト有効期間 (msec) */
+    private long timeToLive = 60 * 1000;
+
+    /** デフォルトの配信モード */
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+
+    /** 宛先の論理名ごとの配信モード */
+    private Map<String, Integer> destinationDeliveryModes = Collections.emptyMap();
+
+    /** トランザクションを使用するセッションとするか否か */
+    private boolean transacted = false;
+
+    /** トランザクションを使用しないセッションの確認応答モード */
+    private int acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+
+    /** プールするセッションの最大数 */
+    private int maxIdleSessions = 10;
+
+    /** コンテキストで受信したメッセージの確認応答をまとめて行う最大件数({@code CLIENT_ACKNOWLEDGE}の場合のみ) */
+    private int acknowledgeBatchSize = 50;
+
+    /** メッセージリスナーで受信したメッセージの確認応答をまとめて行う最大件数 */
+    private int listenerAcknowledgeBatchSize = 50;
+
+    /** メッセージリスナーの受信を再開する間隔 (msec) */
+    private long listenerRecoveryInterval = 5000;
+
+    /** {@link MessagingException}ファクトリ */
+    private MessagingExceptionFactory messagingExceptionFactory = new BasicMessagingExceptionFactory();
+
+    /** 共有するJMSコネクション */
+    private Connection connection = null;
+
+    /** プール中のセッション */
+    private final Deque<PooledSession> idleSessions = new ConcurrentLinkedDeque<PooledSession>();
+
+    /** プール中のセッション数 */
+    private final AtomicInteger idleSessionCount = new AtomicInteger();
+
+    /** 登録中のメッセージリスナー */
+    private final Set<Context.Subscription> subscriptions =
+            Collections.newSetFromMap(new ConcurrentHashMap<Context.Subscription, Boolean>());
+
+    /** 閉じられたか否か */
+    private volatile boolean closed = false;
+
+    // ------------------------------------------------- MessagingProvider API
+    /**
+     * {@inheritDoc}
+     * この実装では、プール中のセッションを使用するコンテキストを返す。
+     * プール中のセッションが存在しない場合は、共有するJMSコネクションからセッションを生成する。
+     */
+    public MessagingContext createContext() {
+        if (closed) {
+            throw new IllegalStateException("this messaging provider was closed.");
+        }
+        try {
+            return new Context(borrowSession(), this);
+        } catch (JMSException e) {
+            throw messagingExceptionFactory.createMessagingException("failed to create context", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 同期送信処理におけるデフォルトタイムアウト値を設定する。
+     * デフォルトタイムアウトを明示的に設定しなかった場合のデフォルトタイムアウトは
+     * 5分間となる。
+     */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 送信電文のデフォルト有効期間を設定する。
+     * デフォルト値を明示的に設定しなかった場合の有効期間は60秒(60000msec)となる。
+     */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        this.messagingExceptionFactory = messagingExceptionFactory;
+        return this;
+    }
+
+    /**
+     * プール中のセッションと、共有するJMSコネクションを閉じる。
+     * <p/>
+     * 本メソッドの呼び出し後は、コンテキストを生成できない。
+     * 使用中のコンテキストのセッションは、コンテキストを閉じた時点で破棄する。
+     */
+    public void close() {
+        closed = true;
+        PooledSession session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            idleSessionCount.decrementAndGet();
+            session.close();
+        }
+        synchronized (this) {
+            closeConnection(connection);
+            connection = null;
+        }
+    }
+
+    // ------------------------------------------------- session pooling
+    /**
+     * プールからセッションを取り出す。
+     * プール中のセッションが存在しない場合は生成する。
+     *
+     * @return セッション
+     * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+     */
+    private PooledSession borrowSession() throws JMSException {
+        Connection current = getConnection();
+        PooledSession session;
+        while ((session = idleSessions.pollFirst()) != null) {
+            idleSessionCount.decrementAndGet();
+            if (session.connection == current) {
+                return session;
+            }
+            // 障害により破棄したコネクションのセッション
+            session.close();
+        }
+        return new PooledSession(current, current.createSession(transacted,
+                transacted ? Session.SESSION_TRANSACTED : acknowledgeMode));
+    }
+
+    /**
+     * セッションをプールに返却する。
+     * <p/>
+     * エラーが発生したセッション、破棄したコネクションのセッション、
+     * およびプールが満杯の場合は、返却せずに閉じる。
+     *
+     * @param session セッション
+     */
+    void releaseSession(PooledSession session) {
+        boolean reusable;
+        synchronized (this) {
+            reusable = !closed && !session.broken && session.connection == connection;
+        }
+        if (reusable && idleSessionCount.incrementAndGet() <= maxIdleSessions) {
+            idleSessions.offerFirst(session);
+            return;
+        }
+        if (reusable) {
+            idleSessionCount.decrementAndGet();
+        }
+        session.close();
+    }
+
+    /**
+     * 共有するJMSコネクションを返す。
+     * 未生成の場合、または障害により破棄した場合は生成する。
+     *
+     * @return JMSコネクション
+     * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+     */
+    private synchronized Connection getConnection() throws JMSException {
+        if (connection != null) {
+            return connection;
+        }
+        final Connection created = factory.createConnection();
+        try {
+            created.setExceptionListener(new ExceptionListener() {
+                public void onException(JMSException e) {
+                    LOGGER.logWarn("JMS connection failure was detected. the connection will be recreated.", e);
+                    invalidateConnection(created);
+                    for (Context.Subscription subscription : subscriptions) {
+                        if (subscription.markBroken(created)) {
+                            recover(subscription);
+                        }
+                    }
+                }
+            });
+            created.start();
+        } catch (JMSException e) {
+            closeConnection(created);
+            throw e;
+        }
+        connection = created;
+        return created;
+    }
+
+    /**
+     * 障害を検知したJMSコネクションを破棄する。
+     * <p/>
+     * 当該コネクションのセッションは、プールからの取り出し時または返却時に破棄する。
+     *
+     * @param failed 障害を検知したJMSコネクション
+     */
+    private synchronized void invalidateConnection(Connection failed) {
+        if (connection == failed) {
+            connection = null;
+            closeConnection(failed);
+        }
+    }
+
+    /**
+     * 障害が発生したメッセージリスナーの受信を、別スレッドで再開する。
+     * <p/>
+     * 再開に失敗した場合は、{@link #setListenerRecoveryInterval(long)}の間隔でリトライする。
+     * リスナーの登録が解除された場合、および本プロバイダが閉じられた場合はリトライを終了する。
+     *
+     * @param subscription メッセージリスナーの登録
+     */
+    void recover(final Context.Subscription subscription) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (!closed && subscription.isBroken()) {
+                    try {
+                        subscription.restart();
+                    } catch (JMSException e) {
+                        LOGGER.logWarn("could not restart the message listener. it will be retried. "
+                                     + "receiveQueue = [" + subscription.queueName + "]", e);
+                        try {
+                            Thread.sleep(listenerRecoveryInterval);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "JmsMessagingProvider-listener-recovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * JMSコネクションを閉じる。
+     * @param conn JMSコネクション
+     */
+    private static void closeConnection(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.close();
+        } catch (JMSException e) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.logTrace("could not close JMS Connection.", e);
+            }
+        }
+    }
+
+    // --------------------------------------------------------- queue lookup
+    /**
+     * 指定されたキュー名に対するJMSQueueインスタンスを返す。
+     *
+     * @param queueName 取得するキューの論理名
+     * @return JMSQueueインスタンス
+     * @throws MessagingException 指定されたキュー名に対するキューオブジェクトが登録されていなかった場合。
+     */
+    Queue getQueueOf(String queueName) throws MessagingException {
+        if (queueName == null) {
+            return null;
+        }
+        Queue queue = queueTable.get(queueName);
+        if (queue == null) {
+            throw new MessagingException("unknown queue name: " + queueName);
+        }
+        return queue;
+    }
+
+    /**
+     * 指定されたJMSキューの論理名を逆引きする。
+     * キューが登録されていない場合はnullを返す。
+     *
+     * @param queue キューインスタンス
+     * @return キューの論理名
+     * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+     */
+    String getQueueNameOf(Destination queue) throws JMSException {
+        if (queue == null) {
+            return null;
+        }
+        String name = queueNameIndex.get(queue);
+        if (name == null && queue instanceof Queue) {
+            // 受信したメッセージのDestinationは、設定したQueueとは別のインスタンスとなるため、物理名で逆引きする。
+            name = physicalQueueNameIndex.get(((Queue) queue).getQueueName());
+        }
+        return name;
+    }
+
+    /**
+     * 指定された宛先に送信するメッセージの配信モードを返す。
+     * @param queueName 宛先の論理名
+     * @param headers 送信メッセージのヘッダ
+     * @return 配信モード
+     */
+    int deliveryModeOf(String queueName, Map<String, Object> headers) {
+        Object mode = headers.get(Context.JmsHeaderName.DELIVERY_MODE);
+        if (mode != null) {
+            return (Integer) mode;
+        }
+        Integer destinationMode = destinationDeliveryModes.get(queueName);
+        return (destinationMode != null) ? destinationMode : deliveryMode;
+    }
+
+    /**
+     * 配信モードの名称を、JMSの配信モードに変換する。
+     * @param name 配信モードの名称
+     * @return JMSの配信モード
+     * @throws IllegalArgumentException 配信モードの名称が不正な場合
+     */
+    private static int toDeliveryMode(String name) throws IllegalArgumentException {
+        if ("PERSISTENT".equals(name)) {
+            return DeliveryMode.PERSISTENT;
+        }
+        if ("NON_PERSISTENT".equals(name)) {
+            return DeliveryMode.NON_PERSISTENT;
+        }
+        throw new IllegalArgumentException(
+            "deliveryMode must be PERSISTENT or NON_PERSISTENT. deliveryMode = [" + name + "]");
+    }
+
+    // --------------------------------------------------------- accessors
+    /**
+     * コネクションファクトリを設定する。
+     * <p/>
+     * 本クラスはコネクションを1つだけ生成して共有するため、
+     * コネクションプール機能を内蔵したコネクションファクトリを使用する必要はない。
+     *
+     * @param factory コネクションファクトリ
+     * @return このオブジェクト自体
+     */
+    @Published(tag = "architect")
+    public JmsMessagingProvider setConnectionFactory(ConnectionFactory factory) {
+        this.factory = factory;
+        return this;
+    }
+
+    /**
+     * メッセージング機能で使用する宛先の論理名とJMS Destinationオブジェクトとの
+     * マッピングを設定する。
+     * （既存の設定があった場合は上書きされる。）
+     *
+     * @param table キューの論理名とそれに対応するQueueオブジェクトとのマッピング
+     * @return このオブジェクト自体
+     * @throws IllegalArgumentException キューの物理名が取得できない場合
+     */
+    @Published(tag = "architect")
+    public JmsMessagingProvider setDestinations(Map<String, Queue> table) {
+        Map<String, Queue> queues = new HashMap<String, Queue>(table);
+        Map<Destination, String> names = new HashMap<Destination, String>();
+        Map<String, String> physicalNames = new HashMap<String, String>();
+        for (Entry<String, Queue> entry : queues.entrySet()) {
+            names.put(entry.getValue(), entry.getKey());
+            try {
+                physicalNames.put(entry.getValue().getQueueName(), entry.getKey());
+            } catch (JMSException e) {
+                throw new IllegalArgumentException(
+                    "could not get the physical name of the queue. queueName = [" + entry.getKey() + "]", e);
+            }
+        }
+        queueTable = queues;
+        queueNameIndex = names;
+        physicalQueueNameIndex = physicalNames;
+        return this;
+    }
+
+    /**
+     * デフォルトの配信モードを設定する。
+     * <p/>
+     * {@code PERSISTENT}または{@code NON_PERSISTENT}を指定する。
+     * デフォルトは{@code PERSISTENT}。
+     *
+     * @param deliveryMode 配信モード
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setDeliveryMode(String deliveryMode) {
+        this.deliveryMode = toDeliveryMode(deliveryMode);
+        return this;
+    }
+
+    /**
+     * 宛先ごとの配信モードを設定する。
+     * <p/>
+     * 宛先の論理名をキー、配信モード({@code PERSISTENT}または{@code NON_PERSISTENT})を値とするMapを指定する。
+     * 設定しなかった宛先には、{@link #setDeliveryMode(String)}で設定した配信モードを使用する。
+     *
+     * @param deliveryModes 宛先ごとの配信モード
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setDestinationDeliveryModes(Map<String, String> deliveryModes) {
+        Map<String, Integer> modes = new HashMap<String, Integer>();
+        for (Entry<String, String> entry : deliveryModes.entrySet()) {
+            modes.put(entry.getKey(), toDeliveryMode(entry.getValue()));
+        }
+        destinationDeliveryModes = modes;
+        return this;
+    }
+
+    /**
+     * トランザクションを使用するセッションとするか否かを設定する。
+     * <p/>
+     * {@code true}を設定した場合、送受信は{@link MessagingContext#commit()}を呼び出すまで確定しない。
+     * <b>確定しないままコンテキストを閉じた場合、送受信は取り消され、送信したメッセージは破棄される。</b>
+     * ハンドラキューは{@link MessagingContext#commit()}を呼び出さないため、
+     * 必ず{@link BatchingMessagingProvider}と組み合わせるか、アプリケーションで明示的に確定すること。
+     * 確定しないまま閉じたコンテキストを検知した場合は、ワーニングレベルのログを出力する。
+     * <p/>
+     * {@code true}を設定した場合、{@link #setAcknowledgeMode(String)}の設定は使用しない。
+     * デフォルトは{@code false}。
+     *
+     * @param transacted トランザクションを使用するセッションとする場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setTransacted(boolean transacted) {
+        this.transacted = transacted;
+        return this;
+    }
+
+    /**
+     * トランザクションを使用しないセッションの確認応答モードを設定する。
+     * <p/>
+     * 以下のいずれかを指定する。デフォルトは{@code AUTO_ACKNOWLEDGE}。
+     * <ul>
+     * <li>{@code AUTO_ACKNOWLEDGE} : 受信時に確認応答する。</li>
+     * <li>{@code CLIENT_ACKNOWLEDGE} : コンテキストで受信したメッセージが全て
+     *     {@link MessagingContext#acknowledge(ReceivedMessage)}で処理完了となった時点で確認応答する。
+     *     {@link MessagingContext#rollback()}を呼び出した場合、およびコンテキストを閉じた時点で処理完了となっていないメッセージは、
+     *     再配信の対象となる。</li>
+     * </ul>
+     *
+     * @param acknowledgeMode 確認応答モード
+     * @return このオブジェクト自体
+     * @throws IllegalArgumentException 確認応答モードが不正な場合
+     */
+    public JmsMessagingProvider setAcknowledgeMode(String acknowledgeMode) {
+        if ("AUTO_ACKNOWLEDGE".equals(acknowledgeMode)) {
+            this.acknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+        } else if ("CLIENT_ACKNOWLEDGE".equals(acknowledgeMode)) {
+            this.acknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
+        } else {
+            throw new IllegalArgumentException("acknowledgeMode must be AUTO_ACKNOWLEDGE or CLIENT_ACKNOWLEDGE. "
+                    + "acknowledgeMode = [" + acknowledgeMode + "]");
+        }
+        return this;
+    }
+
+    /**
+     * 受信時に確認応答せず、{@link MessagingContext#acknowledge(ReceivedMessage)}で確認応答するか否かを返す。
+     * @return {@code CLIENT_ACKNOWLEDGE}のセッションを使用する場合は{@code true}
+     */
+    private boolean isClientAcknowledge() {
+        return !transacted && acknowledgeMode == Session.CLIENT_ACKNOWLEDGE;
+    }
+
+    /**
+     * プールするセッションの最大数を設定する。
+     * <p/>
+     * 同時に使用するコンテキストの数(通常はスレッド数)以上の値を設定すること。
+     * 最大数を超えて返却されたセッションは閉じる。
+     * デフォルトは10。
+     *
+     * @param maxIdleSessions プールするセッションの最大数
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setMaxIdleSessions(int maxIdleSessions) {
+        if (maxIdleSessions < 0) {
+            throw new IllegalArgumentException(
+                "maxIdleSessions must not be negative. maxIdleSessions = [" + maxIdleSessions + "]");
+        }
+        this.maxIdleSessions = maxIdleSessions;
+        return this;
+    }
+
+    /**
+     * コンテキストで受信したメッセージの確認応答をまとめて行う最大件数を設定する。
+     * <p/>
+     * {@link #setAcknowledgeMode(String)}に{@code CLIENT_ACKNOWLEDGE}を設定した場合のみ有効となる。
+     * 確認応答していないメッセージがこの件数に達した場合、処理中のメッセージが全て処理完了となって
+     * 確認応答を行うまで、メッセージIDを指定しない受信を待機させる(待機は受信タイムアウトまで)。
+     * 先読みを行うリーダなどで受信が続く場合も、この件数ごとに確認応答が行われる。
+     * 1つのスレッドで受信と処理完了を交互に行う場合は待機しないが、
+     * 複数件をまとめて受信してから処理完了とする場合は、まとめて受信する件数以上の値を設定すること。
+     * デフォルトは50。
+     *
+     * @param acknowledgeBatchSize 確認応答をまとめて行う最大件数
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setAcknowledgeBatchSize(int acknowledgeBatchSize) {
+        if (acknowledgeBatchSize <= 0) {
+            throw new IllegalArgumentException("acknowledgeBatchSize must be greater than 0. "
+                    + "acknowledgeBatchSize = [" + acknowledgeBatchSize + "]");
+        }
+        this.acknowledgeBatchSize = acknowledgeBatchSize;
+        return this;
+    }
+
+    /**
+     * メッセージリスナーで受信したメッセージの確認応答をまとめて行う最大件数を設定する。
+     * <p/>
+     * 処理完了となったメッセージがこの件数に達した場合、処理中のメッセージが全て処理完了となって
+     * 確認応答を行うまで、次のメッセージの配信を待機させる。
+     * 大きな値を設定すると確認応答の回数は減るが、障害時に再配信されるメッセージが増える。
+     * デフォルトは50。
+     *
+     * @param listenerAcknowledgeBatchSize 確認応答をまとめて行う最大件数
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setListenerAcknowledgeBatchSize(int listenerAcknowledgeBatchSize) {
+        if (listenerAcknowledgeBatchSize <= 0) {
+            throw new IllegalArgumentException("listenerAcknowledgeBatchSize must be greater than 0. "
+                    + "listenerAcknowledgeBatchSize = [" + listenerAcknowledgeBatchSize + "]");
+        }
+        this.listenerAcknowledgeBatchSize = listenerAcknowledgeBatchSize;
+        return this;
+    }
+
+    /**
+     * 障害が発生したメッセージリスナーの受信の再開をリトライする間隔を設定する。
+     * <p/>
+     * デフォルトは5000ミリ秒。
+     *
+     * @param listenerRecoveryInterval リトライ間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setListenerRecoveryInterval(long listenerRecoveryInterval) {
+        if (listenerRecoveryInterval <= 0) {
+            throw new IllegalArgumentException("listenerRecoveryInterval must be greater than 0. "
+                    + "listenerRecoveryInterval = [" + listenerRecoveryInterval + "]");
+        }
+        this.listenerRecoveryInterval = listenerRecoveryInterval;
+        return this;
+    }
+
+    /**
+     * 各受信キューに対する退避キューの論理名を決定する際に使用する
+     * パターン文字列を設定する。
+     * 明示的に指定しなかった場合のデフォルトは、
+     * <code>(受信キュー名).POISON</code>
+     * となる。
+     * 当該のキューが存在しなかった場合はデフォルトの退避キュー名を使用する。
+     *
+     * @param pattern 退避キューの論理名を決定する際に使用するパターン文字列
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setPoisonQueueNamePattern(String pattern) {
+        poisonQueueNamePattern = pattern;
+        return this;
+    }
+
+    /**
+     * デフォルトで使用する受信退避キューの論理名を設定する。
+     * 当該のキューが存在しなかった場合は、MessagingExceptionを送出する。
+     * 明示的に指定しなかった場合は、<code>DEFAULT.POISON</code>を使用する。
+     *
+     * @param queueName キュー名称
+     * @return このオブジェクト自体
+     */
+    public JmsMessagingProvider setDefaultPoisonQueue(String queueName) {
+        defaultPoisonQueue = queueName;
+        return this;
+    }
+
+    /**
+     * MOMによる受信リトライの上限回数を設定する。
+     * 受信メッセージのJMSXDeliveryCountヘッダの値がこの上限値を越えると、
+     * メッセージを退避キューに転送した上で、MessagingExceptionを送出する。
+     *
+     * この値が0以下の数値であった場合は、退避処理自体が無効化される。
+     * 明示的に指定しない場合のデフォルトは0である。
+     *
+     * @param limit 受信リトライの上限回数
+     * @return このオブジェクト自体。
+     */
+    public JmsMessagingProvider setRedeliveryLimit(int limit) {
+        redeliveryLimit = limit;
+        return this;
+    }
+
+    /**
+     * プールされるJMSセッション。
+     * <p/>
+     * セッションとともに再利用するMessageProducerおよびMessageConsumerを保持する。
+     */
+    static final class PooledSession {
+
+        /** セッションを生成したJMSコネクション */
+        private final Connection connection;
+
+        /** JMSセッション */
+        private final Session session;
+
+        /** 宛先を指定せずに生成したMessageProducer */
+        private final MessageProducer producer;
+
+        /** 受信キューの論理名ごとのMessageConsumer */
+        private final Map<String, MessageConsumer> consumers = new HashMap<String, MessageConsumer>();
+
+        /** エラーが発生したか否か */
+        private boolean broken = false;
+
+        /**
+         * コンストラクタ。
+         * @param connection セッションを生成したJMSコネクション
+         * @param session JMSセッション
+         * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+         */
+        private PooledSession(Connection connection, Session session) throws JMSException {
+            this.connection = connection;
+            this.session = session;
+            try {
+                this.producer = session.createProducer(null);
+            } catch (JMSException e) {
+                closeQuietly(session);
+                throw e;
+            }
+        }
+
+        /**
+         * 受信キューに対するMessageConsumerを返す。
+         * 未生成の場合は生成してキャッシュする。
+         *
+         * @param queueName 受信キューの論理名
+         * @param queue 受信キュー
+         * @return MessageConsumer
+         * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+         */
+        private MessageConsumer consumerOf(String queueName, Queue queue) throws JMSException {
+            MessageConsumer consumer = consumers.get(queueName);
+            if (consumer == null) {
+                consumer = session.createConsumer(queue);
+                consumers.put(queueName, consumer);
+            }
+            return consumer;
+        }
+
+        /**
+         * セッションを閉じる。
+         * <p/>
+         * セッションを閉じると、セッションから生成したMessageProducerおよびMessageConsumerも閉じられる。
+         */
+        private void close() {
+            closeQuietly(session);
+        }
+
+        /**
+         * JMSセッションを閉じる。
+         * @param session JMSセッション
+         */
+        private static void closeQuietly(Session session) {
+            try {
+                session.close();
+            } catch (JMSException e) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.logTrace("could not close JMS Session.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * メッセージングコンテキストのJMSベース実装
+     */
+    public static class Context extends MessagingContext {
+        // ---------------------------------------------------- Structure
+        /** このインスタンスが使用するJMSセッション */
+        private final PooledSession pooled;
+
+        /** 各種設定 */
+        private final JmsMessagingProvider provider;
+
+        /** 受信キューの論理名ごとのメッセージリスナーの登録 */
+        private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+
+        /** 受信して処理完了となっていないメッセージ({@code CLIENT_ACKNOWLEDGE}の場合のみ) */
+        private final Set<ReceivedMessage> processing =
+                Collections.newSetFromMap(new IdentityHashMap<ReceivedMessage, Boolean>());
+
+        /** 受信して確認応答していないメッセージの件数({@code CLIENT_ACKNOWLEDGE}の場合のみ) */
+        private int delivered = 0;
+
+        /** 受信して確認応答していないメッセージのうち、処理完了となった件数({@code CLIENT_ACKNOWLEDGE}の場合のみ) */
+        private int completed = 0;
+
+        /** 最後に受信したメッセージ({@code CLIENT_ACKNOWLEDGE}の場合のみ) */
+        private Message lastReceived;
+
+        /** 確定していない送受信があるか否か(トランザクションを使用するセッションの場合のみ) */
+        private boolean uncommitted = false;
+
+        /** 閉じられたか否か */
+        private boolean closed = false;
+
+        // ---------------------------------------------------- Constructor
+        /**
+         * コンストラクタ
+         *
+         * @param pooled プールされるJMSセッション
+         * @param provider 各種設定
+         */
+        Context(PooledSession pooled, JmsMessagingProvider provider) {
+            this.pooled = pooled;
+            this.provider = provider;
+        }
+
+        // ---------------------------------------------- MessagingContext API
+        /**
+         * {@inheritDoc}
+         * この実装では、セッションをプールに返却する。
+         * トランザクションを使用するセッションの場合は、確定していない送受信を取り消した上で返却する。
+         * 送信したメッセージが破棄されるため、確定していない送受信があった場合はワーニングレベルのログを出力する。
+         * {@code CLIENT_ACKNOWLEDGE}の場合、受信したメッセージが全て処理完了となっていれば確認応答し、
+         * そうでなければ確認応答していないメッセージを再配信の対象とした上で返却する。
+         * 登録中のメッセージリスナーは解除する。
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (String receiveQueue : subscriptions.keySet()) {
+                unregisterMessageListener(receiveQueue);
+            }
+            if (provider.transacted && !pooled.broken) {
+                if (uncommitted) {
+                    LOGGER.logWarn("the context was closed without commit. uncommitted sent messages were discarded "
+                                 + "and received messages will be redelivered. "
+                                 + "a transacted session must be committed by MessagingContext#commit() "
+                                 + "(e.g. with BatchingMessagingProvider).");
+                }
+                try {
+                    pooled.session.rollback();
+                } catch (JMSException e) {
+                    pooled.broken = true;
+                }
+            }
+            if (provider.isClientAcknowledge() && !pooled.broken) {
+                try {
+                    synchronized (this) {
+                        if (delivered > 0 && completed == delivered) {
+                            lastReceived.acknowledge();
+                        } else if (delivered > 0) {
+                            pooled.session.recover();
+                        }
+                        resetAcknowledgement();
+                    }
+                } catch (JMSException e) {
+                    pooled.broken = true;
+                }
+            }
+            provider.releaseSession(pooled);
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、JMSの実装系を使用して送信処理を行う。
+         */
+        public String sendMessage(SendingMessage message) {
+            try {
+                BytesMessage jmsMessage = pooled.session.createBytesMessage();
+                Map<String, Object> headers = message.getHeaderMap();
+                writeHeadersTo(jmsMessage, headers);
+                jmsMessage.writeBytes(message.getBodyBytes());
+
+                String destination = message.getDestination();
+                Object priority = headers.get(JmsHeaderName.PRIORITY);
+                long ttl = headers.containsKey(HeaderName.TIME_TO_LIVE) ? message.getTimeToLive()
+                                                                        : provider.timeToLive;
+                pooled.producer.send(provider.getQueueOf(destination),
+                                     jmsMessage,
+                                     provider.deliveryModeOf(destination, headers),
+                                     (priority != null) ? (Integer) priority : Message.DEFAULT_PRIORITY,
+                                     ttl);
+
+                String messageId = jmsMessage.getJMSMessageID();
+                message.setMessageId(messageId);
+                uncommitted = provider.transacted;
+                return messageId;
+
+            } catch (JMSException e) {
+                pooled.broken = true;
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "an error occurred while sending the message.", e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、JMSの実装系を使用して指定されたキュー上のメッセージの
+         * 同期受信を行う。
+         */
+        public ReceivedMessage receiveMessage(String queueName, String messageId, long timeout) {
+            MessageConsumer selectorConsumer = null;
+            try {
+                timeout = (timeout <= 0) ? provider.timeout
+                                         : timeout;
+                Queue queue = provider.getQueueOf(queueName);
+                MessageConsumer consumer;
+                if (messageId != null) {
+                    selectorConsumer = pooled.session.createConsumer(
+                            queue, "JMSCorrelationID = '" + messageId + "'");
+                    consumer = selectorConsumer;
+                } else {
+                    if (provider.isClientAcknowledge() && !awaitAcknowledgement(timeout)) {
+                        return null;
+                    }
+                    consumer = pooled.consumerOf(queueName, queue);
+                }
+                Message received = consumer.receive(timeout);
+                if (received == null) {
+                    return null;
+                }
+                uncommitted = provider.transacted;
+                if (provider.isClientAcknowledge()) {
+                    synchronized (this) {
+                        delivered++;
+                        lastReceived = received;
+                    }
+                }
+                if (received.getJMSRedelivered()) {
+                    rejectIfExpiresRedeliverLimit(received, queueName);
+                }
+                ReceivedMessage message = toReceivedMessage(received);
+                if (provider.isClientAcknowledge()) {
+                    synchronized (this) {
+                        processing.add(message);
+                    }
+                }
+                return message;
+
+            } catch (JMSException e) {
+                pooled.broken = true;
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "an error occurred while receiving a message.", e);
+            } finally {
+                if (selectorConsumer != null) {
+                    try {
+                        selectorConsumer.close();
+                    } catch (JMSException e) {
+                        LOGGER.logWarn("could not close JMS Consumer.", e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、メッセージリスナー専用のJMSセッションを生成し、
+         * 受信キューのMessageConsumerにJMSのメッセージリスナーを設定する。
+         *
+         * @throws IllegalStateException 同じ受信キューに既にリスナーが登録されている場合
+         * @throws MessagingException リスナーの登録に失敗した場合
+         */
+        @Override
+        protected void registerMessageListener(String receiveQueue, MessageListener listener) {
+            if (subscriptions.containsKey(receiveQueue)) {
+                throw new IllegalStateException(
+                    "a message listener was already registered. receiveQueue = [" + receiveQueue + "]");
+            }
+            Subscription subscription = new Subscription(receiveQueue, provider.getQueueOf(receiveQueue), listener);
+            try {
+                subscription.start();
+            } catch (JMSException e) {
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "failed to register the message listener. receiveQueue = [" + receiveQueue + "]", e);
+            }
+            subscriptions.put(receiveQueue, subscription);
+            provider.subscriptions.add(subscription);
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、処理完了となったメッセージの確認応答を行った上で、リスナー専用のJMSセッションを閉じる。
+         * 処理が完了していないメッセージは再配信の対象となる。
+         */
+        @Override
+        protected void unregisterMessageListener(String receiveQueue) {
+            Subscription subscription = subscriptions.remove(receiveQueue);
+            if (subscription == null) {
+                return;
+            }
+            provider.subscriptions.remove(subscription);
+            subscription.stop();
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、メッセージリスナーに配信したメッセージを処理完了とし、
+         * 配信したメッセージが全て処理完了となった時点で確認応答を行う。
+         * {@code CLIENT_ACKNOWLEDGE}の場合は、本コンテキストで受信したメッセージも同様に確認応答を行う。
+         * それ以外のメッセージは受信時に確認応答済みのため、何もしない。
+         *
+         * @throws MessagingException 確認応答に失敗した場合
+         */
+        @Override
+        public void acknowledge(ReceivedMessage message) {
+            for (Subscription subscription : subscriptions.values()) {
+                if (subscription.acknowledge(message)) {
+                    return;
+                }
+            }
+            if (!provider.isClientAcknowledge()) {
+                return;
+            }
+            synchronized (this) {
+                if (!processing.remove(message)) {
+                    return;
+                }
+                completed++;
+                acknowledgeIfCompleted();
+            }
+        }
+
+        /**
+         * 確認応答していないメッセージが確認応答をまとめて行う最大件数に達している場合に、
+         * 処理中のメッセージが全て処理完了となって確認応答を行うまで待機する。
+         *
+         * @param timeout 待機時間(単位：ミリ秒)
+         * @return 受信できる場合は{@code true}、待機時間を過ぎた場合または待機中に割り込まれた場合は{@code false}
+         */
+        private synchronized boolean awaitAcknowledgement(long timeout) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (delivered >= provider.acknowledgeBatchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 受信したメッセージが全て処理完了となっている場合に、確認応答を行う。
+         * <p/>
+         * 本メソッドは、本オブジェクトのロックを取得した状態で呼び出すこと。
+         *
+         * @throws MessagingException 確認応答に失敗した場合
+         */
+        private void acknowledgeIfCompleted() {
+            if (completed == 0 || completed < delivered) {
+                return;
+            }
+            try {
+                lastReceived.acknowledge();
+            } catch (JMSException e) {
+                pooled.broken = true;
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "an error occurred while acknowledging messages.", e);
+            }
+            resetAcknowledgement();
+        }
+
+        /**
+         * 受信したメッセージの確認応答の状態を初期化し、確認応答を待機している受信を再開させる。
+         * <p/>
+         * 本メソッドは、本オブジェクトのロックを取得した状態で呼び出すこと。
+         */
+        private void resetAcknowledgement() {
+            processing.clear();
+            delivered = 0;
+            completed = 0;
+            lastReceived = null;
+            notifyAll();
+        }
+
+        /**
+         * {@inheritDoc}
+         * トランザクションを使用しないセッションの場合は何もしない。
+         */
+        @Override
+        public void commit() throws MessagingException {
+            if (!provider.transacted) {
+                return;
+            }
+            try {
+                pooled.session.commit();
+                uncommitted = false;
+            } catch (JMSException e) {
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "an error occurred while committing the session.", e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * {@code CLIENT_ACKNOWLEDGE}の場合は、確認応答していない受信メッセージを再配信の対象とする。
+         * (処理完了となったものの、確認応答していないメッセージも再配信される。)
+         * それ以外のトランザクションを使用しないセッションの場合は何もしない。
+         */
+        @Override
+        public void rollback() throws MessagingException {
+            if (provider.isClientAcknowledge()) {
+                try {
+                    synchronized (this) {
+                        if (delivered > 0) {
+                            pooled.session.recover();
+                        }
+                        resetAcknowledgement();
+                    }
+                } catch (JMSException e) {
+                    pooled.broken = true;
+                    throw provider.messagingExceptionFactory.createMessagingException(
+                            "an error occurred while recovering the session.", e);
+                }
+                return;
+            }
+            if (!provider.transacted) {
+                return;
+            }
+            try {
+                pooled.session.rollback();
+                uncommitted = false;
+            } catch (JMSException e) {
+                pooled.broken = true;
+                throw provider.messagingExceptionFactory.createMessagingException(
+                        "an error occurred while rolling back the session.", e);
+            }
+        }
+
+        // ------------------------------------------------------ helper methods
+        /**
+         * JMSメッセージを受信メッセージに変換する。
+         * @param received JMSメッセージ
+         * @return 受信メッセージ
+         * @throws JMSException JMS API側の内部で問題が発生した場合。
+         */
+        private ReceivedMessage toReceivedMessage(Message received) throws JMSException {
+            ReceivedMessage message;
+            // メッセージボディ
+            if (received instanceof BytesMessage) {
+                BytesMessage bm = (BytesMessage) received;
+                byte[] unparsedData = new byte[(int) bm.getBodyLength()];
+                bm.readBytes(unparsedData);
+                message = new ReceivedMessage(unparsedData);
+
+            } else {
+                LOGGER.logWarn(
+                  "Could not parse the body of the received message, "
+                + "because the type of it was not 'BytesMessage'."
+                );
+                message = new ReceivedMessage(new byte[0]);
+            }
+            // メッセージヘッダー
+            readHeadersFrom(received, message.getHeaderMap());
+            return message;
+        }
+
+        /**
+         * JMSメッセージヘッダを読み込む。
+         * @param message JMSメッセージ
+         * @param headers ヘッダーを格納するマップ
+         * @throws JMSException JMS API側の内部で問題が発生した場合。
+         */
+        @SuppressWarnings("unchecked")
+        private void readHeadersFrom(Message message, Map<String, Object> headers)
+        throws JMSException {
+            /*
+             * 規定JMSヘッダー
+             */
+            headers.put(JmsHeaderName.MESSAGE_ID, message.getJMSMessageID());
+            headers.put(JmsHeaderName.CORRELATION_ID, message.getJMSCorrelationID());
+            headers.put(JmsHeaderName.DESTINATION, provider.getQueueNameOf(message.getJMSDestination()));
+            headers.put(JmsHeaderName.REPLY_TO, provider.getQueueNameOf(message.getJMSReplyTo()));
+            /*
+             * JMS標準ヘッダ
+             */
+            headers.put(JmsHeaderName.DELIVERY_MODE, message.getJMSDeliveryMode());
+            headers.put(JmsHeaderName.TYPE, message.getJMSType());
+            headers.put(JmsHeaderName.PRIORITY, message.getJMSPriority());
+            headers.put(JmsHeaderName.TIMESTAMP, message.getJMSTimestamp());
+            headers.put(JmsHeaderName.EXPIRATION, message.getJMSExpiration());
+            headers.put(JmsHeaderName.REDELIVERED, message.getJMSRedelivered());
+            /*
+             * ユーザ定義属性およびJMS拡張ヘッダ
+             */
+            Enumeration<String> propNames = message.getPropertyNames();
+            while (propNames.hasMoreElements()) {
+                String headerName = propNames.nextElement();
+                headers.put(headerName, message.getObjectProperty(headerName));
+            }
+        }
+
+        /**
+         * JMSメッセージヘッダを設定する。
+         * <p/>
+         * 配信モード、優先度、有効期間は送信時に指定するため、ここでは設定しない。
+         *
+         * @param message JMSメッセージオブジェクト
+         * @param headers 設定するヘッダの内容
+         * @throws JMSException JMS APIの内部で問題が発生した場合。
+         */
+        private void writeHeadersTo(Message message, Map<String, Object> headers)
+        throws JMSException {
+            /*
+             * 既定ヘッダ
+             * JMSDestination/JMSMessageIDについてはMOM側で自動設定されるため、
+             * ここでは設定しない。
+             */
+            if (headers.containsKey(JmsHeaderName.CORRELATION_ID)) {
+                message.setJMSCorrelationID(
+                    (String) headers.get(JmsHeaderName.CORRELATION_ID)
+                );
+            }
+            if (headers.containsKey(JmsHeaderName.REPLY_TO)) {
+                message.setJMSReplyTo(
+                    provider.getQueueOf((String) headers.get(JmsHeaderName.REPLY_TO))
+                );
+            }
+            if (headers.containsKey(JmsHeaderName.TYPE)) {
+                message.setJMSType(
+                    (String) headers.get(JmsHeaderName.TYPE)
+                );
+            }
+            /*
+             * ユーザ定義属性 / JMS拡張ヘッダ
+             */
+            for (Entry<String, Object> header : headers.entrySet()) {
+                String name  = header.getKey();
+                if (name.startsWith("JMS") && !name.startsWith("JMSX")) { // JMSヘッダ
+                    continue;
+                }
+                if (isFrameworkHeader(name)) {
+                    continue;
+                }
+                message.setObjectProperty(name, header.getValue());
+            }
+        }
+
+        /**
+         * JMSヘッダに対応付けるフレームワークのヘッダか否かを判定する。
+         * @param name ヘッダ名
+         * @return JMSヘッダに対応付けるヘッダの場合は{@code true}
+         */
+        private static boolean isFrameworkHeader(String name) {
+            return name.equals(HeaderName.MESSAGE_ID)
+                || name.equals(HeaderName.CORRELATION_ID)
+                || name.equals(HeaderName.DESTINATION)
+                || name.equals(HeaderName.REPLY_TO)
+                || name.equals(HeaderName.TIME_TO_LIVE);
+        }
+
+        /**
+         * JMSヘッダー名称
+         */
+        public static final class JmsHeaderName {
+            /*
+             * 既定ヘッダ (プロバイダの外部で直接使用)
+             */
+            /** 送信先キュー (jakarta.jms.Destination:送信側で自動設定) */
+            public static final String DESTINATION    = HeaderName.DESTINATION;
+            /** 応答先キュー (jakarta.jms.Destination:null) */
+            public static final String REPLY_TO       = HeaderName.REPLY_TO;
+            /** メッセージID (String) */
+            public static final String MESSAGE_ID     = HeaderName.MESSAGE_ID;
+            /** 関連メッセージID (String) */
+            public static final String CORRELATION_ID = HeaderName.CORRELATION_ID;
+            /*
+             * JMSヘッダ (プロバイダの内部のみで使用)
+             */
+            /** メッセージパーシステンス設定 (int デフォルト:DeliveryMode.PERSISTENT) */
+            public static final String DELIVERY_MODE = "JMSDeliveryMode";
+            /** メッセージタイプ (String　デフォルト:"") */
+            public static final String TYPE          = "JMSType";
+            /** メッセージの優先度 (int (0-9) デフォルト:4)*/
+            public static final String PRIORITY      = "JMSPriority";
+            /** 送信日時(msec) (long 送信側で自動設定) */
+            public static final String TIMESTAMP     = "JMSTimestamp";
+            /** メッセージ有効期限日時 (long 送信側で自動設定) */
+            public static final String EXPIRATION    = "JMSExpiration";
+            /** 再取得の有無 (boolean デフォルト:false) */
+            public static final String REDELIVERED   = "JMSRedelivered";
+            /*
+             * JMS拡張ヘッダ
+             * (MOMによってサポート状況が異なるので極力使用しない。)
+             */
+            /** 再取得処理の回数 (int デフォルト:0) */
+            public static final String X_DELIVERY_COUNT = "JMSXDeliveryCount";
+
+            /** 定数クラスなのでインスタンスは不要 */
+            private JmsHeaderName() {
+            }
+        }
+
+        /**
+         * 指定されたJMSキューに対する退避キューを返す。
+         * 該当するキューが存在しない場合はMessagingExceptionを送出する。
+         * @param queueName 受信キューの論理名
+         * @return JMSQueueインスタンス
+         * @throws MessagingException 退避キューが定義されていない場合。
+         */
+        protected Queue getPoisonQueueOf(String queueName) throws MessagingException {
+            String poisonQueueName = String.format(provider.poisonQueueNamePattern, queueName);
+            if (provider.queueTable.containsKey(poisonQueueName)) {
+                return provider.getQueueOf(poisonQueueName);
+            }
+            if (provider.queueTable.containsKey(provider.defaultPoisonQueue)) {
+                return provider.getQueueOf(provider.defaultPoisonQueue);
+            }
+            throw new MessagingException(
+                "There were not any poison queue for the queue of " + queueName
+            );
+        }
+
+        /**
+         * MOMによるメッセージの受信リトライ回数が規定回数を越えていた場合は、
+         * メッセージ退避キューに転送し、実行時例外を送出する。
+         * <p/>
+         * トランザクションを使用するセッションの場合は、転送と受信を確定した上で例外を送出する。
+         * (例外によるロールバックで転送が取り消され、再配信が繰り返されることを防ぐため。)
+         * {@code CLIENT_ACKNOWLEDGE}の場合は、処理完了として確認応答の対象とする。
+         *
+         * @param message   受信メッセージ
+         * @param queueName 受信キューの論理名
+         * @throws MessagingException 受信リトライ回数が規定回数を越えていた場合
+         * @throws JMSException JMS API側で問題が発生した場合。
+         */
+        protected void rejectIfExpiresRedeliverLimit(Message message, String queueName)
+        throws MessagingException, JMSException {
+            if (!expiresRedeliveryLimit(message)) {
+                return;
+            }
+            forwardToPoisonQueue(message, queueName, pooled.producer);
+            if (provider.transacted) {
+                pooled.session.commit();
+                uncommitted = false;
+            } else if (provider.isClientAcknowledge()) {
+                synchronized (this) {
+                    completed++;
+                    acknowledgeIfCompleted();
+                }
+            }
+            throw new MessagingException("Expired redelivered limit.");
+        }
+
+        /**
+         * MOMによるメッセージの受信リトライ回数が規定回数を越えているか否かを返す。
+         * @param message 受信メッセージ
+         * @return 規定回数を越えている場合は{@code true}
+         * @throws JMSException JMS API側で問題が発生した場合。
+         */
+        private boolean expiresRedeliveryLimit(Message message) throws JMSException {
+            if (provider.redeliveryLimit <= 0) {
+                return false;
+            }
+            return message.getIntProperty(JmsHeaderName.X_DELIVERY_COUNT) > provider.redeliveryLimit;
+        }
+
+        /**
+         * メッセージを退避キューに転送する。
+         * @param message 受信メッセージ
+         * @param queueName 受信キューの論理名
+         * @param producer 転送に使用するMessageProducer
+         * @throws MessagingException 退避キューが定義されていない場合。
+         * @throws JMSException JMS API側で問題が発生した場合。
+         */
+        private void forwardToPoisonQueue(Message message, String queueName, MessageProducer producer)
+        throws MessagingException, JMSException {
+            Queue poisonQueue = getPoisonQueueOf(queueName);
+            message.setJMSCorrelationID(message.getJMSMessageID());
+            producer.send(poisonQueue, message);
+        }
+
+        /**
+         * メッセージリスナーの登録。
+         * <p/>
+         * 受信はリスナー専用のJMSセッション({@link ListenerSession})で行う。
+         * セッションで障害が発生した場合は、セッションを生成し直して受信を再開する。
+         */
+        final class Subscription {
+
+            /** 受信キューの論理名 */
+            private final String queueName;
+
+            /** 受信キュー */
+            private final Queue queue;
+
+            /** メッセージリスナー */
+            private final MessageListener listener;
+
+            /** 受信を再開する処理を直列化するためのロック */
+            private final Object restartLock = new Object();
+
+            /** 受信に使用中のセッション */
+            private ListenerSession current;
+
+            /** 登録が解除されたか否か */
+            private boolean stopped = false;
+
+            /**
+             * コンストラクタ。
+             * @param queueName 受信キューの論理名
+             * @param queue 受信キュー
+             * @param listener メッセージリスナー
+             */
+            Subscription(String queueName, Queue queue, MessageListener listener) {
+                this.queueName = queueName;
+                this.queue = queue;
+                this.listener = listener;
+            }
+
+            /**
+             * 受信を開始する。
+             * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+             */
+            void start() throws JMSException {
+                ListenerSession session = new ListenerSession(this);
+                session.start();
+                synchronized (this) {
+                    current = session;
+                }
+            }
+
+            /**
+             * 使用中のセッションを閉じて、受信を再開する。
+             * <p/>
+             * 登録が解除された場合、およびセッションで障害が発生していない場合は何もしない。
+             *
+             * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+             */
+            void restart() throws JMSException {
+                synchronized (restartLock) {
+                    ListenerSession old;
+                    synchronized (this) {
+                        if (!isBroken()) {
+                            return;
+                        }
+                        old = current;
+                        current = null;
+                    }
+                    if (old != null) {
+                        old.close();
+                    }
+                    ListenerSession next = new ListenerSession(this);
+                    next.start();
+                    synchronized (this) {
+                        if (!stopped) {
+                            current = next;
+                            return;
+                        }
+                    }
+                    next.close();
+                }
+            }
+
+            /**
+             * 登録を解除し、使用中のセッションを閉じる。
+             */
+            void stop() {
+                ListenerSession session;
+                synchronized (this) {
+                    stopped = true;
+                    session = current;
+                    current = null;
+                }
+                if (session != null) {
+                    session.close();
+                }
+            }
+
+            /**
+             * 受信の再開が必要か否かを返す。
+             * @return 登録が解除されておらず、使用中のセッションが存在しないか障害が発生している場合は{@code true}
+             */
+            synchronized boolean isBroken() {
+                return !stopped && (current == null || current.isBroken());
+            }
+
+            /**
+             * 使用中のセッションが指定されたJMSコネクションのものである場合、障害が発生したものとする。
+             * @param failed 障害を検知したJMSコネクション
+             * @return 障害が発生したものとした場合は{@code true}
+             */
+            synchronized boolean markBroken(Connection failed) {
+                return !stopped && current != null && current.markBroken(failed);
+            }
+
+            /**
+             * 使用中のセッションで配信したメッセージを処理完了とする。
+             * @param message 受信メッセージ
+             * @return 使用中のセッションで配信したメッセージの場合は{@code true}
+             * @throws MessagingException 確認応答に失敗した場合
+             */
+            boolean acknowledge(ReceivedMessage message) {
+                ListenerSession session;
+                synchronized (this) {
+                    session = current;
+                }
+                return session != null && session.acknowledge(message);
+            }
+        }
+
+        /**
+         * メッセージリスナー専用のJMSセッション。
+         * <p/>
+         * 配信したメッセージの処理完了を数え、全て処理完了となった時点で確認応答を行う。
+         * 確認応答を行えない状態となった場合(障害が発生した場合)は、以降の確認応答を行わない。
+         */
+        final class ListenerSession implements jakarta.jms.MessageListener {
+
+            /** メッセージリスナーの登録 */
+            private final Subscription subscription;
+
+            /** 処理中のメッセージ */
+            private final Set<ReceivedMessage> processing =
+                    Collections.newSetFromMap(new IdentityHashMap<ReceivedMessage, Boolean>());
+
+            /** セッションを生成したJMSコネクション */
+            private Connection connection;
+
+            /** JMSセッション */
+            private Session session;
+
+            /** 退避キューへの転送に使用するMessageProducer */
+            private MessageProducer producer;
+
+            /** 配信して確認応答していないメッセージの件数 */
+            private int delivered = 0;
+
+            /** 配信して確認応答していないメッセージのうち、処理完了となった件数 */
+            private int completed = 0;
+
+            /** 最後に配信したメッセージ */
+            private Message lastDelivered;
+
+            /** 障害が発生したか否か */
+            private boolean broken = false;
+
+            /** 閉じられたか否か */
+            private boolean closed = false;
+
+            /**
+             * コンストラクタ。
+             * @param subscription メッセージリスナーの登録
+             */
+            ListenerSession(Subscription subscription) {
+                this.subscription = subscription;
+            }
+
+            /**
+             * JMSセッションを生成し、受信を開始する。
+             * @throws JMSException JMSプロバイダ側でエラーが発生した場合
+             */
+            void start() throws JMSException {
+                Connection current = provider.getConnection();
+                Session created = current.createSession(false, Session.CLIENT_ACKNOWLEDGE);
+                try {
+                    synchronized (this) {
+                        connection = current;
+                        session = created;
+                        producer = created.createProducer(null);
+                    }
+                    created.createConsumer(subscription.queue).setMessageListener(this);
+                } catch (JMSException e) {
+                    PooledSession.closeQuietly(created);
+                    throw e;
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             * この実装では、受信メッセージに変換してメッセージリスナーを呼び出す。
+             * 処理完了となって確認応答していないメッセージが上限件数に達している場合は、確認応答を行うまで待機する。
+             */
+            public void onMessage(Message jmsMessage) {
+                synchronized (this) {
+                    try {
+                        while (!closed && !broken && completed >= provider.listenerAcknowledgeBatchSize) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        broken = true;
+                    }
+                    if (closed || broken) {
+                        // 確認応答すると当該メッセージも確認応答されるため、以降の確認応答は行わない。
+                        broken = true;
+                        return;
+                    }
+                    delivered++;
+                    lastDelivered = jmsMessage;
+                }
+                try {
+                    if (jmsMessage.getJMSRedelivered() && expiresRedeliveryLimit(jmsMessage)) {
+                        forwardToPoisonQueue(jmsMessage, subscription.queueName, producer);
+                        LOGGER.logWarn("forwarded the message to the poison queue because it expired the redelivery limit. "
+                                     + "messageId = [" + jmsMessage.getJMSMessageID() + "]");
+                        synchronized (this) {
+                            completed++;
+                            acknowledgeIfCompleted();
+                        }
+                        return;
+                    }
+                    ReceivedMessage message = toReceivedMessage(jmsMessage);
+                    synchronized (this) {
+                        processing.add(message);
+                    }
+                    subscription.listener.onMessage(message);
+                } catch (JMSException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+
+            /**
+             * 配信したメッセージを処理完了とする。
+             * @param message 受信メッセージ
+             * @return 本セッションで配信したメッセージの場合は{@code true}
+             * @throws MessagingException 確認応答に失敗した場合
+             */
+            synchronized boolean acknowledge(ReceivedMessage message) {
+                if (!processing.remove(message)) {
+                    return false;
+                }
+                completed++;
+                acknowledgeIfCompleted();
+                return true;
+            }
+
+            /**
+             * 配信したメッセージが全て処理完了となっている場合に、確認応答を行う。
+             * <p/>
+             * 本メソッドは、本オブジェクトのロックを取得した状態で呼び出すこと。
+             *
+             * @throws MessagingException 確認応答に失敗した場合
+             */
+            private void acknowledgeIfCompleted() {
+                if (closed || broken || completed == 0 || completed < delivered) {
+                    return;
+                }
+                try {
+                    lastDelivered.acknowledge();
+                } catch (JMSException e) {
+                    broken = true;
+                    notifyAll();
+                    provider.recover(subscription);
+                    throw provider.messagingExceptionFactory.createMessagingException(
+                            "an error occurred while acknowledging messages. "
+                          + "receiveQueue = [" + subscription.queueName + "]", e);
+                }
+                delivered = 0;
+                completed = 0;
+                lastDelivered = null;
+                notifyAll();
+            }
+
+            /**
+             * メッセージの配信中に障害が発生したものとし、受信を再開させる。
+             * @param e 発生した例外
+             */
+            private void fail(Exception e) {
+                synchronized (this) {
+                    broken = true;
+                    notifyAll();
+                }
+                LOGGER.logWarn("an error occurred while delivering a message to the listener. "
+                             + "unacknowledged messages will be redelivered. "
+                             + "receiveQueue = [" + subscription.queueName + "]", e);
+                provider.recover(subscription);
+            }
+
+            /**
+             * 障害が発生したか否かを返す。
+             * @return 障害が発生した場合は{@code true}
+             */
+            synchronized boolean isBroken() {
+                return broken;
+            }
+
+            /**
+             * 本セッションが指定されたJMSコネクションのものである場合、障害が発生したものとする。
+             * @param failed 障害を検知したJMSコネクション
+             * @return 障害が発生したものとした場合は{@code true}
+             */
+            synchronized boolean markBroken(Connection failed) {
+                if (connection != failed) {
+                    return false;
+                }
+                broken = true;
+                notifyAll();
+                return true;
+            }
+
+            /**
+             * JMSセッションを閉じる。
+             * <p/>
+             * 配信したメッセージが全て処理完了となっている場合は、確認応答を行った上で閉じる。
+             * 処理が完了していないメッセージは再配信の対象となる。
+             */
+            void close() {
+                Session target;
+                synchronized (this) {
+                    try {
+                        acknowledgeIfCompleted();
+                    } catch (MessagingException e) {
+                        LOGGER.logWarn("could not acknowledge messages on closing the listener. "
+                                     + "receiveQueue = [" + subscription.queueName + "]", e);
+                    }
+                    closed = true;
+                    notifyAll();
+                    target = session;
+                }
+                if (target != null) {
+                    PooledSession.closeQuietly(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link MessagingException}をそのまま生成する{@link MessagingExceptionFactory}。
+     */
+    private static final class BasicMessagingExceptionFactory implements MessagingExceptionFactory {
+        /** {@inheritDoc} */
+        public MessagingException createMessagingException(String message, Throwable cause) {
+            return new MessagingException(message, cause);
+        }
+    }
+}
@@ -0,0 +1,780 @@
+package nablarch.fw.messaging.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.disposal.Disposable;
+import nablarch.fw.messaging.InterSystemMessage.HeaderName;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * ローカルディスク上のジャーナルでメッセージを永続化するメッセージング機能の実装。
+ * <p/>
+ * メッセージングサーバを使用せずに、プロセスの再起動を跨いでメッセージを保持する。
+ * キューごとに{@link #setDirectory(String)}配下のディレクトリを使用し、
+ * メモリマップドファイル上の追記専用のセグメントファイルにメッセージを書き込む。
+ * ディレクトリは単一のプロセスが占有することを前提とし、複数のプロセスから同時に使用してはならない。
+ *
+ * <div><b>ディスクへの書き出し</b></div>
+ * <hr/>
+ * ディスクへの書き出し(fsync)は、専用のスレッドが{@link #setSyncInterval(long)}の間隔でまとめて行う(グループコミット)。
+ * {@link #setWaitForSync(boolean)}に{@code true}を指定した場合(デフォルト)、送信は書き出しが完了するまで待機するため、
+ * 送信が完了したメッセージはOSの障害時にも失われない。
+ * 複数のスレッドから同時に送信した場合は、1回の書き出しで複数のメッセージを永続化する。
+ * 書き出しに失敗した場合、その書き出しの完了を待機していた送信は{@link MessagingException}を送出する。
+ * 書き出しの完了を待機中に割り込まれた場合、またはプロバイダが閉じられた場合も同様とする。
+ *
+ * <div><b>確認応答</b></div>
+ * <hr/>
+ * デフォルトでは、受信したメッセージは受信時に確認応答済みとなる。
+ * {@link #setAutoAcknowledge(boolean)}に{@code false}を指定した場合は、
+ * {@link MessagingContext#acknowledge(ReceivedMessage)}を呼び出すまで確認応答済みとならず、
+ * 確認応答前にプロセスが停止した場合は、再起動後に再度配信される。
+ * <p/>
+ * 確認応答済みのメッセージのみを格納するセグメントファイルは削除する。
+ * また、未確認応答のメッセージの割合が{@link #setCompactionThreshold(double)}以下となったセグメントファイルは、
+ * セグメントファイルの切り替え時に、未確認応答のメッセージを複写した上で削除する。
+ * <p/>
+ * 排他制御には{@link ReentrantLock}を使用し、モニタロックは使用しない。
+ * このため、仮想スレッドから送信して書き出しの完了を待機する場合や、受信でメッセージの到着を待機する場合も、
+ * キャリアスレッドを占有しない(JDK 21のモニタロックによるピン留めが発生しない)。
+ * <p/>
+ * 受信のタイムアウトと有効期間の扱いは{@link JmsMessagingProvider}に合わせている。
+ * <ul>
+ * <li>受信タイムアウトに0以下の数値を指定した場合は、{@link #setDefaultResponseTimeout(long)}の値を使用する。</li>
+ * <li>有効期間ヘッダが設定されていない送信メッセージには、{@link #setDefaultTimeToLive(long)}の値を使用する。
+ *     有効期間を過ぎたメッセージは受信されずに破棄される。</li>
+ * </ul>
+ * ヘッダの値は、文字列、Integer、Long、Booleanのいずれかとして永続化する。これら以外の型の値は文字列に変換する。
+ * <p/>
+ * 本プロバイダは{@link Disposable}を実装しているため、システムリポジトリの廃棄対象に設定することで、
+ * 終了時に書き込んだ内容をディスクに書き出した上でファイルを閉じる。
+ * システムリポジトリを使用しない場合は、プロセスの終了時に{@link #close()}を呼び出すこと。
+ */
+public class JournalMessagingProvider implements MessagingProvider, QueueDepthSource, Disposable {
+
+    /** メッセージIDの採番に使用するプロバイダの識別子 */
+    private static final AtomicLong INSTANCE_SEQUENCE = new AtomicLong();
+
+    /** キューの論理名をキーとするキューのMap */
+    private final ConcurrentHashMap<String, JournalQueue> queues = new ConcurrentHashMap<String, JournalQueue>();
+
+    /** キューを開く処理と閉じる処理を排他制御するロック */
+    private final ReentrantLock queuesLock = new ReentrantLock();
+
+    /** メッセージIDの接頭辞 */
+    private final String messageIdPrefix = "ID:journal-" + Long.toString(System.currentTimeMillis(), 36)
+                                         + "-" + INSTANCE_SEQUENCE.incrementAndGet() + "-";
+
+    /** メッセージIDの通番 */
+    private final AtomicLong messageSequence = new AtomicLong();
+
+    /** ジャーナルを格納するディレクトリ */
+    private File directory = null;
+
+    /** セグメントファイルのサイズ(単位：バイト) */
+    private int segmentSize = 64 * 1024 * 1024;
+
+    /** ディスクへの書き出しを行う間隔 (msec) */
+    private long syncInterval = 10;
+
+    /** 送信時にディスクへの書き出しを待機するか否か */
+    private boolean waitForSync = true;
+
+    /** 受信時に確認応答済みとするか否か */
+    private boolean autoAcknowledge = true;
+
+    /** コンパクションの対象とする、未確認応答のメッセージの割合の上限 */
+    private double compactionThreshold = 0.5;
+
+    /** 受信デフォルトタイムアウト値 (msec) */
+    private long timeout = 300 * 1000;
+
+    /** 送信電文デフォルト有効期間 (msec) */
+    private long timeToLive = 60 * 1000;
+
+    /** {@link MessagingException}ファクトリ */
+    private MessagingExceptionFactory messagingExceptionFactory = null;
+
+    /** ディスクへの書き出しを行うスレッド(閉じた後も、書き出しの待機を失敗させるために保持する) */
+    private volatile GroupSync groupSync = null;
+
+    /** 閉じられたか否か */
+    private volatile boolean closed = false;
+
+    // ------------------------------------------------- MessagingProvider API
+    /**
+     * {@inheritDoc}
+     * この実装では、保持するリソースを持たないコンテキストを返す。
+     */
+    public MessagingContext createContext() {
+        if (closed) {
+            throw new IllegalStateException("this messaging provider was closed.");
+        }
+        return new Context(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 受信処理におけるデフォルトタイムアウト値を設定する。
+     * デフォルトタイムアウトを明示的に設定しなかった場合のデフォルトタイムアウトは
+     * 5分間となる。
+     */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 送信電文のデフォルト有効期間を設定する。
+     * デフォルト値を明示的に設定しなかった場合の有効期間は60秒(60000msec)となる。
+     */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     * この実装では、ジャーナルの読み書きに失敗した場合に送出する例外の生成に使用する。
+     */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        this.messagingExceptionFactory = messagingExceptionFactory;
+        return this;
+    }
+
+    /**
+     * ジャーナルを格納するディレクトリを設定する。
+     * <p/>
+     * ディレクトリが存在しない場合は、最初に送受信した時点で作成する。
+     *
+     * @param directory ジャーナルを格納するディレクトリ
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setDirectory(String directory) {
+        this.directory = new File(directory);
+        return this;
+    }
+
+    /**
+     * セグメントファイルのサイズを設定する。
+     * <p/>
+     * 1セグメントファイルに収まらないメッセージは送信できない。
+     * 既に開いたキューのセグメントファイルのサイズは変更しない。
+     * デフォルトは64MB。
+     *
+     * @param segmentSize セグメントファイルのサイズ(単位：バイト)
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setSegmentSize(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException(
+                "segmentSize must be greater than 0. segmentSize = [" + segmentSize + "]");
+        }
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * ディスクへの書き出しを行う間隔を設定する。
+     * <p/>
+     * 書き出しを要求されてから、本設定値の時間だけ待機して後続の書き込みをまとめた上で書き出す。
+     * 0を指定した場合は待機せずに書き出す。
+     * デフォルトは10ミリ秒。
+     *
+     * @param syncInterval ディスクへの書き出しを行う間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setSyncInterval(long syncInterval) {
+        if (syncInterval < 0) {
+            throw new IllegalArgumentException(
+                "syncInterval must not be negative. syncInterval = [" + syncInterval + "]");
+        }
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * 送信時に、ディスクへの書き出しの完了を待機するか否かを設定する。
+     * <p/>
+     * {@code false}を指定した場合、送信は待機せずに完了するため高スループットとなるが、
+     * OSの障害時には書き出し前のメッセージが失われる可能性がある。
+     * デフォルトは{@code true}。
+     *
+     * @param waitForSync 書き出しの完了を待機する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setWaitForSync(boolean waitForSync) {
+        this.waitForSync = waitForSync;
+        return this;
+    }
+
+    /**
+     * 受信したメッセージを、受信時に確認応答済みとするか否かを設定する。
+     * <p/>
+     * {@code false}を指定した場合は、{@link MessagingContext#acknowledge(ReceivedMessage)}で確認応答を行うこと。
+     * デフォルトは{@code true}。
+     *
+     * @param autoAcknowledge 受信時に確認応答済みとする場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setAutoAcknowledge(boolean autoAcknowledge) {
+        this.autoAcknowledge = autoAcknowledge;
+        return this;
+    }
+
+    /**
+     * コンパクションの対象とする、セグメントファイル内の未確認応答のメッセージの割合の上限を設定する。
+     * <p/>
+     * 0を指定した場合は、確認応答済みのメッセージのみを格納するセグメントファイルの削除のみを行う。
+     * デフォルトは0.5。
+     *
+     * @param compactionThreshold 未確認応答のメッセージの割合の上限(0以上1以下)
+     * @return このオブジェクト自体
+     */
+    public JournalMessagingProvider setCompactionThreshold(double compactionThreshold) {
+        if (compactionThreshold < 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException(
+                "compactionThreshold must be between 0 and 1. compactionThreshold = [" + compactionThreshold + "]");
+        }
+        this.compactionThreshold = compactionThreshold;
+        return this;
+    }
+
+    /**
+     * 指定したキューに滞留している(配信されていない)メッセージの件数を返す。
+     * <p/>
+     * 有効期間を過ぎたが、まだ破棄されていないメッセージも含む。
+     *
+     * @param queueName キューの論理名
+     * @return メッセージの件数
+     */
+    public int getQueueDepth(String queueName) {
+        return queueOf(queueName).size();
+    }
+
+    /**
+     * 全てのキューを閉じる。
+     * <p/>
+     * 書き込んだ内容をディスクに書き出した上でファイルを閉じる。
+     * 本メソッドの呼び出し後は、コンテキストを生成できない。
+     */
+    public void close() {
+        queuesLock.lock();
+        try {
+            closed = true;
+            for (JournalQueue queue : queues.values()) {
+                queue.close();
+            }
+            queues.clear();
+            if (groupSync != null) {
+                groupSync.stop();
+            }
+        } finally {
+            queuesLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link #close()}を呼び出す。
+     */
+    @Override
+    public void dispose() {
+        close();
+    }
+
+    /**
+     * 指定した論理名のキューを返す。開いていない場合は開く。
+     * @param queueName キューの論理名
+     * @return キュー
+     * @throws MessagingException キューの論理名が不正な場合、またはキューを開けなかった場合
+     */
+    private JournalQueue queueOf(String queueName) throws MessagingException {
+        if (directory == null) {
+            throw new IllegalStateException("directory was not specified.");
+        }
+        if (queueName == null || queueName.length() == 0 || queueName.indexOf('/') >= 0
+                || queueName.indexOf('\\') >= 0 || queueName.startsWith(".")) {
+            throw new MessagingException("unknown queue name: " + queueName);
+        }
+        JournalQueue queue = queues.get(queueName);
+        if (queue != null) {
+            return queue;
+        }
+        queuesLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("this messaging provider was closed.");
+            }
+            queue = queues.get(queueName);
+            if (queue == null) {
+                if (groupSync == null) {
+                    groupSync = new GroupSync(syncInterval);
+                }
+                try {
+                    queue = new JournalQueue(queueName, new File(directory, queueName), segmentSize,
+                                             compactionThreshold, groupSync);
+                } catch (IOException e) {
+                    throw createMessagingException("failed to open the journal queue. queueName = [" + queueName + "]", e);
+                }
+                queues.put(queueName, queue);
+            }
+            return queue;
+        } finally {
+            queuesLock.unlock();
+        }
+    }
+
+    /**
+     * {@link MessagingException}を生成する。
+     * @param message エラーメッセージ
+     * @param cause 起因となった例外
+     * @return {@link MessagingException}
+     */
+    private MessagingException createMessagingException(String message, Throwable cause) {
+        return (messagingExceptionFactory == null)
+                ? new MessagingException(message, cause)
+                : messagingExceptionFactory.createMessagingException(message, cause);
+    }
+
+    /**
+     * メッセージングコンテキストのジャーナルによる実装。
+     */
+    public static class Context extends MessagingContext {
+
+        /** 各種設定 */
+        private final JournalMessagingProvider provider;
+
+        /**
+         * コンストラクタ。
+         * @param provider 各種設定
+         */
+        Context(JournalMessagingProvider provider) {
+            this.provider = provider;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、宛先キューのジャーナルにメッセージを追記する。
+         * {@link JournalMessagingProvider#setWaitForSync(boolean)}に{@code true}が設定されている場合は、
+         * ディスクへの書き出しが完了するまで待機する。
+         *
+         * @throws MessagingException ディスクへの書き出しに失敗した場合
+         */
+        public String sendMessage(SendingMessage message) {
+            long ticket = append(message);
+            if (provider.waitForSync) {
+                provider.groupSync.awaitSync(ticket);
+            }
+            return message.getMessageId();
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、全てのメッセージを宛先キューのジャーナルに追記した後、
+         * ディスクへの書き出しの完了を1度だけ待機する。
+         * 最初のメッセージから最後のメッセージまでのいずれかの書き出しに失敗した場合は、例外を送出する。
+         *
+         * @throws MessagingException ディスクへの書き出しに失敗した場合
+         */
+        @Override
+        protected List<String> sendMessages(List<SendingMessage> messages) {
+            List<String> messageIds = new ArrayList<String>(messages.size());
+            long first = 0;
+            long last = 0;
+            for (SendingMessage message : messages) {
+                last = append(message);
+                if (first == 0) {
+                    first = last;
+                }
+                messageIds.add(message.getMessageId());
+            }
+            if (provider.waitForSync && last > 0) {
+                provider.groupSync.awaitSync(first, last);
+            }
+            return messageIds;
+        }
+
+        /**
+         * 宛先キューのジャーナルにメッセージを追記する。
+         * @param message 送信メッセージ
+         * @return 書き出しの完了を待機するためのチケット
+         */
+        private long append(SendingMessage message) {
+            String messageId = provider.messageIdPrefix + provider.messageSequence.incrementAndGet();
+            message.setMessageId(messageId);
+            Map<String, Object> headers = new HashMap<String, Object>(message.getHeaderMap());
+            headers.remove(HeaderName.TIME_TO_LIVE);
+            long ttl = message.getHeaderMap().containsKey(HeaderName.TIME_TO_LIVE) ? message.getTimeToLive()
+                                                                                   : provider.timeToLive;
+            JournalQueue queue = provider.queueOf(message.getDestination());
+            long ticket;
+            try {
+                ticket = queue.append(messageId, message.getCorrelationId(), headers, message.getBodyBytes(),
+                                      (ttl > 0) ? System.currentTimeMillis() + ttl : 0);
+            } catch (IOException e) {
+                throw provider.createMessagingException(
+                        "failed to write the message. queueName = [" + message.getDestination() + "]", e);
+            }
+            return ticket;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、受信キューのジャーナルからメッセージを取り出す。
+         */
+        public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+            timeout = (timeout <= 0) ? provider.timeout
+                                     : timeout;
+            JournalQueue.Record record = provider.queueOf(receiveQueue)
+                                                 .take(messageId, timeout, provider.autoAcknowledge);
+            if (record == null) {
+                return null;
+            }
+            ReceivedMessage message = new ReceivedMessage((record.body == null) ? new byte[0] : record.body);
+            message.setHeaderMap(record.headers);
+            return message;
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、受信したキューのジャーナルに確認応答を記録する。
+         * 受信時に確認応答済みとする設定の場合は何もしない。
+         */
+        @Override
+        public void acknowledge(ReceivedMessage message) {
+            if (!provider.autoAcknowledge) {
+                provider.queueOf(message.getDestination()).acknowledge(message.getMessageId());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * この実装では、保持するリソースが無いため何もしない。
+         * 確認応答していないメッセージは、プロセスの再起動後に再度配信される。
+         */
+        public void close() {
+        }
+    }
+
+    /**
+     * メモリマップドファイルへの書き込みを、まとめてディスクに書き出すスレッド。
+     * <p/>
+     * 書き込みを行ったスレッドは{@link #requestSync(MappedByteBuffer)}でチケットを取得し、
+     * {@link #awaitSync(long)}で書き出しの完了を待機する。
+     * 1回の書き出しで、それまでに要求された全てのバッファを書き出す。
+     * 書き出しに失敗した場合は、その書き出しで完了となるチケットの範囲を記録し、
+     * それらのチケットの完了を待機するスレッドに例外を送出する。
+     */
+    static class GroupSync implements Runnable {
+
+        /** ロガー */
+        private static final Logger LOGGER = LoggerManager.get(GroupSync.class);
+
+        /** 書き出しを行う間隔 (msec) */
+        private final long interval;
+
+        /**
+         * 状態を保護するロック。
+         * 仮想スレッドが書き出しの完了を待機する間にキャリアスレッドを占有しないよう、モニタロックは使用しない。
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** 書き出しが要求されたこと、または停止が要求されたことを通知する条件 */
+        private final Condition requestedCondition = lock.newCondition();
+
+        /** 書き出しが完了したこと、またはスレッドが終了したことを通知する条件 */
+        private final Condition syncedCondition = lock.newCondition();
+
+        /** 書き出しを要求されたバッファ */
+        private final Set<MappedByteBuffer> dirty =
+                Collections.newSetFromMap(new IdentityHashMap<MappedByteBuffer, Boolean>());
+
+        /** 書き出し中のバッファ */
+        private final Set<MappedByteBuffer> forcing =
+                Collections.newSetFromMap(new IdentityHashMap<MappedByteBuffer, Boolean>());
+
+        /** 発行したチケット */
+        private long requested = 0;
+
+        /** 書き出しが完了したチケット */
+        private long synced = 0;
+
+        /** 保持する、書き出しに失敗したチケットの範囲の件数の上限 */
+        private static final int MAX_FAILURES = 64;
+
+        /** 書き出しに失敗したチケットの範囲(古いものから順に、最大{@link #MAX_FAILURES}件) */
+        private final LinkedList<Failure> failures = new LinkedList<Failure>();
+
+        /**
+         * 保持する件数の上限を超えて破棄した、書き出しに失敗したチケットの範囲の最後のチケット。
+         * このチケット以前の書き出しは、成否を判定できないため失敗したものとして扱う。
+         */
+        private long forgottenThrough = 0;
+
+        /** 停止を要求されたか否か */
+        private boolean stopped = false;
+
+        /** スレッドが終了したか否か */
+        private boolean terminated = false;
+
+        /** 書き出しを行うスレッド */
+        private final Thread thread;
+
+        /**
+         * 書き出しを行うスレッドを開始する。
+         * @param interval 書き出しを行う間隔(単位：ミリ秒)
+         */
+        GroupSync(long interval) {
+            this.interval = interval;
+            thread = new Thread(this, "JournalMessagingProvider-sync");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * バッファの書き出しを要求する。
+         * @param buffer バッファ
+         * @return 書き出しの完了を待機するためのチケット
+         */
+        long requestSync(MappedByteBuffer buffer) {
+            lock.lock();
+            try {
+                dirty.add(buffer);
+                requestedCondition.signalAll();
+                return ++requested;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * バッファを書き出しの対象から除外する。
+         * <p/>
+         * バッファを書き出し中の場合は、書き出しが終わるまで待機する。
+         * このため、本メソッドの終了後はバッファのマップを解除できる。
+         *
+         * @param buffer バッファ
+         */
+        void unregister(MappedByteBuffer buffer) {
+            lock.lock();
+            try {
+                dirty.remove(buffer);
+                while (forcing.contains(buffer)) {
+                    syncedCondition.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 指定したチケットまでの書き出しが完了するまで待機する。
+         *
+         * @param ticket チケット
+         * @throws MessagingException 指定したチケットを含む書き出しに失敗した場合、
+         *                            待機中に割り込まれた場合、または書き出しの完了前にスレッドが終了した場合
+         */
+        void awaitSync(long ticket) throws MessagingException {
+            awaitSync(ticket, ticket);
+        }
+
+        /**
+         * 指定した範囲のチケットの書き出しが全て完了するまで待機する。
+         *
+         * @param first 範囲の最初のチケット
+         * @param last 範囲の最後のチケット
+         * @throws MessagingException 範囲内のいずれかのチケットを含む書き出しに失敗した場合、
+         *                            待機中に割り込まれた場合、または書き出しの完了前にスレッドが終了した場合
+         */
+        void awaitSync(long first, long last) throws MessagingException {
+            lock.lock();
+            try {
+                while (synced < last) {
+                    if (terminated) {
+                        throw new MessagingException(
+                            "the journal was closed before it was written to the disk. ticket = [" + last + "]");
+                    }
+                    try {
+                        syncedCondition.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new MessagingException(
+                            "interrupted while waiting for the journal to be written to the disk. ticket = ["
+                          + last + "]", e);
+                    }
+                }
+                if (first <= forgottenThrough) {
+                    throw new MessagingException(
+                        "the result of writing the journal to the disk is no longer available. ticket = ["
+                      + first + "]");
+                }
+                for (Failure failure : failures) {
+                    if (failure.from <= last && first <= failure.to) {
+                        throw new MessagingException(
+                            "failed to write the journal to the disk. ticket = [" + Math.max(first, failure.from)
+                          + "]", failure.cause);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 要求された書き出しを行った上で、スレッドを停止する。
+         */
+        void stop() {
+            lock.lock();
+            try {
+                stopped = true;
+                requestedCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 書き出しを要求されるまで待機し、書き出しを行う。停止を要求されるまで繰り返す。
+         * <p/>
+         * 終了時には、書き出しの完了を待機しているスレッドを復帰させる。
+         */
+        public void run() {
+            try {
+                syncUntilStopped();
+            } finally {
+                lock.lock();
+                try {
+                    terminated = true;
+                    syncedCondition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 書き出しを要求されるまで待機し、書き出しを行う。停止を要求されるまで繰り返す。
+         */
+        private void syncUntilStopped() {
+            while (true) {
+                lock.lock();
+                try {
+                    while (requested == synced && !stopped) {
+                        // 停止は stopped で判定するため、割り込みは無視する。
+                        requestedCondition.awaitUninterruptibly();
+                    }
+                    if (requested == synced) {
+                        return;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (interval > 0) {
+                    try {
+                        // 後続の書き込みをまとめるために待機する。
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        // 書き出しを行うため、割り込みは無視する。
+                    }
+                }
+                long target;
+                List<MappedByteBuffer> buffers;
+                lock.lock();
+                try {
+                    target = requested;
+                    buffers = new ArrayList<MappedByteBuffer>(dirty);
+                    dirty.clear();
+                    forcing.addAll(buffers);
+                } finally {
+                    lock.unlock();
+                }
+                RuntimeException failure = null;
+                for (MappedByteBuffer buffer : buffers) {
+                    try {
+                        force(buffer);
+                    } catch (RuntimeException e) {
+                        LOGGER.logWarn("failed to write the journal to the disk.", e);
+                        failure = e;
+                    }
+                }
+                lock.lock();
+                try {
+                    if (failure != null) {
+                        failures.add(new Failure(synced + 1, target, failure));
+                        if (failures.size() > MAX_FAILURES) {
+                            forgottenThrough = failures.removeFirst().to;
+                        }
+                    }
+                    synced = target;
+                    forcing.clear();
+                    syncedCondition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * バッファをディスクに書き出す。
+         * @param buffer バッファ
+         */
+        void force(MappedByteBuffer buffer) {
+            buffer.force();
+        }
+
+        /**
+         * 書き出しに失敗したチケットの範囲。
+         */
+        private static final class Failure {
+
+            /** 範囲の最初のチケット */
+            private final long from;
+
+            /** 範囲の最後のチケット */
+            private final long to;
+
+            /** 起因となった例外 */
+            private final RuntimeException cause;
+
+            /**
+             * コンストラクタ。
+             * @param from 範囲の最初のチケット
+             * @param to 範囲の最後のチケット
+             * @param cause 起因となった例外
+             */
+            Failure(long from, long to, RuntimeException cause) {
+                this.from = from;
+                this.to = to;
+                this.cause = cause;
+            }
+        }
+    }
+}
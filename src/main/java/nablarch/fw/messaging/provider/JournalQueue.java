@@ -0,0 +1,1095 @@
+package nablarch.fw.messaging.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.fw.messaging.MessagingException;
+
+/**
+ * メモリマップドファイル上の追記専用ジャーナルに永続化されるキュー。
+ * <p/>
+ * 本クラスは{@link JournalMessagingProvider}が使用する。キューごとに1つのディレクトリを使用し、以下のファイルを格納する。
+ * <ul>
+ * <li>セグメントファイル(<code>%019d.log</code>): メッセージのレコードを追記する。</li>
+ * <li>チェックポイントファイル(<code>checkpoint</code>): この通番未満のメッセージが全て確認応答済みであることを示す通番(確認応答済み通番)。</li>
+ * <li>確認応答ファイル(<code>acks</code>): 確認応答済み通番以上で、確認応答済みとなったメッセージの通番。</li>
+ * </ul>
+ * レコードは本体を書き込んだ後に長さを書き込むため、書き込み途中で停止した場合も、
+ * 再起動時には書き込みが完了したレコードまでを読み込む。
+ * <p/>
+ * 確認応答済みのメッセージのみを格納するセグメントファイルは削除する。
+ * セグメントファイルの切り替え時に、未確認応答のメッセージの割合が少ない古いセグメントファイルがあれば、
+ * 未確認応答のメッセージを追記中のセグメントファイルに複写した上で削除する(コンパクション)。
+ * 複写したレコードは元の通番を保持するため、複写の途中で停止した場合も、再起動時に重複して配信されることはない。
+ * <p/>
+ * ファイルを閉じる際は、削除や置き換えの前にマップを解除する。
+ * マップを解除しないと、削除したファイルのディスク領域がガベージコレクションまで解放されず、
+ * Windowsではマップ中のファイルを削除、置き換えできないためである。
+ * マップの解除はJDKの内部APIを使用するため、使用できない実行環境では解除せず(ガベージコレクションに任せ)、
+ * Windowsでは確認応答ファイルの作り直しに失敗する。
+ * <p/>
+ * 本クラスのメソッドは、キュー単位で{@link ReentrantLock}による排他制御を行う。
+ * 仮想スレッドが受信の待機中やファイルへの書き込み中にキャリアスレッドを占有しないよう、モニタロックは使用しない。
+ */
+final class JournalQueue {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(JournalQueue.class);
+
+    /** 文字列のエンコーディング */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** セグメントファイルの拡張子 */
+    private static final String SUFFIX = ".log";
+
+    /** レコードの長さを格納する領域のサイズ */
+    private static final int LENGTH_SIZE = 4;
+
+    /** 確認応答ファイルの初期サイズ(単位：バイト) */
+    private static final int INITIAL_ACK_FILE_SIZE = 64 * 1024;
+
+    /** ヘッダ値の型：null */
+    private static final byte TYPE_NULL = 0;
+
+    /** ヘッダ値の型：文字列 */
+    private static final byte TYPE_STRING = 1;
+
+    /** ヘッダ値の型：Integer */
+    private static final byte TYPE_INTEGER = 2;
+
+    /** ヘッダ値の型：Long */
+    private static final byte TYPE_LONG = 3;
+
+    /** ヘッダ値の型：Boolean */
+    private static final byte TYPE_BOOLEAN = 4;
+
+    /** キューの論理名 */
+    private final String name;
+
+    /** キューのディレクトリ */
+    private final File directory;
+
+    /** セグメントファイルのサイズ */
+    private final int segmentSize;
+
+    /** コンパクションの対象とする、未確認応答のメッセージの割合の上限 */
+    private final double compactionThreshold;
+
+    /** ディスクへの書き出しを行うスレッド */
+    private final JournalMessagingProvider.GroupSync groupSync;
+
+    /** セグメント(世代順) */
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    /** 追記中のセグメント */
+    private Segment active;
+
+    /** 配信されていないメッセージの格納位置(通番順) */
+    private final TreeMap<Long, Location> undelivered = new TreeMap<Long, Location>();
+
+    /** 配信済みで、確認応答されていないメッセージの格納位置(メッセージIDをキーとする) */
+    private final Map<String, Location> inFlight = new HashMap<String, Location>();
+
+    /** 配信されていない、関連メッセージIDを持つメッセージの通番(関連メッセージIDごと) */
+    private final Map<String, ArrayDeque<Long>> correlated = new LinkedHashMap<String, ArrayDeque<Long>>();
+
+    /** 確認応答済み通番以上で、確認応答済みとなったメッセージの通番 */
+    private final TreeSet<Long> ackedAbove = new TreeSet<Long>();
+
+    /** チェックポイントファイル */
+    private final MappedFile checkpoint;
+
+    /** 確認応答ファイル */
+    private MappedFile acks;
+
+    /** 確認応答ファイルの書き込み位置 */
+    private int ackPosition = 0;
+
+    /** 確認応答済み通番(この通番未満のメッセージは全て確認応答済み) */
+    private long ackedUpTo;
+
+    /** 次に採番する通番 */
+    private long nextSequence;
+
+    /** 閉じられたか否か */
+    private boolean closed = false;
+
+    /** 状態を保護するロック */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** メッセージが追記されたこと、またはキューが閉じられたことを通知する条件 */
+    private final Condition appendedCondition = lock.newCondition();
+
+    /**
+     * キューのディレクトリを開き、既存のジャーナルを読み込む。
+     *
+     * @param name キューの論理名
+     * @param directory キューのディレクトリ
+     * @param segmentSize セグメントファイルのサイズ
+     * @param compactionThreshold コンパクションの対象とする、未確認応答のメッセージの割合の上限
+     * @param groupSync ディスクへの書き出しを行うスレッド
+     * @throws IOException ファイルの読み込みに失敗した場合
+     */
+    JournalQueue(String name, File directory, int segmentSize, double compactionThreshold,
+                 JournalMessagingProvider.GroupSync groupSync) throws IOException {
+        this.name = name;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.groupSync = groupSync;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create the directory. directory = [" + directory + "]");
+        }
+        checkpoint = new MappedFile(new File(directory, "checkpoint"), 8);
+        ackedUpTo = Math.max(1, checkpoint.buffer.getLong(0));
+        acks = new MappedFile(new File(directory, "acks"), INITIAL_ACK_FILE_SIZE);
+        loadAcks();
+        long maxSequence = 0;
+        for (Map.Entry<Long, File> file : listSegmentFiles().entrySet()) {
+            Segment segment = new Segment(file.getValue(), file.getKey(), segmentSize);
+            segments.put(segment.generation, segment);
+            maxSequence = Math.max(maxSequence, load(segment));
+        }
+        nextSequence = Math.max(maxSequence + 1, ackedUpTo);
+        if (segments.isEmpty()) {
+            segments.put(0L, new Segment(segmentFileOf(0), 0, segmentSize));
+        }
+        active = segments.lastEntry().getValue();
+        deleteAcknowledgedSegments();
+        LOGGER.logInfo("opened the journal queue. queueName = [" + name + "] directory = [" + directory
+                     + "] undelivered = [" + undelivered.size() + "]");
+    }
+
+    /**
+     * メッセージを追記する。
+     *
+     * @param messageId メッセージID
+     * @param correlationId 関連メッセージID
+     * @param headers ヘッダ
+     * @param body ボディ部
+     * @param expiresAt 有効期限(エポックミリ秒、無期限の場合は0)
+     * @return ディスクへの書き出しを待機するためのチケット
+     * @throws IOException セグメントファイルの切り替えに失敗した場合
+     * @throws IllegalArgumentException メッセージが1セグメントファイルに収まらない場合
+     */
+    long append(String messageId, String correlationId, Map<String, Object> headers,
+                byte[] body, long expiresAt) throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            long sequence = nextSequence++;
+            byte[] record = encode(sequence, expiresAt, messageId, correlationId, headers, body);
+            if (LENGTH_SIZE + record.length > segmentSize) {
+                throw new IllegalArgumentException(
+                    "the message is too large to be stored. size = [" + record.length + "]");
+            }
+            Location location = write(sequence, record);
+            undelivered.put(sequence, location);
+            if (correlationId != null) {
+                ArrayDeque<Long> sequences = correlated.get(correlationId);
+                if (sequences == null) {
+                    sequences = new ArrayDeque<Long>(1);
+                    correlated.put(correlationId, sequences);
+                }
+                sequences.add(sequence);
+            }
+            appendedCondition.signalAll();
+            return groupSync.requestSync(active.file.buffer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * メッセージを取り出す。メッセージが存在しない場合は、追記されるかタイムアウトするまで待機する。
+     *
+     * @param correlationId 関連メッセージID(指定しない場合は{@code null})
+     * @param timeout タイムアウト(単位：ミリ秒)
+     * @param acknowledge 取り出したメッセージを確認応答済みとする場合は{@code true}
+     * @return メッセージ(タイムアウトした場合、割り込まれた場合、またはキューが閉じられた場合は{@code null})
+     */
+    Record take(String correlationId, long timeout, boolean acknowledge) {
+        long deadline = System.currentTimeMillis() + timeout;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    return null;
+                }
+                Record record = poll(correlationId);
+                if (record != null) {
+                    if (acknowledge) {
+                        acknowledge(record.location);
+                    } else {
+                        inFlight.put(record.messageId, record.location);
+                    }
+                    return record;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    appendedCondition.await(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 配信済みのメッセージを確認応答済みとする。
+     * <p/>
+     * 配信されていないメッセージ、または確認応答済みのメッセージの場合は何もしない。
+     *
+     * @param messageId メッセージID
+     */
+    void acknowledge(String messageId) {
+        lock.lock();
+        try {
+            Location location = inFlight.remove(messageId);
+            if (location != null) {
+                acknowledge(location);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 滞留している(配信されていない)メッセージの件数を返す。
+     * @return メッセージの件数
+     */
+    int size() {
+        lock.lock();
+        try {
+            return undelivered.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * セグメントファイルの数を返す。
+     * @return セグメントファイルの数
+     */
+    int segmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * キューを閉じる。
+     * <p/>
+     * 書き込んだ内容をディスクに書き出し、ファイルを閉じる。
+     * 待機中の受信は{@code null}を返す。
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Segment segment : segments.values()) {
+                groupSync.unregister(segment.file.buffer);
+                segment.file.buffer.force();
+                segment.file.close();
+            }
+            groupSync.unregister(checkpoint.buffer);
+            checkpoint.buffer.force();
+            checkpoint.close();
+            groupSync.unregister(acks.buffer);
+            acks.buffer.force();
+            acks.close();
+            appendedCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---------------------------------------------------------- internal
+    /**
+     * キューが閉じられていないことを確認する。
+     * @throws IllegalStateException キューが閉じられている場合
+     */
+    private void ensureOpen() throws IllegalStateException {
+        if (closed) {
+            throw new IllegalStateException("the journal queue has been already closed. queueName = [" + name + "]");
+        }
+    }
+
+    /**
+     * 有効期間内のメッセージを取り出す。有効期間を過ぎたメッセージは確認応答済みとして破棄する。
+     * @param correlationId 関連メッセージID(指定しない場合は{@code null})
+     * @return メッセージ(存在しない場合は{@code null})
+     */
+    private Record poll(String correlationId) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            Long sequence = (correlationId == null) ? firstUndelivered() : firstCorrelated(correlationId);
+            if (sequence == null) {
+                return null;
+            }
+            Location location = undelivered.remove(sequence);
+            Record record = location.segment.read(location);
+            if (record.correlationId != null) {
+                removeCorrelated(record.correlationId, sequence);
+            }
+            if (record.expiresAt != 0 && record.expiresAt <= now) {
+                acknowledge(location);
+                continue;
+            }
+            return record;
+        }
+    }
+
+    /**
+     * 最も古い、配信されていないメッセージの通番を返す。
+     * @return 通番(存在しない場合は{@code null})
+     */
+    private Long firstUndelivered() {
+        return undelivered.isEmpty() ? null : undelivered.firstKey();
+    }
+
+    /**
+     * 指定した関連メッセージIDを持つ、最も古い配信されていないメッセージの通番を返す。
+     * @param correlationId 関連メッセージID
+     * @return 通番(存在しない場合は{@code null})
+     */
+    private Long firstCorrelated(String correlationId) {
+        ArrayDeque<Long> sequences = correlated.get(correlationId);
+        return (sequences == null) ? null : sequences.peekFirst();
+    }
+
+    /**
+     * 関連メッセージIDの索引から通番を削除する。
+     * @param correlationId 関連メッセージID
+     * @param sequence 通番
+     */
+    private void removeCorrelated(String correlationId, long sequence) {
+        ArrayDeque<Long> sequences = correlated.get(correlationId);
+        if (sequences != null) {
+            sequences.remove(sequence);
+            if (sequences.isEmpty()) {
+                correlated.remove(correlationId);
+            }
+        }
+    }
+
+    /**
+     * メッセージを確認応答済みとし、確認応答済み通番を進める。
+     * <p/>
+     * 未確認応答のメッセージがなくなったセグメントは削除する。
+     *
+     * @param location 格納位置
+     */
+    private void acknowledge(Location location) {
+        long sequence = location.sequence;
+        if (sequence == ackedUpTo) {
+            ackedUpTo++;
+            while (ackedAbove.remove(ackedUpTo)) {
+                ackedUpTo++;
+            }
+            checkpoint.buffer.putLong(0, ackedUpTo);
+            groupSync.requestSync(checkpoint.buffer);
+        } else if (sequence > ackedUpTo) {
+            ackedAbove.add(sequence);
+            appendAck(sequence);
+            groupSync.requestSync(acks.buffer);
+        }
+        Segment segment = location.segment;
+        segment.liveCount--;
+        if (segment != active && segment.liveCount <= 0 && segments.get(segment.generation) == segment) {
+            removeSegment(segment);
+        }
+    }
+
+    /**
+     * 確認応答ファイルに通番を追記する。満杯の場合は、確認応答済み通番以上の通番のみで作り直す。
+     * @param sequence 通番
+     */
+    private void appendAck(long sequence) {
+        if (ackPosition + 8 > acks.capacity) {
+            rewriteAcks();
+        }
+        acks.buffer.putLong(ackPosition, sequence);
+        ackPosition += 8;
+    }
+
+    /**
+     * 確認応答ファイルを、確認応答済み通番以上の通番のみで作り直す。
+     * <p/>
+     * 一時ファイルに書き込んだ後に置き換えるため、作り直しの途中で停止した場合も確認応答は失われない。
+     */
+    private void rewriteAcks() {
+        int size = INITIAL_ACK_FILE_SIZE;
+        while (size < (ackedAbove.size() + 1) * 8 * 2) {
+            size <<= 1;
+        }
+        File file = new File(directory, "acks");
+        File temporary = new File(directory, "acks.tmp");
+        try {
+            deleteFile(temporary);
+            MappedFile rewritten = new MappedFile(temporary, size);
+            int position = 0;
+            for (Long sequence : ackedAbove) {
+                rewritten.buffer.putLong(position, sequence);
+                position += 8;
+            }
+            rewritten.buffer.force();
+            rewritten.close();
+            groupSync.unregister(acks.buffer);
+            acks.close();
+            if (!file.delete() || !temporary.renameTo(file)) {
+                throw new IOException("failed to replace the ack file. file = [" + file + "]");
+            }
+            acks = new MappedFile(file, size);
+            ackPosition = position;
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to rewrite the ack file. queueName = [" + name + "]", e);
+        }
+    }
+
+    /**
+     * 確認応答ファイルを読み込む。
+     */
+    private void loadAcks() {
+        int position = 0;
+        while (position + 8 <= acks.capacity) {
+            long sequence = acks.buffer.getLong(position);
+            if (sequence == 0) {
+                break;
+            }
+            if (sequence >= ackedUpTo) {
+                ackedAbove.add(sequence);
+            }
+            position += 8;
+        }
+        ackPosition = position;
+        while (ackedAbove.remove(ackedUpTo)) {
+            ackedUpTo++;
+        }
+    }
+
+    /**
+     * 追記中のセグメントにレコードを書き込む。収まらない場合はセグメントを切り替える。
+     * @param sequence 通番
+     * @param record レコード
+     * @return 格納位置
+     * @throws IOException セグメントファイルの作成に失敗した場合
+     */
+    private Location write(long sequence, byte[] record) throws IOException {
+        if (!active.hasRoom(record.length)) {
+            roll();
+        }
+        return active.append(sequence, record);
+    }
+
+    /**
+     * 新しいセグメントファイルに切り替え、古いセグメントファイルのコンパクションを行う。
+     * @throws IOException セグメントファイルの作成に失敗した場合
+     */
+    private void roll() throws IOException {
+        long generation = active.generation + 1;
+        Segment previous = active;
+        active = new Segment(segmentFileOf(generation), generation, segmentSize);
+        segments.put(generation, active);
+        groupSync.requestSync(previous.file.buffer);
+        compact();
+    }
+
+    /**
+     * 未確認応答のメッセージの割合が閾値以下の、最も古いセグメントのメッセージを追記中のセグメントに複写し、削除する。
+     * @throws IOException セグメントファイルの作成に失敗した場合
+     */
+    private void compact() throws IOException {
+        Segment target = null;
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveCount <= segment.recordCount * compactionThreshold) {
+                target = segment;
+                break;
+            }
+        }
+        if (target == null) {
+            return;
+        }
+        int copied = 0;
+        for (Location location : liveLocationsOf(target)) {
+            Record record = target.read(location);
+            byte[] bytes = target.rawRecord(location);
+            if (!active.hasRoom(bytes.length)) {
+                // 複写先も満杯となる場合は、コンパクションを中止する。
+                return;
+            }
+            Location moved = active.append(record.sequence, bytes);
+            target.liveCount--;
+            if (undelivered.containsKey(record.sequence)) {
+                undelivered.put(record.sequence, moved);
+            } else {
+                inFlight.put(record.messageId, moved);
+            }
+            copied++;
+        }
+        // 複写したレコードをディスクに書き出してから、元のセグメントファイルを削除する。
+        try {
+            groupSync.awaitSync(groupSync.requestSync(active.file.buffer));
+        } catch (MessagingException e) {
+            // 複写したレコードが書き出されていない可能性があるため、元のセグメントファイルを残す。
+            LOGGER.logWarn("aborted the compaction of the journal queue. queueName = [" + name + "] file = ["
+                         + target.file.file + "]", e);
+            return;
+        }
+        removeSegment(target);
+        LOGGER.logInfo("compacted the journal queue. queueName = [" + name + "] file = [" + target.file.file
+                     + "] copied = [" + copied + "]");
+    }
+
+    /**
+     * セグメント内の未確認応答のメッセージの格納位置を返す。
+     * @param segment セグメント
+     * @return 格納位置(通番順)
+     */
+    private List<Location> liveLocationsOf(Segment segment) {
+        List<Location> locations = new ArrayList<Location>();
+        for (Location location : undelivered.values()) {
+            if (location.segment == segment) {
+                locations.add(location);
+            }
+        }
+        for (Location location : inFlight.values()) {
+            if (location.segment == segment) {
+                locations.add(location);
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * 確認応答済みのメッセージのみを格納するセグメントを削除する。
+     */
+    private void deleteAcknowledgedSegments() {
+        List<Segment> removable = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveCount <= 0) {
+                removable.add(segment);
+            }
+        }
+        for (Segment segment : removable) {
+            removeSegment(segment);
+        }
+    }
+
+    /**
+     * セグメントを削除する。
+     * @param segment セグメント
+     */
+    private void removeSegment(Segment segment) {
+        segments.remove(segment.generation);
+        groupSync.unregister(segment.file.buffer);
+        segment.file.close();
+        deleteFile(segment.file.file);
+    }
+
+    /**
+     * セグメントファイルを先頭から読み込み、未確認応答のメッセージを登録する。
+     * @param segment セグメント
+     * @return セグメント内の最大の通番
+     */
+    private long load(Segment segment) {
+        ByteBuffer buffer = segment.file.buffer.duplicate();
+        int position = 0;
+        long maxSequence = 0;
+        while (position + LENGTH_SIZE <= segment.file.capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + LENGTH_SIZE + length > segment.file.capacity) {
+                break;
+            }
+            long sequence = buffer.getLong(position + LENGTH_SIZE);
+            Location location = new Location(segment, sequence, position);
+            segment.register();
+            maxSequence = Math.max(maxSequence, sequence);
+            boolean acknowledged = sequence < ackedUpTo || ackedAbove.contains(sequence);
+            // コンパクションの途中で停止した場合は同じ通番のレコードが存在するため、先に読み込んだものを正とする。
+            if (acknowledged || undelivered.containsKey(sequence)) {
+                segment.liveCount--;
+            } else {
+                undelivered.put(sequence, location);
+                String correlationId = segment.read(location).correlationId;
+                if (correlationId != null) {
+                    ArrayDeque<Long> sequences = correlated.get(correlationId);
+                    if (sequences == null) {
+                        sequences = new ArrayDeque<Long>(1);
+                        correlated.put(correlationId, sequences);
+                    }
+                    sequences.add(sequence);
+                }
+            }
+            position += LENGTH_SIZE + length;
+        }
+        segment.position = position;
+        return maxSequence;
+    }
+
+    /**
+     * ディレクトリ内のセグメントファイルを世代順に返す。
+     * @return 世代をキーとするセグメントファイル
+     */
+    private SortedMap<Long, File> listSegmentFiles() {
+        SortedMap<Long, File> files = new TreeMap<Long, File>();
+        File[] candidates = directory.listFiles();
+        if (candidates == null) {
+            return files;
+        }
+        for (File file : candidates) {
+            String fileName = file.getName();
+            if (!fileName.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                files.put(Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                // 本クラスが作成したファイルではないため無視する。
+                continue;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * セグメントファイルを返す。
+     * @param generation 世代
+     * @return セグメントファイル
+     */
+    private File segmentFileOf(long generation) {
+        return new File(directory, String.format("%019d", generation) + SUFFIX);
+    }
+
+    /**
+     * ファイルを削除する。
+     * @param file ファイル
+     */
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.logWarn("failed to delete the file of the journal queue. file = [" + file + "]");
+        }
+    }
+
+    // ---------------------------------------------------------- encoding
+    /**
+     * メッセージをレコードに変換する。
+     * @param sequence 通番
+     * @param expiresAt 有効期限
+     * @param messageId メッセージID
+     * @param correlationId 関連メッセージID
+     * @param headers ヘッダ
+     * @param body ボディ部
+     * @return レコード
+     */
+    private static byte[] encode(long sequence, long expiresAt, String messageId, String correlationId,
+                                 Map<String, Object> headers, byte[] body) {
+        List<byte[]> names = new ArrayList<byte[]>(headers.size());
+        List<Object> values = new ArrayList<Object>(headers.size());
+        int length = 8 + 8 + sizeOf(bytesOf(messageId)) + sizeOf(bytesOf(correlationId)) + 4 + sizeOf(body);
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            byte[] headerName = bytesOf(header.getKey());
+            Object value = header.getValue();
+            if (value != null && !(value instanceof Integer || value instanceof Long || value instanceof Boolean)) {
+                value = bytesOf(value.toString());
+            }
+            names.add(headerName);
+            values.add(value);
+            length += sizeOf(headerName) + 1 + ((value instanceof byte[]) ? sizeOf((byte[]) value)
+                                               : (value instanceof Long) ? 8
+                                               : (value instanceof Integer) ? 4
+                                               : (value instanceof Boolean) ? 1 : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putLong(sequence);
+        buffer.putLong(expiresAt);
+        writeBytes(buffer, bytesOf(messageId));
+        writeBytes(buffer, bytesOf(correlationId));
+        buffer.putInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            writeBytes(buffer, names.get(i));
+            Object value = values.get(i);
+            if (value == null) {
+                buffer.put(TYPE_NULL);
+            } else if (value instanceof byte[]) {
+                buffer.put(TYPE_STRING);
+                writeBytes(buffer, (byte[]) value);
+            } else if (value instanceof Integer) {
+                buffer.put(TYPE_INTEGER);
+                buffer.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.put(TYPE_LONG);
+                buffer.putLong((Long) value);
+            } else {
+                buffer.put(TYPE_BOOLEAN);
+                buffer.put((byte) (((Boolean) value) ? 1 : 0));
+            }
+        }
+        writeBytes(buffer, body);
+        return buffer.array();
+    }
+
+    /**
+     * 長さを付与したバイト配列のサイズを返す。
+     * @param bytes バイト配列
+     * @return サイズ
+     */
+    private static int sizeOf(byte[] bytes) {
+        return 4 + ((bytes == null) ? 0 : bytes.length);
+    }
+
+    /**
+     * 文字列をバイト配列に変換する。
+     * @param value 文字列
+     * @return バイト配列(文字列が{@code null}の場合は{@code null})
+     */
+    private static byte[] bytesOf(String value) {
+        return (value == null) ? null : value.getBytes(UTF_8);
+    }
+
+    /**
+     * 長さを付与してバイト配列を書き込む。
+     * @param buffer 書き込み先
+     * @param bytes バイト配列
+     */
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * 長さが付与されたバイト配列を読み込む。
+     * @param buffer 読み込み元
+     * @return バイト配列
+     */
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 長さが付与された文字列を読み込む。
+     * @param buffer 読み込み元
+     * @return 文字列
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return (bytes == null) ? null : new String(bytes, UTF_8);
+    }
+
+    /**
+     * ジャーナルから読み込んだメッセージ。
+     */
+    static final class Record {
+
+        /** 通番 */
+        final long sequence;
+
+        /** 有効期限(エポックミリ秒、無期限の場合は0) */
+        final long expiresAt;
+
+        /** メッセージID */
+        final String messageId;
+
+        /** 関連メッセージID */
+        final String correlationId;
+
+        /** ヘッダ */
+        final Map<String, Object> headers;
+
+        /** ボディ部 */
+        final byte[] body;
+
+        /** 格納位置 */
+        private final Location location;
+
+        /**
+         * コンストラクタ。
+         * @param location 格納位置
+         * @param buffer レコードの本体を指すバッファ
+         */
+        private Record(Location location, ByteBuffer buffer) {
+            this.location = location;
+            sequence = buffer.getLong();
+            expiresAt = buffer.getLong();
+            messageId = readString(buffer);
+            correlationId = readString(buffer);
+            int headerCount = buffer.getInt();
+            headers = new HashMap<String, Object>(headerCount * 2);
+            for (int i = 0; i < headerCount; i++) {
+                String headerName = readString(buffer);
+                byte type = buffer.get();
+                Object value;
+                switch (type) {
+                case TYPE_STRING:
+                    value = readString(buffer);
+                    break;
+                case TYPE_INTEGER:
+                    value = buffer.getInt();
+                    break;
+                case TYPE_LONG:
+                    value = buffer.getLong();
+                    break;
+                case TYPE_BOOLEAN:
+                    value = buffer.get() != 0;
+                    break;
+                default:
+                    value = null;
+                    break;
+                }
+                headers.put(headerName, value);
+            }
+            body = readBytes(buffer);
+        }
+    }
+
+    /**
+     * メッセージの格納位置。
+     */
+    private static final class Location {
+
+        /** セグメント */
+        private final Segment segment;
+
+        /** 通番 */
+        private final long sequence;
+
+        /** セグメント内のレコードの開始位置 */
+        private final int offset;
+
+        /**
+         * コンストラクタ。
+         * @param segment セグメント
+         * @param sequence 通番
+         * @param offset セグメント内のレコードの開始位置
+         */
+        private Location(Segment segment, long sequence, int offset) {
+            this.segment = segment;
+            this.sequence = sequence;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * セグメントファイル。
+     */
+    private static final class Segment {
+
+        /** ファイル */
+        private final MappedFile file;
+
+        /** 世代 */
+        private final long generation;
+
+        /** 次のレコードの書き込み位置 */
+        private int position = 0;
+
+        /** 格納しているレコードの件数 */
+        private int recordCount = 0;
+
+        /** 格納している未確認応答のメッセージの件数 */
+        private int liveCount = 0;
+
+        /**
+         * セグメントファイルを開く。ファイルが存在しない場合は作成する。
+         * @param file ファイル
+         * @param generation 世代
+         * @param size セグメントファイルのサイズ
+         * @throws IOException ファイルを開けなかった場合
+         */
+        private Segment(File file, long generation, int size) throws IOException {
+            this.file = new MappedFile(file, size);
+            this.generation = generation;
+        }
+
+        /**
+         * レコードを追記できるか否かを返す。
+         * @param length レコードの長さ
+         * @return 追記できる場合は{@code true}
+         */
+        private boolean hasRoom(int length) {
+            return position + LENGTH_SIZE + length <= file.capacity;
+        }
+
+        /**
+         * レコードを登録する。
+         */
+        private void register() {
+            recordCount++;
+            liveCount++;
+        }
+
+        /**
+         * レコードを追記する。
+         * <p/>
+         * レコードの本体を書き込んだ後に長さを書き込むことで、書き込み途中のレコードを読み込まないようにする。
+         *
+         * @param sequence 通番
+         * @param record レコード
+         * @return 格納位置
+         */
+        private Location append(long sequence, byte[] record) {
+            int offset = position;
+            ByteBuffer body = file.buffer.duplicate();
+            body.position(offset + LENGTH_SIZE);
+            body.put(record);
+            file.buffer.putInt(offset, record.length);
+            position = offset + LENGTH_SIZE + record.length;
+            register();
+            return new Location(this, sequence, offset);
+        }
+
+        /**
+         * レコードを読み込む。
+         * @param location 格納位置
+         * @return メッセージ
+         */
+        private Record read(Location location) {
+            ByteBuffer record = file.buffer.duplicate();
+            record.position(location.offset + LENGTH_SIZE);
+            return new Record(location, record);
+        }
+
+        /**
+         * レコードの本体をバイト配列として読み込む。
+         * @param location 格納位置
+         * @return レコードの本体
+         */
+        private byte[] rawRecord(Location location) {
+            ByteBuffer record = file.buffer.duplicate();
+            byte[] bytes = new byte[record.getInt(location.offset)];
+            record.position(location.offset + LENGTH_SIZE);
+            record.get(bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * メモリマップドファイル。
+     */
+    private static final class MappedFile {
+
+        /** ファイル */
+        private final File file;
+
+        /** ファイルのチャネル */
+        private final FileChannel channel;
+
+        /** ファイルをマップしたバッファ */
+        private final MappedByteBuffer buffer;
+
+        /** 容量(単位：バイト) */
+        private final int capacity;
+
+        /**
+         * ファイルを開いてマップする。ファイルが存在しない場合は作成する。
+         * @param file ファイル
+         * @param size ファイルのサイズ(既存のファイルがこれより大きい場合はファイルのサイズ)
+         * @throws IOException ファイルを開けなかった場合
+         */
+        private MappedFile(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                this.capacity = (int) Math.max(size, Math.min(raf.length(), Integer.MAX_VALUE));
+                this.channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        /**
+         * ファイルを閉じ、マップを解除する。
+         * <p/>
+         * 呼び出し後は、バッファにアクセスしてはならない。
+         * 書き出しスレッドのバッファは、{@link JournalMessagingProvider.GroupSync#unregister(MappedByteBuffer)}で
+         * 除外しておくこと。
+         */
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.logWarn("failed to close the file of the journal queue. file = [" + file + "]", e);
+            }
+            unmap(buffer);
+        }
+
+        /**
+         * バッファのマップを解除する。
+         * <p/>
+         * Java 9以降は{@code sun.misc.Unsafe#invokeCleaner}、Java 8はバッファのクリーナを使用する。
+         * いずれも使用できない場合は解除せず、ガベージコレクションに任せる。
+         *
+         * @param buffer バッファ
+         */
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner;
+                try {
+                    invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                } catch (NoSuchMethodException e) {
+                    invokeCleaner = null;
+                }
+                if (invokeCleaner != null) {
+                    Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                    theUnsafe.setAccessible(true);
+                    invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                    return;
+                }
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                LOGGER.logDebug("could not unmap the file of the journal queue. it is released by the garbage collection.", e);
+            }
+        }
+    }
+}
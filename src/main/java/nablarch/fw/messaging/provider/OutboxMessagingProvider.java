@@ -0,0 +1,780 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.repository.disposal.Disposable;
+import nablarch.core.util.FileUtil;
+import nablarch.fw.messaging.InterSystemMessage.HeaderName;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+
+/**
+ * 他のプロバイダへの送信に失敗した場合に、メッセージをローカルディスクに退避(スプール)し、
+ * 復旧後にまとめて転送するプロバイダ。
+ * <p/>
+ * メッセージングサーバの停止中や高負荷時に、送信の失敗や待機が業務処理の失敗や遅延とならないようにする。
+ * スプールには{@link JournalMessagingProvider}を使用するため、プロセスを再起動してもスプールしたメッセージは失われない。
+ *
+ * <div><b>スプールと転送</b></div>
+ * <hr/>
+ * 送信は通常、{@link #setMessagingProvider(MessagingProvider)}で設定したプロバイダにそのまま委譲する。
+ * 送信が{@link MessagingException}で失敗した場合は、そのメッセージをスプールし、以降の送信もスプールする。
+ * 送信のたびにメッセージングサーバへの接続を待機することはないため、障害中の送信の応答時間はディスクへの書き込み時間となる。
+ * <p/>
+ * メッセージングサーバの高負荷時などに、送信が失敗せずに待機し続けることがある。
+ * {@link #setSendTimeout(long)}で送信の待機時間を設定した場合、直接の送信を別スレッドで行い、
+ * 待機時間内に完了しなければ送信に失敗した場合と同様にスプールする。
+ * 待機時間を過ぎた送信は中断を試みるが、中断できずに後から完了した場合は、
+ * スプールから転送したメッセージと合わせて同じメッセージが2回到達する(到達順も保証しない)。
+ * 待機時間を設定しない場合(デフォルト)は、ラップしたプロバイダの送信が完了するまで待機する。
+ * <p/>
+ * 本プロバイダは転送スレッドを1つ起動し、スプールしたメッセージをスプールした順に転送する。
+ * 転送に失敗した場合は{@link #setRetryInterval(long)}の間隔で再試行し、スプールが空になった時点で直接の送信に戻る。
+ * スプールと直接の送信は排他制御するため、スプールしたメッセージより後に送信したメッセージが先に到達することはない。
+ * <p/>
+ * スプールしたメッセージの送信では、スプールで採番したメッセージIDを返す。
+ * 転送時にはラップしたプロバイダがメッセージIDを採番し直すため、応答電文の関連メッセージIDとは一致しない。
+ * このため、応答宛先が設定されたメッセージ(同期送信の要求電文)はスプール中も含めて常にスプールせずに直接送信し、
+ * 送信に失敗した場合は例外を送出する。
+ * 直接送信した要求電文は、スプールしたメッセージより先に到達することがある。
+ * <p/>
+ * 転送は少なくとも1回(at-least-once)行う。
+ * 転送の完了をスプールに記録する前にプロセスが停止した場合は、再起動後に同じメッセージを再度転送する。
+ * 有効期間ヘッダが設定されたメッセージのうち、スプール中に有効期間を過ぎたものは転送せずに破棄する。
+ * 転送するメッセージの有効期間は、ラップしたプロバイダのデフォルト値となる。
+ *
+ * <div><b>監視</b></div>
+ * <hr/>
+ * {@link #getSpoolDepth()}、{@link #getOldestSpooledAge()}、{@link #getDrainRate()}で、
+ * スプールの滞留件数、最も古いメッセージの滞留時間、転送速度を取得できる。
+ * <p/>
+ * {@link #setDefaultResponseTimeout(long)}などの設定は、ラップしたプロバイダに委譲する。
+ * <p/>
+ * 本プロバイダは{@link Disposable}を実装しているため、システムリポジトリの廃棄対象に設定することで、
+ * 終了時に転送スレッドを停止し、スプールを閉じる。
+ * システムリポジトリを使用しない場合は、プロセスの終了時に{@link #close()}を呼び出すこと。
+ */
+public class OutboxMessagingProvider implements MessagingProvider, Disposable {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(OutboxMessagingProvider.class);
+
+    /** スプールのキュー名 */
+    private static final String SPOOL_QUEUE = "OUTBOX";
+
+    /** 元の宛先を格納するヘッダ名 */
+    private static final String DESTINATION_HEADER = "OutboxDestination";
+
+    /** スプールした時刻を格納するヘッダ名 */
+    private static final String SPOOLED_AT_HEADER = "OutboxSpooledAt";
+
+    /** 転送速度を集計する期間(単位：ミリ秒) */
+    private static final long RATE_WINDOW = 1000;
+
+    /** ラップするプロバイダ */
+    private MessagingProvider messagingProvider = null;
+
+    /** スプールを格納するディレクトリ */
+    private String spoolDirectory = null;
+
+    /** 転送の再試行間隔(単位：ミリ秒) */
+    private long retryInterval = 1000;
+
+    /** 送信の待機時間(単位：ミリ秒、0の場合は待機時間を設けない) */
+    private long sendTimeout = 0;
+
+    /** スプール */
+    private JournalMessagingProvider spool = null;
+
+    /** 待機時間を設けた直接の送信を行うスレッドプール */
+    private ExecutorService sender = null;
+
+    /** 転送スレッド */
+    private Thread forwarder = null;
+
+    /** 送信をスプールしているか否か */
+    private volatile boolean spooling = false;
+
+    /** スプールと直接の送信を切り替える際の排他制御(スプールは読み取りロック、切り替えは書き込みロック) */
+    private final ReentrantReadWriteLock spoolLock = new ReentrantReadWriteLock();
+
+    /** 転送中のメッセージ */
+    private volatile ReceivedMessage forwarding = null;
+
+    /** 転送したメッセージの件数 */
+    private final AtomicLong forwardedCount = new AtomicLong();
+
+    /** 転送速度の集計期間の開始時刻 */
+    private long rateWindowStartedAt = System.currentTimeMillis();
+
+    /** 集計期間中に転送したメッセージの件数 */
+    private long rateWindowCount = 0;
+
+    /** 直前の集計期間の転送速度(件/秒) */
+    private double drainRate = 0;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * 送信に失敗した場合にスプールするコンテキストを返す。
+     * ラップしたプロバイダのコンテキストは、最初に必要となった時点で生成する。
+     *
+     * @throws IllegalStateException ラップするプロバイダ、またはスプールを格納するディレクトリが設定されていない場合
+     */
+    public MessagingContext createContext() {
+        getMessagingProvider();
+        initialize();
+        return new Context(this);
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultResponseTimeout(long timeout) {
+        getMessagingProvider().setDefaultResponseTimeout(timeout);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+        getMessagingProvider().setDefaultTimeToLive(timeToLive);
+        return this;
+    }
+
+    /** {@inheritDoc} */
+    public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+        getMessagingProvider().setMessagingExceptionFactory(messagingExceptionFactory);
+        return this;
+    }
+
+    /**
+     * ラップするプロバイダを設定する。
+     * <p/>
+     * この設定は必須である。
+     *
+     * @param messagingProvider ラップするプロバイダ
+     * @return このオブジェクト自体
+     */
+    public OutboxMessagingProvider setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * スプールを格納するディレクトリを設定する。
+     * <p/>
+     * この設定は必須である。
+     * ディレクトリは単一のプロセスが占有すること。
+     *
+     * @param spoolDirectory スプールを格納するディレクトリ
+     * @return このオブジェクト自体
+     */
+    public OutboxMessagingProvider setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        return this;
+    }
+
+    /**
+     * 転送に失敗した場合の再試行間隔を設定する。
+     * <p/>
+     * デフォルトは1000ミリ秒。
+     *
+     * @param retryInterval 再試行間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public OutboxMessagingProvider setRetryInterval(long retryInterval) {
+        if (retryInterval <= 0) {
+            throw new IllegalArgumentException(
+                "retryInterval must be greater than 0. retryInterval = [" + retryInterval + "]");
+        }
+        this.retryInterval = retryInterval;
+        return this;
+    }
+
+    /**
+     * 直接の送信の待機時間を設定する。
+     * <p/>
+     * 待機時間内に送信が完了しない場合は、メッセージをスプールし、以降の送信もスプールする。
+     * 応答宛先が設定されたメッセージの送信には適用しない。
+     * 0を指定した場合は、送信が完了するまで待機する。
+     * デフォルトは0。
+     *
+     * @param sendTimeout 送信の待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public OutboxMessagingProvider setSendTimeout(long sendTimeout) {
+        if (sendTimeout < 0) {
+            throw new IllegalArgumentException(
+                "sendTimeout must not be negative. sendTimeout = [" + sendTimeout + "]");
+        }
+        this.sendTimeout = sendTimeout;
+        return this;
+    }
+
+    /**
+     * 送信をスプールしているか否かを返す。
+     * @return スプールしている場合は{@code true}
+     */
+    public boolean isSpooling() {
+        return spooling;
+    }
+
+    /**
+     * スプールに滞留しているメッセージの件数を返す。
+     * <p/>
+     * 転送中のメッセージを含む。
+     *
+     * @return メッセージの件数
+     */
+    public int getSpoolDepth() {
+        JournalMessagingProvider current;
+        synchronized (this) {
+            current = spool;
+        }
+        if (current == null) {
+            return 0;
+        }
+        return current.getQueueDepth(SPOOL_QUEUE) + ((forwarding == null) ? 0 : 1);
+    }
+
+    /**
+     * スプールに滞留している最も古いメッセージの滞留時間を返す。
+     * <p/>
+     * 転送スレッドはスプールした順に転送するため、転送中のメッセージの滞留時間を返す。
+     *
+     * @return 滞留時間(単位：ミリ秒、滞留しているメッセージがない場合は0)
+     */
+    public long getOldestSpooledAge() {
+        ReceivedMessage current = forwarding;
+        if (current == null) {
+            return 0;
+        }
+        Long spooledAt = current.getHeader(SPOOLED_AT_HEADER);
+        return (spooledAt == null) ? 0 : Math.max(0, System.currentTimeMillis() - spooledAt);
+    }
+
+    /**
+     * 転送したメッセージの累計件数を返す。
+     * @return メッセージの件数
+     */
+    public long getForwardedCount() {
+        return forwardedCount.get();
+    }
+
+    /**
+     * 直前の1秒間の転送速度を返す。
+     * @return 転送速度(件/秒)
+     */
+    public synchronized double getDrainRate() {
+        rollRateWindow(System.currentTimeMillis());
+        return drainRate;
+    }
+
+    /**
+     * 転送スレッドを停止し、スプールを閉じる。
+     * <p/>
+     * スプールに滞留しているメッセージは、次回の起動時に転送する。
+     */
+    public void close() {
+        Thread thread;
+        JournalMessagingProvider closing;
+        ExecutorService senderClosing;
+        synchronized (this) {
+            thread = forwarder;
+            closing = spool;
+            senderClosing = sender;
+            forwarder = null;
+            spool = null;
+            sender = null;
+        }
+        if (senderClosing != null) {
+            senderClosing.shutdownNow();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * {@link #close()}を呼び出す。
+     */
+    @Override
+    public void dispose() {
+        close();
+    }
+
+    /**
+     * ラップするプロバイダを返す。
+     * @return ラップするプロバイダ
+     * @throws IllegalStateException ラップするプロバイダが設定されていない場合
+     */
+    private MessagingProvider getMessagingProvider() throws IllegalStateException {
+        if (messagingProvider == null) {
+            throw new IllegalStateException("messagingProvider was not specified.");
+        }
+        return messagingProvider;
+    }
+
+    /**
+     * スプールを開き、転送スレッドを開始する。
+     * <p/>
+     * 前回の起動時にスプールしたメッセージが残っている場合は、スプールを継続する。
+     *
+     * @throws IllegalStateException スプールを格納するディレクトリが設定されていない場合
+     */
+    private synchronized void initialize() throws IllegalStateException {
+        if (spool != null) {
+            return;
+        }
+        if (spoolDirectory == null) {
+            throw new IllegalStateException("spoolDirectory was not specified.");
+        }
+        JournalMessagingProvider opened = new JournalMessagingProvider();
+        opened.setDirectory(spoolDirectory).setAutoAcknowledge(false).setDefaultTimeToLive(0);
+        spool = opened;
+        if (opened.getQueueDepth(SPOOL_QUEUE) > 0) {
+            spooling = true;
+        }
+        final JournalMessagingProvider target = opened;
+        forwarder = new Thread(new Runnable() {
+            public void run() {
+                forward(target);
+            }
+        }, "OutboxMessagingProvider-forwarder");
+        forwarder.setDaemon(true);
+        forwarder.start();
+        if (sendTimeout > 0) {
+            sender = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger sequence = new AtomicInteger();
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "OutboxMessagingProvider-sender-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * ラップしたプロバイダのコンテキストでメッセージを直接送信する。
+     * <p/>
+     * 送信の待機時間を設定している場合は、別スレッドで送信し、待機時間を過ぎた場合は送信の中断を試みる。
+     * 送信に失敗した場合は、コンテキストを閉じる(送信中の場合は送信の終了後に閉じる)。
+     *
+     * @param context ラップしたプロバイダのコンテキスト
+     * @param message 送信メッセージ
+     * @return メッセージID
+     * @throws MessagingException 送信に失敗した場合、または待機時間内に送信が完了しなかった場合
+     */
+    private String sendDirectly(MessagingContext context, SendingMessage message) throws MessagingException {
+        ExecutorService current;
+        synchronized (this) {
+            current = sender;
+        }
+        if (current == null) {
+            try {
+                return context.sendMessage(message);
+            } catch (MessagingException e) {
+                FileUtil.closeQuietly(context);
+                throw e;
+            }
+        }
+        DirectSend task = new DirectSend(context, message);
+        Future<String> future = current.submit(task);
+        try {
+            return future.get(sendTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandon(future, task);
+            throw new MessagingException("sending a message timed out. sendTimeout = [" + sendTimeout + "]", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(future, task);
+            throw new MessagingException("sending a message was interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) {
+                FileUtil.closeQuietly(context);
+                throw (MessagingException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * 待機時間を過ぎた直接の送信を中断し、送信に使用したコンテキストを閉じる。
+     * <p/>
+     * 送信中の場合、コンテキストは送信の終了後に送信スレッドが閉じる。
+     *
+     * @param future 送信の結果
+     * @param task 送信
+     */
+    private static void abandon(Future<String> future, DirectSend task) {
+        future.cancel(true);
+        if (!task.abandon()) {
+            FileUtil.closeQuietly(task.context);
+        }
+    }
+
+    /**
+     * メッセージをスプールする。
+     * <p/>
+     * スプールを終了していた場合は、スプールせずに{@code null}を返す。
+     *
+     * @param message 送信メッセージ
+     * @return スプールで採番したメッセージID(スプールしなかった場合は{@code null})
+     * @throws IllegalStateException 本プロバイダが閉じられている場合
+     */
+    private String spool(SendingMessage message) {
+        spoolLock.readLock().lock();
+        try {
+            JournalMessagingProvider current;
+            synchronized (this) {
+                current = spool;
+            }
+            if (current == null) {
+                throw new IllegalStateException("this messaging provider was closed.");
+            }
+            if (!spooling) {
+                return null;
+            }
+            SendingMessage spooled = new SendingMessage();
+            spooled.setHeaderMap(message.getHeaderMap());
+            spooled.setHeader(DESTINATION_HEADER, message.getDestination())
+                   .setHeader(SPOOLED_AT_HEADER, System.currentTimeMillis())
+                   .setDestination(SPOOL_QUEUE);
+            byte[] body = message.getBodyBytes();
+            spooled.getBodyStream().write(body, 0, body.length);
+            MessagingContext spoolContext = current.createContext();
+            try {
+                return spoolContext.sendMessage(spooled);
+            } finally {
+                spoolContext.close();
+            }
+        } finally {
+            spoolLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 送信のスプールを開始する。
+     * @param cause 送信に失敗した原因
+     */
+    private void startSpooling(MessagingException cause) {
+        if (!spooling) {
+            spooling = true;
+            LOGGER.logWarn("failed to send a message. subsequent messages are spooled until the messaging provider recovers.",
+                           cause);
+        }
+    }
+
+    /**
+     * スプールが空であれば、直接の送信に戻る。
+     * @param target スプール
+     */
+    private void stopSpoolingIfDrained(JournalMessagingProvider target) {
+        if (!spooling) {
+            return;
+        }
+        spoolLock.writeLock().lock();
+        try {
+            if (spooling && forwarding == null && target.getQueueDepth(SPOOL_QUEUE) == 0) {
+                spooling = false;
+                LOGGER.logInfo("all spooled messages were forwarded. messages are sent directly. forwarded = ["
+                             + forwardedCount.get() + "]");
+            }
+        } finally {
+            spoolLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 転送スレッドの処理。割り込まれるまで、スプールしたメッセージを転送する。
+     * @param target スプール
+     */
+    private void forward(JournalMessagingProvider target) {
+        MessagingContext spoolContext = target.createContext();
+        MessagingContext forwardContext = null;
+        while (!Thread.currentThread().isInterrupted()) {
+            ReceivedMessage current = forwarding;
+            if (current == null) {
+                current = spoolContext.receiveMessage(SPOOL_QUEUE, null, retryInterval);
+                if (current == null) {
+                    stopSpoolingIfDrained(target);
+                    continue;
+                }
+                forwarding = current;
+            }
+            try {
+                if (forwardContext == null) {
+                    forwardContext = messagingProvider.createContext();
+                }
+                forwardContext.sendMessage(toForward(current));
+            } catch (RuntimeException e) {
+                LOGGER.logDebug("failed to forward a spooled message. it will be retried. messageId = ["
+                              + current.getMessageId() + "]", e);
+                FileUtil.closeQuietly(forwardContext);
+                forwardContext = null;
+                try {
+                    Thread.sleep(retryInterval);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            spoolContext.acknowledge(current);
+            forwarding = null;
+            forwardedCount.incrementAndGet();
+            countForwarded();
+        }
+        FileUtil.closeQuietly(forwardContext);
+        FileUtil.closeQuietly(spoolContext);
+    }
+
+    /**
+     * スプールしたメッセージから、転送するメッセージを生成する。
+     * @param spooled スプールしたメッセージ
+     * @return 転送するメッセージ
+     */
+    private static SendingMessage toForward(ReceivedMessage spooled) {
+        Map<String, Object> headers = new HashMap<String, Object>(spooled.getHeaderMap());
+        String destination = (String) headers.remove(DESTINATION_HEADER);
+        headers.remove(SPOOLED_AT_HEADER);
+        headers.remove(HeaderName.MESSAGE_ID);
+        SendingMessage message = new SendingMessage();
+        message.setHeaderMap(headers);
+        message.setDestination(destination);
+        byte[] body = spooled.getBodyBytes();
+        message.getBodyStream().write(body, 0, body.length);
+        return message;
+    }
+
+    /**
+     * 転送速度の集計に、転送したメッセージを加える。
+     */
+    private synchronized void countForwarded() {
+        rollRateWindow(System.currentTimeMillis());
+        rateWindowCount++;
+    }
+
+    /**
+     * 集計期間が終了していれば、転送速度を算出して次の集計期間を開始する。
+     * @param now 現在時刻
+     */
+    private void rollRateWindow(long now) {
+        long elapsed = now - rateWindowStartedAt;
+        if (elapsed < RATE_WINDOW) {
+            return;
+        }
+        // 集計期間中に転送がなかった期間が続いた場合は、転送速度を0とする。
+        drainRate = (elapsed < RATE_WINDOW * 2) ? rateWindowCount * 1000.0 / elapsed : 0;
+        rateWindowStartedAt = now;
+        rateWindowCount = 0;
+    }
+
+    /**
+     * 待機時間を設けた直接の送信。
+     * <p/>
+     * 待機時間を過ぎて送信元に見捨てられた場合は、送信の終了後にコンテキストを閉じる。
+     */
+    private static final class DirectSend implements Callable<String> {
+
+        /** ラップしたプロバイダのコンテキスト */
+        private final MessagingContext context;
+
+        /** 送信メッセージ */
+        private final SendingMessage message;
+
+        /** 送信を開始したか否か */
+        private boolean started = false;
+
+        /** 送信が終了したか否か */
+        private boolean finished = false;
+
+        /** 送信元に見捨てられたか否か */
+        private boolean abandoned = false;
+
+        /**
+         * コンストラクタ。
+         * @param context ラップしたプロバイダのコンテキスト
+         * @param message 送信メッセージ
+         */
+        private DirectSend(MessagingContext context, SendingMessage message) {
+            this.context = context;
+            this.message = message;
+        }
+
+        /** {@inheritDoc} */
+        public String call() {
+            synchronized (this) {
+                if (abandoned) {
+                    return null;
+                }
+                started = true;
+            }
+            try {
+                return context.sendMessage(message);
+            } finally {
+                boolean close;
+                synchronized (this) {
+                    finished = true;
+                    close = abandoned;
+                }
+                if (close) {
+                    FileUtil.closeQuietly(context);
+                }
+            }
+        }
+
+        /**
+         * 送信を見捨てる。
+         * @return 送信中であり、送信の終了後にコンテキストを閉じる場合は{@code true}
+         */
+        private synchronized boolean abandon() {
+            abandoned = true;
+            return started && !finished;
+        }
+    }
+
+    /**
+     * 送信に失敗した場合にスプールするメッセージングコンテキスト。
+     * <p/>
+     * 受信、確認応答、確定はラップしたプロバイダのコンテキストにそのまま委譲する。
+     */
+    public static class Context extends MessagingContext {
+
+        /** 本コンテキストを生成したプロバイダ */
+        private final OutboxMessagingProvider provider;
+
+        /** ラップしたプロバイダのコンテキスト */
+        private MessagingContext delegate = null;
+
+        /**
+         * コンストラクタ。
+         * @param provider 本コンテキストを生成したプロバイダ
+         */
+        Context(OutboxMessagingProvider provider) {
+            this.provider = provider;
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * スプール中、送信に失敗した場合、または送信の待機時間を過ぎた場合は、メッセージをスプールする。
+         * 応答宛先が設定されたメッセージは、スプール中も含めてスプールせずに直接送信する。
+         *
+         * @throws MessagingException 応答宛先が設定されたメッセージの送信に失敗した場合
+         */
+        @Override
+        public String sendMessage(SendingMessage message) {
+            if (message.getReplyTo() != null) {
+                return delegate().sendMessage(message);
+            }
+            while (true) {
+                if (!provider.spooling) {
+                    try {
+                        return provider.sendDirectly(delegate(), message);
+                    } catch (MessagingException e) {
+                        // 失敗したコンテキストは、sendDirectlyが閉じる。
+                        delegate = null;
+                        provider.startSpooling(e);
+                    }
+                }
+                String messageId = provider.spool(message);
+                if (messageId != null) {
+                    message.setMessageId(messageId);
+                    return messageId;
+                }
+                // スプールが空になり、直接の送信に戻ったため再度送信する。
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+            return delegate().receiveMessage(receiveQueue, messageId, timeout);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void acknowledge(ReceivedMessage message) {
+            delegate().acknowledge(message);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void commit() throws MessagingException {
+            if (delegate != null) {
+                delegate.commit();
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void rollback() throws MessagingException {
+            if (delegate != null) {
+                delegate.rollback();
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void addMessageListener(String receiveQueue, MessageListener listener) {
+            delegate().addMessageListener(receiveQueue, listener);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void removeMessageListener(String receiveQueue) {
+            delegate().removeMessageListener(receiveQueue);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() {
+            if (delegate != null) {
+                delegate.close();
+                delegate = null;
+            }
+        }
+
+        /**
+         * ラップしたプロバイダのコンテキストを返す。生成していない場合は生成する。
+         * @return ラップしたプロバイダのコンテキスト
+         */
+        private MessagingContext delegate() {
+            if (delegate == null) {
+                delegate = provider.messagingProvider.createContext();
+            }
+            return delegate;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package nablarch.fw.messaging.provider;
+
+/**
+ * キューに滞留しているメッセージの件数を返すインタフェース。
+ * <p/>
+ * {@link FlowControlledMessagingProvider}が、宛先キューの滞留件数に応じて送信を抑制するために使用する。
+ * メッセージングサーバの管理APIなどから滞留件数を取得する場合は、本インタフェースを実装すること。
+ *
+ * @see FlowControlledMessagingProvider#setQueueDepthSource(QueueDepthSource)
+ */
+public interface QueueDepthSource {
+
+    /**
+     * 指定したキューに滞留しているメッセージの件数を返す。
+     *
+     * @param queueName キューの論理名
+     * @return メッセージの件数
+     */
+    int getQueueDepth(String queueName);
+}
@@ -0,0 +1,141 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 複数スレッドから同時に格納・取り出しができる、ロックフリーの有界リングバッファ。
+ * <p/>
+ * 各スロットに通番を持たせ、格納位置と取り出し位置をCASで進めることで、ロックを使用せずに排他制御を行う。
+ * 容量は、指定した値以上の最小の2のべき乗とする。
+ *
+ * @param <E> 要素の型
+ */
+final class RingBuffer<E> {
+
+    /** スロット位置を求めるマスク */
+    private final int mask;
+
+    /** 要素 */
+    private final AtomicReferenceArray<E> elements;
+
+    /** スロットごとの通番 */
+    private final AtomicLongArray sequences;
+
+    /** 次に格納する位置 */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** 次に取り出す位置 */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * コンストラクタ。
+     * @param capacity 容量
+     */
+    RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 要素を格納する。
+     * @param element 要素
+     * @return 格納できた場合は{@code true}、満杯の場合は{@code false}
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 要素を取り出す。
+     * @return 要素(空の場合は{@code null})
+     */
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * 次に取り出す要素を、取り出さずに返す。
+     * <p/>
+     * 他のスレッドが取り出しを行っている間は、返した要素が既に取り出されている場合がある。
+     *
+     * @return 要素(空の場合は{@code null})
+     */
+    E peek() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long diff = sequences.get(index) - (position + 1);
+            if (diff < 0) {
+                return null;
+            }
+            if (diff == 0) {
+                E element = elements.get(index);
+                if (element != null && head.get() == position) {
+                    return element;
+                }
+            }
+        }
+    }
+
+    /**
+     * 格納されている要素数を返す。
+     * <p/>
+     * 他のスレッドが格納・取り出しを行っている間は、概算値となる。
+     *
+     * @return 要素数
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * 容量を返す。
+     * @return 容量
+     */
+    int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,35 @@
+package nablarch.fw.messaging.provider;
+
+import nablarch.fw.messaging.MessagingException;
+
+/**
+ * 流量制御により、メッセージを送信できなかった場合に送出される例外。
+ * <p/>
+ * 宛先の送信レートまたは滞留件数の上限を超えた状態が、最大待機時間を過ぎても解消しなかったことを表す。
+ * メッセージは送信されていないため、呼び出し元で時間をおいて再送信するか、エラーとすること。
+ *
+ * @see FlowControlledMessagingProvider
+ */
+public class SendThrottledException extends MessagingException {
+
+    /** 送信できなかったメッセージの宛先 */
+    private final String destination;
+
+    /**
+     * コンストラクタ。
+     * @param message エラーメッセージ
+     * @param destination 送信できなかったメッセージの宛先
+     */
+    public SendThrottledException(String message, String destination) {
+        super(message);
+        this.destination = destination;
+    }
+
+    /**
+     * 送信できなかったメッセージの宛先を返す。
+     * @return 宛先
+     */
+    public String getDestination() {
+        return destination;
+    }
+}
@@ -0,0 +1,144 @@
+package nablarch.fw.messaging.reader;
+
+import java.util.List;
+
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+
+/**
+ * 指定されたメッセージキューを監視し、受信した複数の電文オブジェクトをまとめて返すデータリーダ。
+ * <p/>
+ * {@link MessagingContext#receiveBatch(String, int, long, long)}を使用して、
+ * 最大件数までの電文を一括で受信する。
+ * 後続の業務アクションでは、受信した電文を1つのトランザクションでまとめて処理することができる。
+ * (例えば{@link nablarch.fw.messaging.action.BatchMessagingAction}を使用する。)
+ *
+ * @see MessageReader
+ * @see nablarch.fw.messaging.action.BatchMessagingAction
+ */
+public class BatchMessageReader implements DataReader<List<ReceivedMessage>> {
+    // ----------------------------------------------------- structure
+    /** このリーダが監視するキューの論理名 */
+    private String receiveQueueName;
+
+    /** このリーダが閉じられたかどうか。 */
+    private volatile boolean closed = false;
+
+    /** キューが空の場合に待機する最大時間。(単位：ミリ秒)  */
+    private long timeout = 5000;
+
+    /** 一度に受信する電文の最大件数 */
+    private int batchSize = 10;
+
+    /** 1件目の受信後、後続の電文を待機する時間。(単位：ミリ秒) */
+    private long batchWindow = 100;
+
+    // ----------------------------------------------------- DataReader I/F
+    /**
+     * 受信電文をまとめて読み込む。
+     * <p/>
+     * カレントスレッドに紐づけられた{@link MessagingContext}
+     * オブジェクトを使用して、受信キューから最大件数までの電文を取得し返却する。<br/>
+     * 受信キュー上に電文が1件も無い場合は、新規電文を受信するか、タイムアウト時間まで待機する。<br/>
+     * 既にリーダが閉じられていた場合、またはタイムアウトした場合は{@code null}を返却する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return 受信電文オブジェクトのリスト
+     * @throws IllegalStateException 受信キューの論理名が{@code null}の場合
+     */
+    public List<ReceivedMessage> read(ExecutionContext ctx) {
+        if (closed) {
+            return null;
+        }
+        if (receiveQueueName == null) {
+            throw new IllegalStateException(
+                "the name of the queue this reader watches must be assigned."
+            );
+        }
+        List<ReceivedMessage> messages = MessagingContext.getInstance()
+                .receiveBatch(receiveQueueName, batchSize, timeout, batchWindow);
+        if (messages.isEmpty()) {
+            return null; // timeout
+        }
+        return messages;
+    }
+
+    /**
+     * 次に読み込むデータが存在するかどうかを返却する。
+     * <p/>
+     * この実装では、リーダが開いているかどうかで次のデータを読めるかどうか判定する。
+     *
+     * @return 次に読み込むデータが存在する場合は {@code true}
+     */
+    public boolean hasNext(ExecutionContext ctx) {
+        return !closed;
+    }
+
+    /**
+     * このリーダのクローズフラグを立て新規電文の受信を停止する。
+     * <p/>
+     * 受信イベント待ちで待機中のスレッドについてはそのまま放置する。<br/>
+     * それらのスレッドは、新規電文を受信するかタイムアウトした時点で待機が解除される。
+     */
+    public void close(ExecutionContext ctx) {
+        this.closed = true;
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * このリーダが監視する受信キューの論理名を設定する。
+     * @param queueName 受信キューの論理名
+     * @return このオブジェクト自体
+     */
+    public BatchMessageReader setReceiveQueueName(String queueName) {
+        this.receiveQueueName = queueName;
+        return this;
+    }
+
+    /**
+     * 受信キューが空の場合に待機する最大時間を設定する。
+     * <p/>
+     * 0以下の値を設定した場合はタイムアウトせずに
+     * 新規電文を受信するまで待機し続ける。
+     *
+     * @param timeout 受信タイムアウト(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public BatchMessageReader setReadTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * 一度に受信する電文の最大件数を設定する。
+     * <p/>
+     * デフォルトは10。
+     * @param batchSize 一度に受信する電文の最大件数
+     * @return このオブジェクト自体
+     */
+    public BatchMessageReader setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(
+                "batchSize must be greater than 0. batchSize = [" + batchSize + "]");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * 1件目の電文を受信した後、後続の電文を待機する時間を設定する。
+     * <p/>
+     * この時間内に最大件数に達しなかった場合は、それまでに受信した電文を返却する。
+     * 0以下の値を設定した場合は、キュー上に存在する電文のみを受信する。
+     * デフォルトは100ミリ秒。
+     *
+     * @param batchWindow 待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public BatchMessageReader setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+        return this;
+    }
+}
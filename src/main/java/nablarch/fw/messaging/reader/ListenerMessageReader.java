@@ -0,0 +1,380 @@
+package nablarch.fw.messaging.reader;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.dataformat.DataRecordFormatter;
+import nablarch.core.dataformat.FormatterFactory;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.FilePathSetting;
+import nablarch.core.util.FileUtil;
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessageReadError;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+
+/**
+ * メッセージングサーバから配信された電文を返すデータリーダ。
+ * <p/>
+ * {@link MessageReader}が各業務スレッドで受信キューをポーリングするのに対し、
+ * 本リーダは受信キューに{@link MessageListener}を登録し、メッセージングサーバから配信された電文を
+ * メモリ上の有界バッファに格納する。業務スレッドは、バッファから電文を取り出して処理する。
+ * これにより、電文の到着から処理開始までの遅延がポーリング間隔に依存しなくなり、
+ * 待機中の業務スレッドによるメッセージングサーバへの問い合わせも発生しない。
+ * <p/>
+ * バッファが満杯の場合、リスナーは空きができるまで待機する。
+ * これにより、業務スレッドの処理能力を超える電文の配信を抑制する。
+ * <p/>
+ * 電文の処理完了は、同一の業務スレッドが次の電文を読み込んだ時点、または本リーダを閉じた時点で確定し、
+ * {@link MessagingContext#acknowledge(ReceivedMessage)}でメッセージングサーバに通知する。
+ * <p/>
+ * 本リーダは{@link MessageReader}と同様に、{@link FwHeaderReader}の読み込み元として使用することができる。
+ * リスナーの登録には、{@link MessagingProvider}から生成した専用の{@link MessagingContext}を使用するため、
+ * プロバイダがメッセージリスナーをサポートしている必要がある。
+ * (例えば、{@link nablarch.fw.messaging.provider.JmsMessagingProvider}はメッセージリスナーをサポートしている。)
+ *
+ * @see MessagingContext#addMessageListener(String, MessageListener)
+ * @see MessageReader
+ */
+public class ListenerMessageReader implements DataReader<ReceivedMessage> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(ListenerMessageReader.class);
+
+    /** リーダのクローズを確認する間隔(単位：ミリ秒) */
+    private static final long CLOSE_CHECK_INTERVAL = 100;
+
+    // ----------------------------------------------------- structure
+    /** リスナーの登録に使用するメッセージングプロバイダ */
+    private MessagingProvider messagingProvider;
+
+    /** このリーダが監視するキューの論理名 */
+    private String receiveQueueName;
+
+    /** バッファに格納する電文の最大件数 */
+    private int bufferSize = 10;
+
+    /** バッファが空の場合に業務スレッドが待機する最大時間。(単位：ミリ秒) */
+    private long readTimeout = 5000;
+
+    /** フォーマット定義ファイルが配置されているディレクトリの論理名 */
+    private String formatFileDirName = "format";
+
+    /** フォーマット定義ファイルの名前 */
+    private String formatFileName = null;
+
+    /** このリーダが閉じられたかどうか。 */
+    private volatile boolean closed = false;
+
+    /** 配信された電文を保持するバッファ */
+    private volatile BlockingQueue<ReceivedMessage> buffer;
+
+    /** リスナーの登録に使用したメッセージングコンテキスト */
+    private volatile MessagingContext listeningContext;
+
+    /** リスナーの登録、解除に使用するロック */
+    private final ReentrantLock listenLock = new ReentrantLock();
+
+    /** 業務スレッド毎の処理中の電文 */
+    private final ThreadLocal<ReceivedMessage> inFlight = new ThreadLocal<ReceivedMessage>();
+
+    // ----------------------------------------------------- DataReader I/F
+    /**
+     * 配信された電文を読み込む。
+     * <p/>
+     * 初回の呼び出し時に受信キューにリスナーを登録する。<br/>
+     * カレントスレッドが前回読み込んだ電文は、本メソッドの呼び出しをもって処理完了とみなす。<br/>
+     * バッファに電文が無い場合は、電文が配信されるか、タイムアウト時間まで待機する。<br/>
+     * 既にリーダが閉じられていた場合、またはタイムアウトした場合は{@code null}を返却する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return 受信電文オブジェクト
+     * @throws IllegalStateException 受信キューの論理名、またはメッセージングプロバイダが{@code null}の場合
+     * @throws MessageReadError 受信電文オブジェクトの設定中に
+     *                           実行時例外またはエラーが発生した場合
+     */
+    public ReceivedMessage read(ExecutionContext ctx) {
+        completeInFlight();
+        if (closed) {
+            return null;
+        }
+        if (receiveQueueName == null) {
+            throw new IllegalStateException(
+                "the name of the queue this reader watches must be assigned."
+            );
+        }
+        if (messagingProvider == null) {
+            throw new IllegalStateException(
+                "the messaging provider used to listen to the queue must be assigned."
+            );
+        }
+        startListening();
+
+        ReceivedMessage message = take();
+        if (message == null) {
+            return null;
+        }
+        inFlight.set(message);
+        try {
+            if (formatFileName != null) {
+                message.setFormatter(getFormatter());
+            }
+            return message;
+
+        } catch (RuntimeException e) {
+            throw new MessageReadError(message, e);
+
+        } catch (Error e) {
+            throw new MessageReadError(message, e);
+        }
+    }
+
+    /**
+     * 次に読み込むデータが存在するかどうかを返却する。
+     * <p/>
+     * この実装では、リーダが開いているかどうかで次のデータを読めるかどうか判定する。<br/>
+     * カレントスレッドが前回読み込んだ電文は、本メソッドの呼び出しをもって処理完了とみなす。
+     *
+     * @return 次に読み込むデータが存在する場合は {@code true}
+     */
+    public boolean hasNext(ExecutionContext ctx) {
+        completeInFlight();
+        return !closed;
+    }
+
+    /**
+     * このリーダのクローズフラグを立て、リスナーの登録を解除する。
+     * <p/>
+     * バッファに残っている未処理の電文は確認応答せずに破棄する。
+     * (確認応答を行わなかった電文の扱いはメッセージングサーバの設定に従う。)
+     */
+    public void close(ExecutionContext ctx) {
+        completeInFlight();
+        closed = true;
+        listenLock.lock();
+        try {
+            if (listeningContext == null) {
+                return;
+            }
+            try {
+                listeningContext.removeMessageListener(receiveQueueName);
+            } finally {
+                int discarded = buffer.size();
+                buffer.clear();
+                if (discarded > 0) {
+                    LOGGER.logWarn("discarded buffered messages without acknowledgement. "
+                                 + "queue = [" + receiveQueueName + "], count = [" + discarded + "]");
+                }
+                FileUtil.closeQuietly(listeningContext);
+                listeningContext = null;
+            }
+        } finally {
+            listenLock.unlock();
+        }
+    }
+
+    // -------------------------------------------------------- Internal APIs
+    /**
+     * リスナーが登録されていなければ登録する。
+     */
+    private void startListening() {
+        if (buffer != null) {
+            return;
+        }
+        listenLock.lock();
+        try {
+            if (buffer != null || closed) {
+                return;
+            }
+            final BlockingQueue<ReceivedMessage> queue = new ArrayBlockingQueue<ReceivedMessage>(bufferSize);
+            MessagingContext context = messagingProvider.createContext();
+            try {
+                context.addMessageListener(receiveQueueName, new MessageListener() {
+                    @Override
+                    public void onMessage(ReceivedMessage message) {
+                        put(queue, message);
+                    }
+                });
+            } catch (RuntimeException e) {
+                FileUtil.closeQuietly(context);
+                throw e;
+            }
+            listeningContext = context;
+            buffer = queue;
+        } finally {
+            listenLock.unlock();
+        }
+    }
+
+    /**
+     * 配信された電文をバッファに格納する。
+     * <p/>
+     * バッファが満杯の場合は、空きができるかリーダが閉じられるまで待機する。
+     * @param queue バッファ
+     * @param message 配信された電文
+     * @throws MessagingException リーダが閉じられた場合、または待機中に割り込まれた場合
+     */
+    private void put(BlockingQueue<ReceivedMessage> queue, ReceivedMessage message) {
+        try {
+            while (!closed) {
+                if (queue.offer(message, CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!closed) {
+                        return;
+                    }
+                    // クローズ時にバッファが空になったことで格納できた場合は、格納を取り消す。
+                    queue.remove(message);
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 確認応答を行わせないよう、例外を送出する。
+        throw new MessagingException(
+            "could not accept the message because the reader was closed. messageId = ["
+            + message.getMessageId() + "]");
+    }
+
+    /**
+     * バッファから電文を取り出す。
+     * <p/>
+     * リーダのクローズを検知できるよう、一定間隔で待機を中断しながら待機する。
+     * @return 電文(タイムアウトした場合、またはリーダが閉じられた場合は{@code null})
+     */
+    private ReceivedMessage take() {
+        BlockingQueue<ReceivedMessage> queue = buffer;
+        if (queue == null) {
+            return null;
+        }
+        long deadline = (readTimeout > 0) ? System.currentTimeMillis() + readTimeout : Long.MAX_VALUE;
+        try {
+            while (!closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                ReceivedMessage message = queue.poll(
+                        Math.max(0, Math.min(remaining, CLOSE_CHECK_INTERVAL)), TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    return message;
+                }
+                if (remaining <= 0) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * カレントスレッドが処理中の電文を処理完了とし、確認応答を行う。
+     */
+    private void completeInFlight() {
+        ReceivedMessage message = inFlight.get();
+        if (message == null) {
+            return;
+        }
+        inFlight.remove();
+        MessagingContext context = listeningContext;
+        if (context == null) {
+            return;
+        }
+        try {
+            context.acknowledge(message);
+        } catch (RuntimeException e) {
+            LOGGER.logWarn("an error occurred while acknowledging a message. "
+                         + "messageId = [" + message.getMessageId() + "]", e);
+        }
+    }
+
+    /**
+     * このスレッドで使用中のフォーマッターを取得する。
+     * @return フォーマッター
+     */
+    private DataRecordFormatter getFormatter() {
+        File formatFile = FilePathSetting
+                         .getInstance()
+                         .getFileWithoutCreate(formatFileDirName, formatFileName);
+        return FormatterFactory.getInstance().createFormatter(formatFile);
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * リスナーの登録に使用するメッセージングプロバイダを設定する。
+     * @param messagingProvider メッセージングプロバイダ
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * このリーダが監視する受信キューの論理名を設定する。
+     * @param queueName 受信キューの論理名
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setReceiveQueueName(String queueName) {
+        this.receiveQueueName = queueName;
+        return this;
+    }
+
+    /**
+     * バッファに格納する電文の最大件数を設定する。
+     * <p/>
+     * バッファが満杯の場合、メッセージングサーバからの配信は空きができるまで待機する。
+     * デフォルトは10。
+     *
+     * @param bufferSize バッファに格納する電文の最大件数
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException(
+                "bufferSize must be greater than 0. bufferSize = [" + bufferSize + "]");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * バッファが空の場合に業務スレッドが待機する最大時間を設定する。
+     * <p/>
+     * 0以下の値を設定した場合は、電文が配信されるかリーダが閉じられるまで待機し続ける。
+     *
+     * @param timeout 待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setReadTimeout(long timeout) {
+        this.readTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイル名を設定する。
+     * @param fileName フォーマット定義ファイル名
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setFormatFileName(String fileName) {
+        formatFileName = fileName;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイルが配置されているディレクトリの
+     * 論理名を指定する。
+     * @param dirName フォーマット定義ファイル配置ディレクトリの論理名
+     * @return このオブジェクト自体
+     */
+    public ListenerMessageReader setFormatFileDirName(String dirName) {
+        formatFileDirName = dirName;
+        return this;
+    }
+}
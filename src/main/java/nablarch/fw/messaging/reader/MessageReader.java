@@ -1,6 +1,10 @@
 package nablarch.fw.messaging.reader;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import nablarch.core.dataformat.DataRecordFormatter;
 import nablarch.core.dataformat.FormatterFactory;
@@ -15,6 +19,19 @@ import nablarch.fw.messaging.ReceivedMessage;
  * 指定されたメッセージキューを監視し、受信した電文オブジェクトを返すデータリーダ。
  * <p/>
  * 受信電文読み込み時にエラーが発生した場合は、例外({@link MessageReadError})を送出する。
+ * <p/>
+ * {@link #setMaxReadTimeout(long)}で受信タイムアウトの上限を設定した場合、
+ * 受信キューが空の間は以下のように動作する。(アダプティブポーリング)
+ * <pre>
+ * 1. 受信がタイムアウトするたびに、受信タイムアウトを上限まで倍に延ばす。
+ * 2. 受信タイムアウトが{@link #setReadTimeout(long)}で設定した値を超えている間(アイドル状態)は、
+ *    1つのスレッドのみがメッセージングサーバに問い合わせを行い、
+ *    他のスレッドはメッセージングサーバに問い合わせずに、電文の到着通知を待機する。
+ * 3. 電文を受信した場合は、受信タイムアウトを{@link #setReadTimeout(long)}で設定した値に戻し、
+ *    待機中のスレッドに電文の到着を通知する。通知を受けたスレッドは直ちに受信を再開する。
+ * </pre>
+ * これにより、受信キューが空の間にアイドル状態のスレッドが繰り返しタイムアウトし、
+ * メッセージングサーバへの問い合わせやハンドラキューの実行を繰り返すことによる負荷を抑制する。
  *
  * @author Iwauo Tajima
  * @see DataReader
@@ -25,7 +42,7 @@ public class MessageReader implements DataReader<ReceivedMessage> {
     private String receiveQueueName;    
     
     /** このリーダが閉じられたかどうか。 */
-    private boolean closed = false;
+    private volatile boolean closed = false;
     
     /** キューが空の場合に待機する最大時間。(単位：ミリ秒)  */
     private long timeout = 5000; 
@@ -36,6 +53,24 @@ public class MessageReader implements DataReader<ReceivedMessage> {
     /** フォーマット定義ファイルの名前 */
     private String formatFileName = null;
     
+    /** アダプティブポーリングにおける受信タイムアウトの上限。(単位：ミリ秒、0の場合は無効) */
+    private long maxTimeout = 0;
+    
+    /** アダプティブポーリングにおける現在の受信タイムアウト。(単位：ミリ秒) */
+    private final AtomicLong idleTimeout = new AtomicLong(0);
+    
+    /** アイドル状態でメッセージングサーバに問い合わせるスレッドを1つに限定するためのロック */
+    private final ReentrantLock pollerLock = new ReentrantLock();
+    
+    /** 電文の到着通知に使用するロック */
+    private final ReentrantLock signalLock = new ReentrantLock();
+    
+    /** 電文の到着通知 */
+    private final Condition messagesAvailable = signalLock.newCondition();
+    
+    /** 電文の到着通知の世代 */
+    private long signalGeneration = 0;
+    
     // ----------------------------------------------------- DataReader I/F
     /**
      * 受信電文を読み込む。
@@ -66,8 +101,8 @@ public class MessageReader implements DataReader<ReceivedMessage> {
         }
         ReceivedMessage message = null;
         try {
-            message = MessagingContext.getInstance()
-                                      .receiveSync(receiveQueueName, timeout);
+            message = isAdaptive() ? receiveAdaptively()
+                                   : MessagingContext.getInstance().receiveSync(receiveQueueName, timeout);
             if (message == null) {
                 return null; // timeout
             }
@@ -109,9 +144,102 @@ public class MessageReader implements DataReader<ReceivedMessage> {
      */
     public void close(ExecutionContext ctx) {
         this.closed = true;
+        if (isAdaptive()) {
+            signalMessages();
+        }
     }
     
     // -------------------------------------------------------- Internal APIs
+    /**
+     * アダプティブポーリングが有効か否かを返す。
+     * @return アダプティブポーリングが有効な場合は{@code true}
+     */
+    private boolean isAdaptive() {
+        return timeout > 0 && maxTimeout > timeout;
+    }
+    
+    /**
+     * アダプティブポーリングで受信電文を読み込む。
+     * @return 受信電文オブジェクト(タイムアウトした場合は{@code null})
+     */
+    private ReceivedMessage receiveAdaptively() {
+        long current = idleTimeout.get();
+        if (current <= timeout) {
+            // 電文が到着している間は、全てのスレッドが受信を行う。
+            return receive(timeout, current);
+        }
+        if (pollerLock.tryLock()) {
+            try {
+                return receive(current, current);
+            } finally {
+                pollerLock.unlock();
+            }
+        }
+        if (awaitMessages(current)) {
+            return receive(timeout, idleTimeout.get());
+        }
+        return null;
+    }
+    
+    /**
+     * 受信キューから電文を受信し、結果に応じて受信タイムアウトを調整する。
+     * @param receiveTimeout 受信タイムアウト(単位：ミリ秒)
+     * @param current 受信前に参照した受信タイムアウト(単位：ミリ秒)
+     * @return 受信電文オブジェクト(タイムアウトした場合は{@code null})
+     */
+    private ReceivedMessage receive(long receiveTimeout, long current) {
+        ReceivedMessage message = MessagingContext.getInstance()
+                                                  .receiveSync(receiveQueueName, receiveTimeout);
+        if (message != null) {
+            if (idleTimeout.getAndSet(timeout) > timeout) {
+                signalMessages();
+            }
+        } else {
+            long next = Math.min(Math.max(current, timeout) * 2, maxTimeout);
+            // 同時にタイムアウトした複数のスレッドで重複して延長しないよう、参照した値から更新する。
+            idleTimeout.compareAndSet(current, next);
+        }
+        return message;
+    }
+    
+    /**
+     * 待機中のスレッドに電文の到着を通知する。
+     */
+    private void signalMessages() {
+        signalLock.lock();
+        try {
+            signalGeneration++;
+            messagesAvailable.signalAll();
+        } finally {
+            signalLock.unlock();
+        }
+    }
+    
+    /**
+     * 電文の到着通知を待機する。
+     * @param waitTime 最大待機時間(単位：ミリ秒)
+     * @return 通知を受けた場合は{@code true}
+     */
+    private boolean awaitMessages(long waitTime) {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(waitTime);
+        signalLock.lock();
+        try {
+            long generation = signalGeneration;
+            while (generation == signalGeneration && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = messagesAvailable.awaitNanos(nanos);
+            }
+            return generation != signalGeneration;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            signalLock.unlock();
+        }
+    }
+    
     /**
      * このスレッドで使用中のフォーマッターを取得する。
      * @return フォーマッター
@@ -150,6 +278,22 @@ public class MessageReader implements DataReader<ReceivedMessage> {
         return this;
     }
     
+    /**
+     * アダプティブポーリングにおける受信タイムアウトの上限を設定する。
+     * <p/>
+     * {@link #setReadTimeout(long)}で設定した値より大きい値を設定した場合、アダプティブポーリングが有効となる。
+     * 受信キューが空の間、受信タイムアウトは{@link #setReadTimeout(long)}で設定した値から
+     * 本メソッドで設定した値まで倍々に延長される。
+     * デフォルトは0(アダプティブポーリングは無効)。
+     * 
+     * @param maxTimeout 受信タイムアウトの上限(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public MessageReader setMaxReadTimeout(long maxTimeout) {
+        this.maxTimeout = maxTimeout;
+        return this;
+    }
+    
     /**
      * 受信電文のフォーマット定義ファイル名を設定する。
      * @param fileName フォーマット定義ファイル名
@@ -0,0 +1,517 @@
+package nablarch.fw.messaging.reader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.core.dataformat.DataRecordFormatter;
+import nablarch.core.dataformat.FormatterFactory;
+import nablarch.core.util.FilePathSetting;
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessageReadError;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+
+/**
+ * 複数のメッセージキューを監視し、受信した電文オブジェクトを返すデータリーダ。
+ * <p/>
+ * {@link #setReceiveQueues(List)}で設定した受信キューから、
+ * {@link #setSchedulingPolicy(String)}で設定したスケジューリング方式に従って電文を受信する。
+ * <pre>
+ * priority          : 厳密な優先度。設定順で先頭の受信キューほど優先し、
+ *                     上位の受信キューが空の場合にのみ下位の受信キューから受信する。
+ * weighted          : 重み付きラウンドロビン(デフォルト)。
+ *                     各受信キューの重みの比率に応じた件数の電文を受信する。
+ * deficitRoundRobin : デフィシットラウンドロビン。
+ *                     各受信キューの重みの比率に応じたバイト数の電文を受信する。
+ *                     1回の巡回で受信できるバイト数は「重み×{@link #setQuantum(int)}」となる。
+ * </pre>
+ * いずれの方式でも、選択した受信キューが空の場合は次の受信キューから受信する。
+ * これにより、1つのプロセスのスレッドを全ての受信キューで共有し、
+ * 空の受信キューに割り当てたスレッドが遊休することを防ぐ。
+ * <p/>
+ * 全ての受信キューが空の場合は、各受信キューを{@link #setPollInterval(long)}で設定した時間ずつ順に待機する。
+ * <p/>
+ * 受信電文読み込み時にエラーが発生した場合は、例外({@link MessageReadError})を送出する。
+ *
+ * @see MessageReader
+ * @see ReceiveQueueSetting
+ */
+public class MultiQueueMessageReader implements DataReader<ReceivedMessage> {
+
+    /** スケジューリング方式：厳密な優先度 */
+    public static final String PRIORITY = "priority";
+
+    /** スケジューリング方式：重み付きラウンドロビン */
+    public static final String WEIGHTED = "weighted";
+
+    /** スケジューリング方式：デフィシットラウンドロビン */
+    public static final String DEFICIT_ROUND_ROBIN = "deficitRoundRobin";
+
+    /** 待機せずに受信する場合に使用する受信タイムアウト(単位：ミリ秒) */
+    private static final long RECEIVE_NO_WAIT = 1;
+
+    // ----------------------------------------------------- structure
+    /** このリーダが監視する受信キューの設定 */
+    private List<ReceiveQueueSetting> receiveQueues = new ArrayList<ReceiveQueueSetting>();
+
+    /** スケジューリング方式 */
+    private String schedulingPolicy = WEIGHTED;
+
+    /** このリーダが閉じられたかどうか。 */
+    private volatile boolean closed = false;
+
+    /** 全てのキューが空の場合に待機する最大時間。(単位：ミリ秒)  */
+    private long timeout = 5000;
+
+    /** 全てのキューが空の場合に、各キューで待機する時間。(単位：ミリ秒)  */
+    private long pollInterval = 100;
+
+    /** デフィシットラウンドロビンにおける重み1あたりのバイト数 */
+    private int quantum = 1024;
+
+    /** フォーマット定義ファイルが配置されているディレクトリの論理名 */
+    private String formatFileDirName = "format";
+
+    /** スケジューラ */
+    private volatile Scheduler scheduler = null;
+
+    // ----------------------------------------------------- DataReader I/F
+    /**
+     * 受信電文を読み込む。
+     * <p/>
+     * カレントスレッドに紐づけられた{@link MessagingContext}
+     * オブジェクトを使用して、スケジューリング方式に従って選択した受信キューから電文を取得し返却する。<br/>
+     * 全ての受信キュー上に電文が1件も無い場合は、新規電文を受信するか、タイムアウト時間まで待機する。<br/>
+     * 既にリーダが閉じられていた場合、またはタイムアウトした場合は{@code null}を返却する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return 受信電文オブジェクト
+     * @throws IllegalStateException 受信キューが設定されていない場合
+     * @throws RuntimeException 実行時例外が発生した場合
+     * @throws Error エラーが発生した場合
+     * @throws MessageReadError 受信電文オブジェクトの設定中に
+     *                           実行時例外またはエラーが発生した場合
+     */
+    public ReceivedMessage read(ExecutionContext ctx) {
+        if (closed) {
+            return null;
+        }
+        Scheduler current = getScheduler();
+        ReceivedMessage message = null;
+        try {
+            long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            long wait = RECEIVE_NO_WAIT;
+            while (!closed) {
+                for (int lane : current.order()) {
+                    ReceiveQueueSetting queue = receiveQueues.get(lane);
+                    long remaining = deadline - System.currentTimeMillis();
+                    message = MessagingContext.getInstance().receiveSync(
+                            queue.getReceiveQueueName(), Math.max(Math.min(wait, remaining), RECEIVE_NO_WAIT));
+                    if (message != null) {
+                        current.delivered(lane, costOf(message));
+                        if (queue.getFormatFileName() != null) {
+                            message.setFormatter(getFormatter(queue.getFormatFileName()));
+                        }
+                        return message;
+                    }
+                    current.empty(lane);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    return null; // timeout
+                }
+                wait = pollInterval;
+            }
+            return null;
+
+        } catch (RuntimeException e) {
+            if (message == null) {
+                throw e;
+            }
+            throw new MessageReadError(message, e);
+
+        } catch (Error e) {
+            if (message == null) {
+                throw e;
+            }
+            throw new MessageReadError(message, e);
+        }
+    }
+
+    /**
+     * 次に読み込むデータが存在するかどうかを返却する。
+     * <p/>
+     * この実装では、リーダが開いているかどうかで次のデータを読めるかどうか判定する。
+     *
+     * @return 次に読み込むデータが存在する場合は {@code true}
+     */
+    public boolean hasNext(ExecutionContext ctx) {
+        return !closed;
+    }
+
+    /**
+     * このリーダのクローズフラグを立て新規電文の受信を停止する。
+     * <p/>
+     * 受信イベント待ちで待機中のスレッドについてはそのまま放置する。<br/>
+     * それらのスレッドは、新規電文を受信するか、待機中の受信キューのポーリング間隔が経過した時点で待機が解除される。
+     */
+    public void close(ExecutionContext ctx) {
+        this.closed = true;
+    }
+
+    // -------------------------------------------------------- Internal APIs
+    /**
+     * スケジューラを取得する。
+     * <p/>
+     * 初回の呼び出し時に、設定内容に従ってスケジューラを生成する。
+     * @return スケジューラ
+     */
+    private Scheduler getScheduler() {
+        Scheduler current = scheduler;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (scheduler == null) {
+                scheduler = createScheduler();
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     * 設定内容に従ってスケジューラを生成する。
+     * @return スケジューラ
+     */
+    private Scheduler createScheduler() {
+        if (receiveQueues.isEmpty()) {
+            throw new IllegalStateException(
+                "the queues this reader watches must be assigned."
+            );
+        }
+        int[] weights = new int[receiveQueues.size()];
+        for (int i = 0; i < weights.length; i++) {
+            if (receiveQueues.get(i).getReceiveQueueName() == null) {
+                throw new IllegalStateException(
+                    "the name of the queue this reader watches must be assigned. index = [" + i + "]"
+                );
+            }
+            weights[i] = receiveQueues.get(i).getWeight();
+        }
+        if (PRIORITY.equals(schedulingPolicy)) {
+            return new PriorityScheduler(weights.length);
+        }
+        if (WEIGHTED.equals(schedulingPolicy)) {
+            return new WeightedScheduler(weights);
+        }
+        if (DEFICIT_ROUND_ROBIN.equals(schedulingPolicy)) {
+            return new DeficitRoundRobinScheduler(weights, quantum);
+        }
+        throw new IllegalStateException(
+            "unknown scheduling policy. schedulingPolicy = [" + schedulingPolicy + "]"
+        );
+    }
+
+    /**
+     * デフィシットラウンドロビンで使用する電文のバイト数を返す。
+     * @param message 受信電文オブジェクト
+     * @return 電文のバイト数(1未満の場合は1)
+     */
+    private static int costOf(ReceivedMessage message) {
+        byte[] body = message.getBodyBytes();
+        return body == null ? 1 : Math.max(body.length, 1);
+    }
+
+    /**
+     * フォーマッターを取得する。
+     * @param formatFileName フォーマット定義ファイル名
+     * @return フォーマッター
+     */
+    private DataRecordFormatter getFormatter(String formatFileName) {
+        File formatFile = FilePathSetting
+                         .getInstance()
+                         .getFileWithoutCreate(formatFileDirName, formatFileName);
+        return FormatterFactory.getInstance().createFormatter(formatFile);
+    }
+
+    /**
+     * 受信キューを選択するスケジューラ。
+     */
+    private interface Scheduler {
+
+        /**
+         * 受信を試みる受信キューの番号を、試行する順に返す。
+         * @return 受信キューの番号
+         */
+        int[] order();
+
+        /**
+         * 受信キューから電文を受信したことを通知する。
+         * @param lane 受信キューの番号
+         * @param cost 受信した電文のバイト数
+         */
+        void delivered(int lane, int cost);
+
+        /**
+         * 受信キューが空であったことを通知する。
+         * @param lane 受信キューの番号
+         */
+        void empty(int lane);
+    }
+
+    /**
+     * 設定順に受信キューを選択するスケジューラ。
+     */
+    private static final class PriorityScheduler implements Scheduler {
+
+        /** 受信キューの番号(設定順) */
+        private final int[] order;
+
+        /**
+         * コンストラクタ。
+         * @param count 受信キューの数
+         */
+        PriorityScheduler(int count) {
+            order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+        }
+
+        @Override
+        public int[] order() {
+            return order;
+        }
+
+        @Override
+        public void delivered(int lane, int cost) {
+        }
+
+        @Override
+        public void empty(int lane) {
+        }
+    }
+
+    /**
+     * 重み付きラウンドロビン(スムーズ重み付きラウンドロビン)で受信キューを選択するスケジューラ。
+     * <p/>
+     * 選択の度に各受信キューの現在値に重みを加算して現在値の大きい順に受信を試み、
+     * 電文を受信した受信キューの現在値から重みの合計を減算する。
+     * 空であった受信キューは現在値を0に戻し、空の間に優先度を蓄積しないようにする。
+     */
+    private static final class WeightedScheduler implements Scheduler {
+
+        /** 重み */
+        private final int[] weights;
+
+        /** 重みの合計 */
+        private final long total;
+
+        /** 現在値 */
+        private final long[] current;
+
+        /**
+         * コンストラクタ。
+         * @param weights 重み
+         */
+        WeightedScheduler(int[] weights) {
+            this.weights = weights;
+            this.current = new long[weights.length];
+            long sum = 0;
+            for (int weight : weights) {
+                sum += weight;
+            }
+            this.total = sum;
+        }
+
+        @Override
+        public synchronized int[] order() {
+            int[] order = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                // 現在値の降順(同値の場合は設定順)に挿入する。
+                int j = i;
+                while (j > 0 && current[order[j - 1]] < current[i]) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = i;
+            }
+            return order;
+        }
+
+        @Override
+        public synchronized void delivered(int lane, int cost) {
+            current[lane] -= total;
+        }
+
+        @Override
+        public synchronized void empty(int lane) {
+            current[lane] = 0;
+        }
+    }
+
+    /**
+     * デフィシットラウンドロビンで受信キューを選択するスケジューラ。
+     * <p/>
+     * 巡回中の受信キューには、巡回の開始時に「重み×クォンタム」のバイト数を加算し、
+     * 電文を受信する度に電文のバイト数を減算する。
+     * 残りが無くなった場合、または受信キューが空であった場合に次の受信キューへ巡回する。
+     * 残りを超えて受信した分は、次回の巡回に繰り越す。
+     */
+    private static final class DeficitRoundRobinScheduler implements Scheduler {
+
+        /** 重み */
+        private final int[] weights;
+
+        /** 重み1あたりのバイト数 */
+        private final long quantum;
+
+        /** 受信できる残りのバイト数 */
+        private final long[] deficit;
+
+        /** 巡回中の受信キューの番号 */
+        private int pointer = 0;
+
+        /**
+         * コンストラクタ。
+         * @param weights 重み
+         * @param quantum 重み1あたりのバイト数
+         */
+        DeficitRoundRobinScheduler(int[] weights, int quantum) {
+            this.weights = weights;
+            this.quantum = quantum;
+            this.deficit = new long[weights.length];
+            deficit[0] = quantum * (long) weights[0];
+        }
+
+        @Override
+        public synchronized int[] order() {
+            int[] order = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                order[i] = (pointer + i) % weights.length;
+            }
+            return order;
+        }
+
+        @Override
+        public synchronized void delivered(int lane, int cost) {
+            deficit[lane] -= cost;
+            if (lane == pointer && deficit[lane] <= 0) {
+                advance();
+            }
+        }
+
+        @Override
+        public synchronized void empty(int lane) {
+            if (lane == pointer) {
+                deficit[lane] = 0;
+                advance();
+            }
+        }
+
+        /**
+         * 次の受信キューへ巡回する。
+         * <p/>
+         * 前回までの超過分により残りが無い受信キューは、残りが生じるまで巡回を飛ばす。
+         */
+        private void advance() {
+            do {
+                pointer = (pointer + 1) % weights.length;
+                deficit[pointer] += quantum * weights[pointer];
+            } while (deficit[pointer] <= 0);
+        }
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * このリーダが監視する受信キューの設定を設定する。
+     * <p/>
+     * スケジューリング方式が厳密な優先度の場合は、先頭の受信キューほど優先する。
+     *
+     * @param receiveQueues 受信キューの設定
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setReceiveQueues(List<ReceiveQueueSetting> receiveQueues) {
+        this.receiveQueues = new ArrayList<ReceiveQueueSetting>(receiveQueues);
+        this.scheduler = null;
+        return this;
+    }
+
+    /**
+     * スケジューリング方式を設定する。
+     * <p/>
+     * "priority"、"weighted"、"deficitRoundRobin"のいずれかを設定する。
+     * デフォルトは"weighted"。
+     *
+     * @param schedulingPolicy スケジューリング方式
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setSchedulingPolicy(String schedulingPolicy) {
+        this.schedulingPolicy = schedulingPolicy;
+        this.scheduler = null;
+        return this;
+    }
+
+    /**
+     * 全ての受信キューが空の場合に待機する最大時間を設定する。
+     * <p/>
+     * 0以下の値を設定した場合はタイムアウトせずに
+     * 新規電文を受信するまで待機し続ける。
+     *
+     * @param timeout 受信タイムアウト(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setReadTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * 全ての受信キューが空の場合に、各受信キューで待機する時間を設定する。
+     * <p/>
+     * 全ての受信キューが空の間に到着した電文は、最大で「ポーリング間隔×(受信キューの数-1)」だけ受信が遅れる。
+     * デフォルトは100ミリ秒。
+     *
+     * @param pollInterval ポーリング間隔(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setPollInterval(long pollInterval) {
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException(
+                "pollInterval must be greater than 0. pollInterval = [" + pollInterval + "]");
+        }
+        this.pollInterval = pollInterval;
+        return this;
+    }
+
+    /**
+     * デフィシットラウンドロビンにおける重み1あたりのバイト数を設定する。
+     * <p/>
+     * デフォルトは1024。
+     *
+     * @param quantum 重み1あたりのバイト数
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setQuantum(int quantum) {
+        if (quantum <= 0) {
+            throw new IllegalArgumentException(
+                "quantum must be greater than 0. quantum = [" + quantum + "]");
+        }
+        this.quantum = quantum;
+        this.scheduler = null;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイルが配置されているディレクトリの
+     * 論理名を指定する。
+     * @param dirName フォーマット定義ファイル配置ディレクトリの論理名
+     * @return このオブジェクト自体
+     */
+    public MultiQueueMessageReader setFormatFileDirName(String dirName) {
+        formatFileDirName = dirName;
+        return this;
+    }
+}
@@ -0,0 +1,663 @@
+package nablarch.fw.messaging.reader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nablarch.core.dataformat.DataRecordFormatter;
+import nablarch.core.dataformat.FormatterFactory;
+import nablarch.core.log.Logger;
+import nablarch.core.log.LoggerManager;
+import nablarch.core.util.FilePathSetting;
+import nablarch.core.util.FileUtil;
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessageReadError;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+
+/**
+ * 受信スレッドが先読みした電文を、複数の業務スレッドに振り分けるデータリーダ。
+ * <p/>
+ * {@link MessageReader}では各業務スレッドが個別に受信キューを監視するが、
+ * 本リーダでは少数の受信スレッドがメッセージを先読みしてメモリ上の有界キューに格納し、
+ * 業務スレッドはそのキューから電文を取り出して処理する。
+ * 受信スレッドは業務スレッドとは別に、{@link MessagingProvider}から生成した
+ * 専用の{@link MessagingContext}を使用する。
+ * <p/>
+ * 先読みする電文の件数(業務スレッドに渡していない電文の件数)は
+ * {@link #setPrefetchSize(int)}で指定した件数を上限とする。
+ * <p/>
+ * 電文の処理完了は、同一の業務スレッドが次の電文を読み込んだ時点、または本リーダを閉じた時点で確定し、
+ * 受信スレッドが{@link MessagingContext#acknowledge(ReceivedMessage)}でメッセージングサーバに通知する。
+ * 処理中にエラーが発生した場合も、エラー処理の完了をもって処理完了とみなす。
+ * <p/>
+ * マルチスレッド実行制御ハンドラは、全ての業務スレッドが終了してから本リーダを閉じる。
+ * このため、本リーダを閉じた時点で業務スレッドに渡した電文は、全て処理完了とみなして確認応答する。
+ * 先読み済みで業務スレッドに渡していない電文は、デフォルトでは、電文の読み込みを待機中の業務スレッドが
+ * 残っている間はそれらのスレッドに処理させる({@link #hasNext(ExecutionContext)}は
+ * 先読み済みの電文が無くなるまで{@code true}を返す)。
+ * 待機中の業務スレッドが無くなった時点で、残りの電文は確認応答を行わずに破棄する。
+ * {@link #setDrainOnClose(boolean)}に{@code false}を指定した場合は、本リーダを閉じた時点で破棄する。
+ * (確認応答を行わなかった電文の扱いはメッセージングサーバの設定に従う。
+ * 受信時に確認応答を行うプロバイダでは、破棄した電文は失われる。)
+ *
+ * @see MessageReader
+ * @see MessagingContext#acknowledge(ReceivedMessage)
+ */
+public class PrefetchingMessageReader implements DataReader<ReceivedMessage> {
+
+    /** ロガー */
+    private static final Logger LOGGER = LoggerManager.get(PrefetchingMessageReader.class);
+
+    /** リーダのクローズを確認する間隔(単位：ミリ秒) */
+    private static final long CLOSE_CHECK_INTERVAL = 100;
+
+    // ----------------------------------------------------- structure
+    /** 受信スレッドが使用するメッセージングプロバイダ */
+    private MessagingProvider messagingProvider;
+
+    /** このリーダが監視するキューの論理名 */
+    private String receiveQueueName;
+
+    /** 受信スレッド数 */
+    private int receiverCount = 1;
+
+    /** 先読みする電文の最大件数 */
+    private int prefetchSize = 10;
+
+    /** 先読み済みの電文が無い場合に業務スレッドが待機する最大時間。(単位：ミリ秒) */
+    private long readTimeout = 5000;
+
+    /** 受信スレッドが受信キューを監視する際のタイムアウト時間。(単位：ミリ秒) */
+    private long receiveTimeout = 1000;
+
+    /** クローズ時に先読み済みの電文を処理してから終了するか否か */
+    private boolean drainOnClose = true;
+
+    /** クローズ後、受信スレッドが処理中の電文の完了を待機する最大時間。(単位：ミリ秒) */
+    private long shutdownTimeout = 30000;
+
+    /** フォーマット定義ファイルが配置されているディレクトリの論理名 */
+    private String formatFileDirName = "format";
+
+    /** フォーマット定義ファイルの名前 */
+    private String formatFileName = null;
+
+    /** このリーダが閉じられたかどうか。 */
+    private volatile boolean closed = false;
+
+    /** クローズ時に、業務スレッドに電文を渡すのを終了したかどうか。 */
+    private volatile boolean drained = false;
+
+    /** 先読み済みの電文を保持するキュー */
+    private volatile BlockingQueue<Delivery> prefetched;
+
+    /** 先読み可能な残り件数 */
+    private Semaphore permits;
+
+    /** 受信スレッド */
+    private final List<Thread> receiverThreads = new ArrayList<Thread>();
+
+    /** 受信スレッドの開始時に使用するロック */
+    private final ReentrantLock startLock = new ReentrantLock();
+
+    /** 業務スレッド毎の処理中の電文 */
+    private final ThreadLocal<Delivery> inFlight = new ThreadLocal<Delivery>();
+
+    /** 業務スレッドに渡して処理完了となっていない電文 */
+    private final Set<Delivery> taken = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+
+    /** 電文の読み込みを待機中の業務スレッド数 */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    // ----------------------------------------------------- DataReader I/F
+    /**
+     * 先読み済みの電文を読み込む。
+     * <p/>
+     * 初回の呼び出し時に受信スレッドを開始する。<br/>
+     * カレントスレッドが前回読み込んだ電文は、本メソッドの呼び出しをもって処理完了とみなす。<br/>
+     * 先読み済みの電文が無い場合は、電文が先読みされるか、タイムアウト時間まで待機する。<br/>
+     * 既にリーダが閉じられ先読み済みの電文が無い場合、またはタイムアウトした場合は{@code null}を返却する。
+     *
+     * @param ctx 実行コンテキスト
+     * @return 受信電文オブジェクト
+     * @throws IllegalStateException 受信キューの論理名、またはメッセージングプロバイダが{@code null}の場合
+     * @throws MessageReadError 受信電文オブジェクトの設定中に
+     *                           実行時例外またはエラーが発生した場合
+     */
+    public ReceivedMessage read(ExecutionContext ctx) {
+        completeInFlight();
+        if (receiveQueueName == null) {
+            throw new IllegalStateException(
+                "the name of the queue this reader watches must be assigned."
+            );
+        }
+        if (messagingProvider == null) {
+            throw new IllegalStateException(
+                "the messaging provider used by receiver threads must be assigned."
+            );
+        }
+        startReceivers();
+
+        Delivery delivery = take();
+        if (delivery == null) {
+            return null;
+        }
+        taken.add(delivery);
+        inFlight.set(delivery);
+        ReceivedMessage message = delivery.message;
+        try {
+            if (formatFileName != null) {
+                message.setFormatter(getFormatter());
+            }
+            return message;
+
+        } catch (RuntimeException e) {
+            throw new MessageReadError(message, e);
+
+        } catch (Error e) {
+            throw new MessageReadError(message, e);
+        }
+    }
+
+    /**
+     * 次に読み込むデータが存在するかどうかを返却する。
+     * <p/>
+     * リーダが開いている間は常に{@code true}を返却する。<br/>
+     * リーダが閉じられた後は、先読み済みの電文を処理する設定であり、
+     * かつ未処理の電文が残っている場合に{@code true}を返却する。<br/>
+     * カレントスレッドが前回読み込んだ電文は、本メソッドの呼び出しをもって処理完了とみなす。
+     *
+     * @return 次に読み込むデータが存在する場合は {@code true}
+     */
+    public boolean hasNext(ExecutionContext ctx) {
+        completeInFlight();
+        if (!closed) {
+            return true;
+        }
+        BlockingQueue<Delivery> queue = prefetched;
+        return drainOnClose && !drained && queue != null && !queue.isEmpty();
+    }
+
+    /**
+     * このリーダのクローズフラグを立て、新規電文の先読みを停止する。
+     * <p/>
+     * 先読み済みの電文を処理する設定の場合は、電文の読み込みを待機中の業務スレッドが
+     * 先読み済みの電文を処理し終えるまで待機する。(最大でシャットダウンタイムアウトまで)<br/>
+     * その後、業務スレッドに渡していない電文を確認応答せずに破棄し、
+     * 業務スレッドに渡した電文を全て処理完了とする。<br/>
+     * 受信スレッドは、処理完了とした電文の確認応答を行った後に終了する。
+     */
+    public void close(ExecutionContext ctx) {
+        completeInFlight();
+        closed = true;
+        if (drainOnClose) {
+            awaitDrained();
+        }
+        drained = true;
+        discardPrefetched(null);
+        for (Delivery delivery : taken) {
+            complete(delivery);
+        }
+        startLock.lock();
+        try {
+            for (Thread receiver : receiverThreads) {
+                try {
+                    receiver.join(shutdownTimeout);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            startLock.unlock();
+        }
+    }
+
+    // -------------------------------------------------------- Internal APIs
+    /**
+     * 受信スレッドが開始されていなければ開始する。
+     */
+    private void startReceivers() {
+        if (prefetched != null) {
+            return;
+        }
+        startLock.lock();
+        try {
+            if (prefetched != null) {
+                return;
+            }
+            permits = new Semaphore(prefetchSize);
+            for (int i = 0; i < receiverCount; i++) {
+                Thread thread = new Thread(new Receiver(),
+                        "PrefetchingMessageReader-" + receiveQueueName + "-" + (i + 1));
+                thread.setDaemon(true);
+                receiverThreads.add(thread);
+            }
+            prefetched = new ArrayBlockingQueue<Delivery>(prefetchSize);
+            for (Thread thread : receiverThreads) {
+                thread.start();
+            }
+        } finally {
+            startLock.unlock();
+        }
+    }
+
+    /**
+     * 電文の読み込みを待機中の業務スレッドが、先読み済みの電文を処理し終えるまで待機する。
+     * <p/>
+     * 待機中の業務スレッドが無い状態が続いた場合は、電文を処理するスレッドが残っていないとみなして待機を終了する。
+     */
+    private void awaitDrained() {
+        BlockingQueue<Delivery> queue = prefetched;
+        if (queue == null) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        boolean idle = false;
+        try {
+            while (!queue.isEmpty() && System.currentTimeMillis() < deadline) {
+                if (waiting.get() == 0) {
+                    if (idle) {
+                        return;
+                    }
+                    idle = true;
+                } else {
+                    idle = false;
+                }
+                Thread.sleep(CLOSE_CHECK_INTERVAL);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 先読み済みの電文を取り出す。
+     * <p/>
+     * リーダのクローズを検知できるよう、一定間隔で待機を中断しながら待機する。
+     * @return 先読み済みの電文(タイムアウトした場合、またはリーダが閉じられた場合は{@code null})
+     */
+    private Delivery take() {
+        waiting.incrementAndGet();
+        try {
+            return poll();
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * 先読み済みの電文を取り出す。
+     * @return 先読み済みの電文(タイムアウトした場合、またはリーダが閉じられた場合は{@code null})
+     */
+    private Delivery poll() {
+        long deadline = (readTimeout > 0) ? System.currentTimeMillis() + readTimeout : Long.MAX_VALUE;
+        try {
+            while (true) {
+                if (drained || (closed && !drainOnClose)) {
+                    return null;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                Delivery delivery = prefetched.poll(
+                        Math.max(0, Math.min(remaining, CLOSE_CHECK_INTERVAL)), TimeUnit.MILLISECONDS);
+                if (delivery != null) {
+                    permits.release();
+                    return delivery;
+                }
+                if (closed || remaining <= 0) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * カレントスレッドが処理中の電文を処理完了とし、受信スレッドに確認応答を依頼する。
+     */
+    private void completeInFlight() {
+        Delivery delivery = inFlight.get();
+        if (delivery == null) {
+            return;
+        }
+        inFlight.remove();
+        complete(delivery);
+    }
+
+    /**
+     * 業務スレッドに渡した電文を処理完了とし、受信スレッドに確認応答を依頼する。
+     * <p/>
+     * 既に処理完了とした電文の場合は何もしない。
+     * @param delivery 業務スレッドに渡した電文
+     */
+    private void complete(Delivery delivery) {
+        if (taken.remove(delivery)) {
+            delivery.receiver.completed.add(delivery.message);
+        }
+    }
+
+    /**
+     * 先読み済みの電文を確認応答せずに破棄する。
+     * @param receiver 対象とする受信スレッド({@code null}の場合はすべての受信スレッド)
+     */
+    private void discardPrefetched(Receiver receiver) {
+        BlockingQueue<Delivery> queue = prefetched;
+        if (queue == null) {
+            return;
+        }
+        int discarded = 0;
+        for (Iterator<Delivery> it = queue.iterator(); it.hasNext();) {
+            Delivery delivery = it.next();
+            if (receiver != null && delivery.receiver != receiver) {
+                continue;
+            }
+            if (queue.remove(delivery)) {
+                permits.release();
+                delivery.receiver.outstanding.decrementAndGet();
+                discarded++;
+            }
+        }
+        if (discarded > 0) {
+            LOGGER.logWarn("discarded prefetched messages without acknowledgement. "
+                         + "queue = [" + receiveQueueName + "], count = [" + discarded + "]");
+        }
+    }
+
+    /**
+     * このスレッドで使用中のフォーマッターを取得する。
+     * @return フォーマッター
+     */
+    private DataRecordFormatter getFormatter() {
+        File formatFile = FilePathSetting
+                         .getInstance()
+                         .getFileWithoutCreate(formatFileDirName, formatFileName);
+        return FormatterFactory.getInstance().createFormatter(formatFile);
+    }
+
+    /**
+     * 先読みした電文と、それを受信した受信スレッドの組。
+     */
+    private static final class Delivery {
+
+        /** 受信電文 */
+        private final ReceivedMessage message;
+
+        /** 電文を受信した受信スレッド */
+        private final Receiver receiver;
+
+        /**
+         * コンストラクタ。
+         * @param message 受信電文
+         * @param receiver 電文を受信した受信スレッド
+         */
+        private Delivery(ReceivedMessage message, Receiver receiver) {
+            this.message = message;
+            this.receiver = receiver;
+        }
+    }
+
+    /**
+     * 受信キューから電文を先読みする受信スレッドの処理。
+     * <p/>
+     * 確認応答は電文を受信した{@link MessagingContext}に対して行う必要があるため、
+     * 業務スレッドで処理が完了した電文は受信スレッドに戻し、受信スレッドで確認応答を行う。
+     */
+    private final class Receiver implements Runnable {
+
+        /** 処理が完了し、確認応答待ちの電文 */
+        private final BlockingQueue<ReceivedMessage> completed = new LinkedBlockingQueue<ReceivedMessage>();
+
+        /** 受信済みで確認応答を行っていない電文の件数 */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        /** この受信スレッドが使用するメッセージングコンテキスト */
+        private MessagingContext context;
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    acknowledgeCompleted();
+                    receive();
+                }
+                awaitOutstanding();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                FileUtil.closeQuietly(context);
+            }
+        }
+
+        /**
+         * 先読み可能な件数に空きがあれば、受信キューから電文を1件受信する。
+         * @throws InterruptedException 割り込みが発生した場合
+         */
+        private void receive() throws InterruptedException {
+            if (!permits.tryAcquire(receiveTimeout, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+            ReceivedMessage message;
+            try {
+                if (context == null) {
+                    context = messagingProvider.createContext();
+                }
+                message = context.receiveSync(receiveQueueName, receiveTimeout);
+            } catch (RuntimeException e) {
+                permits.release();
+                LOGGER.logWarn("an error occurred while prefetching messages. queue = [" + receiveQueueName + "]", e);
+                // 未確認応答の電文が無ければ、接続を破棄して次回に再接続する。
+                if (outstanding.get() == 0) {
+                    FileUtil.closeQuietly(context);
+                    context = null;
+                }
+                Thread.sleep(receiveTimeout);
+                return;
+            }
+            if (message == null) {
+                permits.release();
+                return;
+            }
+            outstanding.incrementAndGet();
+            prefetched.add(new Delivery(message, this));
+        }
+
+        /**
+         * 処理が完了した電文の確認応答を行う。
+         */
+        private void acknowledgeCompleted() {
+            ReceivedMessage message;
+            while ((message = completed.poll()) != null) {
+                acknowledge(message);
+            }
+        }
+
+        /**
+         * 受信済みの電文の処理完了を待機し、確認応答を行う。
+         * <p/>
+         * 業務スレッドに電文を渡すのを終了した後に先読みした電文は、確認応答せずに破棄する。
+         * @throws InterruptedException 割り込みが発生した場合
+         */
+        private void awaitOutstanding() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + shutdownTimeout;
+            while (outstanding.get() > 0) {
+                if (drained) {
+                    discardPrefetched(this);
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    LOGGER.logWarn("receiver thread was stopped before all prefetched messages were processed. "
+                                 + "queue = [" + receiveQueueName + "], count = [" + outstanding.get() + "]");
+                    return;
+                }
+                ReceivedMessage message = completed.poll(
+                        Math.min(remaining, CLOSE_CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    acknowledge(message);
+                }
+            }
+        }
+
+        /**
+         * 電文の確認応答を行う。
+         * @param message 処理が完了した電文
+         */
+        private void acknowledge(ReceivedMessage message) {
+            outstanding.decrementAndGet();
+            try {
+                context.acknowledge(message);
+            } catch (RuntimeException e) {
+                LOGGER.logWarn("an error occurred while acknowledging a message. "
+                             + "messageId = [" + message.getMessageId() + "]", e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------- accessors
+    /**
+     * 受信スレッドが使用するメッセージングプロバイダを設定する。
+     * @param messagingProvider メッセージングプロバイダ
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setMessagingProvider(MessagingProvider messagingProvider) {
+        this.messagingProvider = messagingProvider;
+        return this;
+    }
+
+    /**
+     * このリーダが監視する受信キューの論理名を設定する。
+     * @param queueName 受信キューの論理名
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setReceiveQueueName(String queueName) {
+        this.receiveQueueName = queueName;
+        return this;
+    }
+
+    /**
+     * 受信スレッド数を設定する。
+     * <p/>
+     * デフォルトは1。
+     * @param receiverCount 受信スレッド数
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setReceiverCount(int receiverCount) {
+        if (receiverCount <= 0) {
+            throw new IllegalArgumentException(
+                "receiverCount must be greater than 0. receiverCount = [" + receiverCount + "]");
+        }
+        this.receiverCount = receiverCount;
+        return this;
+    }
+
+    /**
+     * 先読みする電文の最大件数を設定する。
+     * <p/>
+     * 業務スレッドが処理中の電文は含まない。デフォルトは10。
+     * @param prefetchSize 先読みする電文の最大件数
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setPrefetchSize(int prefetchSize) {
+        if (prefetchSize <= 0) {
+            throw new IllegalArgumentException(
+                "prefetchSize must be greater than 0. prefetchSize = [" + prefetchSize + "]");
+        }
+        this.prefetchSize = prefetchSize;
+        return this;
+    }
+
+    /**
+     * 先読み済みの電文が無い場合に業務スレッドが待機する最大時間を設定する。
+     * <p/>
+     * 0以下の値を設定した場合は、電文が先読みされるかリーダが閉じられるまで待機し続ける。
+     *
+     * @param timeout 待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setReadTimeout(long timeout) {
+        this.readTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * 受信スレッドが受信キューを監視する際のタイムアウト時間を設定する。
+     * <p/>
+     * 受信スレッドは、この間隔でリーダのクローズと確認応答待ちの電文を確認する。
+     * デフォルトは1000ミリ秒。
+     *
+     * @param timeout 受信タイムアウト(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setReceiveTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException(
+                "receiveTimeout must be greater than 0. receiveTimeout = [" + timeout + "]");
+        }
+        this.receiveTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * クローズ時に先読み済みの電文を処理してから終了するか否かを設定する。
+     * <p/>
+     * デフォルトは{@code true}。
+     * {@code true}を設定した場合でも、電文の読み込みを待機中の業務スレッドが無くなった時点で、
+     * 未処理の電文は確認応答を行わずに破棄する。
+     * {@code false}を設定した場合、未処理の電文はクローズ時に確認応答を行わずに破棄する。
+     *
+     * @param drainOnClose 先読み済みの電文を処理してから終了する場合は{@code true}
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setDrainOnClose(boolean drainOnClose) {
+        this.drainOnClose = drainOnClose;
+        return this;
+    }
+
+    /**
+     * クローズ後、受信スレッドが処理中の電文の完了を待機する最大時間を設定する。
+     * <p/>
+     * デフォルトは30000ミリ秒。
+     * @param timeout 待機時間(単位：ミリ秒)
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setShutdownTimeout(long timeout) {
+        this.shutdownTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイル名を設定する。
+     * @param fileName フォーマット定義ファイル名
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setFormatFileName(String fileName) {
+        formatFileName = fileName;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイルが配置されているディレクトリの
+     * 論理名を指定する。
+     * @param dirName フォーマット定義ファイル配置ディレクトリの論理名
+     * @return このオブジェクト自体
+     */
+    public PrefetchingMessageReader setFormatFileDirName(String dirName) {
+        formatFileDirName = dirName;
+        return this;
+    }
+}
@@ -0,0 +1,81 @@
+package nablarch.fw.messaging.reader;
+
+/**
+ * {@link MultiQueueMessageReader}が監視する受信キューの設定。
+ *
+ * @see MultiQueueMessageReader
+ */
+public class ReceiveQueueSetting {
+
+    /** 受信キューの論理名 */
+    private String receiveQueueName;
+
+    /** 重み */
+    private int weight = 1;
+
+    /** フォーマット定義ファイルの名前 */
+    private String formatFileName = null;
+
+    /**
+     * 受信キューの論理名を返す。
+     * @return 受信キューの論理名
+     */
+    public String getReceiveQueueName() {
+        return receiveQueueName;
+    }
+
+    /**
+     * 受信キューの論理名を設定する。
+     * @param receiveQueueName 受信キューの論理名
+     * @return このオブジェクト自体
+     */
+    public ReceiveQueueSetting setReceiveQueueName(String receiveQueueName) {
+        this.receiveQueueName = receiveQueueName;
+        return this;
+    }
+
+    /**
+     * 重みを返す。
+     * @return 重み
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * 重みを設定する。
+     * <p/>
+     * 重み付きラウンドロビン及びデフィシットラウンドロビンにおいて、
+     * 他の受信キューに対する受信の比率として使用する。
+     * デフォルトは1。
+     *
+     * @param weight 重み
+     * @return このオブジェクト自体
+     */
+    public ReceiveQueueSetting setWeight(int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException(
+                "weight must be greater than 0. weight = [" + weight + "]");
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイル名を返す。
+     * @return フォーマット定義ファイル名
+     */
+    public String getFormatFileName() {
+        return formatFileName;
+    }
+
+    /**
+     * 受信電文のフォーマット定義ファイル名を設定する。
+     * @param formatFileName フォーマット定義ファイル名
+     * @return このオブジェクト自体
+     */
+    public ReceiveQueueSetting setFormatFileName(String formatFileName) {
+        this.formatFileName = formatFileName;
+        return this;
+    }
+}
@@ -82,7 +82,7 @@ public class StructuredFwHeaderDefinition implements FwHeaderDefinition {
      * @param dataType データ種別
      * @return フレームワーク制御ヘッダーのフォーマット定義
      */
-    public synchronized DataRecordFormatter getFormatter(String dataType) {
+    public DataRecordFormatter getFormatter(String dataType) {
         return getFormatter(dataType, FilePathSetting.getInstance(), FormatterFactory.getInstance());
     }
 
@@ -95,8 +95,8 @@ public class StructuredFwHeaderDefinition implements FwHeaderDefinition {
      * @param formatterFactory フォーマット定義を生成するファクトリ
      * @return フレームワーク制御ヘッダーのフォーマット定義
      */
-    public synchronized DataRecordFormatter getFormatter(String dataType, FilePathSetting filePathSetting,
-                                                         FormatterFactory formatterFactory) {
+    public DataRecordFormatter getFormatter(String dataType, FilePathSetting filePathSetting,
+                                            FormatterFactory formatterFactory) {
         
         String formatFileName = String.format(
                 headerFormatFileNamePattern, dataType
@@ -0,0 +1,241 @@
+package nablarch.fw.messaging.tableschema;
+
+/**
+ * 応答不要電文の送信用テーブルスキーマ定義クラス。
+ * <p/>
+ * 以下のようなテーブル構造を想定している。
+ * 送信する電文の項目は、任意のカラムとして追加する。
+ * <pre>
+ * =====================================
+ * 送信電文連番     VARCHAR/NUMBER PK
+ * ステータス       CHAR
+ * 取得トークン     VARCHAR
+ * 取得日時         TIMESTAMP
+ * (電文の項目)     ...
+ * =====================================
+ * </pre>
+ * 以下にデフォルト設定でのカラム名に沿ったテーブルスキーマのサンプルを示す。
+ * テーブル名はデフォルト値を持たないため、必ず設定すること。
+ *
+ * <pre>
+ * CREATE TABLE INS_PROJECT_SEND_MESSAGE (
+ *     SEND_MESSAGE_SEQUENCE VARCHAR(10)
+ *   , STATUS                CHAR(1)
+ *   , CLAIM_TOKEN           VARCHAR(64)
+ *   , CLAIMED_AT            TIMESTAMP
+ *   , ...
+ *   , CONSTRAINT pk_INS_PROJECT_SEND_MESSAGE
+ *       PRIMARY KEY(SEND_MESSAGE_SEQUENCE)
+ * );
+ * CREATE INDEX idx_INS_PROJECT_SEND_MESSAGE_STATUS ON INS_PROJECT_SEND_MESSAGE(STATUS, SEND_MESSAGE_SEQUENCE);
+ * CREATE INDEX idx_INS_PROJECT_SEND_MESSAGE_CLAIM ON INS_PROJECT_SEND_MESSAGE(CLAIM_TOKEN);
+ * </pre>
+ * ステータスの値は以下のとおり(いずれも変更可能)。
+ * <pre>
+ * "0" 未送信
+ * "1" 送信済み
+ * "2" 取得済み(送信中)
+ * "9" 送信エラー
+ * </pre>
+ */
+public class SendMessageTableSchema {
+    // ------------------------------------------------------- Structure
+    /** 送信用テーブルのテーブル名 */
+    private String tableName = null;
+
+    /** 送信電文連番を保持するカラムの名称 */
+    private String keyColumn = "SEND_MESSAGE_SEQUENCE";
+
+    /** ステータスを保持するカラムの名称 */
+    private String statusColumn = "STATUS";
+
+    /** 取得トークンを保持するカラムの名称 */
+    private String claimTokenColumn = "CLAIM_TOKEN";
+
+    /** 取得日時を保持するカラムの名称 */
+    private String claimedAtColumn = "CLAIMED_AT";
+
+    /** 未送信を表すステータス */
+    private String unsentStatus = "0";
+
+    /** 送信済みを表すステータス */
+    private String sentStatus = "1";
+
+    /** 取得済み(送信中)を表すステータス */
+    private String claimedStatus = "2";
+
+    /** 送信エラーを表すステータス */
+    private String errorStatus = "9";
+
+    // -------------------------------------------------------- Accessors
+    /**
+     * 送信用テーブルの名称を設定する。
+     * (この設定は必須である。)
+     * @param tableName テーブル名
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setTableName(String tableName) {
+        this.tableName = tableName;
+        return this;
+    }
+
+    /**
+     * 送信用テーブルの名称を返す。
+     * @return テーブルの名称
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * 送信電文連番を保持するカラムの名称を設定する。
+     * (デフォルトは"SEND_MESSAGE_SEQUENCE")
+     * @param columnName カラムの名称
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setKeyColumnName(String columnName) {
+        keyColumn = columnName;
+        return this;
+    }
+
+    /**
+     * 送信電文連番を保持するカラムの名称を返す。
+     * @return カラムの名称
+     */
+    public String getKeyColumnName() {
+        return keyColumn;
+    }
+
+    /**
+     * ステータスを保持するカラムの名称を設定する。
+     * (デフォルトは"STATUS")
+     * @param columnName カラムの名称
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setStatusColumnName(String columnName) {
+        statusColumn = columnName;
+        return this;
+    }
+
+    /**
+     * ステータスを保持するカラムの名称を返す。
+     * @return カラムの名称
+     */
+    public String getStatusColumnName() {
+        return statusColumn;
+    }
+
+    /**
+     * 取得トークンを保持するカラムの名称を設定する。
+     * (デフォルトは"CLAIM_TOKEN")
+     * @param columnName カラムの名称
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setClaimTokenColumnName(String columnName) {
+        claimTokenColumn = columnName;
+        return this;
+    }
+
+    /**
+     * 取得トークンを保持するカラムの名称を返す。
+     * @return カラムの名称
+     */
+    public String getClaimTokenColumnName() {
+        return claimTokenColumn;
+    }
+
+    /**
+     * 取得日時を保持するカラムの名称を設定する。
+     * (デフォルトは"CLAIMED_AT")
+     * @param columnName カラムの名称
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setClaimedAtColumnName(String columnName) {
+        claimedAtColumn = columnName;
+        return this;
+    }
+
+    /**
+     * 取得日時を保持するカラムの名称を返す。
+     * @return カラムの名称
+     */
+    public String getClaimedAtColumnName() {
+        return claimedAtColumn;
+    }
+
+    /**
+     * 未送信を表すステータスを設定する。
+     * (デフォルトは"0")
+     * @param status ステータス
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setUnsentStatus(String status) {
+        unsentStatus = status;
+        return this;
+    }
+
+    /**
+     * 未送信を表すステータスを返す。
+     * @return ステータス
+     */
+    public String getUnsentStatus() {
+        return unsentStatus;
+    }
+
+    /**
+     * 送信済みを表すステータスを設定する。
+     * (デフォルトは"1")
+     * @param status ステータス
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setSentStatus(String status) {
+        sentStatus = status;
+        return this;
+    }
+
+    /**
+     * 送信済みを表すステータスを返す。
+     * @return ステータス
+     */
+    public String getSentStatus() {
+        return sentStatus;
+    }
+
+    /**
+     * 取得済み(送信中)を表すステータスを設定する。
+     * (デフォルトは"2")
+     * @param status ステータス
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setClaimedStatus(String status) {
+        claimedStatus = status;
+        return this;
+    }
+
+    /**
+     * 取得済み(送信中)を表すステータスを返す。
+     * @return ステータス
+     */
+    public String getClaimedStatus() {
+        return claimedStatus;
+    }
+
+    /**
+     * 送信エラーを表すステータスを設定する。
+     * (デフォルトは"9")
+     * @param status ステータス
+     * @return このオブジェクト自体
+     */
+    public SendMessageTableSchema setErrorStatus(String status) {
+        errorStatus = status;
+        return this;
+    }
+
+    /**
+     * 送信エラーを表すステータスを返す。
+     * @return ステータス
+     */
+    public String getErrorStatus() {
+        return errorStatus;
+    }
+}
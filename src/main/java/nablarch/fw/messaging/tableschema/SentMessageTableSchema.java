@@ -28,6 +28,19 @@ package nablarch.fw.messaging.tableschema;
  * );
  * </pre>
  * 
+ * 送信済電文の保持期間を過ぎたレコードを削除する場合は、登録日時を保持するカラムを追加し、
+ * {@link #setSentAtColumnName(String)}でその名称を設定する。
+ * 設定した場合、登録時にそのカラムに{@code CURRENT_TIMESTAMP}を設定する。
+ * 削除時の検索に使用するため、このカラムにはインデックスを作成すること。
+ * <pre>
+ * CREATE TABLE SENT_MESSAGE (
+ *     ...
+ *   , SENT_AT     TIMESTAMP
+ *   , ...
+ * );
+ * CREATE INDEX idx_SENT_MESSAGE_SENT_AT ON SENT_MESSAGE(SENT_AT);
+ * </pre>
+ * 
  * @author Iwauo Tajima
  */
 public class SentMessageTableSchema {
@@ -50,6 +63,9 @@ public class SentMessageTableSchema {
     /** メッセージボディデータの内容をバイト配列で保持するカラムの名称 */
     private String bodyDataColumn = "BODY_DATA";
     
+    /** 送信電文の登録日時を保持するカラムの名称 */
+    private String sentAtColumn = null;
+    
     // -------------------------------------------------------- Accessors
     /**
      * 再送電文管理テーブルの名称を設定する。
@@ -168,4 +184,24 @@ public class SentMessageTableSchema {
     public String getStatusCodeColumnName() {
         return statusCodeColumn;
     }
+    
+    /**
+     * 送信電文の登録日時を保持するカラムの名称を設定する。
+     * (デフォルトは{@code null}。登録日時を保持しない。)
+     * @param columnName カラムの名称
+     * @return このオブジェクト自体
+     */
+    public SentMessageTableSchema
+    setSentAtColumnName(String columnName) {
+        sentAtColumn = columnName;
+        return this;
+    }
+    
+    /**
+     * 送信電文の登録日時を保持するカラムの名称を返す。
+     * @return カラムの名称(登録日時を保持しない場合は{@code null})
+     */
+    public String getSentAtColumnName() {
+        return sentAtColumn;
+    }
 }
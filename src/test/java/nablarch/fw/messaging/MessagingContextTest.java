@@ -5,6 +5,10 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import nablarch.fw.messaging.provider.TestEmbeddedMessagingProvider;
 import nablarch.test.support.log.app.OnMemoryLogWriter;
 
@@ -46,6 +50,39 @@ public class MessagingContextTest {
         }
     }
     
+    @Test public void runningATaskWithAScopedContext() {
+        final MessagingContext outer = provider.createContext();
+        final MessagingContext inner = provider.createContext();
+        MessagingContext.attach(outer);
+        try {
+            MessagingContext.runWith(inner, new Runnable() {
+                @Override
+                public void run() {
+                    assertSame(inner, MessagingContext.getInstance());
+                }
+            });
+            // 実行前の紐づけに戻る。
+            assertSame(outer, MessagingContext.getInstance());
+        } finally {
+            MessagingContext.detach();
+            inner.close();
+        }
+
+        // 紐づけが無い状態から実行した場合は、紐づけが無い状態に戻る。
+        MessagingContext.runWith(inner, new Runnable() {
+            @Override
+            public void run() {
+                assertSame(inner, MessagingContext.getInstance());
+            }
+        });
+        try {
+            MessagingContext.getInstance();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("there is no messaging context on the current thread.", e.getMessage());
+        }
+    }
+    
     @Test public void errorHandlingWhenAnInvalidArgumentWasAssigned() {
         MessagingContext context = provider.createContext();
         try {
@@ -87,4 +124,43 @@ public class MessagingContextTest {
         OnMemoryLogWriter.assertLogContains("writer.accessLog", "response timeout: could not receive a reply to the message below.");
         
     }
+
+    @Test
+    public void sendingMessagesInBatch_outputLogForEachMessage() throws Exception {
+        final List<String> destinations = new ArrayList<String>();
+        final MessagingContext sut = new MessagingContext() {
+            @Override
+            public String sendMessage(final SendingMessage message) {
+                destinations.add(message.getDestination());
+                message.setMessageId("ID:" + destinations.size());
+                return message.getMessageId();
+            }
+
+            @Override
+            public ReceivedMessage receiveMessage(final String receiveQueue, final String messageId, final long timeout) {
+                return null;
+            }
+
+            @Override
+            public void close() {
+                // nop
+            }
+        };
+
+        List<String> messageIds = sut.send(Arrays.asList(
+                new SendingMessage().setDestination("QUEUE1"),
+                new SendingMessage().setDestination("QUEUE2"),
+                new SendingMessage().setDestination("QUEUE1")));
+
+        // 指定した順序で送信し、メッセージIDを同じ順序で返す。
+        assertEquals(Arrays.asList("QUEUE1", "QUEUE2", "QUEUE1"), destinations);
+        assertEquals(Arrays.asList("ID:1", "ID:2", "ID:3"), messageIds);
+        OnMemoryLogWriter.assertLogContains("writer.accessLog", "message_id     = [ID:1]");
+        OnMemoryLogWriter.assertLogContains("writer.accessLog", "message_id     = [ID:2]");
+        OnMemoryLogWriter.assertLogContains("writer.accessLog", "message_id     = [ID:3]");
+
+        // 空のリストの場合は何も送信しない。
+        assertEquals(0, sut.send(new ArrayList<SendingMessage>()).size());
+        assertEquals(3, destinations.size());
+    }
 }
@@ -0,0 +1,299 @@
+package nablarch.fw.messaging.action;
+
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.InMemoryMessagingProvider;
+import nablarch.fw.messaging.provider.MessagingExceptionFactory;
+import nablarch.fw.messaging.tableschema.SendMessageTableSchema;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link AsyncMessageSendForwarder}のテスト。
+ */
+@RunWith(DatabaseTestRunner.class)
+public class AsyncMessageSendForwarderTest {
+
+    @Rule
+    public SystemRepositoryResource repositoryResource = new SystemRepositoryResource("nablarch/fw/messaging/action/AsyncMessageSendForwarderTest.xml");
+
+    private final InMemoryMessagingProvider provider = new InMemoryMessagingProvider();
+
+    @BeforeClass
+    public static void setUpClass() {
+        VariousDbTestHelper.createTable(AsyncSendMessage.class);
+    }
+
+    /**
+     * 未送信のレコードのみが、複数スレッドで1度ずつ送信されること。
+     */
+    @Test
+    public void testForward() {
+        List<AsyncSendMessage> records = new ArrayList<AsyncSendMessage>();
+        for (int i = 0; i < 25; i++) {
+            records.add(new AsyncSendMessage(String.format("%010d", i), "0", "title_" + i));
+        }
+        records.add(new AsyncSendMessage("sent", "1", "sent"));
+        VariousDbTestHelper.setUpTable(records.toArray());
+
+        AsyncMessageSendForwarder.ForwardResult result = createForwarder().forward();
+
+        assertEquals(25, result.getSentCount());
+        assertEquals(0, result.getErrorCount());
+        assertEquals(0, result.getLostCount());
+        for (AsyncSendMessage record : findAll()) {
+            assertEquals(record.sendMessageSequence, "1", record.status);
+        }
+        assertEquals(25, provider.getQueueDepth("QUEUE"));
+
+        MessagingContext receiver = provider.createContext();
+        Set<String> titles = new HashSet<String>();
+        ReceivedMessage received;
+        while ((received = receiver.receiveMessage("QUEUE", null, 100)) != null) {
+            String body = new String(received.getBodyBytes(), Charset.forName("UTF-8"));
+            assertTrue(body, body.startsWith("RM11AD0101"));
+            titles.add(body.substring(30, 50).trim());
+        }
+        assertEquals(25, titles.size());
+        assertTrue(titles.contains("title_0"));
+        assertTrue(titles.contains("title_24"));
+
+        // 送信対象が無い場合は何もしない。
+        result = createForwarder().forward();
+        assertEquals(0, result.getSentCount());
+    }
+
+    /**
+     * 取得タイムアウトを過ぎた取得済みのレコードのみが、未送信に戻されて送信されること。
+     */
+    @Test
+    public void testReleaseStaleClaims() {
+        long now = System.currentTimeMillis();
+        AsyncSendMessage stale = new AsyncSendMessage("stale", "2", "stale");
+        stale.claimToken = "dead-node";
+        stale.claimedAt = new Timestamp(now - 60 * 60 * 1000);
+        AsyncSendMessage claimed = new AsyncSendMessage("claimed", "2", "claimed");
+        claimed.claimToken = "live-node";
+        claimed.claimedAt = new Timestamp(now);
+        VariousDbTestHelper.setUpTable(stale, claimed);
+
+        AsyncMessageSendForwarder.ForwardResult result = createForwarder().forward();
+
+        assertEquals(1, result.getSentCount());
+        List<AsyncSendMessage> records = findAll();
+        assertEquals("claimed", records.get(0).sendMessageSequence);
+        assertEquals("2", records.get(0).status);
+        assertEquals("live-node", records.get(0).claimToken);
+        assertEquals("stale", records.get(1).sendMessageSequence);
+        assertEquals("1", records.get(1).status);
+    }
+
+    /**
+     * 電文の組み立てに失敗したレコードは送信エラーとなり、他のレコードは送信されること。
+     */
+    @Test
+    public void testInvalidRecord() {
+        VariousDbTestHelper.setUpTable(
+                new AsyncSendMessage("0000000001", "0", "valid"),
+                new AsyncSendMessage("0000000002", "0", "too long title for the format"),
+                new AsyncSendMessage("0000000003", "0", "valid"));
+
+        AsyncMessageSendForwarder.ForwardResult result = createForwarder().forward();
+
+        assertEquals(2, result.getSentCount());
+        assertEquals(1, result.getErrorCount());
+        List<AsyncSendMessage> records = findAll();
+        assertEquals("1", records.get(0).status);
+        assertEquals("9", records.get(1).status);
+        assertEquals("1", records.get(2).status);
+        assertEquals(2, provider.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 送信に失敗した場合、取得済みのレコードが未送信に戻され、例外が送出されること。
+     */
+    @Test
+    public void testSendFailure() {
+        VariousDbTestHelper.setUpTable(
+                new AsyncSendMessage("0000000001", "0", "title"),
+                new AsyncSendMessage("0000000002", "0", "title"));
+
+        try {
+            createForwarder().setMessagingProvider(new FailingProvider()).forward();
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("broker is down.", e.getMessage());
+        }
+        for (AsyncSendMessage record : findAll()) {
+            assertEquals("0", record.status);
+            assertNull(record.claimToken);
+            assertNull(record.claimedAt);
+        }
+    }
+
+    /**
+     * 送信中に取得が解除されたレコードは、ステータスを更新せずに件数が計上されること。
+     */
+    @Test
+    public void testLostClaim() {
+        VariousDbTestHelper.setUpTable(new AsyncSendMessage("0000000001", "0", "title"));
+
+        AsyncMessageSendForwarder.ForwardResult result = createForwarder()
+                .setThreadCount(1)
+                .setMessagingProvider(new StealingProvider())
+                .forward();
+
+        assertEquals(1, result.getSentCount());
+        assertEquals(1, result.getLostCount());
+        List<AsyncSendMessage> records = findAll();
+        assertEquals("2", records.get(0).status);
+        assertEquals("other-node", records.get(0).claimToken);
+        assertEquals(1, provider.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 必要な設定が行われていない場合、例外が送出されること。
+     */
+    @Test
+    public void testNotSpecified() {
+        try {
+            createForwarder().setMessagingProvider(null).forward();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("messagingProvider was not specified.", e.getMessage());
+        }
+        try {
+            createForwarder().setSendMessageTableSchema(new SendMessageTableSchema()).forward();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("tableName of the send message table schema was not specified.", e.getMessage());
+        }
+    }
+
+    /**
+     * 0以下のスレッド数を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidThreadCount() {
+        new AsyncMessageSendForwarder().setThreadCount(0);
+    }
+
+    private AsyncMessageSendForwarder createForwarder() {
+        AsyncMessageSendActionSettings settings = new AsyncMessageSendActionSettings();
+        settings.setQueueName("QUEUE");
+        settings.setHeaderFormatName("header");
+        return new AsyncMessageSendForwarder()
+                .setSettings(settings)
+                .setConnectionFactory(repositoryResource.<ConnectionFactory>getComponent("connectionFactory"))
+                .setSendMessageTableSchema(new SendMessageTableSchema().setTableName("ASYNC_SEND_MESSAGE"))
+                .setMessagingProvider(provider)
+                .setRequestId("RM11AD0101")
+                .setThreadCount(3)
+                .setChunkSize(4);
+    }
+
+    private static List<AsyncSendMessage> findAll() {
+        List<AsyncSendMessage> records = VariousDbTestHelper.findAll(AsyncSendMessage.class);
+        Collections.sort(records, new Comparator<AsyncSendMessage>() {
+            public int compare(AsyncSendMessage o1, AsyncSendMessage o2) {
+                return o1.sendMessageSequence.compareTo(o2.sendMessageSequence);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * 送信時に、他のプロセスが取得タイムアウト後にレコードを取得し直した状態にするプロバイダ。
+     */
+    private class StealingProvider implements MessagingProvider {
+
+        public MessagingContext createContext() {
+            final MessagingContext delegate = provider.createContext();
+            return new MessagingContext() {
+                public String sendMessage(SendingMessage message) {
+                    AsyncSendMessage stolen = new AsyncSendMessage("0000000001", "2", "title");
+                    stolen.claimToken = "other-node";
+                    stolen.claimedAt = new Timestamp(System.currentTimeMillis());
+                    VariousDbTestHelper.setUpTable(stolen);
+                    return delegate.sendMessage(message);
+                }
+
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return null;
+                }
+
+                public void close() {
+                    delegate.close();
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+
+    /**
+     * 常に送信に失敗するプロバイダ。
+     */
+    private static class FailingProvider implements MessagingProvider {
+
+        public MessagingContext createContext() {
+            return new MessagingContext() {
+                public String sendMessage(SendingMessage message) {
+                    throw new MessagingException("broker is down.");
+                }
+
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return null;
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}
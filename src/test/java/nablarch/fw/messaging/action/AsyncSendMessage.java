@@ -0,0 +1,47 @@
+package nablarch.fw.messaging.action;
+
+import java.sql.Timestamp;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * 応答不要電文の送信用テーブル。
+ */
+@Entity
+@Table(name = "ASYNC_SEND_MESSAGE")
+public class AsyncSendMessage {
+
+    public AsyncSendMessage() {
+    }
+
+    public AsyncSendMessage(String sendMessageSequence, String status, String title) {
+        this.sendMessageSequence = sendMessageSequence;
+        this.status = status;
+        this.title = title;
+    }
+
+    @Id
+    @Column(name = "SEND_MESSAGE_SEQUENCE", length = 10, nullable = false)
+    public String sendMessageSequence;
+
+    @Column(name = "STATUS", length = 1)
+    public String status;
+
+    @Column(name = "CLAIM_TOKEN", length = 128)
+    public String claimToken;
+
+    @Column(name = "CLAIMED_AT")
+    public Timestamp claimedAt;
+
+    @Column(name = "TITLE", length = 40)
+    public String title;
+
+    @Column(name = "PUBLISHER", length = 20)
+    public String publisher = "publisher";
+
+    @Column(name = "AUTHORS", length = 20)
+    public String authors = "authors";
+}
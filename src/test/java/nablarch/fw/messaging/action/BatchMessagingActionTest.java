@@ -0,0 +1,250 @@
+package nablarch.fw.messaging.action;
+
+import nablarch.core.transaction.Transaction;
+import nablarch.core.transaction.TransactionContext;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.handler.AfterCommitHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BatchMessagingAction}のテスト
+ */
+public class BatchMessagingActionTest {
+
+    private final List<String> events = new ArrayList<String>();
+
+    private final List<String> acknowledged = new ArrayList<String>();
+
+    private final List<SendingMessage> sent = new ArrayList<SendingMessage>();
+
+    @Before
+    public void setUp() {
+        TransactionContext.setTransaction(TransactionContext.DEFAULT_TRANSACTION_CONTEXT_KEY, new Transaction() {
+            @Override
+            public void begin() {
+            }
+
+            @Override
+            public void commit() {
+                events.add("commit");
+            }
+
+            @Override
+            public void rollback() {
+                events.add("rollback");
+            }
+        });
+        MessagingContext.attach(new MessagingContext() {
+            @Override
+            public String sendMessage(SendingMessage message) {
+                sent.add(message);
+                return "sent";
+            }
+
+            @Override
+            public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                return null;
+            }
+
+            @Override
+            public void acknowledge(ReceivedMessage message) {
+                events.add("ack:" + message.getMessageId());
+                acknowledged.add(message.getMessageId());
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        TransactionContext.removeTransaction();
+        MessagingContext.detach();
+    }
+
+    private ReceivedMessage message(String id) {
+        return new ReceivedMessage("body".getBytes()).setMessageId(id);
+    }
+
+    /**
+     * 全ての電文を処理し、コミット後にまとめて確認応答すること。
+     */
+    @Test
+    public void testHandle() {
+        TestAction action = new TestAction(null);
+        List<ReceivedMessage> messages = Arrays.asList(message("1"), message("2"), message("3"));
+        ExecutionContext ctx = new ExecutionContext();
+
+        action.handle(messages, ctx);
+        assertEquals(Arrays.asList("receive:1", "receive:2", "receive:3"), events);
+
+        action.transactionNormalEnd(messages, ctx);
+        assertEquals(Arrays.asList("1", "2", "3"), acknowledged);
+    }
+
+    /**
+     * 処理に失敗した場合、ロールバック後に1件ずつ処理し直し、
+     * 処理できない電文のみがポイズンメッセージとして扱われること。
+     */
+    @Test
+    public void testPoisonMessageIsolation() {
+        TestAction action = new TestAction("2");
+        action.setPoisonQueueName("POISON.QUEUE");
+        List<ReceivedMessage> messages = Arrays.asList(message("1"), message("2"), message("3"));
+        ExecutionContext ctx = new ExecutionContext();
+
+        action.handle(messages, ctx);
+        assertEquals(Arrays.asList(
+                "receive:1", "receive:2", "rollback",
+                "receive:1", "commit", "ack:1",
+                "receive:2", "rollback", "poison:2", "commit", "ack:2",
+                "receive:3", "commit", "ack:3"), events);
+
+        assertEquals(1, sent.size());
+        assertEquals("POISON.QUEUE", sent.get(0).getDestination());
+        assertEquals("2", sent.get(0).getCorrelationId());
+        assertEquals("body", new String(sent.get(0).getBodyBytes()));
+
+        // 個別に確認応答済みのため、まとめて確認応答しない。
+        action.transactionNormalEnd(messages, ctx);
+        assertEquals(Arrays.asList("1", "2", "3"), acknowledged);
+    }
+
+    /**
+     * ポイズンメッセージの処理で例外が発生した場合、ロールバックして例外を送出し、
+     * 個別にコミットした電文のみが確認応答されていること。
+     */
+    @Test
+    public void testPoisonMessageHandlingFailure() {
+        final IllegalStateException poisonError = new IllegalStateException("poison queue is unavailable.");
+        TestAction action = new TestAction("2") {
+            @Override
+            protected void onPoisonMessage(Throwable e, ReceivedMessage message, ExecutionContext context) {
+                super.onPoisonMessage(e, message, context);
+                throw poisonError;
+            }
+        };
+        List<ReceivedMessage> messages = Arrays.asList(message("1"), message("2"), message("3"));
+        ExecutionContext ctx = new ExecutionContext();
+
+        try {
+            action.handle(messages, ctx);
+            fail("例外が発生する");
+        } catch (IllegalStateException e) {
+            assertSame(poisonError, e);
+        }
+        assertEquals(Arrays.asList(
+                "receive:1", "receive:2", "rollback",
+                "receive:1", "commit", "ack:1",
+                "receive:2", "rollback", "poison:2", "rollback"), events);
+
+        // コミット済みの電文は確認応答済みのため、再配信されない。
+        action.transactionAbnormalEnd(poisonError, messages, ctx);
+        assertEquals(Arrays.asList("1"), acknowledged);
+    }
+
+    /**
+     * {@link AfterCommitHandler}が配置されている場合、コミット後に確認応答すること。
+     */
+    @Test
+    public void testAcknowledgeAfterCommit() {
+        final TestAction action = new TestAction(null);
+        final List<ReceivedMessage> messages = Arrays.asList(message("1"), message("2"));
+        ExecutionContext ctx = new ExecutionContext()
+            .addHandler(new AfterCommitHandler())
+            .addHandler(new Handler<List<ReceivedMessage>, Result>() {
+                public Result handle(List<ReceivedMessage> data, ExecutionContext context) {
+                    Result result = action.handle(data, context);
+                    action.transactionNormalEnd(data, context);
+                    // コミット前は確認応答しない。
+                    assertTrue(acknowledged.isEmpty());
+                    events.add("commit");
+                    return result;
+                }
+            });
+
+        ctx.handleNext(messages);
+        assertEquals(Arrays.asList("receive:1", "receive:2", "commit", "ack:1", "ack:2"), events);
+    }
+
+    /**
+     * 1件のみの場合は、処理し直さずにポイズンメッセージとして扱うこと。
+     */
+    @Test
+    public void testSingleMessageFailure() {
+        TestAction action = new TestAction("1");
+        action.setPoisonQueueName("POISON.QUEUE");
+        List<ReceivedMessage> messages = Arrays.asList(message("1"));
+        ExecutionContext ctx = new ExecutionContext();
+
+        action.handle(messages, ctx);
+        assertEquals(Arrays.asList("receive:1", "rollback", "poison:1"), events);
+        assertEquals(1, sent.size());
+        assertEquals("1", sent.get(0).getCorrelationId());
+
+        // コミットと確認応答はトランザクション制御ハンドラに委ねる。
+        action.transactionNormalEnd(messages, ctx);
+        assertEquals(Arrays.asList("1"), acknowledged);
+    }
+
+    /**
+     * トランザクションが存在しない場合は、例外をそのまま送出すること。
+     */
+    @Test
+    public void testFailureWithoutTransaction() {
+        TransactionContext.removeTransaction();
+        TestAction action = new TestAction("1");
+        List<ReceivedMessage> messages = Arrays.asList(message("1"), message("2"));
+        try {
+            action.handle(messages, new ExecutionContext());
+            fail("例外が発生する");
+        } catch (IllegalStateException e) {
+            assertSame(action.error, e);
+        }
+        action.transactionAbnormalEnd(action.error, messages, new ExecutionContext());
+        assertEquals(0, acknowledged.size());
+    }
+
+    private class TestAction extends BatchMessagingAction {
+
+        private final String failureId;
+
+        private final IllegalStateException error = new IllegalStateException("poison");
+
+        TestAction(String failureId) {
+            this.failureId = failureId;
+        }
+
+        @Override
+        protected void onReceive(ReceivedMessage message, ExecutionContext context) {
+            events.add("receive:" + message.getMessageId());
+            if (message.getMessageId().equals(failureId)) {
+                throw error;
+            }
+        }
+
+        @Override
+        protected void onPoisonMessage(Throwable e, ReceivedMessage message, ExecutionContext context) {
+            events.add("poison:" + message.getMessageId());
+            super.onPoisonMessage(e, message, context);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.File;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 import nablarch.core.dataformat.DataRecordFormatter;
 import nablarch.core.dataformat.DataRecordFormatterSupport;
@@ -18,7 +19,10 @@ import nablarch.core.util.FilePathSetting;
 import nablarch.fw.messaging.InterSystemMessage;
 import nablarch.fw.messaging.ReceivedMessage;
 import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.logging.MessageBodyLogSettings;
 import nablarch.fw.messaging.logging.MessagingLogFormatter;
+import nablarch.fw.messaging.logging.MessagingLogFormatter.MessageBodyHex;
+import nablarch.fw.messaging.logging.MessagingLogFormatter.MessagingLogContext;
 import nablarch.test.support.tool.Hereis;
 
 import org.junit.Test;
@@ -991,6 +995,118 @@ public class MessagingLogFormatterTest extends LogTestSupport {
         );
     }
     
+    /**
+     * ヘキサダンプのテスト
+     * ・先頭バイトが0x00の場合も桁が欠落しないこと
+     * ・先頭バイトが0x80以上の場合も符号が付かないこと
+     */
+    @Test public void formattingBodyHexKeepsLeadingZeroAndSign() {
+        MessageBodyHex hex = new MessageBodyHex('*', new Pattern[0]);
+        
+        ReceivedMessage leadingZero = new ReceivedMessage(new byte[] {0x00, 0x00, 0x0A, 0x31});
+        assertEquals("00000A31", hex.get(new MessagingLogContext(leadingZero)));
+        
+        ReceivedMessage highByte = new ReceivedMessage(new byte[] {(byte) 0xFF, (byte) 0x80, 0x7F, 0x01});
+        assertEquals("FF807F01", hex.get(new MessagingLogContext(highByte)));
+        
+        ReceivedMessage empty = new ReceivedMessage(new byte[0]);
+        assertEquals("", hex.get(new MessagingLogContext(empty)));
+    }
+    
+    /**
+     * ヘキサダンプのテスト
+     * ・出力範囲(開始バイト位置、最大バイト長)を指定した場合
+     */
+    @Test public void formattingBodyHexWithWindow() {
+        ReceivedMessage message = new ReceivedMessage(new byte[] {0x00, 0x01, 0x02, 0x03, 0x04, 0x05});
+        MessagingLogContext ctx = new MessagingLogContext(message);
+        
+        assertEquals("0203",         new MessageBodyHex('*', new Pattern[0], 2, 2).get(ctx));
+        assertEquals("02030405",     new MessageBodyHex('*', new Pattern[0], 2, 0).get(ctx));
+        assertEquals("000102",       new MessageBodyHex('*', new Pattern[0], 0, 3).get(ctx));
+        assertEquals("0405",         new MessageBodyHex('*', new Pattern[0], 4, 100).get(ctx));
+        assertEquals("",             new MessageBodyHex('*', new Pattern[0], 10, 2).get(ctx));
+        assertEquals("000102030405", new MessageBodyHex('*', new Pattern[0]).get(ctx));
+    }
+    
+    /**
+     * ヘキサダンプのテスト
+     * ・最大バイト長とメッセージボディの最大出力長の両方を指定した場合(小さい方が開始バイト位置から適用されること)
+     */
+    @Test public void formattingBodyHexWithWindowAndMaxBodyLength() {
+        ReceivedMessage message = new ReceivedMessage(new byte[] {0x00, 0x01, 0x02, 0x03, 0x04, 0x05});
+        MessagingLogContext ctx = new MessagingLogContext(message);
+        MessageBodyLogSettings settings = new MessageBodyLogSettings();
+        settings.setMaxBodyLength(2);
+        
+        assertEquals("0102",         new MessageBodyHex('*', new Pattern[0], 1, 3, settings).get(ctx));
+        assertEquals("0102",         new MessageBodyHex('*', new Pattern[0], 1, 0, settings).get(ctx));
+        settings.setMaxBodyLength(4);
+        assertEquals("010203",       new MessageBodyHex('*', new Pattern[0], 1, 3, settings).get(ctx));
+    }
+    
+    /**
+     * ヘキサダンプのテスト
+     * ・プロパティで出力範囲を指定した場合(マスク処理後のバイト列に対して範囲が適用されること)
+     */
+    @Test public void formattingBodyHexWindowFromProperties() {
+        File propertyFile = Hereis.file("./temp/app-log.properties");
+        /*********************************************************************************
+        messagingLogFormatter.maskingPatterns=^.{3}(.{4})
+        messagingLogFormatter.bodyHexOffset=2
+        messagingLogFormatter.bodyHexMaxBytes=4
+        **********************************************************************************/
+        propertyFile.deleteOnExit();
+        LogUtil.removeAllObjectsBoundToContextClassLoader();
+        System.setProperty("nablarch.appLog.filePath", propertyFile.toURI().toString());
+        
+        MessagingLogFormatterForUT formatter = new MessagingLogFormatterForUT();
+        
+        SendingMessage message = createSendingMessage()
+                                .addRecord(new HashMap<String, Object>(){{
+                                     put("data", "0123456789");   
+                                 }});
+        
+        assertEquals(formatter.getSentMessageLog(message), 
+            "@@@@ RECEIVED MESSAGE @@@@"                          + LS +
+            "\t" + "thread_name         = [" + Thread.currentThread().getName() + "]" + LS +
+            "\t" + "message_id          = [messagingId]"          + LS +
+            "\t" + "destination         = [null]"                 + LS +
+            "\t" + "correlation_id      = [null]"                 + LS +
+            "\t" + "reply_to            = [null]"                 + LS +
+            "\t" + "timeToLive          = [0]"                    + LS +
+            "\t" + "message_body        = [012****789]"           + LS +
+            "\t" + "messageBodyHex      = [322A2A2A]"             + LS +
+            "\t" + "messageBodyLength   = [10]"
+        );
+        
+        clearAppLogProperties();
+    }
+    
+    /**
+     * ヘキサダンプのテスト
+     * ・出力範囲に不正な値を指定した場合
+     */
+    @Test public void formattingBodyHexInvalidWindow() {
+        File propertyFile = Hereis.file("./temp/app-log.properties");
+        /*********************************************************************************
+        messagingLogFormatter.bodyHexMaxBytes=-1
+        **********************************************************************************/
+        propertyFile.deleteOnExit();
+        LogUtil.removeAllObjectsBoundToContextClassLoader();
+        System.setProperty("nablarch.appLog.filePath", propertyFile.toURI().toString());
+        
+        try {
+            new MessagingLogFormatter();
+            fail("例外が発生する");
+        } catch (IllegalArgumentException e) {
+            assertEquals("messagingLogFormatter.bodyHexMaxBytes was not a non-negative integer. "
+                       + "messagingLogFormatter.bodyHexMaxBytes = [-1]", e.getMessage());
+        }
+        
+        clearAppLogProperties();
+    }
+    
     public SendingMessage createEmptySendingMessage() {
         File formatFile = Hereis.file("./data.fmt");
         /***************************
@@ -0,0 +1,120 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link AfterCommitHandler}のテスト。
+ */
+public class AfterCommitHandlerTest {
+
+    /** 実行された処理 */
+    private final List<String> executed = new ArrayList<String>();
+
+    /**
+     * 後続ハンドラが正常に終了した場合、登録された処理が登録順に実行されること。
+     */
+    @Test
+    public void testExecuteCallbacksAfterNormalEnd() {
+        ExecutionContext context = new ExecutionContext()
+            .addHandler(new AfterCommitHandler())
+            .addHandler(new Handler<Object, Object>() {
+                public Object handle(Object data, ExecutionContext ctx) {
+                    AfterCommitHandler.register(ctx, new Recorder("first"));
+                    AfterCommitHandler.register(ctx, new Failing());
+                    AfterCommitHandler.register(ctx, new Recorder("second"));
+                    // 後続ハンドラの処理中は実行されない。
+                    assertTrue(executed.isEmpty());
+                    return "result";
+                }
+            });
+
+        assertEquals("result", context.handleNext("data"));
+        // 例外を送出した処理があっても、残りの処理は実行される。
+        assertEquals(2, executed.size());
+        assertEquals("first", executed.get(0));
+        assertEquals("second", executed.get(1));
+        assertFalse(AfterCommitHandler.isAvailable(context));
+    }
+
+    /**
+     * 後続ハンドラが例外を送出した場合、登録された処理は実行されないこと。
+     */
+    @Test
+    public void testDiscardCallbacksOnError() {
+        ExecutionContext context = new ExecutionContext()
+            .addHandler(new AfterCommitHandler())
+            .addHandler(new Handler<Object, Object>() {
+                public Object handle(Object data, ExecutionContext ctx) {
+                    AfterCommitHandler.register(ctx, new Recorder("first"));
+                    throw new IllegalStateException("commit failed.");
+                }
+            });
+
+        try {
+            context.handleNext("data");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("commit failed.", e.getMessage());
+        }
+        assertTrue(executed.isEmpty());
+        assertFalse(AfterCommitHandler.isAvailable(context));
+    }
+
+    /**
+     * 本ハンドラが配置されていない場合、処理を登録できないこと。
+     */
+    @Test
+    public void testRegisterWithoutHandler() {
+        ExecutionContext context = new ExecutionContext();
+        assertFalse(AfterCommitHandler.isAvailable(context));
+        try {
+            AfterCommitHandler.register(context, new Recorder("first"));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("AfterCommitHandler was not specified.", e.getMessage());
+        }
+    }
+
+    /**
+     * 実行されたことを記録する処理。
+     */
+    private class Recorder implements AfterCommitHandler.Callback {
+
+        /** 名前 */
+        private final String name;
+
+        /**
+         * コンストラクタ。
+         * @param name 名前
+         */
+        Recorder(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void afterCommit(ExecutionContext context) {
+            executed.add(name);
+        }
+    }
+
+    /**
+     * 例外を送出する処理。
+     */
+    private static class Failing implements AfterCommitHandler.Callback {
+
+        @Override
+        public void afterCommit(ExecutionContext context) {
+            throw new IllegalStateException("callback failed.");
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package nablarch.fw.messaging.handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.MessagingExceptionFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AsyncReplySender}のテスト。
+ */
+public class AsyncReplySenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 応答電文が送信スレッドから送信されること。
+     * 順序を保証する場合、同じ宛先の応答電文は格納順に送信されること。
+     */
+    @Test
+    public void testSendInOrder() {
+        RecordingProvider provider = new RecordingProvider(0);
+        AsyncReplySender sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setSenderCount(3)
+                .setPreserveOrder(true);
+        for (int i = 0; i < 100; i++) {
+            sender.send(reply("QUEUE" + (i % 4), "msg" + i, new byte[] {(byte) i}));
+        }
+        sender.close();
+
+        assertEquals(100, sender.getSentCount());
+        assertEquals(0, sender.getBacklog());
+        assertEquals(100, provider.sent.size());
+        for (int queue = 0; queue < 4; queue++) {
+            int last = -1;
+            for (SendingMessage message : provider.sent) {
+                if (message.getDestination().equals("QUEUE" + queue)) {
+                    int index = Integer.parseInt(message.getCorrelationId().substring(3));
+                    assertTrue(index > last);
+                    assertArrayEquals(new byte[] {(byte) index}, message.getBodyBytes());
+                    last = index;
+                }
+            }
+        }
+        for (String threadName : provider.threadNames) {
+            assertTrue(threadName, threadName.startsWith("async-reply-sender-"));
+        }
+    }
+
+    /**
+     * 送信に失敗した場合、再送信されること。
+     * 最大再送信回数を超えた場合、応答電文が破棄されること。
+     */
+    @Test
+    public void testRetry() {
+        RecordingProvider provider = new RecordingProvider(2);
+        AsyncReplySender sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setMaxRetries(2)
+                .setRetryInterval(10);
+        sender.send(reply("QUEUE", "msg1", new byte[0]));
+        sender.close();
+        assertEquals(1, sender.getSentCount());
+        assertEquals(2, sender.getRetryCount());
+        assertEquals(0, sender.getFailedCount());
+        // 失敗したコンテキストは閉じて生成し直す。
+        assertEquals(3, provider.created.get());
+
+        provider = new RecordingProvider(Integer.MAX_VALUE);
+        sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setMaxRetries(1)
+                .setRetryInterval(10);
+        sender.send(reply("QUEUE", "msg1", new byte[0]));
+        sender.close();
+        assertEquals(0, sender.getSentCount());
+        assertEquals(1, sender.getFailedCount());
+    }
+
+    /**
+     * ジャーナルを使用する場合、終了時に送信できなかった応答電文が、次回の起動時に送信されること。
+     */
+    @Test
+    public void testJournal() throws Exception {
+        File dir = folder.newFolder();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        RecordingProvider provider = new RecordingProvider(0) {
+            @Override
+            void beforeSend() {
+                blocked.countDown();
+                try {
+                    // 終了時の割り込みまで送信が完了しない。
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("interrupted.");
+                }
+            }
+        };
+        AsyncReplySender sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setJournalDirectory(dir.getPath())
+                .setShutdownTimeout(100);
+        sender.initialize();
+        for (int i = 0; i < 3; i++) {
+            sender.send(reply("QUEUE" + i, "msg" + i, new byte[] {(byte) i}));
+        }
+        blocked.await();
+        sender.dispose();
+        assertEquals(0, sender.getSentCount());
+        assertEquals(0, sender.getFailedCount());
+
+        provider = new RecordingProvider(0);
+        sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setJournalDirectory(dir.getPath());
+        sender.initialize();
+        sender.dispose();
+        assertEquals(3, sender.getSentCount());
+        assertEquals(3, provider.sent.size());
+        for (int i = 0; i < 3; i++) {
+            SendingMessage message = provider.sent.get(i);
+            assertEquals("QUEUE" + i, message.getDestination());
+            assertEquals("msg" + i, message.getCorrelationId());
+            assertArrayEquals(new byte[] {(byte) i}, message.getBodyBytes());
+        }
+
+        // 送信が完了した応答電文は、再度送信されない。
+        provider = new RecordingProvider(0);
+        sender = new AsyncReplySender()
+                .setMessagingProvider(provider)
+                .setJournalDirectory(dir.getPath());
+        sender.initialize();
+        sender.dispose();
+        assertEquals(0, provider.sent.size());
+    }
+
+    /**
+     * プロバイダが設定されていない場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testProviderNotSpecified() {
+        new AsyncReplySender().initialize();
+    }
+
+    private static SendingMessage reply(String destination, String correlationId, byte[] body) {
+        SendingMessage message = new SendingMessage()
+                .setDestination(destination)
+                .setCorrelationId(correlationId);
+        message.getBodyStream().write(body, 0, body.length);
+        return message;
+    }
+
+    /**
+     * 送信した電文を記録するプロバイダ。
+     */
+    private static class RecordingProvider implements MessagingProvider {
+
+        private final List<SendingMessage> sent = Collections.synchronizedList(new ArrayList<SendingMessage>());
+        private final List<String> threadNames = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger created = new AtomicInteger();
+        private final AtomicInteger failures;
+
+        RecordingProvider(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        void beforeSend() {
+        }
+
+        public MessagingContext createContext() {
+            created.incrementAndGet();
+            return new MessagingContext() {
+                @Override
+                public String sendMessage(SendingMessage message) {
+                    beforeSend();
+                    if (failures.getAndDecrement() > 0) {
+                        throw new MessagingException("test");
+                    }
+                    sent.add(message);
+                    threadNames.add(Thread.currentThread().getName());
+                    return "id";
+                }
+                @Override
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return null;
+                }
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}
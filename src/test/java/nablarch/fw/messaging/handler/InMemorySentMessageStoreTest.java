@@ -0,0 +1,73 @@
+package nablarch.fw.messaging.handler;
+
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link InMemorySentMessageStore}のテスト。
+ */
+public class InMemorySentMessageStoreTest {
+
+    /**
+     * 保存した応答電文を検索できること。
+     */
+    @Test
+    public void testSaveAndFind() {
+        InMemorySentMessageStore store = new InMemorySentMessageStore();
+        store.save("msg1", "req1", "REPLY.QUEUE", "200", new byte[] {1, 2, 3});
+
+        SentMessageStore.Entry entry = store.find("msg1", "req1");
+        assertEquals("REPLY.QUEUE", entry.getReplyQueue());
+        assertEquals("200", entry.getStatusCode());
+        assertArrayEquals(new byte[] {1, 2, 3}, entry.getBodyData());
+        assertNull(store.find("msg1", "req2"));
+        assertFalse(store.isTransactional());
+
+        // 同じメッセージIDとリクエストIDの応答電文は保存できない。
+        try {
+            store.save("msg1", "req1", "REPLY.QUEUE", "500", new byte[0]);
+            fail();
+        } catch (DuplicateSentMessageException e) {
+            assertEquals("200", store.find("msg1", "req1").getStatusCode());
+        }
+
+        // 従来の一意制約違反の例外としても捕捉できる。
+        try {
+            store.save("msg1", "req1", "REPLY.QUEUE", "500", new byte[0]);
+            fail();
+        } catch (DuplicateStatementException e) {
+            assertEquals(DuplicateSentMessageException.SQL_STATE, e.getSQLState());
+        }
+    }
+
+    /**
+     * 最大件数を超えた場合、最も古く保存した応答電文から破棄されること。
+     */
+    @Test
+    public void testMaxEntries() {
+        InMemorySentMessageStore store = new InMemorySentMessageStore().setMaxEntries(2);
+        store.save("msg1", "req", "Q", "200", null);
+        store.save("msg2", "req", "Q", "200", null);
+        store.save("msg3", "req", "Q", "200", null);
+
+        assertEquals(2, store.size());
+        assertNull(store.find("msg1", "req"));
+        assertNotNull(store.find("msg2", "req"));
+        assertNotNull(store.find("msg3", "req"));
+
+        SentMessageIdFilter filter = new SentMessageIdFilter();
+        assertTrue(filter.startRebuild());
+        store.loadMessageIds(filter);
+        filter.completeRebuild();
+        assertTrue(filter.mightContain("msg2"));
+        assertTrue(filter.mightContain("msg3"));
+    }
+}
@@ -0,0 +1,96 @@
+package nablarch.fw.messaging.handler;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link MappedFileSentMessageStore}のテスト。
+ */
+public class MappedFileSentMessageStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 保存した応答電文を、再起動後も検索できること。
+     */
+    @Test
+    public void testSaveAndReopen() throws Exception {
+        File dir = folder.newFolder();
+        MappedFileSentMessageStore store = new MappedFileSentMessageStore().setDirectory(dir.getPath());
+        store.save("msg1", "req1", "REPLY.QUEUE", "200", new byte[] {1, 2, 3});
+        store.save("msg2", "req1", null, "500", null);
+
+        SentMessageStore.Entry entry = store.find("msg1", "req1");
+        assertEquals("REPLY.QUEUE", entry.getReplyQueue());
+        assertEquals("200", entry.getStatusCode());
+        assertArrayEquals(new byte[] {1, 2, 3}, entry.getBodyData());
+        assertNull(store.find("msg1", "req2"));
+
+        try {
+            store.save("msg1", "req1", "REPLY.QUEUE", "500", new byte[0]);
+            fail();
+        } catch (DuplicateSentMessageException e) {
+            assertEquals("200", store.find("msg1", "req1").getStatusCode());
+        }
+        store.close();
+
+        // 既存のファイルから索引を再構築する。
+        store = new MappedFileSentMessageStore().setDirectory(dir.getPath());
+        assertEquals(2, store.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, store.find("msg1", "req1").getBodyData());
+        entry = store.find("msg2", "req1");
+        assertNull(entry.getReplyQueue());
+        assertEquals("500", entry.getStatusCode());
+        assertNull(entry.getBodyData());
+
+        // 再構築後も追記できる。
+        store.save("msg3", "req1", "REPLY.QUEUE", "200", new byte[0]);
+        assertEquals(3, store.size());
+        store.close();
+    }
+
+    /**
+     * セグメントファイルが満杯になった場合、新しいファイルに切り替え、2つ前のファイルを破棄すること。
+     */
+    @Test
+    public void testRoll() throws Exception {
+        File dir = folder.newFolder();
+        MappedFileSentMessageStore store = new MappedFileSentMessageStore()
+                .setDirectory(dir.getPath())
+                .setSegmentSize(1000);
+        for (int i = 0; i < 30; i++) {
+            store.save("msg" + i, "req", "Q", "200", new byte[50]);
+        }
+        assertEquals(2, dir.list().length);
+        assertNull(store.find("msg0", "req"));
+        assertNotNull(store.find("msg29", "req"));
+        int size = store.size();
+        store.close();
+
+        store = new MappedFileSentMessageStore().setDirectory(dir.getPath()).setSegmentSize(1000);
+        assertEquals(size, store.size());
+        assertNotNull(store.find("msg29", "req"));
+        store.close();
+    }
+
+    /**
+     * 1セグメントファイルに収まらない応答電文は保存できないこと。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeReply() throws Exception {
+        new MappedFileSentMessageStore()
+                .setDirectory(folder.newFolder().getPath())
+                .setSegmentSize(100)
+                .save("msg", "req", "Q", "200", new byte[200]);
+    }
+}
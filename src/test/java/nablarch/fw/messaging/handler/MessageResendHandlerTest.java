@@ -1,10 +1,18 @@
 package nablarch.fw.messaging.handler;
 
+import nablarch.common.handler.TransactionManagementHandler;
 import nablarch.core.dataformat.DataRecordFormatter;
+import nablarch.core.db.connection.ConnectionFactory;
 import nablarch.core.dataformat.FormatterFactory;
+import nablarch.core.db.statement.SqlRow;
+import nablarch.core.db.statement.exception.DuplicateStatementException;
+import nablarch.core.db.transaction.JdbcTransactionFactory;
+import nablarch.core.transaction.Transaction;
+import nablarch.core.transaction.TransactionFactory;
 import nablarch.core.util.FilePathSetting;
 import nablarch.fw.ExecutionContext;
 import nablarch.fw.Handler;
+import nablarch.fw.messaging.ErrorResponseMessage;
 import nablarch.fw.messaging.FwHeaderDefinition;
 import nablarch.fw.messaging.MessagingProvider;
 import nablarch.fw.messaging.ReceivedMessage;
@@ -37,7 +45,9 @@ import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(DatabaseTestRunner.class)
 public class MessageResendHandlerTest {
@@ -115,6 +125,423 @@ public class MessageResendHandlerTest {
     }
 
 
+    /**
+     * キャッシュを設定した場合、コミットされた応答電文がキャッシュから再送されること。
+     */
+    @Test
+    public void resendingReplyMessageFromCache() throws Exception {
+        setupFormatter();
+        SentReplyCache cache = new SentReplyCache();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentReplyCache(cache);
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+
+        ResponseMessage res = context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // コミット後にキャッシュに格納される。
+        assertEquals(1, cache.size());
+
+        // キャッシュに保持されていない場合は、送信済み電文テーブルから再送される。
+        cache.clear();
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // 初回電文として処理し直し、キャッシュに格納する。
+        VariousDbTestHelper.delete(SentMessage.class);
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+
+        context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(1, cache.size());
+
+        // 送信済み電文テーブルを空にしても、キャッシュから再送される。
+        VariousDbTestHelper.delete(SentMessage.class);
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+        assertEquals("request_alice_to_bob_0001", res.getCorrelationId());
+        assertEquals("ALICE.REPLY_FROM_BOB", res.getDestination());
+    }
+
+    /**
+     * キャッシュを設定した場合でも、コミットに失敗した応答電文はキャッシュに格納されないこと。
+     */
+    @Test
+    public void notCachingReplyMessageIfCommitFails() throws Exception {
+        setupFormatter();
+        SentReplyCache cache = new SentReplyCache();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentReplyCache(cache);
+        context = setupExecutionContext(resendHandler, createCommitFailingTransactionHandler());
+        actionCalled = false;
+
+        try {
+            context.handleNext(createRequest());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("commit failed.", e.getMessage());
+        }
+        assertTrue(actionCalled);
+        assertEquals(0, cache.size());
+        assertEquals(0, VariousDbTestHelper.findAll(SentMessage.class).size());
+
+        // 再送要求電文は初回電文として処理される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * キャッシュを設定した場合、コミット後の処理を行うハンドラが配置されていなければ例外が送出されること。
+     */
+    @Test
+    public void cachingReplyMessageRequiresAfterCommitHandler() throws Exception {
+        setupFormatter();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentReplyCache(new SentReplyCache());
+        context = new ExecutionContext()
+            .addHandler(repositoryResource.getComponent("dbConnectionManagementHandler"))
+            .addHandler(repositoryResource.getComponent("transactionManagementHandler"))
+            .addHandler(resendHandler);
+        actionCalled = false;
+        try {
+            context.handleNext(createRequest());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("AfterCommitHandler was not specified.", e.getMessage());
+        }
+        assertFalse(actionCalled);
+    }
+
+    /**
+     * フィルタを設定した場合、送信済み電文テーブルに確実に登録されていない初回電文については
+     * 送信済み電文テーブルの検索を省略し、再送要求電文については常に検索すること。
+     */
+    @Test
+    public void skippingLookupOfMessagesWhichHaveNeverBeenSent() throws Exception {
+        setupFormatter();
+        SentMessageIdFilter filter = new SentMessageIdFilter()
+                .setConnectionFactory(repositoryResource.<ConnectionFactory>getComponent("connectionFactory"));
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentMessageIdFilter(filter);
+
+        // 初回実行時に、専用のスレッドでフィルタを読み込む。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        for (int i = 0; i < 100 && filter.needsRebuild(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(filter.needsRebuild());
+
+        // 登録時にフィルタに追加されるため、同じ電文は再送される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        ResponseMessage res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // 他のプロセスが登録した電文(フィルタに未反映)
+        VariousDbTestHelper.setUpTable(
+                new SentMessage("other_process_0001", "RegisterBook", "ALICE.REPLY_FROM_BOB", "200", new byte[0]));
+
+        // 再送要求電文にはフィルタを適用しないため、再送される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        RequestMessage resendRequest = createResendRequest();
+        resendRequest.setMessageId("other_process_0001");
+        res = context.handleNext(resendRequest);
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // 初回電文は検索を省略して業務処理を実行するが、登録時の一意制約違反により
+        // ロールバックされ、登録済みの応答電文が返却される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        RequestMessage request = createRequest();
+        request.setMessageId("other_process_0001");
+        try {
+            context.handleNext(request);
+            fail();
+        } catch (ErrorResponseMessage e) {
+            assertTrue(actionCalled);
+            assertEquals("other_process_0001", e.getResponse().getCorrelationId());
+        }
+        assertEquals(1, VariousDbTestHelper.findAll(SentMessage.class).size());
+    }
+
+    /**
+     * 送信済み電文テーブルを使用する場合に、フィルタにデータベース接続のファクトリを設定していなければ、
+     * 例外が送出されること。
+     */
+    @Test
+    public void failingWithoutConnectionFactoryOfFilter() throws Exception {
+        setupFormatter();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentMessageIdFilter(new SentMessageIdFilter());
+        context = setupExecutionContext(resendHandler);
+        try {
+            context.handleNext(createRequest());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("connectionFactory was not specified.", e.getMessage());
+        }
+    }
+
+    /**
+     * ライタを設定した場合、応答電文はコミット後に別トランザクションで登録され、
+     * 登録待ちの間も再送されること。
+     */
+    @Test
+    public void writingReplyMessagesBehindTheBusinessTransaction() throws Exception {
+        setupFormatter();
+        SentMessageWriter writer = new SentMessageWriter()
+                .setConnectionFactory(repositoryResource.<ConnectionFactory>getComponent("connectionFactory"))
+                .setFlushInterval(60000)
+                .setBatchSize(10);
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentMessageWriter(writer);
+
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        ResponseMessage res = context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // 業務トランザクション内では登録されない。
+        assertEquals(0, VariousDbTestHelper.findAll(SentMessage.class).size());
+        assertEquals(1, writer.getStatistics().getBacklog());
+
+        // 登録待ちの応答電文が再送される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+        assertEquals("request_alice_to_bob_0001", res.getCorrelationId());
+
+        // 終了時に登録される。
+        writer.close();
+        List<SentMessage> records = VariousDbTestHelper.findAll(SentMessage.class);
+        assertEquals(1, records.size());
+        assertEquals("request_alice_to_bob_0001", records.get(0).messageId);
+        assertEquals("200", records.get(0).statusCode);
+        SentMessageWriter.Statistics statistics = writer.getStatistics();
+        assertEquals(1, statistics.getFlushCount());
+        assertEquals(1, statistics.getWrittenCount());
+        assertEquals(0, statistics.getBacklog());
+
+        // 登録済みの応答電文は、一意制約違反として除外される。
+        writer.write("request_alice_to_bob_0001", "RegisterBook", "ALICE.REPLY_FROM_BOB", "500", new byte[0]);
+        assertEquals(1, writer.getStatistics().getDuplicateCount());
+        records = VariousDbTestHelper.findAll(SentMessage.class);
+        assertEquals(1, records.size());
+        assertEquals("200", records.get(0).statusCode);
+    }
+
+    /**
+     * ライタを設定した場合でも、コミットに失敗した応答電文はライタに渡されないこと。
+     */
+    @Test
+    public void notWritingReplyMessageIfCommitFails() throws Exception {
+        setupFormatter();
+        SentMessageWriter writer = new SentMessageWriter()
+                .setConnectionFactory(repositoryResource.<ConnectionFactory>getComponent("connectionFactory"))
+                .setFlushInterval(60000)
+                .setBatchSize(10);
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentMessageWriter(writer);
+        context = setupExecutionContext(resendHandler, createCommitFailingTransactionHandler());
+        actionCalled = false;
+
+        try {
+            context.handleNext(createRequest());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("commit failed.", e.getMessage());
+        }
+        assertTrue(actionCalled);
+        assertEquals(0, writer.getStatistics().getBacklog());
+
+        // 登録待ちの応答電文がないため、再送されずに初回電文として処理される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(1, writer.getStatistics().getBacklog());
+
+        writer.close();
+        assertEquals(1, VariousDbTestHelper.findAll(SentMessage.class).size());
+    }
+
+    /**
+     * 圧縮処理を設定した場合、ボディ部を圧縮して保存し、再送時に展開する。
+     */
+    @Test
+    public void resendingCompressedReplyMessage() throws Exception {
+        setupFormatter();
+        SentReplyCompressor compressor = new SentReplyCompressor().setMinSize(0);
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageTableSchema(tableDef)
+                .setSentReplyCompressor(compressor);
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        // 空白で埋められた固定長のレコードを含む応答電文は、必ず圧縮される。
+        replyRecord = new HashMap<String, Object>();
+        replyRecord.put("title", "Programming with POSIX Threads");
+        replyRecord.put("publisher", "Addison-Wesley");
+        replyRecord.put("authors", "David R. Butenhof");
+
+        ResponseMessage res = context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        byte[] body = res.getBodyBytes();
+
+        List<SentMessage> records = VariousDbTestHelper.findAll(SentMessage.class);
+        assertEquals(1, records.size());
+        SentReplyCompressor.Statistics statistics = compressor.getStatistics();
+        assertEquals(1, statistics.getCompressedCount());
+        assertEquals(0, statistics.getSkippedCount());
+        assertTrue(records.get(0).bodyData.length < body.length);
+
+        // 展開したボディ部が再送される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+        assertTrue(Arrays.equals(body, res.getBodyBytes()));
+        assertEquals(1, compressor.getStatistics().getDecompressedCount());
+
+        // 圧縮処理を設定していない場合は展開せず、保存されたボディ部をそのまま再送する。
+        context = setupExecutionContext(new MessageResendHandler().setSentMessageTableSchema(tableDef));
+        actionCalled = false;
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertTrue(Arrays.equals(records.get(0).bodyData, res.getBodyBytes()));
+        assertEquals(1, compressor.getStatistics().getDecompressedCount());
+    }
+
+    /**
+     * 送信済電文テーブル以外の保存先を設定した場合、コミット後に保存先に保存し、保存先から再送する。
+     */
+    @Test
+    public void resendingReplyMessageFromSentMessageStore() throws Exception {
+        setupFormatter();
+        InMemorySentMessageStore store = new InMemorySentMessageStore();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageStore(store);
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+
+        ResponseMessage res = context.handleNext(createRequest());
+        assertTrue(actionCalled);
+        assertEquals(200, res.getStatusCode());
+
+        // 送信済み電文テーブルには登録されず、保存先に保存される。
+        assertEquals(0, VariousDbTestHelper.findAll(SentMessage.class).size());
+        assertEquals(1, store.size());
+        SentMessageStore.Entry saved = store.find("request_alice_to_bob_0001", "RegisterBook");
+        assertEquals("ALICE.REPLY_FROM_BOB", saved.getReplyQueue());
+        assertEquals("200", saved.getStatusCode());
+
+        // 保存先から再送される。
+        context = setupExecutionContext(resendHandler);
+        actionCalled = false;
+        res = context.handleNext(createRequest());
+        assertFalse(actionCalled);
+        assertEquals(200, res.getStatusCode());
+        assertEquals("request_alice_to_bob_0001", res.getCorrelationId());
+        assertEquals("ALICE.REPLY_FROM_BOB", res.getDestination());
+    }
+
+    /**
+     * 業務トランザクションに参加しない保存先を設定した場合でも、コミットに失敗した応答電文は保存されないこと。
+     */
+    @Test
+    public void notSavingReplyMessageToSentMessageStoreIfCommitFails() throws Exception {
+        setupFormatter();
+        InMemorySentMessageStore store = new InMemorySentMessageStore();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageStore(store);
+        context = setupExecutionContext(resendHandler, createCommitFailingTransactionHandler());
+        actionCalled = false;
+
+        try {
+            context.handleNext(createRequest());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("commit failed.", e.getMessage());
+        }
+        assertTrue(actionCalled);
+        assertEquals(0, store.size());
+        assertNull(resendHandler.findAlreadySentMessage("request_alice_to_bob_0001", "RegisterBook"));
+    }
+
+    /**
+     * 送信済電文テーブル以外の保存先を設定した場合も、従来の例外とレコード形式で保存先にアクセスできること。
+     */
+    @Test
+    public void accessingSentMessageStoreThroughLegacyMethods() throws Exception {
+        InMemorySentMessageStore store = new InMemorySentMessageStore();
+        MessageResendHandler resendHandler = new MessageResendHandler()
+                .setSentMessageStore(store);
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("messageId",  "request_alice_to_bob_0001");
+        record.put("requestId",  "RegisterBook");
+        record.put("replyQueue", "ALICE.REPLY_FROM_BOB");
+        record.put("statusCode", "200");
+        record.put("bodyData",   new byte[] {1, 2, 3});
+        resendHandler.insertNewSentMessage(record);
+
+        // 一意制約違反は従来の例外として捕捉できる。
+        try {
+            resendHandler.insertNewSentMessage(record);
+            fail();
+        } catch (DuplicateStatementException e) {
+            assertTrue(e instanceof DuplicateSentMessageException);
+        }
+
+        // 送信済電文テーブルの検索結果と同じ項目名で取得できる。
+        SqlRow row = resendHandler.findAlreadySentMessage("request_alice_to_bob_0001", "RegisterBook");
+        assertEquals("ALICE.REPLY_FROM_BOB", row.getString("replyQueue"));
+        assertEquals("200", row.getString("statusCode"));
+        assertEquals("RegisterBook", row.getString("requestId"));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, row.getBytes("bodyData")));
+        assertNull(resendHandler.findAlreadySentMessage("request_alice_to_bob_0002", "RegisterBook"));
+    }
+
+    /**
+     * 送信済電文テーブル以外の保存先とライタを同時に設定した場合、例外が送出される。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void sentMessageWriterCannotBeUsedWithNonJdbcStore() {
+        new MessageResendHandler()
+                .setSentMessageStore(new InMemorySentMessageStore())
+                .setSentMessageWriter(new SentMessageWriter())
+                .initialize();
+    }
+
     /**
      * 再送応答フラグが設定されていない電文については、何もせずに後続処理に委譲する。
      */
@@ -315,6 +742,12 @@ public class MessageResendHandlerTest {
     }
 
     public ExecutionContext setupExecutionContext(MessageResendHandler resendHandler) {
+        return setupExecutionContext(resendHandler,
+                repositoryResource.<Handler<Object, Object>>getComponent("transactionManagementHandler"));
+    }
+
+    public ExecutionContext setupExecutionContext(MessageResendHandler resendHandler,
+                                                  Handler<Object, Object> transactionHandler) {
         class Responder implements Handler<RequestMessage, ResponseMessage> {
             public ResponseMessage handle(RequestMessage req, ExecutionContext ctx) {
                 MessageResendHandlerTest.this.actionCalled = true;
@@ -328,16 +761,48 @@ public class MessageResendHandlerTest {
                         Thread.currentThread().interrupt();
                     }
                 }
-                return req.reply();
+                ResponseMessage res = req.reply();
+                if (replyRecord != null) {
+                    res.addRecord(replyRecord);
+                }
+                return res;
             }
         }
         return new ExecutionContext()
             .addHandler(repositoryResource.getComponent("dbConnectionManagementHandler"))
-            .addHandler(repositoryResource.getComponent("transactionManagementHandler"))
+            .addHandler(new AfterCommitHandler())
+            .addHandler(transactionHandler)
             .addHandler(resendHandler)
             .addHandler(new Responder());
     }
 
+    /**
+     * コミット時にロールバックして例外を送出するトランザクション制御ハンドラを生成する。
+     * @return トランザクション制御ハンドラ
+     */
+    public TransactionManagementHandler createCommitFailingTransactionHandler() {
+        final TransactionFactory factory = new JdbcTransactionFactory();
+        TransactionManagementHandler handler = new TransactionManagementHandler();
+        handler.setTransactionFactory(new TransactionFactory() {
+            public Transaction getTransaction(String connectionName) {
+                final Transaction transaction = factory.getTransaction(connectionName);
+                return new Transaction() {
+                    public void begin() {
+                        transaction.begin();
+                    }
+                    public void commit() {
+                        transaction.rollback();
+                        throw new IllegalStateException("commit failed.");
+                    }
+                    public void rollback() {
+                        transaction.rollback();
+                    }
+                };
+            }
+        });
+        return handler;
+    }
+
     /** デフォルトのテスト自のスキーマ設定 */
     private SentMessageTableSchema tableDef =
             new SentMessageTableSchema()
@@ -347,6 +812,7 @@ public class MessageResendHandlerTest {
     private CountDownLatch   actionWorkingLatch   = null;
     private CountDownLatch   actionCompletedLatch = null;
     private boolean actionCalled = false;
+    private Map<String, Object> replyRecord = null;
 
     private DataRecordFormatter dataFormatter;
     private DataRecordFormatter headerFormatter;
@@ -0,0 +1,222 @@
+package nablarch.fw.messaging.handler;
+
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.FwHeader;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.RequestMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PartitionedExecutionHandler}のテスト。
+ */
+public class PartitionedExecutionHandlerTest {
+
+    /**
+     * 同じキーの電文が受信した順に処理され、異なるキーの電文が別のレーンで処理されること。
+     */
+    @Test
+    public void testOrderingPerKey() {
+        final Map<String, List<Integer>> processed = new HashMap<String, List<Integer>>();
+        final Map<String, Set<Thread>> threads = new HashMap<String, Set<Thread>>();
+        List<RequestMessage> messages = new ArrayList<RequestMessage>();
+        String[] users = {"user1", "user2", "user3", "user4"};
+        for (int i = 0; i < 200; i++) {
+            messages.add(message(users[i % users.length], i));
+        }
+
+        PartitionedExecutionHandler handler = new PartitionedExecutionHandler()
+                .setLaneCount(4)
+                .setLaneCapacity(5)
+                .setPartitionKey("userId");
+        ExecutionContext context = new ExecutionContext()
+                .setDataReader(new ListReader(messages))
+                .addHandler(handler)
+                .addHandler(new Handler<RequestMessage, Result>() {
+                    @Override
+                    public Result handle(RequestMessage message, ExecutionContext ctx) {
+                        String userId = message.getFwHeader().getUserId();
+                        synchronized (processed) {
+                            if (!processed.containsKey(userId)) {
+                                processed.put(userId, new ArrayList<Integer>());
+                                threads.put(userId, new HashSet<Thread>());
+                            }
+                            processed.get(userId).add((Integer) message.getFwHeader().get("seq"));
+                            threads.get(userId).add(Thread.currentThread());
+                        }
+                        return new Result.Success();
+                    }
+                });
+
+        Result.MultiStatus result = context.handleNext("data");
+        assertThat(result.getResults().size(), is(4));
+
+        for (int i = 0; i < users.length; i++) {
+            List<Integer> sequence = processed.get(users[i]);
+            assertThat(sequence.size(), is(50));
+            for (int j = 0; j < sequence.size(); j++) {
+                assertThat(sequence.get(j), is(i + j * users.length));
+            }
+            assertThat(threads.get(users[i]).size(), is(1));
+        }
+
+        long dispatched = 0;
+        long processedCount = 0;
+        for (PartitionedExecutionHandler.LaneStatistics statistics : handler.getLaneStatistics()) {
+            dispatched += statistics.getDispatchedCount();
+            processedCount += statistics.getProcessedCount();
+            assertThat(statistics.getQueueDepth(), is(0L));
+            assertThat(statistics.getMaxQueueDepth() <= 5, is(true));
+        }
+        assertThat(dispatched, is(200L));
+        assertThat(processedCount, is(200L));
+    }
+
+    /**
+     * 後続ハンドラで実行時例外が発生した場合も、後続の電文の処理が継続されること。
+     */
+    @Test
+    public void testRuntimeExceptionInALane() {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        List<RequestMessage> messages = new ArrayList<RequestMessage>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(message("user1", i));
+        }
+
+        PartitionedExecutionHandler handler = new PartitionedExecutionHandler()
+                .setLaneCount(2)
+                .setPartitionKey("userId");
+        ExecutionContext context = new ExecutionContext()
+                .setDataReader(new ListReader(messages))
+                .addHandler(handler)
+                .addHandler(new Handler<RequestMessage, Result>() {
+                    @Override
+                    public Result handle(RequestMessage message, ExecutionContext ctx) {
+                        Integer seq = (Integer) message.getFwHeader().get("seq");
+                        if (seq == 1) {
+                            throw new IllegalStateException("error");
+                        }
+                        processed.add(seq);
+                        return new Result.Success();
+                    }
+                });
+        context.handleNext("data");
+
+        assertThat(processed, is(Arrays.asList(0, 2)));
+        long failed = 0;
+        for (PartitionedExecutionHandler.LaneStatistics statistics : handler.getLaneStatistics()) {
+            failed += statistics.getFailedCount();
+        }
+        assertThat(failed, is(1L));
+    }
+
+    /**
+     * キューが満杯のレーンを終了させる間に他のレーンでエラーが発生した場合、
+     * 終了を待ち続けずにレーンの処理を中断し、エラーが送出されること。
+     */
+    @Test(timeout = 10000)
+    public void testErrorWhileEndingAFullLane() {
+        final CountDownLatch never = new CountDownLatch(1);
+        List<RequestMessage> messages = Arrays.asList(message("user1", 0), message("user1", 1), message("user2", 2));
+
+        PartitionedExecutionHandler handler = new PartitionedExecutionHandler()
+                .setLaneCount(2)
+                .setLaneCapacity(1)
+                .setPartitionKey("userId");
+        ExecutionContext context = new ExecutionContext()
+                .setDataReader(new ListReader(messages))
+                .addHandler(handler)
+                .addHandler(new Handler<RequestMessage, Result>() {
+                    @Override
+                    public Result handle(RequestMessage message, ExecutionContext ctx) {
+                        try {
+                            if ("user1".equals(message.getFwHeader().getUserId())) {
+                                // 中断されるまで処理を終えず、キューを満杯のままにする。
+                                never.await();
+                            } else {
+                                Thread.sleep(300);
+                                throw new Error("fatal");
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new Result.Success();
+                    }
+                });
+        try {
+            context.handleNext("data");
+            fail();
+        } catch (Error e) {
+            assertThat(e.getMessage(), is("fatal"));
+        }
+    }
+
+    /**
+     * 振り分けキーが設定されていない場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testPartitionKeyIsRequired() {
+        new ExecutionContext()
+                .setDataReader(new ListReader(new ArrayList<RequestMessage>()))
+                .addHandler(new PartitionedExecutionHandler())
+                .handleNext("data");
+    }
+
+    /**
+     * 0以下のレーン数を指定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLaneCount() {
+        new PartitionedExecutionHandler().setLaneCount(0);
+    }
+
+    private static RequestMessage message(String userId, int seq) {
+        FwHeader header = new FwHeader();
+        header.setUserId(userId);
+        header.put("seq", seq);
+        return new RequestMessage(header, new ReceivedMessage(new byte[0]));
+    }
+
+    /**
+     * リストの要素を順に返すデータリーダ。
+     */
+    private static class ListReader implements DataReader<RequestMessage> {
+
+        private final LinkedList<RequestMessage> messages;
+
+        ListReader(List<RequestMessage> messages) {
+            this.messages = new LinkedList<RequestMessage>(messages);
+        }
+
+        @Override
+        public synchronized RequestMessage read(ExecutionContext ctx) {
+            return messages.poll();
+        }
+
+        @Override
+        public synchronized boolean hasNext(ExecutionContext ctx) {
+            return !messages.isEmpty();
+        }
+
+        @Override
+        public void close(ExecutionContext ctx) {
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package nablarch.fw.messaging.handler;
+
+import java.sql.Timestamp;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * 登録日時を保持する送信済みメッセージ。
+ */
+@Entity
+@Table(name = "PURGED_SENT_MESSAGE")
+public class PurgedSentMessage {
+
+    public PurgedSentMessage() {
+    }
+
+    public PurgedSentMessage(String messageId, String requestId, Timestamp sentAt) {
+        this.messageId = messageId;
+        this.requestId = requestId;
+        this.sentAt = sentAt;
+    }
+
+    @Id
+    @Column(name = "MESSAGE_ID", length = 255, nullable = false)
+    public String messageId;
+
+    @Id
+    @Column(name = "REQUEST_ID", length = 64, nullable = false)
+    public String requestId;
+
+    @Column(name = "REPLY_QUEUE", length = 64)
+    public String replyQueue = "";
+
+    @Column(name = "STATUS_CODE", length = 4)
+    public String statusCode = "";
+
+    @Column(name = "BODY_DATA")
+    public byte[] bodyData;
+
+    @Column(name = "SENT_AT")
+    public Timestamp sentAt;
+}
@@ -0,0 +1,194 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link SentMessageIdFilter}のテスト。
+ */
+public class SentMessageIdFilterTest {
+
+    /**
+     * 読み込み前は常に登録されている可能性があると判定されること。
+     */
+    @Test
+    public void testBeforeLoad() {
+        SentMessageIdFilter filter = new SentMessageIdFilter();
+        assertTrue(filter.needsRebuild());
+        assertTrue(filter.mightContain("msg1"));
+    }
+
+    /**
+     * 追加したメッセージIDは必ず登録されている可能性があると判定され、
+     * 追加していないメッセージIDはほぼ登録されていないと判定されること。
+     */
+    @Test
+    public void testMightContain() {
+        SentMessageIdFilter filter = new SentMessageIdFilter()
+                .setExpectedInsertions(1000)
+                .setFalsePositiveProbability(0.01);
+        assertTrue(filter.startRebuild());
+        for (int i = 0; i < 1000; i++) {
+            filter.put("sent_" + i);
+        }
+        filter.completeRebuild();
+        assertFalse(filter.needsRebuild());
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("sent_" + i));
+        }
+        // 固定長の列から読み込んだ値(末尾空白)とも一致する。
+        assertTrue(filter.mightContain("sent_1   "));
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("unsent_" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("falsePositives = " + falsePositives, falsePositives < 300);
+    }
+
+    /**
+     * 作り直し中に追加したメッセージIDは、作り直し後のフィルタにも含まれること。
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        final SentMessageIdFilter filter = new SentMessageIdFilter().setRebuildInterval(50);
+        assertTrue(filter.startRebuild());
+        // 作り直し中は他のスレッドから作り直しを開始できない。
+        final boolean[] started = new boolean[1];
+        Thread other = new Thread() {
+            public void run() {
+                started[0] = filter.startRebuild();
+            }
+        };
+        other.start();
+        other.join();
+        assertFalse(started[0]);
+        filter.put("msg1");
+        filter.completeRebuild();
+        assertTrue(filter.mightContain("msg1"));
+
+        Thread.sleep(100);
+        assertTrue(filter.needsRebuild());
+        assertTrue(filter.startRebuild());
+        filter.put("msg2");
+        filter.completeRebuild();
+        // 作り直しにより、再度追加されなかったメッセージIDは除去される。
+        assertFalse(filter.mightContain("msg1"));
+        assertTrue(filter.mightContain("msg2"));
+    }
+
+    /**
+     * 作り直しを中止した場合、使用中のフィルタがそのまま使用され、
+     * 再試行間隔の経過後に再度作り直しが必要となること。
+     */
+    @Test
+    public void testAbortRebuild() throws Exception {
+        SentMessageIdFilter filter = new SentMessageIdFilter().setRetryInterval(50);
+        assertTrue(filter.startRebuild());
+        filter.put("msg1");
+        filter.abortRebuild();
+        assertFalse(filter.needsRebuild());
+        assertTrue(filter.mightContain("unknown"));
+
+        Thread.sleep(100);
+        assertTrue(filter.needsRebuild());
+    }
+
+    /**
+     * 専用のスレッドで作り直し、作り直しの完了までは使用中のフィルタで判定すること。
+     */
+    @Test
+    public void testRebuildInBackground() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        InMemorySentMessageStore store = new InMemorySentMessageStore() {
+            @Override
+            public void loadMessageIds(SentMessageIdFilter filter) {
+                threadName[0] = Thread.currentThread().getName();
+                loading.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.loadMessageIds(filter);
+            }
+        };
+        store.save("msg1", "RegisterBook", "REPLY", "200", new byte[0]);
+        SentMessageIdFilter filter = new SentMessageIdFilter();
+
+        filter.rebuildInBackground(store);
+        loading.await();
+        // 読み込み中は呼び出し元のスレッドを待たせず、全て登録されている可能性があると判定する。
+        assertTrue(filter.mightContain("unknown"));
+        // 読み込み中は作り直しを重複して開始しない。
+        filter.rebuildInBackground(store);
+        resume.countDown();
+        for (int i = 0; i < 100 && filter.needsRebuild(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(filter.needsRebuild());
+        assertEquals("SentMessageIdFilter-rebuild", threadName[0]);
+        assertTrue(filter.mightContain("msg1"));
+        assertFalse(filter.mightContain("unknown"));
+    }
+
+    /**
+     * 作り直しに失敗した場合、使用中のフィルタを使い続けること。
+     */
+    @Test
+    public void testRebuildInBackgroundFailure() throws Exception {
+        InMemorySentMessageStore store = new InMemorySentMessageStore() {
+            @Override
+            public void loadMessageIds(SentMessageIdFilter filter) {
+                throw new IllegalStateException("failed to load.");
+            }
+        };
+        SentMessageIdFilter filter = new SentMessageIdFilter().setRetryInterval(60000);
+        filter.rebuildInBackground(store);
+        for (int i = 0; i < 100 && filter.needsRebuild(); i++) {
+            Thread.sleep(10);
+        }
+        // 再試行間隔が経過するまでは作り直さない。
+        assertFalse(filter.needsRebuild());
+        assertTrue(filter.mightContain("unknown"));
+    }
+
+    /**
+     * 業務トランザクションに参加する保存先を使用する場合に、
+     * データベース接続のファクトリが設定されていなければ、例外が送出されること。
+     */
+    @Test
+    public void testConnectionFactoryNotSpecified() {
+        InMemorySentMessageStore store = new InMemorySentMessageStore() {
+            @Override
+            public boolean isTransactional() {
+                return true;
+            }
+        };
+        try {
+            new SentMessageIdFilter().rebuildInBackground(store);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("connectionFactory was not specified.", e.getMessage());
+        }
+    }
+
+    /**
+     * 不正な偽陽性率を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFalsePositiveProbability() {
+        new SentMessageIdFilter().setFalsePositiveProbability(1.0);
+    }
+}
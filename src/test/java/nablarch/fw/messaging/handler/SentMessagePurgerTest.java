@@ -0,0 +1,146 @@
+package nablarch.fw.messaging.handler;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import nablarch.core.db.connection.ConnectionFactory;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.action.SentMessagePurgeAction;
+import nablarch.fw.messaging.tableschema.SentMessageTableSchema;
+import nablarch.test.support.SystemRepositoryResource;
+import nablarch.test.support.db.helper.DatabaseTestRunner;
+import nablarch.test.support.db.helper.VariousDbTestHelper;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SentMessagePurger}のテスト。
+ */
+@RunWith(DatabaseTestRunner.class)
+public class SentMessagePurgerTest {
+
+    @Rule
+    public SystemRepositoryResource repositoryResource = new SystemRepositoryResource("nablarch/fw/messaging/handler/MessageResendHandlerTest.xml");
+
+    /** 1日(単位：ミリ秒) */
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    @BeforeClass
+    public static void setUpClass() {
+        VariousDbTestHelper.createTable(PurgedSentMessage.class);
+    }
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        List<PurgedSentMessage> records = new ArrayList<PurgedSentMessage>();
+        for (int i = 0; i < 7; i++) {
+            records.add(new PurgedSentMessage("old_" + i, "RegisterBook", new Timestamp(now - 10 * DAY)));
+        }
+        records.add(new PurgedSentMessage("new_0", "RegisterBook", new Timestamp(now - DAY)));
+        records.add(new PurgedSentMessage("new_1", "RegisterBook", new Timestamp(now)));
+        VariousDbTestHelper.setUpTable(records.toArray());
+    }
+
+    /**
+     * 保持期間を過ぎたレコードのみが、チャンクサイズずつ削除されること。
+     */
+    @Test
+    public void testPurge() {
+        SentMessagePurger.PurgeResult result = createPurger().purge();
+
+        assertEquals(7, result.getDeletedCount());
+        assertEquals(3, result.getChunkCount());
+        assertTrue(result.isCompleted());
+
+        List<PurgedSentMessage> records = findAll();
+        assertEquals(2, records.size());
+        assertEquals("new_0", records.get(0).messageId);
+        assertEquals("new_1", records.get(1).messageId);
+
+        // 削除対象が無い場合は何もしない。
+        result = createPurger().purge();
+        assertEquals(0, result.getDeletedCount());
+        assertEquals(0, result.getChunkCount());
+        assertTrue(result.isCompleted());
+    }
+
+    /**
+     * 最大チャンク数を設定した場合、そのチャンク数を削除した時点で終了すること。
+     */
+    @Test
+    public void testPurgeWithMaxChunks() {
+        SentMessagePurger.PurgeResult result = createPurger().setMaxChunks(2).purge();
+
+        assertEquals(6, result.getDeletedCount());
+        assertEquals(2, result.getChunkCount());
+        assertFalse(result.isCompleted());
+        assertEquals(3, findAll().size());
+
+        // 続きから削除される。
+        result = createPurger().setMaxChunks(2).purge();
+        assertEquals(1, result.getDeletedCount());
+        assertTrue(result.isCompleted());
+        assertEquals(2, findAll().size());
+    }
+
+    /**
+     * 業務アクションから削除処理を実行できること。
+     */
+    @Test
+    public void testPurgeAction() {
+        SentMessagePurgeAction action = new SentMessagePurgeAction().setSentMessagePurger(createPurger());
+        Result result = action.handle(null, null);
+
+        assertTrue(result.isSuccess());
+        assertTrue(result.getMessage(), result.getMessage().contains("deleted = [7]"));
+        assertEquals(2, findAll().size());
+    }
+
+    /**
+     * 登録日時のカラムが設定されていない場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testSentAtColumnNotSpecified() {
+        createPurger().setSentMessageTableSchema(new SentMessageTableSchema()).purge();
+    }
+
+    /**
+     * 0以下のチャンクサイズを設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidChunkSize() {
+        new SentMessagePurger().setChunkSize(0);
+    }
+
+    private SentMessagePurger createPurger() {
+        return new SentMessagePurger()
+                .setConnectionFactory(repositoryResource.<ConnectionFactory>getComponent("connectionFactory"))
+                .setSentMessageTableSchema(new SentMessageTableSchema()
+                        .setTableName("PURGED_SENT_MESSAGE")
+                        .setSentAtColumnName("SENT_AT"))
+                .setRetentionPeriod(7 * DAY)
+                .setChunkSize(3)
+                .setPauseInterval(0);
+    }
+
+    private static List<PurgedSentMessage> findAll() {
+        List<PurgedSentMessage> records = VariousDbTestHelper.findAll(PurgedSentMessage.class);
+        Collections.sort(records, new Comparator<PurgedSentMessage>() {
+            public int compare(PurgedSentMessage o1, PurgedSentMessage o2) {
+                return o1.messageId.compareTo(o2.messageId);
+            }
+        });
+        return records;
+    }
+}
@@ -0,0 +1,82 @@
+package nablarch.fw.messaging.handler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link SentReplyCache}のテスト。
+ */
+public class SentReplyCacheTest {
+
+    /**
+     * 格納した応答電文を取得できること。
+     */
+    @Test
+    public void testPutAndGet() {
+        SentReplyCache cache = new SentReplyCache();
+        cache.put("msg1", "req1", "REPLY.QUEUE", "200", new byte[] {1, 2, 3});
+
+        SentReplyCache.Entry entry = cache.get("msg1", "req1");
+        assertEquals("REPLY.QUEUE", entry.getReplyQueue());
+        assertEquals("200", entry.getStatusCode());
+        assertArrayEquals(new byte[] {1, 2, 3}, entry.getBodyData());
+
+        // メッセージIDとリクエストIDの組で識別する。
+        assertNull(cache.get("msg1", "req2"));
+        assertNull(cache.get("msg2", "req1"));
+    }
+
+    /**
+     * 合計サイズの上限を超えた場合、最も長く参照されていない応答電文から破棄されること。
+     */
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        SentReplyCache cache = new SentReplyCache().setMaxBytes(3 * 200);
+        cache.put("msg1", "req", "Q", "200", new byte[50]);
+        cache.put("msg2", "req", "Q", "200", new byte[50]);
+        cache.put("msg3", "req", "Q", "200", new byte[50]);
+        assertEquals(3, cache.size());
+
+        // msg1を参照し、msg2を最も長く参照されていない状態にする。
+        assertNotNull(cache.get("msg1", "req"));
+        cache.put("msg4", "req", "Q", "200", new byte[50]);
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("msg2", "req"));
+        assertNotNull(cache.get("msg1", "req"));
+        assertNotNull(cache.get("msg3", "req"));
+        assertNotNull(cache.get("msg4", "req"));
+
+        // 1件で上限を超える応答電文は格納しない。
+        cache.put("msg5", "req", "Q", "200", new byte[1000]);
+        assertNull(cache.get("msg5", "req"));
+        assertEquals(3, cache.size());
+    }
+
+    /**
+     * 保持期間を経過した応答電文は取得できないこと。
+     */
+    @Test
+    public void testExpire() throws Exception {
+        SentReplyCache cache = new SentReplyCache().setTimeToLive(50);
+        cache.put("msg1", "req", "Q", "200", new byte[10]);
+        assertNotNull(cache.get("msg1", "req"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("msg1", "req"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    /**
+     * 0以下の上限サイズを設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxBytes() {
+        new SentReplyCache().setMaxBytes(0);
+    }
+}
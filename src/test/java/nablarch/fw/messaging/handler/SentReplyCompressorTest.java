@@ -0,0 +1,82 @@
+package nablarch.fw.messaging.handler;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SentReplyCompressor}のテスト。
+ */
+public class SentReplyCompressorTest {
+
+    /**
+     * 空白で埋められたボディ部が圧縮され、展開すると元に戻ること。
+     */
+    @Test
+    public void testCompressAndDecompress() {
+        SentReplyCompressor compressor = new SentReplyCompressor();
+        byte[] body = new byte[2000];
+        Arrays.fill(body, (byte) ' ');
+        System.arraycopy("RegisterBook".getBytes(), 0, body, 100, 12);
+
+        byte[] stored = compressor.compress(body);
+        assertTrue(stored.length < body.length / 10);
+        assertArrayEquals(body, compressor.decompress(stored));
+        // 圧縮した時とは別のインスタンス(プロセスの再起動後など)でも展開できる。
+        assertArrayEquals(body, new SentReplyCompressor().decompress(stored));
+
+        SentReplyCompressor.Statistics statistics = compressor.getStatistics();
+        assertEquals(1, statistics.getCompressedCount());
+        assertEquals(2000, statistics.getOriginalBytes());
+        assertEquals(stored.length, statistics.getCompressedBytes());
+        assertTrue(statistics.getCompressionRatio() > 10);
+        assertEquals(1, statistics.getDecompressedCount());
+    }
+
+    /**
+     * 最小サイズ未満のボディ部と、圧縮しても小さくならないボディ部はそのまま保存されること。
+     */
+    @Test
+    public void testSkip() {
+        SentReplyCompressor compressor = new SentReplyCompressor().setMinSize(100);
+        byte[] small = new byte[50];
+        assertSame(small, compressor.compress(small));
+        assertSame(small, compressor.decompress(small));
+
+        byte[] random = new byte[1000];
+        new Random(1).nextBytes(random);
+        random[0] = 0;
+        assertSame(random, compressor.compress(random));
+
+        assertEquals(2, compressor.getStatistics().getSkippedCount());
+        assertEquals(0, compressor.getStatistics().getCompressedCount());
+        assertNull(compressor.compress(null));
+    }
+
+    /**
+     * マジックナンバーで始まるボディ部は、無圧縮のヘッダを付与して保存されること。
+     */
+    @Test
+    public void testBodyStartingWithMagic() {
+        SentReplyCompressor compressor = new SentReplyCompressor();
+        byte[] body = {(byte) 0xFE, (byte) 0xED, 'N', 'Z', 1, 2, 3};
+        byte[] stored = compressor.compress(body);
+        assertTrue(stored.length > body.length);
+        assertArrayEquals(body, compressor.decompress(stored));
+    }
+
+    /**
+     * 範囲外の圧縮レベルを設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCompressionLevel() {
+        new SentReplyCompressor().setCompressionLevel(10);
+    }
+}
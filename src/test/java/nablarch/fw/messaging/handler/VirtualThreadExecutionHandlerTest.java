@@ -0,0 +1,227 @@
+package nablarch.fw.messaging.handler;
+
+import nablarch.fw.DataReader;
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.Handler;
+import nablarch.fw.Result;
+import nablarch.fw.messaging.VirtualThreads;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link VirtualThreadExecutionHandler}のテスト。
+ */
+public class VirtualThreadExecutionHandlerTest {
+
+    /**
+     * 後続ハンドラが指定された数のスレッドで並行実行されること。
+     */
+    @Test
+    public void testConcurrentExecution() {
+        final int concurrentNumber = 100;
+        final CountDownLatch latch = new CountDownLatch(concurrentNumber);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final Set<Boolean> virtual = Collections.synchronizedSet(new HashSet<Boolean>());
+
+        ExecutionContext context = new ExecutionContext()
+                .addHandler(new VirtualThreadExecutionHandler().setConcurrentNumber(concurrentNumber))
+                .addHandler(new Handler<Object, Result>() {
+                    @Override
+                    public Result handle(Object data, ExecutionContext ctx) {
+                        threads.add(Thread.currentThread());
+                        virtual.add(VirtualThreads.isVirtual(Thread.currentThread()));
+                        latch.countDown();
+                        try {
+                            // 全てのスレッドが同時に実行されていることを確認する。
+                            assertTrue(latch.await(10, TimeUnit.SECONDS));
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return new Result.Success();
+                    }
+                });
+
+        Result.MultiStatus result = context.handleNext("data");
+        assertThat(result.getResults().size(), is(concurrentNumber));
+        assertThat(threads.size(), is(concurrentNumber));
+        assertEquals(Collections.singleton(VirtualThreads.isAvailable()), virtual);
+    }
+
+    /**
+     * いずれかのスレッドで例外が発生した場合、他のスレッドが中断され、例外が再送出されること。
+     */
+    @Test
+    public void testErrorInAThread() {
+        final IllegalStateException error = new IllegalStateException("error");
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ExecutionContext context = new ExecutionContext()
+                .addHandler(new VirtualThreadExecutionHandler().setConcurrentNumber(2).setUseVirtualThreads(false))
+                .addHandler(new Handler<Object, Result>() {
+                    @Override
+                    public Result handle(Object data, ExecutionContext ctx) {
+                        if (started.getCount() > 0) {
+                            synchronized (started) {
+                                if (started.getCount() > 0) {
+                                    started.countDown();
+                                    throw error;
+                                }
+                            }
+                        }
+                        try {
+                            // 割り込まれるまで待機する。
+                            Thread.sleep(60000);
+                        } catch (InterruptedException e) {
+                            return new Result.Success("interrupted");
+                        }
+                        return new Result.Success();
+                    }
+                });
+        try {
+            context.handleNext("data");
+            fail("例外が発生する");
+        } catch (IllegalStateException e) {
+            assertThat(e, is(error));
+        }
+    }
+
+    /**
+     * 電文単位方式の場合、電文ごとに生成したスレッドで後続ハンドラが実行され、
+     * 同時に処理する電文の数がスレッド数以下に制限されること。
+     * 実行時例外が発生した電文があっても、後続の電文の処理が継続されること。
+     */
+    @Test
+    public void testPerMessage() {
+        List<String> messages = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            messages.add("message" + i);
+        }
+        final Set<String> processed = Collections.synchronizedSet(new HashSet<String>());
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        ExecutionContext context = new ExecutionContext()
+                .setDataReader(new ListReader(messages))
+                .addHandler(new VirtualThreadExecutionHandler().setConcurrentNumber(3).setPerMessage(true))
+                .addHandler(new Handler<String, Result>() {
+                    @Override
+                    public Result handle(String data, ExecutionContext ctx) {
+                        threads.add(Thread.currentThread());
+                        int current = active.incrementAndGet();
+                        synchronized (maxActive) {
+                            maxActive.set(Math.max(maxActive.get(), current));
+                        }
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            active.decrementAndGet();
+                        }
+                        if (data.equals("message5")) {
+                            throw new IllegalStateException("failed to process message5.");
+                        }
+                        processed.add(data);
+                        return new Result.Success();
+                    }
+                });
+
+        Result.MultiStatus result = context.handleNext("data");
+
+        assertTrue(result.isSuccess());
+        assertThat(processed.size(), is(19));
+        assertTrue(!processed.contains("message5"));
+        assertThat(threads.size(), is(20));
+        assertTrue(maxActive.get() <= 3);
+    }
+
+    /**
+     * 電文単位方式の場合、実行時例外以外のエラーが発生すると読み込みが中止され、
+     * 処理中のスレッドが中断された上でエラーが再送出されること。
+     */
+    @Test
+    public void testPerMessageError() {
+        List<String> messages = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("message" + i);
+        }
+        final ListReader reader = new ListReader(messages);
+        final AssertionError error = new AssertionError("fatal");
+
+        ExecutionContext context = new ExecutionContext()
+                .setDataReader(reader)
+                .addHandler(new VirtualThreadExecutionHandler().setConcurrentNumber(2).setPerMessage(true))
+                .addHandler(new Handler<String, Result>() {
+                    @Override
+                    public Result handle(String data, ExecutionContext ctx) {
+                        if (data.equals("message1")) {
+                            throw error;
+                        }
+                        try {
+                            // 割り込まれるまで待機する。
+                            Thread.sleep(60000);
+                        } catch (InterruptedException e) {
+                            return new Result.Success("interrupted");
+                        }
+                        return new Result.Success();
+                    }
+                });
+        try {
+            context.handleNext("data");
+            fail("例外が発生する");
+        } catch (AssertionError e) {
+            assertThat(e, is(error));
+        }
+        assertTrue(reader.hasNext(context));
+    }
+
+    /**
+     * 0以下のスレッド数を指定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidConcurrentNumber() {
+        new VirtualThreadExecutionHandler().setConcurrentNumber(0);
+    }
+
+    /**
+     * リストの要素を順に返すデータリーダ。
+     */
+    private static class ListReader implements DataReader<String> {
+
+        private final LinkedList<String> messages;
+
+        ListReader(List<String> messages) {
+            this.messages = new LinkedList<String>(messages);
+        }
+
+        @Override
+        public synchronized String read(ExecutionContext ctx) {
+            return messages.poll();
+        }
+
+        @Override
+        public synchronized boolean hasNext(ExecutionContext ctx) {
+            return !messages.isEmpty();
+        }
+
+        @Override
+        public void close(ExecutionContext ctx) {
+        }
+    }
+}
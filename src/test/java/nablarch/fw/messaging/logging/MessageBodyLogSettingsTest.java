@@ -0,0 +1,131 @@
+package nablarch.fw.messaging.logging;
+
+import nablarch.core.ThreadContext;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link MessageBodyLogSettings}のテストクラス。
+ */
+public class MessageBodyLogSettingsTest {
+
+    @After
+    public void tearDown() {
+        ThreadContext.clear();
+    }
+
+    /**
+     * デフォルト設定の場合、全件が出力対象となり最大出力長の制限がないこと。
+     */
+    @Test
+    public void testDefault() {
+        MessageBodyLogSettings settings = new MessageBodyLogSettings();
+        assertThat(settings.getMaxBodyLength(), is(0));
+        assertThat(settings.getDefaultSamplingRate(), is(1.0));
+        assertThat(settings.isBodyLoggable(new SendingMessage().setMessageId("id")), is(true));
+    }
+
+    /**
+     * プロパティから設定値を読み込めること。
+     */
+    @Test
+    public void testProps() {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put("messagingLogFormatter.bodyMaxLength", "100");
+        props.put("messagingLogFormatter.bodySamplingRate", "0.5");
+        props.put("messagingLogFormatter.bodySamplingRatesByRequestId", "RM11AC0101:0.1, RM11AC0102:0");
+        props.put("messagingLogFormatter.bodySamplingRatesByDestination", "TEST.REQUEST:0.01");
+
+        MessageBodyLogSettings settings = new MessageBodyLogSettings(props);
+        assertThat(settings.getMaxBodyLength(), is(100));
+        assertThat(settings.getDefaultSamplingRate(), is(0.5));
+        assertThat(settings.getSamplingRate("RM11AC0101", "TEST.REQUEST"), is(0.1));
+        assertThat(settings.getSamplingRate("RM11AC0102", null), is(0.0));
+        assertThat(settings.getSamplingRate("OTHER", "TEST.REQUEST"), is(0.01));
+        assertThat(settings.getSamplingRate(null, "OTHER"), is(0.5));
+    }
+
+    /**
+     * 不正なプロパティを指定した場合、例外が送出されること。
+     */
+    @Test
+    public void testInvalidProps() {
+        assertInvalid("messagingLogFormatter.bodyMaxLength", "-1",
+                "messagingLogFormatter.bodyMaxLength was not a non-negative integer. "
+                + "messagingLogFormatter.bodyMaxLength = [-1]");
+        assertInvalid("messagingLogFormatter.bodySamplingRate", "1.5",
+                "messagingLogFormatter.bodySamplingRate must be between 0.0 and 1.0. "
+                + "messagingLogFormatter.bodySamplingRate = [1.5]");
+        assertInvalid("messagingLogFormatter.bodySamplingRatesByDestination", "TEST.REQUEST",
+                "messagingLogFormatter.bodySamplingRatesByDestination must be specified as 'key:rate'. "
+                + "messagingLogFormatter.bodySamplingRatesByDestination = [TEST.REQUEST]");
+    }
+
+    private void assertInvalid(String name, String value, String expectedMessage) {
+        Map<String, String> props = new HashMap<String, String>();
+        props.put(name, value);
+        try {
+            new MessageBodyLogSettings(props);
+            fail("例外が発生する");
+        } catch (IllegalArgumentException e) {
+            assertEquals(expectedMessage, e.getMessage());
+        }
+    }
+
+    /**
+     * リクエストIDの設定が宛先キューの設定より優先されること。
+     */
+    @Test
+    public void testRequestIdTakesPrecedence() {
+        MessageBodyLogSettings settings = new MessageBodyLogSettings();
+        settings.setSamplingRateByDestination("TEST.REQUEST", 0.0);
+        settings.setSamplingRateByRequestId("RM11AC0101", 1.0);
+
+        SendingMessage message = new SendingMessage().setMessageId("id").setDestination("TEST.REQUEST");
+
+        assertThat(settings.isBodyLoggable(message), is(false));
+        ThreadContext.setRequestId("RM11AC0101");
+        assertThat(settings.isBodyLoggable(message), is(true));
+
+        settings.removeSamplingRateByRequestId("RM11AC0101");
+        assertThat(settings.isBodyLoggable(message), is(false));
+    }
+
+    /**
+     * 出力対象の判定がメッセージIDに対して決定的であり、おおよそ指定した割合で出力されること。
+     */
+    @Test
+    public void testSamplingIsDeterministicAndProportional() {
+        MessageBodyLogSettings settings = new MessageBodyLogSettings();
+        settings.setDefaultSamplingRate(0.1);
+
+        int logged = 0;
+        for (int i = 0; i < 10000; i++) {
+            SendingMessage message = new SendingMessage().setMessageId("ID:" + i);
+            boolean first = settings.isBodyLoggable(message);
+            assertThat(settings.isBodyLoggable(message), is(first));
+            if (first) {
+                logged++;
+            }
+        }
+        assertThat(logged / 10000.0, closeTo(0.1, 0.02));
+    }
+
+    /**
+     * 範囲外の出力割合を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new MessageBodyLogSettings().setSamplingRateByRequestId("RM11AC0101", -0.1);
+    }
+}
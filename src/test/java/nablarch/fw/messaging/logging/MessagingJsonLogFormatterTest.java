@@ -579,6 +579,64 @@ public class MessagingJsonLogFormatterTest extends LogTestSupport {
                 withJsonPath("$", hasEntry("messageBody", "<?xml version=\"1.0\" encoding=\"UTF-8\"?><request><data>0123456789</data></request>")))));
     }
 
+    /**
+     * メッセージボディの最大出力長を指定した場合のテスト。
+     * <p>
+     * マスク処理後に切り詰められ、バイト長は実際の値が出力されること。
+     * </p>
+     */
+    @Test
+    public void testBodyMaxLength() {
+        System.setProperty("messagingLogFormatter.sentMessageTargets", "messageBody,messageBodyHex,messageBodyLength");
+        System.setProperty("messagingLogFormatter.maskingPatterns", "(234)");
+        System.setProperty("messagingLogFormatter.bodyMaxLength", "4");
+        MessagingLogFormatter formatter = new MessagingJsonLogFormatter();
+
+        SendingMessage message = createSendingMessage()
+                .addRecord(new HashMap<String, Object>(){{
+                    put("data", "0123456789");
+                }});
+
+        String log = formatter.getSentMessageLog(message);
+        assertThat(log.substring("$JSON$".length()), isJson(allOf(
+                withJsonPath("$", hasEntry("messageBody", "01**")),
+                withJsonPath("$", hasEntry("messageBodyHex", "30312A2A")),
+                withJsonPath("$", hasEntry("messageBodyLength", 10)))));
+    }
+
+    /**
+     * メッセージボディの出力割合を0にした場合のテスト。
+     * <p>
+     * メッセージボディの項目は出力されず、それ以外の項目は出力されること。
+     * また、実行中に出力割合を変更できること。
+     * </p>
+     */
+    @Test
+    public void testBodySamplingRate() {
+        System.setProperty("messagingLogFormatter.sentMessageTargets", "messageId,messageBody,messageBodyHex,messageBodyLength");
+        System.setProperty("messagingLogFormatter.bodySamplingRatesByDestination", "destinationTest:0");
+        MessagingLogFormatter formatter = new MessagingJsonLogFormatter();
+
+        SendingMessage message = createSendingMessage()
+                .addRecord(new HashMap<String, Object>(){{
+                    put("data", "0123456789");
+                }});
+
+        String log = formatter.getSentMessageLog(message);
+        assertThat(log.substring("$JSON$".length()), isJson(allOf(
+                withJsonPath("$", hasEntry("messageId", "messagingIdTest")),
+                withJsonPath("$", hasEntry("messageBodyLength", 10)),
+                withoutJsonPath("$.messageBody"),
+                withoutJsonPath("$.messageBodyHex"))));
+
+        formatter.getMessageBodyLogSettings().removeSamplingRateByDestination("destinationTest");
+
+        log = formatter.getSentMessageLog(message);
+        assertThat(log.substring("$JSON$".length()), isJson(allOf(
+                withJsonPath("$", hasEntry("messageBody", "0123456789")),
+                withJsonPath("$", hasEntry("messageBodyHex", "30313233343536373839")))));
+    }
+
     /**
      * {@link nablarch.core.text.json.JsonSerializationManager}の実装を変更できることをテスト。
      */
@@ -607,6 +665,44 @@ public class MessagingJsonLogFormatterTest extends LogTestSupport {
                 is("$JSON$mock serialization"));
     }
 
+    /**
+     * 出力項目をバッファに直接書き込んだ結果が、
+     * {@link nablarch.core.text.json.JsonSerializationManager}で変換した結果と一致することをテスト。
+     */
+    @Test
+    public void testAppendableOutputMatchesSerializationManager() {
+        System.setProperty("messagingLogFormatter.receivedMessageTargets",
+                "label,threadName,messageId,destination,correlationId,replyTo,timeToLive,"
+                + "messageBody,messageBodyHex,messageBodyLength,messageHeader");
+        System.setProperty("messagingLogFormatter.maskingPatterns", "(234)");
+
+        MessagingLogFormatter appendable = new MessagingJsonLogFormatter();
+        MessagingLogFormatter serialized = new MessagingJsonLogFormatter() {
+            @Override
+            protected JsonSerializationManager createSerializationManager(JsonSerializationSettings settings) {
+                return new BasicJsonSerializationManager() {};
+            }
+        };
+
+        ReceivedMessage message = createReceivedMessage("01234\"\\\t\u0001\u001f/\u3042", "UTF-8");
+        message.setHeader("number", 1);
+        message.setHeader("text", "a\"b\n");
+
+        String expected = serialized.getReceivedMessageLog(message);
+        String actual = appendable.getReceivedMessageLog(message);
+        assertThat(actual.startsWith("$JSON$"), is(true));
+        assertThat(actual.substring("$JSON$".length()), isJson(allOf(
+                withJsonPath("$.*", hasSize(9)),
+                withJsonPath("$", hasEntry("label", "RECEIVED MESSAGE")),
+                withJsonPath("$", hasEntry("messageId", "messagingIdTest")),
+                withJsonPath("$", hasEntry("messageBody", "01***\"\\\t\u0001\u001f/\u3042")),
+                withJsonPath("$", hasEntry("messageBodyLength", 14)),
+                withJsonPath("$.messageHeader", hasEntry("number", 1)),
+                withJsonPath("$.messageHeader", hasEntry("text", "a\"b\n")))));
+        assertThat(actual.length(), is(expected.length()));
+        assertThat(actual.contains("\"messageBody\":\"01***\\\"\\\\\\t\\u0001\\u001f/\u3042\""), is(true));
+    }
+
     /**
      * {@link nablarch.core.text.json.JsonSerializationManager}のモッククラス。
      */
@@ -0,0 +1,73 @@
+package nablarch.fw.messaging.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.VirtualThreads;
+import nablarch.fw.messaging.logging.MessagingLogFormatter.MessageBody;
+import nablarch.fw.messaging.logging.MessagingLogFormatter.MessageBodyHex;
+import nablarch.fw.messaging.logging.MessagingLogFormatter.MessagingLogContext;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MessagingLogBuffers}のテスト。
+ */
+public class MessagingLogBuffersTest {
+
+    /**
+     * 入れ子に取得した場合は同じバッファが返却され、最も外側の解放で解放されること。
+     */
+    @Test
+    public void testNestedAcquire() {
+        MessagingLogBuffers outer = MessagingLogBuffers.acquire();
+        MessagingLogBuffers inner = MessagingLogBuffers.acquire();
+        assertSame(outer, inner);
+        inner.release();
+        assertTrue(MessagingLogBuffers.isAcquired());
+        outer.release();
+        assertFalse(MessagingLogBuffers.isAcquired());
+    }
+
+    /**
+     * ログ1行の組み立ての外で出力項目を単独で使用した場合も、バッファが解放されること。
+     */
+    @Test
+    public void testReleaseOutsideFormatMessage() throws Exception {
+        assertReleased();
+
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread thread = VirtualThreads.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    assertReleased();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        }, "messaging-log-buffers-test", true);
+        thread.start();
+        thread.join();
+        assertEquals(new ArrayList<Throwable>(), errors);
+    }
+
+    /**
+     * 出力項目を単独で使用した後に、バッファが解放されていることを確認する。
+     */
+    private static void assertReleased() {
+        MessagingLogContext ctx = new MessagingLogContext(new ReceivedMessage("0123456789".getBytes()));
+        Pattern[] patterns = {Pattern.compile("^.{3}(.{4})")};
+
+        assertEquals("012****789", new MessageBody('*', patterns).get(ctx));
+        assertFalse(MessagingLogBuffers.isAcquired());
+        assertEquals("3031322A2A2A2A373839", new MessageBodyHex('*', patterns).get(ctx));
+        assertFalse(MessagingLogBuffers.isAcquired());
+    }
+}
@@ -0,0 +1,319 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link BatchingMessagingProvider}のテスト。
+ */
+public class BatchingMessagingProviderTest {
+
+    /**
+     * バッチサイズに達した時点で確定し、残りはクローズ時に確定すること。
+     */
+    @Test
+    public void testCommitByBatchSize() {
+        TransactedProvider transacted = new TransactedProvider(0);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(3)
+                .setBatchInterval(60000);
+        MessagingContext context = provider.createContext();
+        for (int i = 0; i < 5; i++) {
+            context.sendMessage(message("msg" + i));
+        }
+        assertEquals(3, transacted.committed.size());
+        assertEquals(1, transacted.commitCount.get());
+
+        context.close();
+        assertEquals(5, transacted.committed.size());
+        assertEquals(2, transacted.commitCount.get());
+        assertTrue(transacted.closed);
+    }
+
+    /**
+     * 送受信が途絶えた場合も、バッチ間隔の経過後に確定スレッドが確定すること。
+     */
+    @Test
+    public void testCommitByBatchInterval() throws Exception {
+        TransactedProvider transacted = new TransactedProvider(0);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1000)
+                .setBatchInterval(50);
+        MessagingContext context = provider.createContext();
+        context.sendMessage(message("msg"));
+        assertEquals(0, transacted.committed.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (transacted.committed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, transacted.committed.size());
+        context.close();
+    }
+
+    /**
+     * 受信の前に、確定していない送信が確定されること。
+     * 確定の失敗により再送信した場合は、送信時のメッセージIDで応答を受信できること。
+     */
+    @Test
+    public void testRetryCommitBeforeReceive() {
+        TransactedProvider transacted = new TransactedProvider(1);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1000)
+                .setBatchInterval(60000);
+        MessagingContext context = provider.createContext();
+        String messageId = context.sendMessage(message("request"));
+        assertEquals("1", messageId);
+
+        context.receiveMessage("REPLY", messageId, 0);
+        // 確定の失敗後に取り消して再送信するため、重複や欠落なく確定されている。
+        assertEquals(1, transacted.committed.size());
+        assertEquals("request", transacted.committed.get(0).getCorrelationId());
+        assertEquals(1, transacted.rollbackCount.get());
+        assertEquals("2", transacted.requestedIds.get(0));
+        context.close();
+    }
+
+    /**
+     * 受信したメッセージの処理中は、バッチ間隔が経過しても確定スレッドが確定せず、
+     * 要求の境界でまとめて確定すること。
+     */
+    @Test
+    public void testCommitAtRequestBoundary() throws Exception {
+        TransactedProvider transacted = new TransactedProvider(0);
+        transacted.receivable.set(2);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1)
+                .setBatchInterval(20);
+        MessagingContext context = provider.createContext();
+
+        assertNotNull(context.receiveMessage("QUEUE", null, 0));
+        context.sendMessage(message("reply1"));
+        Thread.sleep(200);
+        // 要求の処理中は確定しない。
+        assertEquals(0, transacted.commitCount.get());
+
+        // 次の受信の前に、前の要求の受信と送信をまとめて確定する。
+        assertNotNull(context.receiveMessage("QUEUE", null, 0));
+        assertEquals(1, transacted.commitCount.get());
+        assertEquals(1, transacted.committed.size());
+
+        context.sendMessage(message("reply2"));
+        context.commit();
+        assertEquals(2, transacted.commitCount.get());
+        assertEquals(2, transacted.committed.size());
+
+        // 要求の境界の後は、バッチサイズに達した時点で確定する。
+        context.sendMessage(message("msg"));
+        assertEquals(3, transacted.committed.size());
+        context.close();
+    }
+
+    /**
+     * 確定の時点に達していない場合、要求の境界では確定せず、
+     * 複数の要求の受信と応答が1回の確定にまとめられること。
+     */
+    @Test
+    public void testCommitRequestsInBatch() {
+        TransactedProvider transacted = new TransactedProvider(0);
+        transacted.receivable.set(5);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1000)
+                .setBatchInterval(60000);
+        MessagingContext context = provider.createContext();
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(context.receiveMessage("QUEUE", null, 10));
+            context.sendMessage(message("reply" + i));
+        }
+        assertNull(context.receiveMessage("QUEUE", null, 10));
+        assertEquals(0, transacted.commitCount.get());
+
+        context.close();
+        assertEquals(1, transacted.commitCount.get());
+        assertEquals(5, transacted.committed.size());
+    }
+
+    /**
+     * 確定していない送受信が残っている場合、受信待ちの途中でバッチ間隔が経過した時点で確定すること。
+     */
+    @Test
+    public void testCommitWhileWaitingForRequest() {
+        TransactedProvider transacted = new TransactedProvider(0);
+        transacted.receivable.set(1);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1000)
+                .setBatchInterval(50);
+        MessagingContext context = provider.createContext();
+        assertNotNull(context.receiveMessage("QUEUE", null, 0));
+        context.sendMessage(message("reply"));
+
+        assertNull(context.receiveMessage("QUEUE", null, 0));
+        assertEquals(1, transacted.commitCount.get());
+        assertEquals(1, transacted.committed.size());
+        context.close();
+    }
+
+    /**
+     * プロバイダを閉じた場合、確定スレッドが停止し、コンテキストを生成できないこと。
+     */
+    @Test
+    public void testClose() throws Exception {
+        TransactedProvider transacted = new TransactedProvider(0);
+        BatchingMessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setBatchSize(1000)
+                .setBatchInterval(20);
+        MessagingContext context = provider.createContext();
+        provider.close();
+
+        context.sendMessage(message("msg"));
+        Thread.sleep(200);
+        assertEquals(0, transacted.committed.size());
+        context.close();
+        assertEquals(1, transacted.committed.size());
+
+        try {
+            provider.createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("this messaging provider was closed.", e.getMessage());
+        }
+    }
+
+    /**
+     * 最大再試行回数を超えても確定できない場合、例外が送出されること。
+     */
+    @Test
+    public void testCommitFailure() {
+        TransactedProvider transacted = new TransactedProvider(Integer.MAX_VALUE);
+        MessagingProvider provider = new BatchingMessagingProvider()
+                .setMessagingProvider(transacted)
+                .setMaxCommitRetries(2)
+                .setBatchInterval(60000);
+        MessagingContext context = provider.createContext();
+        context.sendMessage(message("msg"));
+        try {
+            context.close();
+            fail();
+        } catch (MessagingException e) {
+            assertTrue(e.getMessage().contains("1 sent messages were not committed."));
+        }
+        assertEquals(0, transacted.committed.size());
+        assertEquals(3, transacted.commitCount.get());
+        assertTrue(transacted.closed);
+    }
+
+    /**
+     * 設定値が不正な場合、例外が送出されること。
+     */
+    @Test
+    public void testInvalidSettings() {
+        try {
+            new BatchingMessagingProvider().setBatchSize(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("batchSize must be greater than 0. batchSize = [0]", e.getMessage());
+        }
+        try {
+            new BatchingMessagingProvider().createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("messagingProvider was not specified.", e.getMessage());
+        }
+    }
+
+    private static SendingMessage message(String correlationId) {
+        return new SendingMessage().setDestination("QUEUE").setCorrelationId(correlationId);
+    }
+
+    /**
+     * トランザクションを使用するセッションを模したプロバイダ。
+     */
+    private static class TransactedProvider implements MessagingProvider {
+
+        private final List<SendingMessage> committed = Collections.synchronizedList(new ArrayList<SendingMessage>());
+        private final List<String> requestedIds = new ArrayList<String>();
+        private final AtomicInteger commitCount = new AtomicInteger();
+        private final AtomicInteger rollbackCount = new AtomicInteger();
+        private final AtomicInteger commitFailures;
+        private final AtomicInteger receivable = new AtomicInteger();
+        private volatile boolean closed = false;
+
+        TransactedProvider(int commitFailures) {
+            this.commitFailures = new AtomicInteger(commitFailures);
+        }
+
+        public MessagingContext createContext() {
+            return new MessagingContext() {
+                private final List<SendingMessage> uncommitted = new ArrayList<SendingMessage>();
+                private int sequence = 0;
+
+                @Override
+                public String sendMessage(SendingMessage message) {
+                    uncommitted.add(message);
+                    return String.valueOf(++sequence);
+                }
+
+                @Override
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    requestedIds.add(messageId);
+                    return (receivable.getAndDecrement() > 0) ? new ReceivedMessage(new byte[0]) : null;
+                }
+
+                @Override
+                public void commit() {
+                    commitCount.incrementAndGet();
+                    if (commitFailures.getAndDecrement() > 0) {
+                        throw new MessagingException("commit failed.");
+                    }
+                    committed.addAll(uncommitted);
+                    uncommitted.clear();
+                }
+
+                @Override
+                public void rollback() {
+                    rollbackCount.incrementAndGet();
+                    uncommitted.clear();
+                }
+
+                @Override
+                public void close() {
+                    closed = true;
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link FlowControlledMessagingProvider}のテスト。
+ */
+public class FlowControlledMessagingProviderTest {
+
+    private final InMemoryMessagingProvider broker = new InMemoryMessagingProvider();
+
+    private static SendingMessage message(String destination) {
+        return new SendingMessage().setDestination(destination);
+    }
+
+    /**
+     * 流量制御を設定しない場合は、そのまま送信すること。
+     */
+    @Test
+    public void testUnlimited() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker);
+        MessagingContext context = sut.createContext();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(context.send(message("QUEUE")).startsWith("ID:inmemory-"));
+        }
+        assertEquals(100, broker.getQueueDepth("QUEUE"));
+        FlowControlledMessagingProvider.FlowStatistics statistics = sut.getStatistics().get("QUEUE");
+        assertEquals(100, statistics.getSentCount());
+        assertEquals(0, statistics.getThrottledCount());
+        assertEquals(0, statistics.getRejectedCount());
+        assertEquals(-1, statistics.getQueueDepth());
+    }
+
+    /**
+     * 送信レートを超えた宛先のみ、送信できないこと。
+     */
+    @Test
+    public void testRateLimit() {
+        Map<String, String> rates = new HashMap<String, String>();
+        rates.put("SLOW", "1");
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setDestinationRates(rates)
+                                                                                   .setBurst(5)
+                                                                                   .setMaxWait(0);
+        MessagingContext context = sut.createContext();
+        for (int i = 0; i < 5; i++) {
+            context.send(message("SLOW"));
+        }
+        try {
+            context.send(message("SLOW"));
+            fail();
+        } catch (SendThrottledException e) {
+            assertEquals("SLOW", e.getDestination());
+            assertTrue(e.getMessage(), e.getMessage().contains("the send rate reached the limit."));
+        }
+        for (int i = 0; i < 10; i++) {
+            context.send(message("FAST"));
+        }
+        assertEquals(5, broker.getQueueDepth("SLOW"));
+        assertEquals(10, broker.getQueueDepth("FAST"));
+
+        Map<String, FlowControlledMessagingProvider.FlowStatistics> statistics = sut.getStatistics();
+        assertEquals(5, statistics.get("SLOW").getSentCount());
+        assertEquals(1, statistics.get("SLOW").getRejectedCount());
+        assertEquals(1, statistics.get("SLOW").getThrottledCount());
+        assertTrue(statistics.get("SLOW").getSaturation() > 0);
+        assertEquals(0, statistics.get("FAST").getRejectedCount());
+        assertEquals(0, statistics.get("FAST").getSaturation(), 0);
+    }
+
+    /**
+     * 送信レートを超えた場合、トークンが補充されるまで待機して送信すること。
+     */
+    @Test
+    public void testRateWait() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setRate(100)
+                                                                                   .setBurst(1)
+                                                                                   .setMaxWait(1000);
+        MessagingContext context = sut.createContext();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++) {
+            context.send(message("QUEUE"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        FlowControlledMessagingProvider.FlowStatistics statistics = sut.getStatistics().get("QUEUE");
+        assertEquals(6, statistics.getSentCount());
+        assertEquals(5, statistics.getThrottledCount());
+        assertEquals(0, statistics.getRejectedCount());
+        assertTrue(statistics.getWaitTime() >= 30);
+    }
+
+    /**
+     * 宛先キューの滞留件数が上限に達している間は、送信を待機すること。
+     */
+    @Test
+    public void testQueueDepth() throws Exception {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setMaxQueueDepth(3)
+                                                                                   .setMaxWait(50);
+        MessagingContext context = sut.createContext();
+        for (int i = 0; i < 3; i++) {
+            context.send(message("QUEUE"));
+        }
+        long start = System.currentTimeMillis();
+        try {
+            context.send(message("QUEUE"));
+            fail();
+        } catch (SendThrottledException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("the queue depth reached the limit."));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(3, sut.getStatistics().get("QUEUE").getQueueDepth());
+
+        // 受信により滞留件数が減った時点で送信する。
+        sut.setMaxWait(5000);
+        Thread consumer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                broker.createContext().receiveMessage("QUEUE", null, 1000);
+            }
+        });
+        consumer.start();
+        context.send(message("QUEUE"));
+        consumer.join();
+        assertEquals(3, broker.getQueueDepth("QUEUE"));
+        FlowControlledMessagingProvider.FlowStatistics statistics = sut.getStatistics().get("QUEUE");
+        assertEquals(4, statistics.getSentCount());
+        assertEquals(2, statistics.getThrottledCount());
+        assertEquals(1, statistics.getRejectedCount());
+    }
+
+    /**
+     * 一括送信では、全てのメッセージが許可された場合のみ送信すること。
+     */
+    @Test
+    public void testSendInBatch() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setRate(1)
+                                                                                   .setBurst(3)
+                                                                                   .setMaxWait(0);
+        MessagingContext context = sut.createContext();
+        List<SendingMessage> messages = new ArrayList<SendingMessage>();
+        for (int i = 0; i < 4; i++) {
+            messages.add(message("QUEUE"));
+        }
+        try {
+            context.send(messages);
+            fail();
+        } catch (SendThrottledException e) {
+            assertEquals("QUEUE", e.getDestination());
+        }
+        assertEquals(0, broker.getQueueDepth("QUEUE"));
+
+        // 許可を得たメッセージのトークンは返却されている。
+        List<String> messageIds = context.send(messages.subList(0, 3));
+        assertEquals(3, messageIds.size());
+        assertNotNull(messageIds.get(2));
+        assertEquals(3, broker.getQueueDepth("QUEUE"));
+        assertEquals(3, sut.getStatistics().get("QUEUE").getSentCount());
+    }
+
+    /**
+     * 1つの宛先へのメッセージの件数が滞留件数の上限を超える一括送信は、待機せずに例外を送出し、
+     * 他の送信を妨げないこと。
+     */
+    @Test
+    public void testSendInBatchExceedingMaxQueueDepth() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setMaxQueueDepth(3)
+                                                                                   .setMaxWait(5000);
+        MessagingContext context = sut.createContext();
+        List<SendingMessage> messages = new ArrayList<SendingMessage>();
+        messages.add(message("OTHER"));
+        for (int i = 0; i < 4; i++) {
+            messages.add(message("QUEUE"));
+        }
+        long start = System.currentTimeMillis();
+        try {
+            context.send(messages);
+            fail();
+        } catch (SendThrottledException e) {
+            assertEquals("QUEUE", e.getDestination());
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "the batch has more messages than the limit of the queue depth. messages = [4] maxQueueDepth = [3]"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, broker.getQueueDepth("QUEUE"));
+        assertEquals(0, broker.getQueueDepth("OTHER"));
+        assertEquals(1, sut.getStatistics().get("QUEUE").getRejectedCount());
+
+        // 枠を確保していないため、上限まで送信できる。
+        assertEquals(3, context.send(messages.subList(1, 4)).size());
+        assertEquals(3, broker.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 一括送信では、最大待機時間を一括送信全体に適用すること。
+     */
+    @Test
+    public void testSendInBatchWithinMaxWait() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider().setMessagingProvider(broker)
+                                                                                   .setRate(20)
+                                                                                   .setBurst(1)
+                                                                                   .setMaxWait(100);
+        MessagingContext context = sut.createContext();
+        List<SendingMessage> messages = new ArrayList<SendingMessage>();
+        for (int i = 0; i < 4; i++) {
+            messages.add(message("QUEUE"));
+        }
+        // メッセージごとの待機(50ミリ秒)は最大待機時間内だが、全体では150ミリ秒を要するため送信できない。
+        long start = System.currentTimeMillis();
+        try {
+            context.send(messages);
+            fail();
+        } catch (SendThrottledException e) {
+            assertEquals("QUEUE", e.getDestination());
+        }
+        assertTrue(System.currentTimeMillis() - start < 150);
+        assertEquals(0, broker.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 一括送信の途中で送信に失敗した場合、送信されなかったメッセージのトークンのみを返却すること。
+     */
+    @Test
+    public void testPartialFailureInBatch() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider()
+                .setMessagingProvider(new FailingProvider(broker, 3, 0))
+                .setRate(1)
+                .setBurst(4)
+                .setMaxWait(0);
+        MessagingContext context = sut.createContext();
+        List<SendingMessage> messages = new ArrayList<SendingMessage>();
+        for (int i = 0; i < 4; i++) {
+            messages.add(message("QUEUE"));
+        }
+        try {
+            context.send(messages);
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("failed to send.", e.getMessage());
+        }
+        assertEquals(2, broker.getQueueDepth("QUEUE"));
+        assertEquals(2, sut.getStatistics().get("QUEUE").getSentCount());
+
+        // 送信されなかった2件分のトークンのみが返却されている。
+        context.send(message("QUEUE"));
+        context.send(message("QUEUE"));
+        try {
+            context.send(message("QUEUE"));
+            fail();
+        } catch (SendThrottledException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("the send rate reached the limit."));
+        }
+        assertEquals(4, broker.getQueueDepth("QUEUE"));
+        assertEquals(4, sut.getStatistics().get("QUEUE").getSentCount());
+    }
+
+    /**
+     * 複数のスレッドから同時に送信しても、滞留件数の上限を超えて送信しないこと。
+     */
+    @Test
+    public void testQueueDepthWithConcurrentSenders() throws Exception {
+        final FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider()
+                .setMessagingProvider(new FailingProvider(broker, 0, 20))
+                .setQueueDepthSource(broker)
+                .setMaxQueueDepth(5)
+                .setMaxWait(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger rejected = new AtomicInteger();
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int i = 0; i < 10; i++) {
+            Thread sender = new Thread(new Runnable() {
+                public void run() {
+                    MessagingContext context = sut.createContext();
+                    try {
+                        start.await();
+                        context.send(message("QUEUE"));
+                    } catch (SendThrottledException e) {
+                        rejected.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            senders.add(sender);
+            sender.start();
+        }
+        start.countDown();
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        assertEquals(5, broker.getQueueDepth("QUEUE"));
+        assertEquals(5, rejected.get());
+    }
+
+    /**
+     * 滞留件数の上限を設定したが、滞留件数を取得できない場合は例外を送出すること。
+     */
+    @Test
+    public void testQueueDepthSourceNotAvailable() {
+        FlowControlledMessagingProvider sut = new FlowControlledMessagingProvider()
+                .setMessagingProvider(new BatchingMessagingProvider().setMessagingProvider(broker))
+                .setMaxQueueDepth(10);
+        try {
+            sut.createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "queueDepthSource was not specified, and messagingProvider does not provide queue depths."));
+        }
+        // 滞留件数の取得先を設定すれば使用できる。
+        sut.setQueueDepthSource(broker).createContext().send(message("QUEUE"));
+        assertEquals(1, broker.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 不正な設定値の場合は例外を送出すること。
+     */
+    @Test
+    public void testInvalidSettings() {
+        try {
+            new FlowControlledMessagingProvider().createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("messagingProvider was not specified.", e.getMessage());
+        }
+        try {
+            new FlowControlledMessagingProvider().setRate(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("rate must not be negative. rate = [-1.0]", e.getMessage());
+        }
+        Map<String, String> depths = new HashMap<String, String>();
+        depths.put("QUEUE", "-1");
+        try {
+            new FlowControlledMessagingProvider().setDestinationMaxQueueDepths(depths);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("maxQueueDepth must not be negative. destination = [QUEUE] maxQueueDepth = [-1]",
+                         e.getMessage());
+        }
+    }
+
+    /**
+     * 指定した回目の送信のみ失敗するプロバイダ。
+     * 送信前に指定した時間だけ待機する。
+     */
+    private static class FailingProvider implements MessagingProvider {
+
+        private final MessagingProvider delegate;
+        private final AtomicInteger count = new AtomicInteger();
+        private final int failAt;
+        private final long delay;
+
+        FailingProvider(MessagingProvider delegate, int failAt, long delay) {
+            this.delegate = delegate;
+            this.failAt = failAt;
+            this.delay = delay;
+        }
+
+        public MessagingContext createContext() {
+            final MessagingContext context = delegate.createContext();
+            return new MessagingContext() {
+                @Override
+                public String sendMessage(SendingMessage message) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (count.incrementAndGet() == failAt) {
+                        throw new MessagingException("failed to send.");
+                    }
+                    return context.sendMessage(message);
+                }
+                @Override
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return context.receiveMessage(receiveQueue, messageId, timeout);
+                }
+                @Override
+                public void close() {
+                    context.close();
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package nablarch.fw.messaging.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link InMemoryMessagingProvider}のテスト。
+ */
+public class InMemoryMessagingProviderTest {
+
+    private final InMemoryMessagingProvider sut = new InMemoryMessagingProvider();
+
+    /**
+     * 送信したメッセージを、ヘッダとボディ部とともに受信できること。
+     */
+    @Test
+    public void testSendAndReceive() {
+        MessagingContext context = sut.createContext();
+        SendingMessage message = new SendingMessage()
+                .setDestination("REQUEST")
+                .setReplyTo("REPLY")
+                .setHeader("RequestId", "RM11AC0101");
+        message.getBodyStream().write(new byte[] {1, 2, 3}, 0, 3);
+        String messageId = context.sendMessage(message);
+        assertEquals(messageId, message.getMessageId());
+        assertEquals(1, sut.getQueueDepth("REQUEST"));
+
+        ReceivedMessage received = context.receiveMessage("REQUEST", null, 1000);
+        assertEquals(messageId, received.getMessageId());
+        assertEquals("REQUEST", received.getDestination());
+        assertEquals("REPLY", received.getReplyTo());
+        assertEquals("RM11AC0101", received.getHeader("RequestId"));
+        assertArrayEquals(new byte[] {1, 2, 3}, received.getBodyBytes());
+        assertEquals(0, sut.getQueueDepth("REQUEST"));
+    }
+
+    /**
+     * 関連メッセージIDを指定した場合、当該メッセージに対する応答を待機して受信すること。
+     */
+    @Test
+    public void testReceiveReply() throws Exception {
+        final MessagingContext context = sut.createContext();
+        context.sendMessage(new SendingMessage().setDestination("REPLY").setCorrelationId("other"));
+        Thread replier = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sut.createContext().sendMessage(
+                        new SendingMessage().setDestination("REPLY").setCorrelationId("request1"));
+            }
+        });
+        replier.start();
+
+        ReceivedMessage reply = context.receiveMessage("REPLY", "request1", 5000);
+        replier.join();
+        assertNotNull(reply);
+        assertEquals("request1", reply.getCorrelationId());
+        // 関連メッセージIDを指定しない受信では、任意のメッセージを受信する。
+        assertEquals("other", context.receiveMessage("REPLY", null, 1000).getCorrelationId());
+        assertEquals(0, sut.getQueueDepth("REPLY"));
+    }
+
+    /**
+     * 関連メッセージIDを指定しない受信では、関連メッセージIDの有無にかかわらず格納した順に受信すること。
+     */
+    @Test
+    public void testArrivalOrder() {
+        MessagingContext context = sut.createContext();
+        String[] correlationIds = {null, "a", null, "b", "a", null};
+        for (int i = 0; i < correlationIds.length; i++) {
+            SendingMessage message = new SendingMessage().setDestination("MIXED").setHeader("No", String.valueOf(i));
+            if (correlationIds[i] != null) {
+                message.setCorrelationId(correlationIds[i]);
+            }
+            context.sendMessage(message);
+        }
+        // 関連メッセージIDを指定して取り出したメッセージは、順序から除かれる。
+        assertEquals("3", context.receiveMessage("MIXED", "b", 1000).getHeader("No"));
+        String[] expected = {"0", "1", "2", "4", "5"};
+        for (String no : expected) {
+            assertEquals(no, context.receiveMessage("MIXED", null, 1000).getHeader("No"));
+        }
+        assertNull(context.receiveMessage("MIXED", null, 10));
+        assertEquals(0, sut.getQueueDepth("MIXED"));
+    }
+
+    /**
+     * メッセージが存在しない場合、タイムアウトまで待機してnullを返すこと。
+     * 有効期間を過ぎたメッセージは受信されないこと。
+     */
+    @Test
+    public void testTimeoutAndExpiry() throws Exception {
+        MessagingContext context = sut.createContext();
+        long start = System.currentTimeMillis();
+        assertNull(context.receiveMessage("EMPTY", null, 100));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+
+        context.sendMessage(new SendingMessage().setDestination("EVENT").setTimeToLive(1));
+        context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("reply").setTimeToLive(1));
+        Thread.sleep(20);
+        assertNull(context.receiveMessage("EVENT", null, 50));
+        assertNull(context.receiveMessage("EVENT", "reply", 50));
+    }
+
+    /**
+     * キューが満杯の場合、送信タイムアウト後に例外が送出されること。
+     */
+    @Test
+    public void testQueueFull() {
+        sut.setQueueCapacity(2).setSendTimeout(0);
+        MessagingContext context = sut.createContext();
+        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+        try {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("queue is full. queueName = [QUEUE]", e.getMessage());
+        }
+        assertNotNull(context.receiveMessage("QUEUE", null, 100));
+        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+    }
+
+    /**
+     * 複数のスレッドから同時に送受信した場合も、全てのメッセージを1度ずつ受信できること。
+     */
+    @Test
+    public void testConcurrentSendAndReceive() throws Exception {
+        sut.setQueueCapacity(64).setSendTimeout(10000);
+        final int producerCount = 4;
+        final int messagesPerProducer = 5000;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producerCount; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    MessagingContext context = sut.createContext();
+                    for (int j = 0; j < messagesPerProducer; j++) {
+                        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    MessagingContext context = sut.createContext();
+                    ReceivedMessage message;
+                    while ((message = context.receiveMessage("QUEUE", null, 500)) != null) {
+                        received.add(message.getMessageId());
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producerCount * messagesPerProducer, received.size());
+        Set<String> unique = new HashSet<String>(received);
+        assertEquals(received.size(), unique.size());
+    }
+}
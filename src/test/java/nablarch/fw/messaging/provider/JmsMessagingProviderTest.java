@@ -0,0 +1,532 @@
+package nablarch.fw.messaging.provider;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.jms.Connection;
+import jakarta.jms.ConnectionFactory;
+import jakarta.jms.DeliveryMode;
+import jakarta.jms.ExceptionListener;
+import jakarta.jms.JMSException;
+import jakarta.jms.Queue;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.apache.activemq.artemis.api.jms.ActiveMQJMSClient;
+import org.apache.activemq.artemis.jms.client.ActiveMQQueue;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JmsMessagingProvider}のテスト。
+ * <p/>
+ * {@link TestEmbeddedMessagingProvider}が起動する内蔵サーバに接続して検証する。
+ */
+public class JmsMessagingProviderTest {
+
+    /** コネクションの生成回数 */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /** セッションの生成回数 */
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    /** 最後に生成したコネクションに設定された例外リスナー */
+    private volatile ExceptionListener exceptionListener;
+
+    /** テスト対象 */
+    private JmsMessagingProvider sut;
+
+    @BeforeClass
+    public static void startMessagingServer() throws Exception {
+        new TestEmbeddedMessagingProvider();
+        TestEmbeddedMessagingProvider.waitUntilServerStarted();
+    }
+
+    @AfterClass
+    public static void stopMessagingServer() {
+        TestEmbeddedMessagingProvider.stopServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, Queue> queues = new HashMap<String, Queue>();
+        queues.put("REQUEST", new ActiveMQQueue("JmsMessagingProviderTest.REQUEST"));
+        queues.put("REPLY", new ActiveMQQueue("JmsMessagingProviderTest.REPLY"));
+        queues.put("EVENT", new ActiveMQQueue("JmsMessagingProviderTest.EVENT"));
+        queues.put("REQUEST.POISON", new ActiveMQQueue("JmsMessagingProviderTest.REQUEST.POISON"));
+        ConnectionFactory factory = ActiveMQJMSClient.createConnectionFactory("vm://0", "nablarch-test");
+
+        // 前のテストで残ったメッセージを破棄する。
+        JmsMessagingProvider cleaner = new JmsMessagingProvider()
+                .setConnectionFactory(factory)
+                .setDestinations(queues);
+        MessagingContext context = cleaner.createContext();
+        try {
+            for (String queueName : queues.keySet()) {
+                while (context.receiveMessage(queueName, null, 50) != null) {
+                    // 破棄する。
+                }
+            }
+        } finally {
+            context.close();
+            cleaner.close();
+        }
+
+        sut = new JmsMessagingProvider()
+                .setConnectionFactory(countingFactory(factory))
+                .setDestinations(queues);
+    }
+
+    /**
+     * 送信したメッセージを受信でき、宛先と応答宛先が論理名で逆引きされること。
+     */
+    @Test
+    public void testSendAndReceive() {
+        MessagingContext context = sut.createContext();
+        try {
+            SendingMessage message = new SendingMessage()
+                    .setDestination("REQUEST")
+                    .setReplyTo("REPLY")
+                    .setHeader("RequestId", "RM11AC0101");
+            message.getBodyStream().write(new byte[] {1, 2, 3}, 0, 3);
+            String messageId = context.sendMessage(message);
+            assertEquals(messageId, message.getMessageId());
+
+            ReceivedMessage received = context.receiveMessage("REQUEST", null, 1000);
+            assertNotNull(received);
+            assertEquals(messageId, received.getMessageId());
+            assertEquals("REQUEST", received.getDestination());
+            assertEquals("REPLY", received.getReplyTo());
+            assertEquals("RM11AC0101", received.getHeader("RequestId"));
+            assertEquals(DeliveryMode.PERSISTENT, (int) (Integer) received.getHeader("JMSDeliveryMode"));
+            assertArrayEquals(new byte[] {1, 2, 3}, received.getBodyBytes());
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * 関連メッセージIDを指定した場合、当該メッセージに対する応答のみを受信すること。
+     */
+    @Test
+    public void testReceiveReply() {
+        MessagingContext context = sut.createContext();
+        try {
+            context.sendMessage(new SendingMessage().setDestination("REPLY").setCorrelationId("other"));
+            context.sendMessage(new SendingMessage().setDestination("REPLY").setCorrelationId("request1"));
+
+            ReceivedMessage reply = context.receiveMessage("REPLY", "request1", 1000);
+            assertNotNull(reply);
+            assertEquals("request1", reply.getCorrelationId());
+            assertEquals("other", context.receiveMessage("REPLY", null, 1000).getCorrelationId());
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * コネクションは共有され、閉じたコンテキストのセッションが再利用されること。
+     */
+    @Test
+    public void testSessionPooling() {
+        for (int i = 0; i < 5; i++) {
+            MessagingContext context = sut.createContext();
+            context.sendMessage(new SendingMessage().setDestination("EVENT"));
+            context.close();
+        }
+        assertEquals(1, connectionCount.get());
+        assertEquals(1, sessionCount.get());
+
+        MessagingContext context1 = sut.createContext();
+        MessagingContext context2 = sut.createContext();
+        context1.close();
+        context2.close();
+        assertEquals(1, connectionCount.get());
+        assertEquals(2, sessionCount.get());
+
+        sut.close();
+        try {
+            sut.createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("this messaging provider was closed.", e.getMessage());
+        }
+    }
+
+    /**
+     * 宛先ごとに設定した配信モードで送信されること。
+     */
+    @Test
+    public void testDestinationDeliveryModes() {
+        Map<String, String> modes = new HashMap<String, String>();
+        modes.put("EVENT", "NON_PERSISTENT");
+        sut.setDestinationDeliveryModes(modes);
+        MessagingContext context = sut.createContext();
+        try {
+            context.sendMessage(new SendingMessage().setDestination("EVENT"));
+            context.sendMessage(new SendingMessage().setDestination("REQUEST"));
+            assertEquals(DeliveryMode.NON_PERSISTENT,
+                    (int) (Integer) context.receiveMessage("EVENT", null, 1000).getHeader("JMSDeliveryMode"));
+            assertEquals(DeliveryMode.PERSISTENT,
+                    (int) (Integer) context.receiveMessage("REQUEST", null, 1000).getHeader("JMSDeliveryMode"));
+        } finally {
+            context.close();
+        }
+
+        try {
+            sut.setDeliveryMode("ALWAYS");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("deliveryMode must be PERSISTENT or NON_PERSISTENT. deliveryMode = [ALWAYS]", e.getMessage());
+        }
+    }
+
+    /**
+     * トランザクションを使用するセッションの場合、確定するまで送信したメッセージが配信されないこと。
+     * 確定せずに閉じた場合は取り消されること。
+     */
+    @Test
+    public void testTransactedSession() {
+        sut.setTransacted(true);
+        MessagingContext sender = sut.createContext();
+        MessagingContext receiver = sut.createContext();
+        try {
+            sender.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("committed"));
+            assertNull(receiver.receiveMessage("EVENT", null, 200));
+            sender.commit();
+            assertEquals("committed", receiver.receiveMessage("EVENT", null, 1000).getCorrelationId());
+            receiver.commit();
+
+            sender.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("rolledBack"));
+        } finally {
+            sender.close();
+        }
+        try {
+            assertNull(receiver.receiveMessage("EVENT", null, 200));
+        } finally {
+            receiver.close();
+        }
+    }
+
+    /**
+     * CLIENT_ACKNOWLEDGEの場合、受信したメッセージが全て処理完了となった時点で確認応答されること。
+     * 処理完了となっていないメッセージは、ロールバックまたはコンテキストを閉じた時点で再配信されること。
+     */
+    @Test
+    public void testClientAcknowledge() {
+        sut.setAcknowledgeMode("CLIENT_ACKNOWLEDGE");
+        MessagingContext context = sut.createContext();
+        try {
+            context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("first"));
+            context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("second"));
+            ReceivedMessage first = context.receiveMessage("EVENT", null, 1000);
+            assertNotNull(context.receiveMessage("EVENT", null, 1000));
+            // 2件目の処理が完了していないため、確認応答されない。
+            context.acknowledge(first);
+            context.rollback();
+
+            first = context.receiveMessage("EVENT", null, 1000);
+            assertEquals("first", first.getCorrelationId());
+            assertEquals(Boolean.TRUE, first.getHeader("JMSRedelivered"));
+            ReceivedMessage second = context.receiveMessage("EVENT", null, 1000);
+            assertEquals("second", second.getCorrelationId());
+            context.acknowledge(second);
+            context.acknowledge(first);
+            context.rollback();
+            assertNull(context.receiveMessage("EVENT", null, 200));
+
+            context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("third"));
+            assertNotNull(context.receiveMessage("EVENT", null, 1000));
+        } finally {
+            context.close();
+        }
+        context = sut.createContext();
+        try {
+            ReceivedMessage third = context.receiveMessage("EVENT", null, 1000);
+            assertEquals("third", third.getCorrelationId());
+            context.acknowledge(third);
+        } finally {
+            context.close();
+        }
+
+        try {
+            sut.setAcknowledgeMode("DUPS_OK_ACKNOWLEDGE");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("acknowledgeMode must be AUTO_ACKNOWLEDGE or CLIENT_ACKNOWLEDGE. "
+                       + "acknowledgeMode = [DUPS_OK_ACKNOWLEDGE]", e.getMessage());
+        }
+    }
+
+    /**
+     * CLIENT_ACKNOWLEDGEの場合、確認応答していないメッセージが最大件数に達すると、
+     * 処理中のメッセージが全て処理完了となって確認応答されるまで受信を待機すること。
+     */
+    @Test
+    public void testAcknowledgeBatchSize() throws Exception {
+        sut.setAcknowledgeMode("CLIENT_ACKNOWLEDGE").setAcknowledgeBatchSize(2);
+        final MessagingContext context = sut.createContext();
+        try {
+            for (int i = 0; i < 3; i++) {
+                context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("msg" + i));
+            }
+            final ReceivedMessage first = context.receiveMessage("EVENT", null, 1000);
+            final ReceivedMessage second = context.receiveMessage("EVENT", null, 1000);
+            assertNotNull(second);
+            // 最大件数に達したため、メッセージがあっても受信しない。
+            assertNull(context.receiveMessage("EVENT", null, 200));
+
+            Thread acknowledger = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    context.acknowledge(first);
+                    context.acknowledge(second);
+                }
+            };
+            acknowledger.start();
+            ReceivedMessage third = context.receiveMessage("EVENT", null, 5000);
+            acknowledger.join();
+            assertEquals("msg2", third.getCorrelationId());
+            context.acknowledge(third);
+            // 確認応答済みのため、再配信されない。
+            context.rollback();
+            assertNull(context.receiveMessage("EVENT", null, 200));
+        } finally {
+            context.close();
+        }
+
+        try {
+            sut.setAcknowledgeBatchSize(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("acknowledgeBatchSize must be greater than 0. acknowledgeBatchSize = [0]", e.getMessage());
+        }
+    }
+
+    /**
+     * トランザクションを使用するセッションの場合、退避キューへの転送がロールバックで取り消されないこと。
+     */
+    @Test
+    public void testPoisonMessageInTransactedSession() {
+        sut.setTransacted(true).setRedeliveryLimit(1);
+        MessagingContext context = sut.createContext();
+        try {
+            String messageId = context.sendMessage(new SendingMessage().setDestination("REQUEST"));
+            context.commit();
+            assertNotNull(context.receiveMessage("REQUEST", null, 1000));
+            context.rollback();
+            try {
+                context.receiveMessage("REQUEST", null, 1000);
+                fail();
+            } catch (MessagingException e) {
+                assertEquals("Expired redelivered limit.", e.getMessage());
+            }
+            // 例外を受けたハンドラによるロールバック
+            context.rollback();
+
+            assertNull(context.receiveMessage("REQUEST", null, 200));
+            ReceivedMessage poison = context.receiveMessage("REQUEST.POISON", null, 1000);
+            assertNotNull(poison);
+            assertEquals(messageId, poison.getCorrelationId());
+            context.commit();
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * コネクションの障害を検知した場合、コネクションを生成し直して送受信とメッセージリスナーの受信を再開すること。
+     */
+    @Test
+    public void testConnectionRecovery() throws Exception {
+        MessagingContext listening = sut.createContext();
+        MessagingContext context = sut.createContext();
+        try {
+            BlockingQueue<ReceivedMessage> delivered = new LinkedBlockingQueue<ReceivedMessage>();
+            listening.addMessageListener("REQUEST", new Collector(delivered));
+            context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("before"));
+            context.close();
+
+            exceptionListener.onException(new JMSException("connection failure."));
+
+            context = sut.createContext();
+            assertEquals("before", context.receiveMessage("EVENT", null, 1000).getCorrelationId());
+            assertEquals(2, connectionCount.get());
+
+            context.sendMessage(new SendingMessage().setDestination("REQUEST").setCorrelationId("after"));
+            ReceivedMessage received = delivered.poll(5000, TimeUnit.MILLISECONDS);
+            assertNotNull(received);
+            assertEquals("after", received.getCorrelationId());
+            listening.acknowledge(received);
+        } finally {
+            context.close();
+            listening.close();
+        }
+    }
+
+    /**
+     * メッセージリスナーに配信したメッセージは、全て処理完了となった時点で確認応答されること。
+     * 処理が完了していないメッセージは、リスナーの解除後に再配信されること。
+     */
+    @Test
+    public void testMessageListener() throws Exception {
+        MessagingContext context = sut.createContext();
+        try {
+            for (int i = 0; i < 3; i++) {
+                context.sendMessage(new SendingMessage().setDestination("REQUEST").setCorrelationId("msg" + i));
+            }
+            BlockingQueue<ReceivedMessage> delivered = new LinkedBlockingQueue<ReceivedMessage>();
+            context.addMessageListener("REQUEST", new Collector(delivered));
+            ReceivedMessage first = delivered.poll(1000, TimeUnit.MILLISECONDS);
+            ReceivedMessage second = delivered.poll(1000, TimeUnit.MILLISECONDS);
+            assertNotNull(delivered.poll(1000, TimeUnit.MILLISECONDS));
+            // 3件目の処理が完了していないため、確認応答されない。
+            context.acknowledge(first);
+            context.acknowledge(second);
+            context.removeMessageListener("REQUEST");
+
+            context.addMessageListener("REQUEST", new Collector(delivered));
+            for (int i = 0; i < 3; i++) {
+                ReceivedMessage redelivered = delivered.poll(1000, TimeUnit.MILLISECONDS);
+                assertNotNull(redelivered);
+                assertEquals(Boolean.TRUE, redelivered.getHeader("JMSRedelivered"));
+                context.acknowledge(redelivered);
+            }
+            context.removeMessageListener("REQUEST");
+            assertNull(context.receiveMessage("REQUEST", null, 200));
+
+            try {
+                context.addMessageListener("REQUEST", new Collector(delivered));
+                context.addMessageListener("REQUEST", new Collector(delivered));
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("a message listener was already registered. receiveQueue = [REQUEST]", e.getMessage());
+            }
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * メッセージリスナーが例外を送出した場合、セッションを生成し直して再配信されること。
+     */
+    @Test
+    public void testMessageListenerFailure() throws Exception {
+        sut.setListenerRecoveryInterval(100);
+        final BlockingQueue<ReceivedMessage> delivered = new LinkedBlockingQueue<ReceivedMessage>();
+        final AtomicInteger calls = new AtomicInteger();
+        MessagingContext context = sut.createContext();
+        try {
+            context.sendMessage(new SendingMessage().setDestination("REQUEST").setCorrelationId("failing"));
+            context.addMessageListener("REQUEST", new MessageListener() {
+                @Override
+                public void onMessage(ReceivedMessage message) {
+                    if (calls.incrementAndGet() == 1) {
+                        throw new IllegalStateException("listener failed.");
+                    }
+                    delivered.add(message);
+                }
+            });
+            ReceivedMessage redelivered = delivered.poll(5000, TimeUnit.MILLISECONDS);
+            assertNotNull(redelivered);
+            assertEquals("failing", redelivered.getCorrelationId());
+            context.acknowledge(redelivered);
+            context.removeMessageListener("REQUEST");
+            assertNull(context.receiveMessage("REQUEST", null, 200));
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * 配信されたメッセージを格納するメッセージリスナー。
+     */
+    private static class Collector implements MessageListener {
+
+        /** 配信されたメッセージ */
+        private final BlockingQueue<ReceivedMessage> delivered;
+
+        /**
+         * コンストラクタ。
+         * @param delivered 配信されたメッセージ
+         */
+        Collector(BlockingQueue<ReceivedMessage> delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void onMessage(ReceivedMessage message) {
+            delivered.add(message);
+        }
+    }
+
+    /**
+     * コネクションとセッションの生成回数を数えるコネクションファクトリを返す。
+     * @param original 元のコネクションファクトリ
+     * @return コネクションファクトリ
+     */
+    private ConnectionFactory countingFactory(final ConnectionFactory original) {
+        return (ConnectionFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {ConnectionFactory.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Object result = invokeOriginal(original, method, args);
+                if (method.getName().equals("createConnection")) {
+                    connectionCount.incrementAndGet();
+                    return countingConnection((Connection) result);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * セッションの生成回数を数えるコネクションを返す。
+     * @param original 元のコネクション
+     * @return コネクション
+     */
+    private Connection countingConnection(final Connection original) {
+        return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {Connection.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("createSession")) {
+                    sessionCount.incrementAndGet();
+                }
+                if (method.getName().equals("setExceptionListener")) {
+                    exceptionListener = (ExceptionListener) args[0];
+                }
+                return invokeOriginal(original, method, args);
+            }
+        });
+    }
+
+    private static Object invokeOriginal(Object original, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(original, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
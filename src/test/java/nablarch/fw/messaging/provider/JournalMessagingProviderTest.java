@@ -0,0 +1,432 @@
+package nablarch.fw.messaging.provider;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JournalMessagingProvider}のテスト。
+ */
+public class JournalMessagingProviderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<JournalMessagingProvider> providers = new ArrayList<JournalMessagingProvider>();
+
+    @After
+    public void tearDown() {
+        for (JournalMessagingProvider provider : providers) {
+            provider.close();
+        }
+    }
+
+    private JournalMessagingProvider open(File dir) {
+        JournalMessagingProvider provider = new JournalMessagingProvider().setDirectory(dir.getPath())
+                                                                          .setSyncInterval(1);
+        providers.add(provider);
+        return provider;
+    }
+
+    private static int countSegments(File dir) {
+        return dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        }).length;
+    }
+
+    /**
+     * 送信したメッセージを、ヘッダとボディ部とともに受信できること。
+     */
+    @Test
+    public void testSendAndReceive() throws Exception {
+        JournalMessagingProvider sut = open(folder.newFolder());
+        MessagingContext context = sut.createContext();
+        SendingMessage message = new SendingMessage()
+                .setDestination("REQUEST")
+                .setReplyTo("REPLY")
+                .setHeader("RequestId", "RM11AC0101")
+                .setHeader("Count", 3);
+        message.getBodyStream().write(new byte[] {1, 2, 3}, 0, 3);
+        String messageId = context.sendMessage(message);
+        assertEquals(messageId, message.getMessageId());
+        assertEquals(1, sut.getQueueDepth("REQUEST"));
+
+        ReceivedMessage received = context.receiveMessage("REQUEST", null, 1000);
+        assertEquals(messageId, received.getMessageId());
+        assertEquals("REQUEST", received.getDestination());
+        assertEquals("REPLY", received.getReplyTo());
+        assertEquals("RM11AC0101", received.getHeader("RequestId"));
+        assertEquals(Integer.valueOf(3), received.getHeader("Count"));
+        assertArrayEquals(new byte[] {1, 2, 3}, received.getBodyBytes());
+        assertEquals(0, sut.getQueueDepth("REQUEST"));
+        assertNull(context.receiveMessage("REQUEST", null, 50));
+    }
+
+    /**
+     * 一括送信したメッセージを、送信順に受信できること。
+     */
+    @Test
+    public void testSendInBatch() throws Exception {
+        JournalMessagingProvider sut = open(folder.newFolder());
+        MessagingContext context = sut.createContext();
+        List<SendingMessage> messages = new ArrayList<SendingMessage>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(new SendingMessage().setDestination((i == 1) ? "OTHER" : "QUEUE").setHeader("No", i));
+        }
+        List<String> messageIds = context.send(messages);
+        assertEquals(3, messageIds.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(messages.get(i).getMessageId(), messageIds.get(i));
+        }
+        assertEquals(2, sut.getQueueDepth("QUEUE"));
+        assertEquals(1, sut.getQueueDepth("OTHER"));
+        assertEquals(messageIds.get(0), context.receiveMessage("QUEUE", null, 1000).getMessageId());
+        assertEquals(messageIds.get(2), context.receiveMessage("QUEUE", null, 1000).getMessageId());
+        assertEquals(messageIds.get(1), context.receiveMessage("OTHER", null, 1000).getMessageId());
+        assertEquals(Arrays.<String>asList(), context.send(new ArrayList<SendingMessage>()));
+    }
+
+    /**
+     * 受信されていないメッセージを、再起動後に送信順に受信できること。
+     */
+    @Test
+    public void testReopen() throws Exception {
+        File dir = folder.newFolder();
+        JournalMessagingProvider sut = open(dir);
+        MessagingContext context = sut.createContext();
+        for (int i = 0; i < 3; i++) {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", i));
+        }
+        assertEquals(Integer.valueOf(0), context.receiveMessage("QUEUE", null, 1000).getHeader("No"));
+        sut.close();
+
+        sut = open(dir);
+        context = sut.createContext();
+        assertEquals(2, sut.getQueueDepth("QUEUE"));
+        assertEquals(Integer.valueOf(1), context.receiveMessage("QUEUE", null, 1000).getHeader("No"));
+        context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", 3));
+        assertEquals(Integer.valueOf(2), context.receiveMessage("QUEUE", null, 1000).getHeader("No"));
+        assertEquals(Integer.valueOf(3), context.receiveMessage("QUEUE", null, 1000).getHeader("No"));
+    }
+
+    /**
+     * 確認応答していないメッセージが、再起動後に再度配信されること。
+     */
+    @Test
+    public void testRedeliverUnacknowledged() throws Exception {
+        File dir = folder.newFolder();
+        JournalMessagingProvider sut = open(dir).setAutoAcknowledge(false);
+        MessagingContext context = sut.createContext();
+        for (int i = 0; i < 3; i++) {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", i));
+        }
+        ReceivedMessage first = context.receiveMessage("QUEUE", null, 1000);
+        ReceivedMessage second = context.receiveMessage("QUEUE", null, 1000);
+        // 受信順と異なる順序で確認応答する。
+        context.acknowledge(second);
+        assertEquals(1, sut.getQueueDepth("QUEUE"));
+        sut.close();
+
+        sut = open(dir).setAutoAcknowledge(false);
+        context = sut.createContext();
+        assertEquals(2, sut.getQueueDepth("QUEUE"));
+        ReceivedMessage redelivered = context.receiveMessage("QUEUE", null, 1000);
+        assertEquals(first.getMessageId(), redelivered.getMessageId());
+        context.acknowledge(redelivered);
+        context.acknowledge(context.receiveMessage("QUEUE", null, 1000));
+        sut.close();
+
+        sut = open(dir);
+        assertEquals(0, sut.getQueueDepth("QUEUE"));
+    }
+
+    /**
+     * 関連メッセージIDを指定した場合、当該メッセージに対する応答を待機して受信すること。
+     */
+    @Test
+    public void testReceiveReply() throws Exception {
+        final JournalMessagingProvider sut = open(folder.newFolder());
+        MessagingContext context = sut.createContext();
+        context.sendMessage(new SendingMessage().setDestination("REPLY").setCorrelationId("other"));
+        Thread replier = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sut.createContext().sendMessage(
+                        new SendingMessage().setDestination("REPLY").setCorrelationId("request1"));
+            }
+        });
+        replier.start();
+
+        ReceivedMessage reply = context.receiveMessage("REPLY", "request1", 5000);
+        replier.join();
+        assertNotNull(reply);
+        assertEquals("request1", reply.getCorrelationId());
+        assertEquals("other", context.receiveMessage("REPLY", null, 1000).getCorrelationId());
+        assertEquals(0, sut.getQueueDepth("REPLY"));
+    }
+
+    /**
+     * 有効期間を過ぎたメッセージは受信されないこと。
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        JournalMessagingProvider sut = open(folder.newFolder());
+        MessagingContext context = sut.createContext();
+        context.sendMessage(new SendingMessage().setDestination("EVENT").setTimeToLive(1));
+        context.sendMessage(new SendingMessage().setDestination("EVENT").setCorrelationId("reply").setTimeToLive(1));
+        Thread.sleep(20);
+        assertNull(context.receiveMessage("EVENT", null, 50));
+        assertNull(context.receiveMessage("EVENT", "reply", 50));
+    }
+
+    /**
+     * セグメントファイルが切り替わり、確認応答済みのセグメントファイルが削除されること。
+     * 未確認応答のメッセージが少ないセグメントファイルは、コンパクションにより削除されること。
+     */
+    @Test
+    public void testRollAndCompact() throws Exception {
+        File dir = folder.newFolder();
+        JournalMessagingProvider sut = open(dir).setSegmentSize(4096).setAutoAcknowledge(false);
+        MessagingContext context = sut.createContext();
+        context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", "first"));
+        for (int i = 0; i < 100; i++) {
+            context.sendMessage(newMessage());
+        }
+        File queueDir = new File(dir, "QUEUE");
+        assertTrue(countSegments(queueDir) > 2);
+
+        // 先頭のメッセージのみ確認応答しない。
+        assertEquals("first", context.receiveMessage("QUEUE", null, 1000).getHeader("No"));
+        for (int i = 0; i < 100; i++) {
+            context.acknowledge(context.receiveMessage("QUEUE", null, 1000));
+        }
+        for (int i = 0; i < 100; i++) {
+            context.sendMessage(newMessage());
+            context.acknowledge(context.receiveMessage("QUEUE", null, 1000));
+        }
+        assertTrue(countSegments(queueDir) <= 2);
+        sut.close();
+
+        sut = open(dir);
+        assertEquals(1, sut.getQueueDepth("QUEUE"));
+        assertEquals("first", sut.createContext().receiveMessage("QUEUE", null, 1000).getHeader("No"));
+    }
+
+    private static SendingMessage newMessage() {
+        SendingMessage message = new SendingMessage().setDestination("QUEUE");
+        message.getBodyStream().write(new byte[100], 0, 100);
+        return message;
+    }
+
+    /**
+     * セグメントファイルに収まらないメッセージは送信できないこと。
+     */
+    @Test
+    public void testTooLargeMessage() throws Exception {
+        JournalMessagingProvider sut = open(folder.newFolder()).setSegmentSize(1024);
+        SendingMessage message = new SendingMessage().setDestination("QUEUE");
+        message.getBodyStream().write(new byte[2048], 0, 2048);
+        try {
+            sut.createContext().sendMessage(message);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("the message is too large to be stored."));
+        }
+    }
+
+    /**
+     * 複数のスレッドから同時に送信した場合も、全てのメッセージを1度ずつ受信できること。
+     */
+    @Test
+    public void testConcurrentSend() throws Exception {
+        final JournalMessagingProvider sut = open(folder.newFolder()).setSegmentSize(64 * 1024);
+        final int producerCount = 4;
+        final int messagesPerProducer = 200;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producerCount; i++) {
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    MessagingContext context = sut.createContext();
+                    for (int j = 0; j < messagesPerProducer; j++) {
+                        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        MessagingContext context = sut.createContext();
+        ReceivedMessage message;
+        while ((message = context.receiveMessage("QUEUE", null, 100)) != null) {
+            received.add(message.getMessageId());
+        }
+        assertEquals(producerCount * messagesPerProducer, received.size());
+        assertEquals(received.size(), new HashSet<String>(received).size());
+    }
+
+    /**
+     * ディスクへの書き出しに失敗した場合、その書き出しの完了を待機していた送信に例外が送出されること。
+     */
+    @Test
+    public void testSyncFailure() throws Exception {
+        final AtomicInteger forced = new AtomicInteger();
+        JournalMessagingProvider.GroupSync groupSync = new JournalMessagingProvider.GroupSync(0) {
+            @Override
+            void force(MappedByteBuffer buffer) {
+                if (forced.incrementAndGet() == 1) {
+                    throw new IllegalStateException("disk failure.");
+                }
+                super.force(buffer);
+            }
+        };
+        MappedByteBuffer buffer = mapFile(new File(folder.newFolder(), "failure.log"));
+        try {
+            long failed = groupSync.requestSync(buffer);
+            try {
+                groupSync.awaitSync(failed);
+                fail();
+            } catch (MessagingException e) {
+                assertEquals("disk failure.", e.getCause().getMessage());
+            }
+            // 後続の書き出しが成功した場合は、例外は送出されない。
+            long succeeded = groupSync.requestSync(buffer);
+            groupSync.awaitSync(succeeded);
+            // 失敗した書き出しの完了を後から待機した場合も、例外が送出される。
+            try {
+                groupSync.awaitSync(failed);
+                fail();
+            } catch (MessagingException e) {
+                assertEquals("disk failure.", e.getCause().getMessage());
+            }
+        } finally {
+            groupSync.stop();
+        }
+    }
+
+    /**
+     * 範囲を指定して待機した場合、範囲内のいずれかの書き出しに失敗していれば例外が送出されること。
+     */
+    @Test
+    public void testSyncFailureInRange() throws Exception {
+        final AtomicInteger forced = new AtomicInteger();
+        JournalMessagingProvider.GroupSync groupSync = new JournalMessagingProvider.GroupSync(0) {
+            @Override
+            void force(MappedByteBuffer buffer) {
+                if (forced.incrementAndGet() == 1) {
+                    throw new IllegalStateException("disk failure.");
+                }
+                super.force(buffer);
+            }
+        };
+        MappedByteBuffer buffer = mapFile(new File(folder.newFolder(), "range.log"));
+        try {
+            long first = groupSync.requestSync(buffer);
+            try {
+                groupSync.awaitSync(first);
+                fail();
+            } catch (MessagingException e) {
+                assertEquals("disk failure.", e.getCause().getMessage());
+            }
+            long last = groupSync.requestSync(buffer);
+            // 最後のチケットの書き出しは成功している。
+            groupSync.awaitSync(last);
+            try {
+                groupSync.awaitSync(first, last);
+                fail();
+            } catch (MessagingException e) {
+                assertEquals("disk failure.", e.getCause().getMessage());
+            }
+        } finally {
+            groupSync.stop();
+        }
+    }
+
+    /**
+     * ディスクへの書き出しの完了を待機中に、割り込まれた場合、または停止した場合に例外が送出されること。
+     */
+    @Test
+    public void testAwaitSyncInterruptedOrStopped() throws Exception {
+        JournalMessagingProvider.GroupSync groupSync = new JournalMessagingProvider.GroupSync(500);
+        MappedByteBuffer buffer = mapFile(new File(folder.newFolder(), "interrupted.log"));
+        long ticket = groupSync.requestSync(buffer);
+        Thread.currentThread().interrupt();
+        try {
+            groupSync.awaitSync(ticket);
+            fail();
+        } catch (MessagingException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+            assertTrue(Thread.interrupted());
+        }
+
+        // 停止後に要求された書き出しは完了しない。
+        groupSync.stop();
+        groupSync.awaitSync(ticket);
+        try {
+            groupSync.awaitSync(groupSync.requestSync(buffer));
+            fail();
+        } catch (MessagingException e) {
+            assertTrue(e.getMessage().startsWith("the journal was closed before it was written to the disk."));
+        }
+    }
+
+    /**
+     * プロバイダを閉じた後に送信した場合、{@link IllegalStateException}が送出されること。
+     */
+    @Test
+    public void testSendAfterClose() throws Exception {
+        JournalMessagingProvider provider = open(folder.newFolder());
+        MessagingContext context = provider.createContext();
+        context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", 1));
+        provider.close();
+        try {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", 2));
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("this messaging provider was closed.", e.getMessage());
+        }
+    }
+
+    private static MappedByteBuffer mapFile(File file) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 1024);
+        } finally {
+            raf.close();
+        }
+    }
+}
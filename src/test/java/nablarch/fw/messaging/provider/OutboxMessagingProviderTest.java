@@ -0,0 +1,276 @@
+package nablarch.fw.messaging.provider;
+
+import java.io.File;
+
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link OutboxMessagingProvider}のテスト。
+ */
+public class OutboxMessagingProviderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryMessagingProvider broker = new InMemoryMessagingProvider();
+
+    private final FlakyProvider flaky = new FlakyProvider(broker);
+
+    private OutboxMessagingProvider sut;
+
+    @After
+    public void tearDown() {
+        if (sut != null) {
+            sut.close();
+        }
+    }
+
+    private OutboxMessagingProvider open(File dir) {
+        sut = new OutboxMessagingProvider().setMessagingProvider(flaky)
+                                           .setSpoolDirectory(dir.getPath())
+                                           .setRetryInterval(20);
+        return sut;
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sut.isSpooling() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(sut.isSpooling());
+    }
+
+    /**
+     * 送信できる場合は、ラップしたプロバイダにそのまま送信すること。
+     */
+    @Test
+    public void testSendDirectly() throws Exception {
+        MessagingContext context = open(folder.newFolder()).createContext();
+        String messageId = context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+        assertTrue(messageId.startsWith("ID:inmemory-"));
+        assertFalse(sut.isSpooling());
+        assertEquals(0, sut.getSpoolDepth());
+        assertEquals(messageId, broker.createContext().receiveMessage("QUEUE", null, 1000).getMessageId());
+    }
+
+    /**
+     * 送信に失敗した場合はスプールし、復旧後に送信順に転送すること。
+     */
+    @Test
+    public void testSpoolAndForward() throws Exception {
+        MessagingContext context = open(folder.newFolder()).createContext();
+        flaky.down = true;
+        for (int i = 0; i < 5; i++) {
+            SendingMessage message = new SendingMessage().setDestination("QUEUE").setHeader("No", String.valueOf(i));
+            message.getBodyStream().write(new byte[] {(byte) i}, 0, 1);
+            assertTrue(context.sendMessage(message).startsWith("ID:journal-"));
+        }
+        assertTrue(sut.isSpooling());
+        assertEquals(5, sut.getSpoolDepth());
+        // スプール中はラップしたプロバイダに送信しない。
+        int attempts = flaky.sendAttempts;
+        context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", "5"));
+        Thread.sleep(50);
+        assertTrue(sut.getOldestSpooledAge() >= 50);
+
+        flaky.down = false;
+        awaitDrained();
+        assertEquals(0, sut.getSpoolDepth());
+        assertEquals(6, sut.getForwardedCount());
+        assertTrue(flaky.sendAttempts > attempts);
+
+        // 転送後は直接送信する。
+        context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", "6"));
+        MessagingContext receiver = broker.createContext();
+        for (int i = 0; i < 7; i++) {
+            ReceivedMessage received = receiver.receiveMessage("QUEUE", null, 1000);
+            assertEquals(String.valueOf(i), received.getHeader("No"));
+            assertNull(received.getHeader("OutboxDestination"));
+            if (i < 5) {
+                assertArrayEquals(new byte[] {(byte) i}, received.getBodyBytes());
+            }
+        }
+    }
+
+    /**
+     * 送信の待機時間を過ぎた場合はスプールし、復旧後に転送すること。
+     */
+    @Test
+    public void testSpoolOnSendTimeout() throws Exception {
+        MessagingContext context = open(folder.newFolder()).setSendTimeout(50).createContext();
+        flaky.delay = 1000;
+        long start = System.currentTimeMillis();
+        String messageId = context.sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", "0"));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(messageId.startsWith("ID:journal-"));
+        assertTrue(sut.isSpooling());
+
+        flaky.delay = 0;
+        awaitDrained();
+        ReceivedMessage received = broker.createContext().receiveMessage("QUEUE", null, 1000);
+        assertEquals("0", received.getHeader("No"));
+    }
+
+    /**
+     * 送信の待機時間に負数を指定した場合、例外が送出されること。
+     */
+    @Test
+    public void testInvalidSendTimeout() {
+        try {
+            new OutboxMessagingProvider().setSendTimeout(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("sendTimeout must not be negative. sendTimeout = [-1]", e.getMessage());
+        }
+    }
+
+    /**
+     * スプールしたメッセージが、再起動後に転送されること。
+     */
+    @Test
+    public void testForwardAfterRestart() throws Exception {
+        File dir = folder.newFolder();
+        flaky.down = true;
+        open(dir).createContext().sendMessage(new SendingMessage().setDestination("QUEUE").setHeader("No", "0"));
+        sut.close();
+
+        flaky.down = false;
+        open(dir).createContext();
+        awaitDrained();
+        assertEquals("0", broker.createContext().receiveMessage("QUEUE", null, 1000).getHeader("No"));
+    }
+
+    /**
+     * 応答宛先が設定されたメッセージは、スプールせずに例外を送出すること。
+     */
+    @Test
+    public void testRequestNotSpooled() throws Exception {
+        MessagingContext context = open(folder.newFolder()).createContext();
+        flaky.down = true;
+        try {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE").setReplyTo("REPLY"));
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("broker is down.", e.getMessage());
+        }
+        assertFalse(sut.isSpooling());
+        assertEquals(0, sut.getSpoolDepth());
+    }
+
+    /**
+     * スプール中も、応答宛先が設定されたメッセージはスプールせずに直接送信すること。
+     */
+    @Test
+    public void testRequestNotSpooledWhileSpooling() throws Exception {
+        MessagingContext context = open(folder.newFolder()).createContext();
+        flaky.down = true;
+        context.sendMessage(new SendingMessage().setDestination("QUEUE"));
+        assertTrue(sut.isSpooling());
+        int attempts = flaky.sendAttempts;
+        try {
+            context.sendMessage(new SendingMessage().setDestination("QUEUE").setReplyTo("REPLY"));
+            fail();
+        } catch (MessagingException e) {
+            assertEquals("broker is down.", e.getMessage());
+        }
+        assertTrue(flaky.sendAttempts > attempts);
+        assertEquals(1, sut.getSpoolDepth());
+
+        flaky.down = false;
+        awaitDrained();
+        assertEquals(1, sut.getForwardedCount());
+    }
+
+    /**
+     * 設定が不足している場合は例外を送出すること。
+     */
+    @Test
+    public void testNotSpecified() throws Exception {
+        try {
+            new OutboxMessagingProvider().setSpoolDirectory(folder.newFolder().getPath()).createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("messagingProvider was not specified.", e.getMessage());
+        }
+        try {
+            new OutboxMessagingProvider().setMessagingProvider(flaky).createContext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("spoolDirectory was not specified.", e.getMessage());
+        }
+    }
+
+    /**
+     * 停止中は送信に失敗するプロバイダ。
+     */
+    private static class FlakyProvider implements MessagingProvider {
+
+        private final MessagingProvider delegate;
+
+        private volatile boolean down = false;
+
+        private volatile int sendAttempts = 0;
+
+        private volatile long delay = 0;
+
+        FlakyProvider(MessagingProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        public MessagingContext createContext() {
+            final MessagingContext context = delegate.createContext();
+            return new MessagingContext() {
+                public String sendMessage(SendingMessage message) {
+                    sendAttempts++;
+                    if (down) {
+                        throw new MessagingException("broker is down.");
+                    }
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            throw new MessagingException("sending was interrupted.", e);
+                        }
+                    }
+                    return context.sendMessage(message);
+                }
+
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return context.receiveMessage(receiveQueue, messageId, timeout);
+                }
+
+                public void close() {
+                    context.close();
+                }
+            };
+        }
+
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package nablarch.fw.messaging.reader;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.TestEmbeddedMessagingProvider;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BatchMessageReader}のテスト
+ */
+public class BatchMessageReaderTest {
+
+    private static TestEmbeddedMessagingProvider provider;
+
+    private BatchMessageReader reader;
+
+    private ExecutionContext context;
+
+    @BeforeClass
+    public static void startMessagingServer() {
+        provider = new TestEmbeddedMessagingProvider()
+                      .setQueueNames(Arrays.asList("BATCH.QUEUE"));
+    }
+
+    @AfterClass
+    public static void stopMessagingServer() {
+        TestEmbeddedMessagingProvider.stopServer();
+    }
+
+    @Before
+    public void setUp() {
+        MessagingContext.detach();
+        reader = new BatchMessageReader()
+                    .setReceiveQueueName("BATCH.QUEUE")
+                    .setReadTimeout(500)
+                    .setBatchSize(3)
+                    .setBatchWindow(200);
+        context = new ExecutionContext();
+        MessagingContext.attach(provider.createContext());
+    }
+
+    @After
+    public void tearDown() {
+        MessagingContext.detach();
+    }
+
+    private List<String> send(int count) {
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            sent.add(provider.createContext().send(new SendingMessage().setDestination("BATCH.QUEUE")));
+        }
+        return sent;
+    }
+
+    private List<String> idsOf(List<ReceivedMessage> messages) {
+        List<String> ids = new ArrayList<String>();
+        for (ReceivedMessage message : messages) {
+            ids.add(message.getMessageId());
+        }
+        return ids;
+    }
+
+    /**
+     * 最大件数までの電文をまとめて読み込めること。
+     */
+    @Test
+    public void testRead() {
+        List<String> sent = send(5);
+
+        // 最大件数(3件)まで読める。
+        assertEquals(sent.subList(0, 3), idsOf(reader.read(context)));
+
+        // 残りの2件は待機時間の経過後に読める。
+        assertEquals(sent.subList(3, 5), idsOf(reader.read(context)));
+
+        // キューが空の場合はタイムアウトしてnullが返る。
+        assertNull(reader.read(context));
+
+        // キューが空でも、明示的にclose()するまではとじない。
+        assertTrue(reader.hasNext(context));
+        reader.close(context);
+        assertFalse(reader.hasNext(context));
+        assertNull(reader.read(context));
+    }
+
+    /**
+     * 受信キュー名が設定されていない場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReceiveQueueNameNotSet() {
+        new BatchMessageReader().read(context);
+    }
+
+    /**
+     * 最大件数に0以下を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBatchSize() {
+        new BatchMessageReader().setBatchSize(0);
+    }
+}
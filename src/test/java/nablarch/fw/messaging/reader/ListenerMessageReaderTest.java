@@ -0,0 +1,240 @@
+package nablarch.fw.messaging.reader;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessageListener;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingException;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.MessagingExceptionFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link ListenerMessageReader}のテスト
+ */
+public class ListenerMessageReaderTest {
+
+    private ListenerProvider provider;
+
+    private ExecutionContext context;
+
+    @Before
+    public void setUp() {
+        provider = new ListenerProvider();
+        context = new ExecutionContext();
+    }
+
+    private ListenerMessageReader createReader() {
+        return new ListenerMessageReader()
+                .setMessagingProvider(provider)
+                .setReceiveQueueName("LISTENER.QUEUE")
+                .setReadTimeout(300);
+    }
+
+    private ReceivedMessage message(String id) {
+        return new ReceivedMessage("body".getBytes()).setMessageId(id);
+    }
+
+    /**
+     * 配信された電文を読み込めること。
+     * 処理が完了した電文が確認応答されること。
+     */
+    @Test
+    public void testRead() {
+        ListenerMessageReader reader = createReader();
+
+        // 初回の読み込みでリスナーが登録される。
+        assertNull(reader.read(context));
+        assertEquals("LISTENER.QUEUE", provider.queueName);
+
+        provider.listener.onMessage(message("1"));
+        provider.listener.onMessage(message("2"));
+
+        assertEquals("1", reader.read(context).getMessageId());
+        assertTrue(provider.acknowledged.isEmpty());
+
+        assertEquals("2", reader.read(context).getMessageId());
+        assertEquals(Collections.singletonList("1"), provider.acknowledged);
+
+        // 閉じると、処理中の電文が確認応答され、リスナーが解除される。
+        reader.close(context);
+        assertEquals(2, provider.acknowledged.size());
+        assertNull(provider.listener);
+        assertTrue(provider.closed);
+        assertFalse(reader.hasNext(context));
+        assertNull(reader.read(context));
+    }
+
+    /**
+     * バッファが満杯の場合、リスナーが空きができるまで待機すること。
+     */
+    @Test
+    public void testFlowControl() throws Exception {
+        final ListenerMessageReader reader = createReader().setBufferSize(1);
+        reader.read(context);
+        final MessageListener listener = provider.listener;
+
+        listener.onMessage(message("1"));
+
+        final CountDownLatch delivered = new CountDownLatch(1);
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMessage(message("2"));
+                delivered.countDown();
+            }
+        });
+        broker.start();
+
+        // バッファが満杯のため、配信が完了しない。
+        assertFalse(delivered.await(300, TimeUnit.MILLISECONDS));
+
+        assertEquals("1", reader.read(context).getMessageId());
+        assertTrue(delivered.await(3, TimeUnit.SECONDS));
+        assertEquals("2", reader.read(context).getMessageId());
+        reader.close(context);
+    }
+
+    /**
+     * リーダが閉じられた場合、待機中のリスナーが例外を送出すること。
+     */
+    @Test
+    public void testCloseWhileListenerIsWaiting() throws Exception {
+        final ListenerMessageReader reader = createReader().setBufferSize(1);
+        reader.read(context);
+        final MessageListener listener = provider.listener;
+        listener.onMessage(message("1"));
+
+        final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+        Thread broker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onMessage(message("2"));
+                } catch (Throwable e) {
+                    thrown.set(e);
+                }
+            }
+        });
+        broker.start();
+        Thread.sleep(200);
+
+        reader.close(context);
+        broker.join(3000);
+        assertThat(thrown.get(), instanceOf(MessagingException.class));
+        assertTrue(provider.acknowledged.isEmpty());
+    }
+
+    /**
+     * プロバイダがメッセージリスナーをサポートしていない場合、例外が送出されること。
+     */
+    @Test
+    public void testUnsupportedProvider() {
+        provider.supported = false;
+        try {
+            createReader().read(context);
+            fail("例外が発生する");
+        } catch (UnsupportedOperationException e) {
+            assertThat(e.getMessage().startsWith("this messaging provider does not support message listeners."),
+                       is(true));
+        }
+    }
+
+    /**
+     * メッセージリスナーをサポートするプロバイダ。
+     */
+    private static class ListenerProvider implements MessagingProvider {
+
+        private boolean supported = true;
+
+        private String queueName;
+
+        private volatile MessageListener listener;
+
+        private boolean closed;
+
+        private final List<String> acknowledged = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public MessagingContext createContext() {
+            if (!supported) {
+                return new StubContext();
+            }
+            return new StubContext() {
+                @Override
+                protected void registerMessageListener(String receiveQueue, MessageListener messageListener) {
+                    queueName = receiveQueue;
+                    listener = messageListener;
+                }
+
+                @Override
+                protected void unregisterMessageListener(String receiveQueue) {
+                    listener = null;
+                }
+
+                @Override
+                public void acknowledge(ReceivedMessage message) {
+                    acknowledged.add(message.getMessageId());
+                }
+
+                @Override
+                public void close() {
+                    closed = true;
+                }
+            };
+        }
+
+        @Override
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        @Override
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        @Override
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+
+    /**
+     * 送受信を行わないメッセージングコンテキスト。
+     */
+    private static class StubContext extends MessagingContext {
+
+        @Override
+        public String sendMessage(SendingMessage message) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -193,4 +193,67 @@ public class MessagingReaderTest {
         received = reader.read(context);
         assertTrue(received.getFormatter() instanceof DataRecordFormatter);
     }
+    
+    @Test public void adaptiveIdlePolling() throws Exception {
+        setupReader();
+        reader.setReadTimeout(50)
+              .setMaxReadTimeout(400);
+        
+        // キューが空の間は、受信タイムアウトが 50 -> 100 -> 200 -> 400 と延長される。
+        assertNull(reader.read(context));
+        assertNull(reader.read(context));
+        assertNull(reader.read(context));
+        long start = System.currentTimeMillis();
+        assertNull(reader.read(context));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        
+        // 電文を受信すると、受信タイムアウトが元に戻る。
+        provider.createContext().send(
+            new SendingMessage().setDestination("LOCAL.QUEUE")
+        );
+        assertNotNull(reader.read(context));
+        start = System.currentTimeMillis();
+        assertNull(reader.read(context));
+        assertTrue(System.currentTimeMillis() - start < 300);
+    }
+    
+    @Test public void idleThreadsAreWokenUpWhenMessagesArrive() throws Exception {
+        setupReader();
+        reader.setReadTimeout(50)
+              .setMaxReadTimeout(2000);
+        for (int i = 0; i < 5; i++) {
+            reader.read(context);
+        }
+        
+        // アイドル状態では1スレッドのみが受信を行い、他のスレッドは電文の到着通知を待機する。
+        final ReceivedMessage[] received = new ReceivedMessage[2];
+        Thread[] threads = new Thread[received.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    MessagingContext.attach(provider.createContext());
+                    try {
+                        received[index] = reader.read(new ExecutionContext());
+                    } finally {
+                        MessagingContext.getInstance().close();
+                        MessagingContext.detach();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(200);
+        
+        long start = System.currentTimeMillis();
+        MessagingContext sender = provider.createContext();
+        sender.send(new SendingMessage().setDestination("LOCAL.QUEUE"));
+        sender.send(new SendingMessage().setDestination("LOCAL.QUEUE"));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertNotNull(received[0]);
+        assertNotNull(received[1]);
+    }
 }
@@ -0,0 +1,160 @@
+package nablarch.fw.messaging.reader;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.TestEmbeddedMessagingProvider;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link MultiQueueMessageReader}のテスト
+ */
+public class MultiQueueMessageReaderTest {
+
+    private static TestEmbeddedMessagingProvider provider;
+
+    private ExecutionContext context;
+
+    @BeforeClass
+    public static void startMessagingServer() {
+        provider = new TestEmbeddedMessagingProvider()
+                      .setQueueNames(Arrays.asList("URGENT.QUEUE", "BULK.QUEUE"));
+    }
+
+    @AfterClass
+    public static void stopMessagingServer() {
+        TestEmbeddedMessagingProvider.stopServer();
+    }
+
+    @Before
+    public void setUp() {
+        MessagingContext.detach();
+        context = new ExecutionContext();
+        MessagingContext.attach(provider.createContext());
+    }
+
+    @After
+    public void tearDown() {
+        MessagingContext.detach();
+    }
+
+    private MultiQueueMessageReader reader(String policy, int urgentWeight, int bulkWeight) {
+        return new MultiQueueMessageReader()
+                .setReceiveQueues(Arrays.asList(
+                        new ReceiveQueueSetting().setReceiveQueueName("URGENT.QUEUE").setWeight(urgentWeight),
+                        new ReceiveQueueSetting().setReceiveQueueName("BULK.QUEUE").setWeight(bulkWeight)))
+                .setSchedulingPolicy(policy)
+                .setReadTimeout(300)
+                .setPollInterval(50);
+    }
+
+    private void send(String queueName, int count, int bodySize) {
+        for (int i = 0; i < count; i++) {
+            SendingMessage message = new SendingMessage().setDestination(queueName);
+            message.getBodyStream().write(new byte[bodySize], 0, bodySize);
+            provider.createContext().send(message);
+        }
+    }
+
+    private List<String> readAll(MultiQueueMessageReader reader, int count) {
+        List<String> destinations = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ReceivedMessage message = reader.read(context);
+            destinations.add(message.getDestination());
+        }
+        return destinations;
+    }
+
+    /**
+     * 厳密な優先度の場合、上位の受信キューが空になるまで下位の受信キューから受信しないこと。
+     */
+    @Test
+    public void testPriority() {
+        MultiQueueMessageReader reader = reader(MultiQueueMessageReader.PRIORITY, 1, 1);
+        send("BULK.QUEUE", 3, 1);
+        send("URGENT.QUEUE", 2, 1);
+
+        assertEquals(Arrays.asList("URGENT.QUEUE", "URGENT.QUEUE", "BULK.QUEUE", "BULK.QUEUE", "BULK.QUEUE"),
+                     readAll(reader, 5));
+
+        // 全ての受信キューが空の場合はタイムアウトしてnullが返る。
+        assertNull(reader.read(context));
+
+        assertTrue(reader.hasNext(context));
+        reader.close(context);
+        assertFalse(reader.hasNext(context));
+        assertNull(reader.read(context));
+    }
+
+    /**
+     * 重み付きラウンドロビンの場合、重みの比率に応じた件数を受信し、
+     * 空の受信キューの分は他の受信キューから受信すること。
+     */
+    @Test
+    public void testWeighted() {
+        MultiQueueMessageReader reader = reader(MultiQueueMessageReader.WEIGHTED, 3, 1);
+        send("URGENT.QUEUE", 6, 1);
+        send("BULK.QUEUE", 4, 1);
+
+        assertEquals(Arrays.asList("URGENT.QUEUE", "URGENT.QUEUE", "BULK.QUEUE", "URGENT.QUEUE",
+                                   "URGENT.QUEUE", "URGENT.QUEUE", "BULK.QUEUE", "URGENT.QUEUE",
+                                   "BULK.QUEUE", "BULK.QUEUE"),
+                     readAll(reader, 10));
+        assertNull(reader.read(context));
+    }
+
+    /**
+     * デフィシットラウンドロビンの場合、重みの比率に応じたバイト数を受信すること。
+     */
+    @Test
+    public void testDeficitRoundRobin() {
+        MultiQueueMessageReader reader = reader(MultiQueueMessageReader.DEFICIT_ROUND_ROBIN, 1, 1)
+                .setQuantum(10);
+        send("URGENT.QUEUE", 4, 5);
+        send("BULK.QUEUE", 2, 20);
+
+        // 大きい電文の超過分は次回の巡回に繰り越されるため、BULK.QUEUEは1巡おきに受信される。
+        assertEquals(Arrays.asList("URGENT.QUEUE", "URGENT.QUEUE", "BULK.QUEUE",
+                                   "URGENT.QUEUE", "URGENT.QUEUE", "BULK.QUEUE"),
+                     readAll(reader, 6));
+        assertNull(reader.read(context));
+    }
+
+    /**
+     * 受信キューが設定されていない場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testReceiveQueuesNotSet() {
+        new MultiQueueMessageReader().read(context);
+    }
+
+    /**
+     * 不明なスケジューリング方式を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownSchedulingPolicy() {
+        reader("unknown", 1, 1).read(context);
+    }
+
+    /**
+     * 重みに0以下を設定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWeight() {
+        new ReceiveQueueSetting().setWeight(0);
+    }
+}
@@ -0,0 +1,316 @@
+package nablarch.fw.messaging.reader;
+
+import nablarch.fw.ExecutionContext;
+import nablarch.fw.messaging.MessagingContext;
+import nablarch.fw.messaging.MessagingProvider;
+import nablarch.fw.messaging.ReceivedMessage;
+import nablarch.fw.messaging.SendingMessage;
+import nablarch.fw.messaging.provider.MessagingExceptionFactory;
+import nablarch.fw.messaging.provider.TestEmbeddedMessagingProvider;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link PrefetchingMessageReader}のテスト
+ */
+public class PrefetchingMessageReaderTest {
+
+    private static TestEmbeddedMessagingProvider provider;
+
+    private AcknowledgeRecordingProvider recordingProvider;
+
+    private ExecutionContext context;
+
+    @BeforeClass
+    public static void startMessagingServer() {
+        provider = new TestEmbeddedMessagingProvider()
+                      .setQueueNames(Arrays.asList("PREFETCH.QUEUE"));
+    }
+
+    @AfterClass
+    public static void stopMessagingServer() {
+        TestEmbeddedMessagingProvider.stopServer();
+    }
+
+    @Before
+    public void setUp() {
+        MessagingContext.detach();
+        recordingProvider = new AcknowledgeRecordingProvider(provider);
+        context = new ExecutionContext();
+    }
+
+    private PrefetchingMessageReader createReader() {
+        return new PrefetchingMessageReader()
+                .setMessagingProvider(recordingProvider)
+                .setReceiveQueueName("PREFETCH.QUEUE")
+                .setReadTimeout(3000)
+                .setReceiveTimeout(100);
+    }
+
+    private List<String> send(int count) {
+        List<String> sent = new ArrayList<String>();
+        MessagingContext messagingContext = provider.createContext();
+        try {
+            for (int i = 0; i < count; i++) {
+                sent.add(messagingContext.send(new SendingMessage().setDestination("PREFETCH.QUEUE")));
+            }
+        } finally {
+            messagingContext.close();
+        }
+        return sent;
+    }
+
+    /**
+     * 先読みした電文を読み込めること。
+     * 処理が完了した電文のみ確認応答されること。
+     */
+    @Test
+    public void testRead() throws Exception {
+        PrefetchingMessageReader reader = createReader();
+        List<String> sent = send(3);
+
+        Set<String> read = new HashSet<String>();
+        ReceivedMessage first = reader.read(context);
+        assertNotNull(first);
+        read.add(first.getMessageId());
+
+        // 処理中の電文は確認応答されない。
+        Thread.sleep(300);
+        assertFalse(recordingProvider.acknowledged.contains(first.getMessageId()));
+
+        for (int i = 0; i < 2; i++) {
+            ReceivedMessage received = reader.read(context);
+            assertNotNull(received);
+            read.add(received.getMessageId());
+        }
+        assertEquals(new HashSet<String>(sent), read);
+
+        // キューが空の場合はタイムアウトしてnullが返る。
+        reader.setReadTimeout(300);
+        assertNull(reader.read(context));
+
+        // キューが空でも、明示的にclose()するまではとじない。
+        assertTrue(reader.hasNext(context));
+        reader.close(context);
+        assertFalse(reader.hasNext(context));
+        assertNull(reader.read(context));
+
+        // 閉じた時点ですべての電文が確認応答されている。
+        assertEquals(new HashSet<String>(sent), new HashSet<String>(recordingProvider.acknowledged));
+    }
+
+    /**
+     * 複数の業務スレッドで電文を分担して処理できること。
+     */
+    @Test
+    public void testReadByMultipleThreads() throws Exception {
+        final PrefetchingMessageReader reader = createReader()
+                .setReceiverCount(2)
+                .setPrefetchSize(3)
+                .setReadTimeout(2000);
+        List<String> sent = send(20);
+
+        final Set<String> read = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        for (int i = 0; i < 4; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ExecutionContext ctx = new ExecutionContext();
+                        while (reader.hasNext(ctx)) {
+                            ReceivedMessage message = reader.read(ctx);
+                            if (message == null) {
+                                break;
+                            }
+                            read.add(message.getMessageId());
+                        }
+                        reader.hasNext(ctx);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        reader.close(context);
+
+        assertEquals(new HashSet<String>(sent), read);
+        assertThat(recordingProvider.acknowledged.size(), is(20));
+    }
+
+    /**
+     * クローズ時に先読み済みの電文を処理しない設定の場合、
+     * 未処理の電文が確認応答されずに破棄されること。
+     */
+    @Test
+    public void testCloseWithoutDraining() throws Exception {
+        PrefetchingMessageReader reader = createReader()
+                .setPrefetchSize(5)
+                .setDrainOnClose(false);
+        send(5);
+
+        ReceivedMessage received = reader.read(context);
+        assertNotNull(received);
+        // 残りの電文が先読みされるまで待機する。
+        Thread.sleep(500);
+
+        reader.close(context);
+        assertFalse(reader.hasNext(context));
+        assertNull(reader.read(context));
+        assertEquals(Arrays.asList(received.getMessageId()), recordingProvider.acknowledged);
+
+        // 破棄した電文を受信しておく。
+        MessagingContext messagingContext = provider.createContext();
+        try {
+            while (messagingContext.receiveSync("PREFETCH.QUEUE", 500) != null) {
+                // 何もしない。
+            }
+        } finally {
+            messagingContext.close();
+        }
+    }
+
+    /**
+     * 業務スレッドが終了した後に閉じた場合、シャットダウンタイムアウトまで待機せずに終了すること。
+     * 業務スレッドに渡した電文は確認応答され、渡していない電文は確認応答されずに破棄されること。
+     */
+    @Test
+    public void testCloseAfterWorkersExited() throws Exception {
+        final PrefetchingMessageReader reader = createReader()
+                .setPrefetchSize(5)
+                .setShutdownTimeout(30000);
+        send(5);
+
+        final List<String> read = Collections.synchronizedList(new ArrayList<String>());
+        // 1件処理して、次の電文を読み込まずに終了する業務スレッド
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read.add(reader.read(new ExecutionContext()).getMessageId());
+            }
+        });
+        worker.start();
+        worker.join();
+        // 残りの電文が先読みされるまで待機する。
+        Thread.sleep(500);
+
+        long start = System.currentTimeMillis();
+        reader.close(context);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertFalse(reader.hasNext(context));
+        assertEquals(read, recordingProvider.acknowledged);
+
+        // 破棄した電文を受信しておく。
+        MessagingContext messagingContext = provider.createContext();
+        try {
+            while (messagingContext.receiveSync("PREFETCH.QUEUE", 500) != null) {
+                // 何もしない。
+            }
+        } finally {
+            messagingContext.close();
+        }
+    }
+
+    /**
+     * 必須の設定がされていない場合、例外が送出されること。
+     */
+    @Test
+    public void testNotConfigured() {
+        try {
+            new PrefetchingMessageReader().setMessagingProvider(recordingProvider).read(context);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("the name of the queue this reader watches must be assigned.", e.getMessage());
+        }
+        try {
+            new PrefetchingMessageReader().setReceiveQueueName("PREFETCH.QUEUE").read(context);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("the messaging provider used by receiver threads must be assigned.", e.getMessage());
+        }
+    }
+
+    /**
+     * 不正な設定値を指定した場合、例外が送出されること。
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPrefetchSize() {
+        new PrefetchingMessageReader().setPrefetchSize(0);
+    }
+
+    /**
+     * 確認応答したメッセージIDを記録するプロバイダ。
+     */
+    private static class AcknowledgeRecordingProvider implements MessagingProvider {
+
+        private final MessagingProvider delegate;
+
+        private final List<String> acknowledged = Collections.synchronizedList(new ArrayList<String>());
+
+        AcknowledgeRecordingProvider(MessagingProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MessagingContext createContext() {
+            final MessagingContext context = delegate.createContext();
+            return new MessagingContext() {
+                @Override
+                public String sendMessage(SendingMessage message) {
+                    return context.sendMessage(message);
+                }
+
+                @Override
+                public ReceivedMessage receiveMessage(String receiveQueue, String messageId, long timeout) {
+                    return context.receiveMessage(receiveQueue, messageId, timeout);
+                }
+
+                @Override
+                public void acknowledge(ReceivedMessage message) {
+                    acknowledged.add(message.getMessageId());
+                }
+
+                @Override
+                public void close() {
+                    context.close();
+                }
+            };
+        }
+
+        @Override
+        public MessagingProvider setDefaultResponseTimeout(long timeout) {
+            return this;
+        }
+
+        @Override
+        public MessagingProvider setDefaultTimeToLive(long timeToLive) {
+            return this;
+        }
+
+        @Override
+        public MessagingProvider setMessagingExceptionFactory(MessagingExceptionFactory messagingExceptionFactory) {
+            return this;
+        }
+    }
+}